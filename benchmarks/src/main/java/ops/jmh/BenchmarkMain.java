@@ -0,0 +1,49 @@
+package ops.jmh;
+
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks with the GC profiler, which adds the allocation rate per operation
+ * (gc.alloc.rate.norm), and writes the results as JSON to jmh-result.json so runs can be
+ * compared.  Any JMH command line options are passed through, e.g. a benchmark regexp or
+ * -p indexed=true.
+ */
+public class BenchmarkMain
+{
+  public static void main(String[] args)
+      throws Exception
+  {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+        || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats())
+    {
+      Main.main(args);
+      return;
+    }
+
+    OptionsBuilder options = new OptionsBuilder();
+    options.parent(commandLine);
+    if (commandLine.getIncludes().isEmpty())
+    {
+      options.include("ops\\.jmh\\..*");
+    }
+    options.addProfiler(GCProfiler.class);
+    if (!commandLine.getResultFormat().hasValue())
+    {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    if (!commandLine.getResult().hasValue())
+    {
+      options.result("jmh-result.json");
+    }
+
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,25 @@
+package ops.jmh;
+
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Counts the productions fired, which JMH reports per second next to the sessions per second.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Cycles
+{
+  public long cycles;
+
+  @Setup(Level.Iteration)
+  public void reset()
+  {
+    cycles = 0;
+  }
+}
@@ -0,0 +1,140 @@
+package ops.jmh;
+
+
+import ops.FactCodec;
+import ops.MemoryElement;
+import ops.WorkingMemory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Moving facts between working memories with the binary fact codec, against writing them as JSON
+ * make statements and parsing those back.  Each operation moves the whole batch of facts.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FactCodecBenchmark
+{
+  @Param({ "100000" })
+  public int facts;
+
+  private List<MemoryElement> _facts;
+  private byte[] _binary;
+  private String _json;
+
+  @Setup(Level.Trial)
+  public void encode()
+      throws Exception
+  {
+    _facts = new ArrayList<MemoryElement>(facts);
+    for (int i = 0; i < facts; i++)
+    {
+      _facts.add(new MemoryElement("event", "id", i, "kind", "k" + (i % 100), "score", i / 7.0, "ok", i % 2 == 0, "source", "host-" + (i % 16)));
+    }
+
+    _binary = binaryEncode().toByteArray();
+    _json = jsonEncode().toString();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public ByteArrayOutputStream binaryEncode()
+      throws Exception
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(facts * 32);
+    FactCodec.write(_facts, Channels.newChannel(bytes));
+    return bytes;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public List<MemoryElement> binaryDecode()
+  {
+    List<MemoryElement> decoded = new ArrayList<MemoryElement>(facts);
+    new FactCodec.Decoder().decodeLast(ByteBuffer.wrap(_binary), decoded);
+    return decoded;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public WorkingMemory binaryIntoWorkingMemory()
+      throws Exception
+  {
+    WorkingMemory wm = createWorkingMemory();
+    FactCodec.read(Channels.newChannel(new ByteArrayInputStream(_binary)), wm);
+    wm.drainInMemoryQueue();
+    return wm;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public StringBuilder jsonEncode()
+  {
+    StringBuilder json = new StringBuilder();
+    for (MemoryElement fact : _facts)
+    {
+      JSONArray statement = new JSONArray();
+      statement.put(fact.Type);
+      for (String key : fact.Values.keySet())
+      {
+        statement.put(key);
+        statement.put(fact.Values.get(key));
+      }
+      json.append(statement.toString()).append('\n');
+    }
+    return json;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public WorkingMemory jsonIntoWorkingMemory()
+      throws Exception
+  {
+    WorkingMemory wm = createWorkingMemory();
+    for (String line : _json.split("\n"))
+    {
+      JSONArray statement = new JSONArray(line);
+      MemoryElement element = new MemoryElement(statement.getString(0));
+      for (int j = 1; j < statement.length(); j += 2)
+      {
+        element.Values.put(statement.getString(j), statement.get(j + 1));
+      }
+      wm.make(element);
+    }
+    wm.drainInMemoryQueue();
+    return wm;
+  }
+
+  private static WorkingMemory createWorkingMemory()
+  {
+    WorkingMemory wm = new WorkingMemory();
+    wm.literalize("event", "id", "kind", "score", "ok", "source");
+    return wm;
+  }
+}
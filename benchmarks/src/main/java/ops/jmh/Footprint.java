@@ -0,0 +1,42 @@
+package ops.jmh;
+
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+
+
+/**
+ * Reports the heap per fact ScalingBenchmark measured while loading, next to its time per cycle.
+ * JMH sums event counters over the measurement iterations, so the value is counted in the first
+ * of them only.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class Footprint
+{
+  public long bytesPerFact;
+
+  private boolean _measuring;
+  private boolean _reported;
+
+  @Setup(Level.Iteration)
+  public void reset(IterationParams iteration)
+  {
+    bytesPerFact = 0;
+    _measuring = iteration.getType() == IterationType.MEASUREMENT;
+  }
+
+  void report(long bytes)
+  {
+    if (_measuring && !_reported)
+    {
+      bytesPerFact = bytes;
+      _reported = true;
+    }
+  }
+}
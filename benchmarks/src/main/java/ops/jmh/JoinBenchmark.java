@@ -0,0 +1,80 @@
+package ops.jmh;
+
+
+import ops.OPS;
+import ops.WorkingMemory;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * A synthetic chain join of depth conditions over facts of each type, where each fact joins
+ * fanout facts of the next type.  run consumes every head fact, match enumerates the full join.
+ */
+@State(Scope.Thread)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JoinBenchmark
+{
+  @Param({ "2", "4" })
+  public int depth;
+
+  @Param({ "100", "1000" })
+  public int facts;
+
+  @Param({ "1", "4" })
+  public int fanout;
+
+  @Param({ "false", "true" })
+  public boolean indexed;
+
+  private String _rulebase;
+  private OPS _ops;
+  private WorkingMemory _loaded;
+
+  @Setup(Level.Trial)
+  public void load()
+      throws Exception
+  {
+    _rulebase = Workloads.join(depth, facts, fanout, indexed).toString();
+    _loaded = Workloads.create(new JSONObject(_rulebase)).getWorkingMemory();
+  }
+
+  @Setup(Level.Invocation)
+  public void create()
+      throws Exception
+  {
+    _ops = Workloads.create(new JSONObject(_rulebase));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public int run(Cycles cycles)
+  {
+    int fired = _ops.step(Integer.MAX_VALUE);
+    cycles.cycles += fired;
+    return fired;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int match()
+  {
+    return _loaded.query("chain").size();
+  }
+}
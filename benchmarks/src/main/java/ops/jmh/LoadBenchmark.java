@@ -0,0 +1,78 @@
+package ops.jmh;
+
+
+import ops.OPS;
+import ops.OpsFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Loading a rulebase file through the streaming loader against parsing it into an org.json
+ * document first.  The heap each load allocates is reported by the GC profiler; the peak a
+ * document load needs is better seen by running both with a small -Xmx (-jvmArgs).
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LoadBenchmark
+{
+  @Param({ "100000" })
+  public int facts;
+
+  @Param({ "100" })
+  public int rules;
+
+  private File _file;
+
+  @Setup(Level.Trial)
+  public void write()
+      throws IOException
+  {
+    _file = File.createTempFile("ops-load", ".json");
+    _file.deleteOnExit();
+    Workloads.events(_file, facts, rules);
+  }
+
+  @TearDown(Level.Trial)
+  public void delete()
+  {
+    _file.delete();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public OPS stream()
+  {
+    OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), _file);
+    ops.shutdown();
+    return ops;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public OPS document()
+      throws Exception
+  {
+    OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), OpsFactory.readJSONFile(_file.getPath()));
+    ops.shutdown();
+    return ops;
+  }
+}
@@ -0,0 +1,77 @@
+package ops.jmh;
+
+
+import ops.OPS;
+import ops.WorkingMemory;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Miss Manners: run seats a whole table, match enumerates the seating join over a half seated
+ * table without firing anything.
+ */
+@State(Scope.Thread)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MannersBenchmark
+{
+  @Param({ "16", "64", "128" })
+  public int guests;
+
+  @Param({ "false", "true" })
+  public boolean indexed;
+
+  private String _rulebase;
+  private OPS _ops;
+  private WorkingMemory _halfSeated;
+
+  @Setup(Level.Trial)
+  public void load()
+      throws Exception
+  {
+    _rulebase = Workloads.manners(guests, 5, indexed).toString();
+
+    OPS ops = Workloads.create(new JSONObject(_rulebase));
+    ops.step(guests / 2);
+    _halfSeated = ops.getWorkingMemory();
+  }
+
+  @Setup(Level.Invocation)
+  public void create()
+      throws Exception
+  {
+    _ops = Workloads.create(new JSONObject(_rulebase));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public int run(Cycles cycles)
+  {
+    int fired = _ops.step(Integer.MAX_VALUE);
+    cycles.cycles += fired;
+    return fired;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int match()
+  {
+    return _halfSeated.query("find_seating").size();
+  }
+}
@@ -0,0 +1,23 @@
+package ops.jmh;
+
+
+import ops.OutputSink;
+
+
+class NullOutputSink implements OutputSink
+{
+  @Override
+  public void writeLine(CharSequence line)
+  {
+  }
+
+  @Override
+  public void flush()
+  {
+  }
+
+  @Override
+  public void close()
+  {
+  }
+}
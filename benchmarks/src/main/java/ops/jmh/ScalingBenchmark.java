@@ -0,0 +1,135 @@
+package ops.jmh;
+
+
+import ops.MemoryElement;
+import ops.OPS;
+import ops.WorkingMemory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * How the time per cycle grows with working memory size, rule count and conditions per rule, on
+ * the scaling workload.  The heap taken per fact (the element, its values and the working memory
+ * and index entries), measured on at least 100000 facts, is reported as the bytesPerFact counter,
+ * GC time by the GC profiler.  The defaults keep the suite short; wider sweeps are a matter of JMH
+ * options, e.g.
+ *
+ *   java -Xmx16g -jar benchmarks.jar Scaling -p facts=1000,10000,100000,1000000,10000000 -p rules=10,100,1000,10000
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ScalingBenchmark
+{
+  @Param({ "1000", "100000" })
+  public int facts;
+
+  @Param({ "10", "1000" })
+  public int rules;
+
+  @Param({ "1", "4" })
+  public int conditions;
+
+  @Param({ "true" })
+  public boolean indexed;
+
+  // the heap other threads in the fork churn would swamp a smaller load
+  private static final int FOOTPRINT_FACTS = 100000;
+
+  private OPS _ops;
+  private long _bytesPerFact;
+
+  @Setup(Level.Trial)
+  public void load()
+      throws Exception
+  {
+    _ops = Workloads.create(Workloads.scaling(rules, conditions, indexed));
+
+    if (facts >= FOOTPRINT_FACTS)
+    {
+      long before = usedHeap();
+      make(_ops, facts);
+      _bytesPerFact = (usedHeap() - before) / facts;
+    }
+    else
+    {
+      OPS scratch = Workloads.create(Workloads.scaling(rules, conditions, indexed));
+      long before = usedHeap();
+      make(scratch, FOOTPRINT_FACTS);
+      _bytesPerFact = (usedHeap() - before) / FOOTPRINT_FACTS;
+      scratch.shutdown();
+
+      make(_ops, facts);
+    }
+  }
+
+  private void make(OPS ops, int count)
+  {
+    WorkingMemory wm = ops.getWorkingMemory();
+    List<MemoryElement> batch = new ArrayList<MemoryElement>(4096);
+    for (int id = 0; id < count; id++)
+    {
+      batch.add(new MemoryElement("fact", "id", id, "group", id % rules, "next", (id + 1) % count));
+      if (batch.size() == 4096)
+      {
+        wm.makeAll(batch);
+        wm.drainInMemoryQueue();
+        batch = new ArrayList<MemoryElement>(4096);
+      }
+    }
+    wm.makeAll(batch);
+    wm.drainInMemoryQueue();
+  }
+
+  @TearDown(Level.Trial)
+  public void shutdown()
+  {
+    _ops.shutdown();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int cycle(Footprint footprint)
+  {
+    footprint.report(_bytesPerFact);
+    return _ops.step(1);
+  }
+
+  private static long usedHeap()
+      throws InterruptedException
+  {
+    // other threads in the fork allocate meanwhile and one full collection can leave garbage the
+    // next one frees, so collect until two readings agree
+    Runtime runtime = Runtime.getRuntime();
+    long used = -1;
+    for (int i = 0; i < 20; i++)
+    {
+      System.gc();
+      Thread.sleep(20);
+      long now = runtime.totalMemory() - runtime.freeMemory();
+      if (Math.abs(now - used) < 1024)
+      {
+        break;
+      }
+      used = now;
+    }
+    return used;
+  }
+}
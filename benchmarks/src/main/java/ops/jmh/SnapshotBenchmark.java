@@ -0,0 +1,90 @@
+package ops.jmh;
+
+
+import ops.MemoryElement;
+import ops.OPS;
+import ops.Snapshot;
+import ops.WorkingMemory;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Writing a snapshot of a working memory of the given size, and restoring one into a new session.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SnapshotBenchmark
+{
+  @Param({ "1000000" })
+  public int facts;
+
+  private OPS _ops;
+  private File _snapshot;
+  private File _written;
+
+  @Setup(Level.Trial)
+  public void load()
+      throws Exception
+  {
+    _ops = new OPS();
+    WorkingMemory wm = _ops.getWorkingMemory();
+    wm.literalize(new MemoryElement("event", "id", null, "kind", null, "actor", null, "score", 0.0));
+    for (int i = 0; i < facts; i++)
+    {
+      wm.insert(new MemoryElement("event", "id", i, "kind", "k" + (i % 100), "actor", "actor " + (i % 1000), "score", (i % 100) + 0.5));
+    }
+
+    _snapshot = File.createTempFile("ops", ".snapshot");
+    _snapshot.deleteOnExit();
+    Snapshot.write(_ops, _snapshot);
+
+    _written = File.createTempFile("ops", ".snapshot");
+    _written.deleteOnExit();
+  }
+
+  @TearDown(Level.Trial)
+  public void shutdown()
+  {
+    _ops.shutdown();
+    _snapshot.delete();
+    _written.delete();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long write()
+      throws Exception
+  {
+    Snapshot.write(_ops, _written);
+    return _written.length();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public OPS restore()
+      throws Exception
+  {
+    OPS restored = new OPS();
+    Snapshot.restore(restored, _snapshot);
+    restored.shutdown();
+    return restored;
+  }
+}
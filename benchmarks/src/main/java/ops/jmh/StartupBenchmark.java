@@ -0,0 +1,88 @@
+package ops.jmh;
+
+
+import ops.Command;
+import ops.OPS;
+import ops.OpsFactory;
+import ops.RulebaseCodec;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Loading a rulebase from JSON against loading its compiled binary form.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StartupBenchmark
+{
+  @Param({ "100000" })
+  public int facts;
+
+  @Param({ "10000" })
+  public int rules;
+
+  private Map<String, Command> _registry;
+  private File _json;
+  private File _compiled;
+
+  @Setup(Level.Trial)
+  public void compile()
+      throws Exception
+  {
+    _registry = OpsFactory.getDefaultRegistry();
+
+    _json = File.createTempFile("ops-startup", ".json");
+    _json.deleteOnExit();
+    Workloads.events(_json, facts, rules);
+
+    _compiled = File.createTempFile("ops-startup", ".opsb");
+    _compiled.deleteOnExit();
+    OPS ops = OpsFactory.create(_registry, _json);
+    RulebaseCodec.write(ops, _registry, _compiled);
+    ops.shutdown();
+  }
+
+  @TearDown(Level.Trial)
+  public void delete()
+  {
+    _json.delete();
+    _compiled.delete();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public OPS json()
+  {
+    OPS ops = OpsFactory.create(_registry, _json);
+    ops.shutdown();
+    return ops;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public OPS compiled()
+  {
+    OPS ops = OpsFactory.create(_registry, _compiled);
+    ops.shutdown();
+    return ops;
+  }
+}
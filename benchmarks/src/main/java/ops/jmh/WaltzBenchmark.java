@@ -0,0 +1,78 @@
+package ops.jmh;
+
+
+import ops.OPS;
+import ops.WorkingMemory;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Waltz: run labels a whole drawing, match enumerates the junction propagation join over a
+ * drawing whose boundary has been labeled.
+ */
+@State(Scope.Thread)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WaltzBenchmark
+{
+  @Param({ "4", "8", "12" })
+  public int size;
+
+  @Param({ "false", "true" })
+  public boolean indexed;
+
+  private String _rulebase;
+  private OPS _ops;
+  private WorkingMemory _labeled;
+
+  @Setup(Level.Trial)
+  public void load()
+      throws Exception
+  {
+    _rulebase = Workloads.waltz(size, size, indexed).toString();
+
+    // the boundary has 4 * (size - 1) edges, then one cycle switches to propagation
+    OPS ops = Workloads.create(new JSONObject(_rulebase));
+    ops.step(4 * (size - 1) + 1);
+    _labeled = ops.getWorkingMemory();
+  }
+
+  @Setup(Level.Invocation)
+  public void create()
+      throws Exception
+  {
+    _ops = Workloads.create(new JSONObject(_rulebase));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public int run(Cycles cycles)
+  {
+    int fired = _ops.step(Integer.MAX_VALUE);
+    cycles.cycles += fired;
+    return fired;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int match()
+  {
+    return _labeled.query("propagate_junction").size();
+  }
+}
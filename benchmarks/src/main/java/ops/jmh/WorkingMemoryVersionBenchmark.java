@@ -0,0 +1,116 @@
+package ops.jmh;
+
+
+import ops.MemoryElement;
+import ops.OPS;
+import ops.ProductionSpec;
+import ops.Query;
+import ops.QueryElement;
+import ops.QueryResult;
+import ops.Rule;
+import ops.WorkingMemory;
+import ops.commands.modify;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Readers querying published working memory versions while the engine runs.  Each cycle moves
+ * one item between two places; each read takes the latest version and looks up one item by id,
+ * a scan of the item type as versions carry no indexes.  The engine and read times are reported
+ * separately; the number of readers is set with -tg, e.g. -tg 1,8 for eight.
+ */
+@State(Scope.Group)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WorkingMemoryVersionBenchmark
+{
+  @State(Scope.Thread)
+  public static class Reader
+  {
+    int Next;
+  }
+
+  @Param({ "100000" })
+  public int items;
+
+  private OPS _ops;
+  private Query _byId;
+
+  @Setup(Level.Trial)
+  public void create()
+  {
+    _ops = new OPS();
+    WorkingMemory wm = _ops.getWorkingMemory();
+    wm.literalize(new MemoryElement("item", "id", null, "where", null));
+    for (int i = 0; i < items; i++)
+    {
+      wm.make(new MemoryElement("item", "id", i, "where", "left"));
+    }
+    wm.drainInMemoryQueue();
+
+    // the item just moved is the most recent match, so one item goes back and forth
+    _ops.addRule(move("left", "right"));
+    _ops.addRule(move("right", "left"));
+    wm.createIndex("item", "where");
+
+    List<QueryElement> conditions = new ArrayList<QueryElement>();
+    conditions.add(new QueryElement("item", "id", "$id", "where", "$where"));
+    _byId = new Query("by_id", conditions, "$id");
+
+    _ops.awaitWorkingMemoryVersion();
+  }
+
+  @TearDown(Level.Trial)
+  public void shutdown()
+  {
+    _ops.shutdown();
+  }
+
+  @Benchmark
+  @Group("versions")
+  @GroupThreads(1)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int engine()
+  {
+    return _ops.step(1);
+  }
+
+  @Benchmark
+  @Group("versions")
+  @GroupThreads(3)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public List<QueryResult> read(Reader reader)
+  {
+    reader.Next = (reader.Next + 7919) % items;
+    return _ops.getWorkingMemoryVersion().query(_byId, reader.Next);
+  }
+
+  private static Rule move(String from, String to)
+  {
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("item", "where", from));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new modify(), 0, "where", to));
+    return new Rule("move_" + to, query, productions);
+  }
+}
@@ -0,0 +1,301 @@
+package ops.jmh;
+
+
+import ops.OPS;
+import ops.OpsFactory;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * Builds the benchmark sessions: the rules come from the JSON rulebases next to this class,
+ * the facts are generated from a fixed seed, and both are loaded through OpsFactory like any
+ * other rulebase.  With indexed set, the attributes the rules join on are indexed.
+ */
+public class Workloads
+{
+  private static final long SEED = 0x5EED;
+
+  // guests alternate sex and each has 2-4 of the given number of hobbies
+  public static JSONObject manners(int guests, int hobbies, boolean indexed)
+      throws IOException, JSONException
+  {
+    JSONObject rulebase = load("manners.json");
+    JSONArray ops = rulebase.getJSONArray("ops");
+    Random random = new Random(SEED);
+
+    for (int i = 0; i < guests; i++)
+    {
+      String name = "g" + i;
+      ops.put(statement("make", "guest", "name", name, "sex", i % 2 == 0 ? "m" : "f"));
+      ops.put(statement("make", "unseated", "guest", name));
+
+      int count = 2 + random.nextInt(3);
+      for (int j = 0; j < count; j++)
+      {
+        ops.put(statement("make", "hobby", "guest", name, "hobby", "h" + random.nextInt(hobbies)));
+      }
+    }
+    for (int i = 1; i <= guests; i++)
+    {
+      ops.put(statement("make", "next", "n", i, "succ", i + 1));
+    }
+
+    if (indexed)
+    {
+      ops.put(statement("index", "guest", "name"));
+      ops.put(statement("index", "hobby", "guest", "hobby"));
+      ops.put(statement("index", "unseated", "guest"));
+      ops.put(statement("index", "seating", "last"));
+      ops.put(statement("index", "next", "n"));
+    }
+
+    return rulebase;
+  }
+
+  // a width x height grid of junctions; the outer edges are the boundary, traversed clockwise
+  public static JSONObject waltz(int width, int height, boolean indexed)
+      throws IOException, JSONException
+  {
+    JSONObject rulebase = load("waltz.json");
+    JSONArray ops = rulebase.getJSONArray("ops");
+
+    String[] types = { "L", "fork", "arrow", "T" };
+    String[] labels = { ">", "<", "+", "-" };
+    Random random = new Random(SEED);
+    for (String type : types)
+    {
+      for (String in : labels)
+      {
+        // each junction type allows a couple of labels next to each incoming label
+        ops.put(statement("make", "legal", "type", type, "in", in, "out", labels[random.nextInt(labels.length)]));
+        ops.put(statement("make", "legal", "type", type, "in", in, "out", labels[random.nextInt(labels.length)]));
+      }
+    }
+
+    for (int y = 0; y < height; y++)
+    {
+      for (int x = 0; x < width; x++)
+      {
+        int degree = (x > 0 ? 1 : 0) + (x < width - 1 ? 1 : 0) + (y > 0 ? 1 : 0) + (y < height - 1 ? 1 : 0);
+        String type = degree == 2 ? "L" : (degree == 3 ? types[1 + (x + y) % 2] : types[(x * 7 + y) % types.length]);
+        ops.put(statement("make", "junction", "id", junction(x, y), "type", type));
+
+        if (x < width - 1)
+        {
+          line(ops, junction(x, y), junction(x + 1, y), y == 0, y == height - 1);
+        }
+        if (y < height - 1)
+        {
+          line(ops, junction(x, y), junction(x, y + 1), x == width - 1, x == 0);
+        }
+      }
+    }
+
+    if (indexed)
+    {
+      ops.put(statement("index", "edge", "from", "label"));
+      ops.put(statement("index", "junction", "id"));
+      ops.put(statement("index", "legal", "type"));
+      ops.put(statement("index", "converse", "label"));
+    }
+
+    return rulebase;
+  }
+
+  /**
+   * A chain of depth conditions t0 .. t(depth - 1), each joined to the next on a variable, with
+   * facts of each type; each cycle consumes one t0 fact.  The join selectivity is one in
+   * fanout: every fact has fanout successors among facts of the next type.
+   */
+  public static JSONObject join(int depth, int facts, int fanout, boolean indexed)
+      throws JSONException
+  {
+    JSONObject rulebase = new JSONObject();
+    rulebase.put("name", "join");
+    JSONArray ops = new JSONArray();
+    rulebase.put("ops", ops);
+
+    for (int d = 0; d < depth; d++)
+    {
+      ops.put(statement("literalize", "t" + d, "id", "key"));
+    }
+    JSONArray query = new JSONArray();
+    for (int d = 0; d < depth; d++)
+    {
+      // each condition's id joins the previous condition's key
+      query.put(statement("t" + d, "id", d == 0 ? "$x0" : "$k" + d, "key", "$k" + (d + 1)));
+    }
+
+    JSONArray actions = new JSONArray();
+    actions.put(statement("remove", 0));
+    ops.put(statement("p", "chain", query, actions));
+    ops.put(statement("query", "chain", query));
+
+    Random random = new Random(SEED);
+    int keys = Math.max(1, facts / fanout);
+    for (int d = 0; d < depth; d++)
+    {
+      for (int i = 0; i < facts; i++)
+      {
+        int id = d == 0 ? i : i % keys;
+        ops.put(statement("make", "t" + d, "id", id, "key", random.nextInt(keys)));
+      }
+      if (indexed)
+      {
+        ops.put(statement("index", "t" + d, "id"));
+      }
+    }
+
+    return rulebase;
+  }
+
+  /**
+   * rules rules r0 .. r(rules - 1), without facts: ri waits for the phase to be i, then joins a
+   * chain of conditions over fact elements starting from one in group i.  Firing moves that fact
+   * and the phase on to group i + 1, so a session never runs out of activations and every cycle
+   * walks half the rules on average and runs one join of the given depth.
+   */
+  public static JSONObject scaling(int rules, int conditions, boolean indexed)
+      throws JSONException
+  {
+    JSONObject rulebase = new JSONObject();
+    rulebase.put("name", "scaling");
+    JSONArray ops = new JSONArray();
+    rulebase.put("ops", ops);
+
+    ops.put(statement("literalize", "fact", "id", "group", "next"));
+    ops.put(statement("literalize", "phase", "group"));
+
+    for (int i = 0; i < rules; i++)
+    {
+      JSONArray query = new JSONArray();
+      query.put(statement("phase", "group", i));
+      query.put(statement("fact", "group", i, "next", "$n1"));
+      for (int j = 2; j <= conditions; j++)
+      {
+        query.put(statement("fact", "id", "$n" + (j - 1), "next", "$n" + j));
+      }
+
+      JSONArray actions = new JSONArray();
+      actions.put(statement("modify", 1, "group", (i + 1) % rules));
+      actions.put(statement("modify", 0, "group", (i + 1) % rules));
+      ops.put(statement("p", "r" + i, query, actions));
+    }
+
+    if (indexed)
+    {
+      ops.put(statement("index", "phase", "group"));
+      ops.put(statement("index", "fact", "group", "id"));
+    }
+    ops.put(statement("make", "phase", "group", 0));
+
+    return rulebase;
+  }
+
+  // a rulebase file of event facts, each rule consuming the events of one kind; written out as
+  // text so the loaders can be timed on it
+  public static void events(File file, int facts, int rules)
+      throws IOException
+  {
+    Writer writer = new BufferedWriter(new FileWriter(file));
+    try
+    {
+      writer.write("{\n  \"name\": \"load\",\n  \"ops\":\n    [\n");
+      writer.write("      [\"literalize\", \"goal\", \"type\"],\n");
+      writer.write("      [\"literalize\", \"event\", \"id\", \"kind\", \"actor\", {\"score\": 0}],\n");
+      writer.write("      [\"make\", \"goal\", \"type\", \"run\"]");
+
+      for (int i = 0; i < rules; i++)
+      {
+        writer.write(
+          String.format(
+            ",\n      [\"p\", \"rule_%d\", [[\"goal\", \"type\", \"run\"], [\"event\", \"kind\", \"k%d\", \"actor\", \"$actor\"]], [[\"write\", \"{0}\", \"$actor\"], [\"remove\", 1]]]",
+            i,
+            i));
+      }
+
+      for (int i = 0; i < facts; i++)
+      {
+        writer.write(
+          String.format(
+            ",\n      [\"make\", \"event\", \"id\", %d, \"kind\", \"k%d\", \"actor\", \"actor %d\", \"score\", %d.5]",
+            i,
+            i % Math.max(rules, 1),
+            i % 1000,
+            i % 100));
+      }
+
+      writer.write("\n    ]\n}\n");
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  public static OPS create(JSONObject rulebase)
+      throws JSONException
+  {
+    OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), rulebase);
+    ops.setOutputSink(new NullOutputSink());
+    return ops;
+  }
+
+  private static String junction(int x, int y)
+  {
+    return x + "," + y;
+  }
+
+  // both directions of a line; a boundary line is labeled in the direction that keeps the drawing on the right
+  private static void line(JSONArray ops, String a, String b, boolean forwardBoundary, boolean backwardBoundary)
+  {
+    ops.put(statement("make", "edge", "from", a, "to", b, "boundary", forwardBoundary));
+    ops.put(statement("make", "edge", "from", b, "to", a, "boundary", backwardBoundary));
+  }
+
+  private static JSONArray statement(Object... items)
+  {
+    JSONArray statement = new JSONArray();
+    for (Object item : items)
+    {
+      statement.put(item);
+    }
+    return statement;
+  }
+
+  private static JSONObject load(String name)
+      throws IOException, JSONException
+  {
+    InputStream in = Workloads.class.getResourceAsStream(name);
+    if (in == null)
+    {
+      throw new IOException("missing rulebase resource: " + name);
+    }
+
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0)
+      {
+        bytes.write(buffer, 0, n);
+      }
+      return new JSONObject(new String(bytes.toByteArray(), "UTF-8"));
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+}
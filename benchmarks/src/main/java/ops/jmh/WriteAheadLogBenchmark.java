@@ -0,0 +1,118 @@
+package ops.jmh;
+
+
+import ops.MemoryElement;
+import ops.OPS;
+import ops.ProductionSpec;
+import ops.QueryElement;
+import ops.Rule;
+import ops.WorkingMemory;
+import ops.WriteAheadLog;
+import ops.commands.modify;
+import ops.commands.remove;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The cost of the write-ahead log per recognize-act cycle under each sync policy, against no log.
+ * Every cycle consumes one event fact and records its id in a tally fact, so the log takes an
+ * insert, a modify, a remove and a fired rule per commit.  Each iteration starts a new log file.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class WriteAheadLogBenchmark
+{
+  @Param({ "none", "never", "interval", "commit" })
+  public String sync;
+
+  private OPS _ops;
+  private WorkingMemory _wm;
+  private WriteAheadLog _log;
+  private File _file;
+  private int _id;
+
+  @Setup(Level.Trial)
+  public void create()
+  {
+    _ops = new OPS();
+    _wm = _ops.getWorkingMemory();
+    _wm.literalize(new MemoryElement("event", "id", null, "kind", null));
+    _wm.literalize(new MemoryElement("tally", "last", null));
+    _wm.make(new MemoryElement("tally", "last", -1));
+    _wm.drainInMemoryQueue();
+
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("event", "id", "$id"));
+    query.add(new QueryElement("tally"));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new modify(), 1, "last", "$id"));
+    productions.add(new ProductionSpec(new remove(), 0));
+    _ops.addRule(new Rule("consume", query, productions));
+  }
+
+  @TearDown(Level.Trial)
+  public void shutdown()
+  {
+    _ops.shutdown();
+  }
+
+  @Setup(Level.Iteration)
+  public void open()
+      throws Exception
+  {
+    if (sync.equals("none")) return;
+
+    _file = File.createTempFile("ops", ".wal");
+    _file.deleteOnExit();
+    _log = WriteAheadLog.open(_file, syncPolicy(sync));
+    _ops.setWriteAheadLog(_log);
+  }
+
+  @TearDown(Level.Iteration)
+  public void close()
+      throws Exception
+  {
+    if (_log == null) return;
+
+    _ops.setWriteAheadLog(null);
+    _log.close();
+    _log = null;
+    _file.delete();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int cycle()
+  {
+    int id = _id++;
+    _wm.make(new MemoryElement("event", "id", id, "kind", "k" + (id % 100)));
+    return _ops.step(1);
+  }
+
+  private static int syncPolicy(String sync)
+  {
+    if (sync.equals("never")) return WriteAheadLog.SYNC_NEVER;
+    if (sync.equals("interval")) return WriteAheadLog.SYNC_INTERVAL;
+    if (sync.equals("commit")) return WriteAheadLog.SYNC_COMMIT;
+    throw new IllegalArgumentException("unknown sync policy: " + sync);
+  }
+}
@@ -0,0 +1,7 @@
+package ops;
+
+
+public interface Action
+{
+  void exec(CommandContext context) throws Exception;
+}
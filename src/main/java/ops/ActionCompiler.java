@@ -0,0 +1,65 @@
+package ops;
+
+
+import java.util.Map;
+
+
+public class ActionCompiler
+{
+  private final Rule _rule;
+  private final Map<String, Integer> _varSlots;
+  private final WorkingMemory _wm;
+
+  ActionCompiler(Rule rule, Map<String, Integer> varSlots, WorkingMemory wm)
+  {
+    _rule = rule;
+    _varSlots = varSlots;
+    _wm = wm;
+  }
+
+  public String getRuleName()
+  {
+    return _rule.Name;
+  }
+
+  public ValueRef compileValue(Object param)
+  {
+    if (!PreparedQuery.isVar(param)) return new ValueRef(param);
+
+    String name = (String) param;
+    if (!_varSlots.containsKey(name))
+    {
+      _varSlots.put(name, _varSlots.size());
+    }
+    return new ValueRef(name, _varSlots.get(name));
+  }
+
+  public ValueRef[] compileValues(Object[] params, int startIdx)
+  {
+    ValueRef[] refs = new ValueRef[params.length - startIdx];
+    for (int i = 0; i < refs.length; i++)
+    {
+      refs[i] = compileValue(params[startIdx + i]);
+    }
+    return refs;
+  }
+
+  public QueryElement getQueryElement(int idx)
+  {
+    if (idx < 0 || idx >= _rule.Query.size())
+    {
+      throw new IllegalArgumentException(String.format("idx %d > match set in rule %s", idx, _rule.Name));
+    }
+    QueryElement qe = _rule.Query.get(idx);
+    if (qe.Negated || qe.Aggregates != null)
+    {
+      throw new IllegalArgumentException(String.format("idx %d in rule %s is a negated or aggregate condition, which matches no element", idx, _rule.Name));
+    }
+    return qe;
+  }
+
+  public MemoryElement getTemplate(String type)
+  {
+    return _wm.getTemplate(type);
+  }
+}
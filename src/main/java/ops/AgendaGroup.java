@@ -0,0 +1,62 @@
+package ops;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * The rules of one agenda group in conflict resolution order.  Rules with a fixed salience are kept
+ * sorted, highest salience first, so matching can stop at the first tier that yields an activation.
+ * Rules whose salience is taken from a binding are kept apart, since every activation of them has to
+ * be seen to find the one with the highest salience.
+ */
+class AgendaGroup
+{
+  final List<PreparedRule> Rules = new ArrayList<PreparedRule>();
+  final List<PreparedRule> Dynamic = new ArrayList<PreparedRule>();
+
+  void add(PreparedRule rule, Comparator<PreparedRule> order)
+  {
+    List<PreparedRule> rules = rule.isDynamic() ? Dynamic : Rules;
+    rules.add(insertionPoint(rules, rule, order), rule);
+  }
+
+  void remove(PreparedRule rule)
+  {
+    (rule.isDynamic() ? Dynamic : Rules).remove(rule);
+  }
+
+  boolean isEmpty()
+  {
+    return Rules.isEmpty() && Dynamic.isEmpty();
+  }
+
+  void sort(Comparator<PreparedRule> order)
+  {
+    Collections.sort(Rules, order);
+    Collections.sort(Dynamic, order);
+  }
+
+  // after every rule that comes before or ties with the new one, which is where a stable sort would put it
+  static int insertionPoint(List<PreparedRule> rules, PreparedRule rule, Comparator<PreparedRule> order)
+  {
+    int lo = 0;
+    int hi = rules.size();
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if (order.compare(rules.get(mid), rule) <= 0)
+      {
+        lo = mid + 1;
+      }
+      else
+      {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
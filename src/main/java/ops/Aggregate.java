@@ -0,0 +1,115 @@
+package ops;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * One value an aggregate condition binds: the count of the elements in its group, or the sum,
+ * minimum or maximum of one of their attributes, optionally tested with a relational predicate.
+ * Written as {"$var": "count"}, {"$var": ["sum", key]} or {"$var": ["max", key, {"&gt;": 10}]}.
+ * Sums skip values that are not numbers, min and max those that are neither numbers nor strings.
+ */
+class Aggregate
+{
+  static final int COUNT = 0;
+  static final int SUM = 1;
+  static final int MIN = 2;
+  static final int MAX = 3;
+
+  private static final String[] FUNCTIONS = { "count", "sum", "min", "max" };
+
+  final String Var;
+  final int Function;
+  final String Key;
+  final Predicate Test;
+  final int Slot;
+
+  private Aggregate(String var, int function, String key, Predicate test, int slot)
+  {
+    Var = var;
+    Function = function;
+    Key = key;
+    Test = test;
+    Slot = slot;
+  }
+
+  // aggregates ordered by variable name, each bound to the slot varSlots already holds for it
+  static Aggregate[] compile(JSONObject spec, Map<String, Integer> varSlots)
+  {
+    try
+    {
+      List<String> vars = vars(spec);
+      Aggregate[] aggregates = new Aggregate[vars.size()];
+      for (int i = 0; i < aggregates.length; i++)
+      {
+        String var = vars.get(i);
+        Object value = spec.get(var);
+        JSONArray args = value instanceof JSONArray ? (JSONArray) value : new JSONArray().put(value);
+
+        int function = function(args.getString(0));
+        int next = 1;
+        String key = null;
+        if (function != COUNT)
+        {
+          if (args.length() < 2)
+          {
+            throw new IllegalArgumentException(String.format("%s of %s takes an attribute", args.getString(0), var));
+          }
+          key = args.getString(next++);
+        }
+
+        Predicate test = null;
+        if (next < args.length())
+        {
+          if (!Predicate.isPredicate(args.get(next)))
+          {
+            throw new IllegalArgumentException(String.format("aggregate %s can only be tested with a predicate: %s", var, value));
+          }
+          test = Predicate.compile(args.getJSONObject(next), varSlots);
+        }
+
+        aggregates[i] = new Aggregate(var, function, key, test, varSlots.get(var));
+      }
+      return aggregates;
+    }
+    catch (JSONException e)
+    {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  static List<String> vars(JSONObject spec)
+  {
+    List<String> vars = new ArrayList<String>();
+    Iterator<?> keys = spec.keys();
+    while (keys.hasNext())
+    {
+      vars.add((String) keys.next());
+    }
+    Collections.sort(vars);
+    return vars;
+  }
+
+  private static int function(String name)
+  {
+    for (int i = 0; i < FUNCTIONS.length; i++)
+    {
+      if (FUNCTIONS[i].equals(name)) return i;
+    }
+    throw new IllegalArgumentException("unknown aggregate: " + name);
+  }
+
+  @Override
+  public String toString()
+  {
+    return Key == null ? FUNCTIONS[Function] : FUNCTIONS[Function] + "(" + Key + ")";
+  }
+}
@@ -0,0 +1,292 @@
+package ops;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Groups the elements of a type that pass a negated or aggregate condition's constant tests by the
+ * values of the attributes the condition joins on, keeping a count per group and, for an aggregate
+ * condition, running sums and the ordered values min and max are read from.  Working memory updates
+ * it as elements come and go, so a partial match finds its group with one hash lookup: a negated
+ * condition is blocked by a non-empty group, an aggregate condition binds the group's values.
+ * Conditions with the same tests and aggregates share one index.
+ *
+ * Counts and sums are updated in constant time, min and max in time logarithmic in the number of
+ * distinct values in the group.  Empty groups are dropped.  Working memory tells its group
+ * listeners of every change to a group, by the index's signature and the group's key, which is
+ * how refraction retires the activations that used the group.
+ */
+class AggregateIndex
+{
+  private static final Aggregate[] NONE = new Aggregate[0];
+  // returned by add and remove for an element that fails the tests, so belongs to no group
+  static final Object UNGROUPED = new Object();
+
+  // told of each change to a group, after the group has taken its new stamp
+  interface Listener
+  {
+    void changed(String signature, Object key);
+  }
+
+  final String Signature;
+  final String Type;
+  int References;
+
+  private final PreparedQuery.Condition _filter;
+  private final String[] _keys;
+  private final Aggregate[] _aggregates;
+  private final Object[] _none = new Object[0];
+  private final Map<Object, Group> _groups = new HashMap<Object, Group>();
+
+  /**
+   * The elements of one group.  Its stamp, used as the time tag of the element an aggregate
+   * condition binds, is taken from working memory's stamp counter on each change.  Stamps are
+   * negative, so they never equal a time tag, and a group that has no elements has stamp 0.
+   */
+  static class Group
+  {
+    int Count;
+    long Stamp;
+
+    private final Aggregate[] _aggregates;
+    // integral parts of sums, the sum of the other numbers, and how many of those there are
+    private final long[] _sums;
+    private final double[] _fractions;
+    private final int[] _fractional;
+    private final TreeMap<Object, int[]>[] _values;
+    private MemoryElement _result;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    Group(Aggregate[] aggregates)
+    {
+      _aggregates = aggregates;
+      _sums = new long[aggregates.length];
+      _fractions = new double[aggregates.length];
+      _fractional = new int[aggregates.length];
+      _values = new TreeMap[aggregates.length];
+      for (int i = 0; i < aggregates.length; i++)
+      {
+        if (aggregates[i].Function == Aggregate.MIN || aggregates[i].Function == Aggregate.MAX)
+        {
+          _values[i] = new TreeMap<Object, int[]>(AttributeIndex.ORDER);
+        }
+      }
+    }
+
+    void add(MemoryElement element)
+    {
+      Count++;
+      update(element, 1);
+    }
+
+    void remove(MemoryElement element)
+    {
+      Count--;
+      update(element, -1);
+    }
+
+    private void update(MemoryElement element, int delta)
+    {
+      _result = null;
+
+      for (int i = 0; i < _aggregates.length; i++)
+      {
+        Aggregate aggregate = _aggregates[i];
+        if (aggregate.Function == Aggregate.COUNT) continue;
+
+        Object value = element.Values.get(aggregate.Key);
+        if (aggregate.Function == Aggregate.SUM)
+        {
+          if (!(value instanceof Number)) continue;
+          if (Predicate.isIntegral(value))
+          {
+            _sums[i] += delta * ((Number) value).longValue();
+          }
+          else
+          {
+            _fractions[i] += delta * ((Number) value).doubleValue();
+            _fractional[i] += delta;
+            if (_fractional[i] == 0) _fractions[i] = 0;
+          }
+        }
+        else if (AttributeIndex.isOrdered(value))
+        {
+          int[] count = _values[i].get(value);
+          if (count == null)
+          {
+            if (delta > 0) _values[i].put(value, new int[] { 1 });
+          }
+          else if ((count[0] += delta) == 0)
+          {
+            _values[i].remove(value);
+          }
+        }
+      }
+    }
+
+    Object value(int i)
+    {
+      switch (_aggregates[i].Function)
+      {
+        case Aggregate.COUNT:
+          return Count;
+        case Aggregate.SUM:
+          if (_fractional[i] > 0) return _sums[i] + _fractions[i];
+          if (_sums[i] == (int) _sums[i]) return (int) _sums[i];
+          return _sums[i];
+        case Aggregate.MIN:
+          return _values[i].isEmpty() ? null : _values[i].firstKey();
+        default:
+          return _values[i].isEmpty() ? null : _values[i].lastKey();
+      }
+    }
+
+    // the group's values by variable name, with its stamp as time tag, standing in for the
+    // element an aggregate condition matched
+    MemoryElement result(String type)
+    {
+      if (_result == null)
+      {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < _aggregates.length; i++)
+        {
+          values.put(_aggregates[i].Var, value(i));
+        }
+        _result = MemoryElement.wrap(type, values);
+        _result.TimeTag = Stamp;
+      }
+      return _result;
+    }
+  }
+
+  AggregateIndex(PreparedQuery.Condition condition)
+  {
+    Signature = condition.GroupSignature;
+    Type = condition.Type;
+
+    _filter = new PreparedQuery.Condition();
+    _filter.Type = condition.Type;
+    _filter.Tests = condition.GroupFilter;
+    _filter.BindSlots = new int[0];
+    _keys = condition.GroupKeys;
+    _aggregates = condition.Aggregates != null ? condition.Aggregates : NONE;
+  }
+
+  // the key of the group the element joined, or UNGROUPED
+  Object add(MemoryElement element, long stamp)
+  {
+    if (!_filter.test(element, _none)) return UNGROUPED;
+
+    Object key = key(element);
+    Group group = _groups.get(key);
+    if (group == null)
+    {
+      group = new Group(_aggregates);
+      _groups.put(key, group);
+    }
+    group.add(element);
+    group.Stamp = stamp;
+    return key;
+  }
+
+  // the key of the group the element left, or UNGROUPED
+  Object remove(MemoryElement element, long stamp)
+  {
+    if (!_filter.test(element, _none)) return UNGROUPED;
+
+    Object key = key(element);
+    Group group = _groups.get(key);
+    if (group == null) return UNGROUPED;
+
+    group.remove(element);
+    group.Stamp = stamp;
+    if (group.Count == 0)
+    {
+      _groups.remove(key);
+    }
+    return key;
+  }
+
+  // the key of the group the element belongs to, or UNGROUPED, without changing the group
+  Object group(MemoryElement element)
+  {
+    return _filter.test(element, _none) ? key(element) : UNGROUPED;
+  }
+
+  void clear()
+  {
+    _groups.clear();
+  }
+
+  void addAll(List<MemoryElement> elements, long stamp)
+  {
+    if (elements == null) return;
+    for (MemoryElement element : elements)
+    {
+      add(element, stamp);
+    }
+  }
+
+  // the group of the values bound to the join slots, or null if it has no elements
+  Group get(Object[] vars, int[] slots)
+  {
+    if (_groups.isEmpty()) return null;
+
+    switch (slots.length)
+    {
+      case 0: return _groups.get(Boolean.TRUE);
+      case 1: return _groups.get(vars[slots[0]]);
+    }
+    return _groups.get(key(vars, slots));
+  }
+
+  // the key of the group of the values bound to the join slots, as key(element) gives it
+  static Object key(Object[] vars, int[] slots)
+  {
+    switch (slots.length)
+    {
+      case 0: return Boolean.TRUE;
+      case 1: return vars[slots[0]];
+    }
+
+    Object[] values = new Object[slots.length];
+    for (int i = 0; i < slots.length; i++)
+    {
+      values[i] = vars[slots[i]];
+    }
+    return Arrays.asList(values);
+  }
+
+  // whether any counted element has the values bound to the join slots
+  boolean blocks(Object[] vars, int[] slots)
+  {
+    Group group = get(vars, slots);
+    return group != null && group.Count > 0;
+  }
+
+  int size()
+  {
+    return _groups.size();
+  }
+
+  private Object key(MemoryElement element)
+  {
+    switch (_keys.length)
+    {
+      case 0: return Boolean.TRUE;
+      case 1: return element.Values.get(_keys[0]);
+    }
+
+    Object[] values = new Object[_keys.length];
+    for (int i = 0; i < _keys.length; i++)
+    {
+      values[i] = element.Values.get(_keys[i]);
+    }
+    return Arrays.asList(values);
+  }
+}
@@ -0,0 +1,252 @@
+package ops;
+
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import org.json.JSONObject;
+
+
+/**
+ * A hash index of the elements of one type by the value of one attribute.  Each bucket keeps its
+ * elements in the order they entered it.  Missing attributes and JSON nulls are both indexed under
+ * null, since conditions may treat either as null; the condition's own tests tell them apart.
+ *
+ * A sorted index keeps numbers and strings in a sorted map instead, so relational predicates can
+ * look up a range.  Numbers that are equal in value share a bucket whatever their type.
+ */
+class AttributeIndex
+{
+  final String Type;
+  final String Key;
+  final boolean Sorted;
+
+  static final Comparator<Object> ORDER = new Comparator<Object>()
+  {
+    @Override
+    public int compare(Object a, Object b)
+    {
+      return Predicate.compare(a, b);
+    }
+  };
+
+  private final Map<Object, Set<MemoryElement>> _buckets = new HashMap<Object, Set<MemoryElement>>();
+  private final NavigableMap<Object, Set<MemoryElement>> _sorted;
+
+  AttributeIndex(String type, String key)
+  {
+    this(type, key, false);
+  }
+
+  AttributeIndex(String type, String key, boolean sorted)
+  {
+    Type = type;
+    Key = key;
+    Sorted = sorted;
+    _sorted = sorted ? new TreeMap<Object, Set<MemoryElement>>(ORDER) : null;
+  }
+
+  private Map<Object, Set<MemoryElement>> buckets(Object value)
+  {
+    return _sorted != null && isOrdered(value) ? _sorted : _buckets;
+  }
+
+  static boolean isOrdered(Object value)
+  {
+    return value instanceof Number || value instanceof String;
+  }
+
+  void add(MemoryElement element)
+  {
+    Object value = key(element.Values.get(Key));
+    Map<Object, Set<MemoryElement>> buckets = buckets(value);
+    Set<MemoryElement> bucket = buckets.get(value);
+    if (bucket == null)
+    {
+      bucket = new LinkedHashSet<MemoryElement>();
+      buckets.put(value, bucket);
+    }
+    bucket.add(element);
+  }
+
+  void remove(MemoryElement element)
+  {
+    remove(element, key(element.Values.get(Key)));
+  }
+
+  // moves a modified element to the bucket of its new value, if the value changed
+  void update(MemoryElement element, Object oldValue)
+  {
+    Object value = key(element.Values.get(Key));
+    oldValue = key(oldValue);
+    if (value == null ? oldValue == null : value.equals(oldValue)) return;
+    if (_sorted != null && Predicate.isComparable(value, oldValue) && Predicate.compare(value, oldValue) == 0) return;
+
+    remove(element, oldValue);
+    add(element);
+  }
+
+  private void remove(MemoryElement element, Object value)
+  {
+    Map<Object, Set<MemoryElement>> buckets = buckets(value);
+    Set<MemoryElement> bucket = buckets.get(value);
+    if (bucket == null) return;
+
+    bucket.remove(element);
+    if (bucket.isEmpty())
+    {
+      buckets.remove(value);
+    }
+  }
+
+  Collection<MemoryElement> get(Object value)
+  {
+    value = key(value);
+    Set<MemoryElement> bucket = buckets(value).get(value);
+    return bucket != null ? bucket : Collections.<MemoryElement>emptySet();
+  }
+
+  // the elements with any of the values, bucket by bucket in the order of the values
+  Collection<MemoryElement> getAll(Collection<?> values)
+  {
+    final List<Set<MemoryElement>> buckets = new ArrayList<Set<MemoryElement>>(values.size());
+    for (Object value : values)
+    {
+      value = key(value);
+      Set<MemoryElement> bucket = buckets(value).get(value);
+      // numbers equal in value share a bucket of a sorted index
+      if (bucket != null && !containsBucket(buckets, bucket))
+      {
+        buckets.add(bucket);
+      }
+    }
+
+    switch (buckets.size())
+    {
+      case 0: return Collections.emptySet();
+      case 1: return buckets.get(0);
+      default: return flatten(buckets);
+    }
+  }
+
+  private static boolean containsBucket(List<Set<MemoryElement>> buckets, Set<MemoryElement> bucket)
+  {
+    for (Set<MemoryElement> other : buckets)
+    {
+      if (other == bucket) return true;
+    }
+    return false;
+  }
+
+  /**
+   * The elements of a sorted index whose value lies between low and high, both inclusive and
+   * either one null for no bound, in value order.  Numeric bounds also take in strings past them,
+   * which the predicate's own test then rejects.
+   */
+  Collection<MemoryElement> range(Object low, Object high)
+  {
+    if ((low != null && !isOrdered(low)) || (high != null && !isOrdered(high)))
+    {
+      return Collections.emptySet();
+    }
+    if (low != null && high != null && Predicate.compare(low, high) > 0)
+    {
+      return Collections.emptySet();
+    }
+
+    final NavigableMap<Object, Set<MemoryElement>> range;
+    if (low == null)
+    {
+      range = high == null ? _sorted : _sorted.headMap(high, true);
+    }
+    else
+    {
+      range = high == null ? _sorted.tailMap(low, true) : _sorted.subMap(low, true, high, true);
+    }
+
+    return flatten(range.values());
+  }
+
+  // a view of the elements of the buckets, one bucket after the other
+  private static Collection<MemoryElement> flatten(final Collection<Set<MemoryElement>> sets)
+  {
+    return new AbstractCollection<MemoryElement>()
+    {
+      @Override
+      public Iterator<MemoryElement> iterator()
+      {
+        final Iterator<Set<MemoryElement>> buckets = sets.iterator();
+
+        return new Iterator<MemoryElement>()
+        {
+          private Iterator<MemoryElement> _bucket = Collections.<MemoryElement>emptySet().iterator();
+
+          @Override
+          public boolean hasNext()
+          {
+            while (!_bucket.hasNext())
+            {
+              if (!buckets.hasNext()) return false;
+              _bucket = buckets.next().iterator();
+            }
+            return true;
+          }
+
+          @Override
+          public MemoryElement next()
+          {
+            if (!hasNext()) throw new NoSuchElementException();
+            return _bucket.next();
+          }
+
+          @Override
+          public void remove()
+          {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public int size()
+      {
+        int size = 0;
+        for (Set<MemoryElement> bucket : sets)
+        {
+          size += bucket.size();
+        }
+        return size;
+      }
+    };
+  }
+
+  private static Object key(Object value)
+  {
+    return value == JSONObject.NULL ? null : value;
+  }
+
+  int getDistinctCount()
+  {
+    return _buckets.size() + (_sorted != null ? _sorted.size() : 0);
+  }
+
+  void clear()
+  {
+    _buckets.clear();
+    if (_sorted != null)
+    {
+      _sorted.clear();
+    }
+  }
+}
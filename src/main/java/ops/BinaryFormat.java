@@ -0,0 +1,374 @@
+package ops;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Shared primitives for the binary rulebase, snapshot and log formats: unsigned and zigzag
+ * varints, a string dictionary that writes each distinct string once and refers back to it
+ * by index, and tagged values.
+ */
+class BinaryFormat
+{
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final byte NULL = 0;
+  static final byte STRING = 1;
+  static final byte INT = 2;
+  static final byte LONG = 3;
+  static final byte DOUBLE = 4;
+  static final byte TRUE = 5;
+  static final byte FALSE = 6;
+  static final byte JSON_NULL = 7;
+  static final byte JSON_ARRAY = 8;
+  static final byte JSON_OBJECT = 9;
+
+  static class Encoder
+  {
+    private final WritableByteChannel _channel;
+    private ByteBuffer _buf;
+    private final Map<String, Integer> _strings = new HashMap<String, Integer>();
+    private long _written = 0;
+
+    // with a null channel the encoder grows its buffer instead of flushing it
+    Encoder(WritableByteChannel channel, int bufferSize)
+    {
+      _channel = channel;
+      _buf = ByteBuffer.allocate(bufferSize);
+    }
+
+    long position()
+    {
+      return _written + _buf.position();
+    }
+
+    ByteBuffer buffer()
+    {
+      return _buf;
+    }
+
+    void resetStrings()
+    {
+      _strings.clear();
+    }
+
+    int stringCount()
+    {
+      return _strings.size();
+    }
+
+    void flush()
+        throws IOException
+    {
+      if (_channel == null) return;
+
+      _buf.flip();
+      while (_buf.hasRemaining())
+      {
+        _written += _channel.write(_buf);
+      }
+      _buf.clear();
+    }
+
+    private void ensure(int n)
+        throws IOException
+    {
+      if (_buf.remaining() >= n) return;
+
+      flush();
+
+      if (_buf.remaining() < n)
+      {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(_buf.capacity() * 2, _buf.position() + n));
+        _buf.flip();
+        larger.put(_buf);
+        _buf = larger;
+      }
+    }
+
+    void writeByte(int b)
+        throws IOException
+    {
+      ensure(1);
+      _buf.put((byte) b);
+    }
+
+    void writeInt(int v)
+        throws IOException
+    {
+      ensure(4);
+      _buf.putInt(v);
+    }
+
+    void writeLong(long v)
+        throws IOException
+    {
+      ensure(8);
+      _buf.putLong(v);
+    }
+
+    void writeVarLong(long v)
+        throws IOException
+    {
+      ensure(10);
+      while ((v & ~0x7FL) != 0)
+      {
+        _buf.put((byte) ((v & 0x7F) | 0x80));
+        v >>>= 7;
+      }
+      _buf.put((byte) v);
+    }
+
+    void writeVarInt(int v)
+        throws IOException
+    {
+      writeVarLong(v & 0xFFFFFFFFL);
+    }
+
+    void writeSignedVarLong(long v)
+        throws IOException
+    {
+      writeVarLong((v << 1) ^ (v >> 63));
+    }
+
+    void writeBytes(byte[] bytes)
+        throws IOException
+    {
+      writeVarInt(bytes.length);
+      ensure(bytes.length);
+      _buf.put(bytes);
+    }
+
+    void writeString(String s)
+        throws IOException
+    {
+      Integer idx = _strings.get(s);
+      if (idx != null)
+      {
+        writeVarInt(idx + 1);
+        return;
+      }
+
+      _strings.put(s, _strings.size());
+      writeVarInt(0);
+      writeBytes(s.getBytes(UTF8));
+    }
+
+    void writeValue(Object value)
+        throws IOException
+    {
+      if (value == null)
+      {
+        writeByte(NULL);
+      }
+      else if (value instanceof String)
+      {
+        writeByte(STRING);
+        writeString((String) value);
+      }
+      else if (value instanceof Integer)
+      {
+        writeByte(INT);
+        writeSignedVarLong((Integer) value);
+      }
+      else if (value instanceof Long)
+      {
+        writeByte(LONG);
+        writeSignedVarLong((Long) value);
+      }
+      else if (value instanceof Double)
+      {
+        writeByte(DOUBLE);
+        writeLong(Double.doubleToRawLongBits((Double) value));
+      }
+      else if (value instanceof Boolean)
+      {
+        writeByte(((Boolean) value) ? TRUE : FALSE);
+      }
+      else if (value == JSONObject.NULL)
+      {
+        writeByte(JSON_NULL);
+      }
+      else if (value instanceof JSONArray)
+      {
+        writeByte(JSON_ARRAY);
+        writeBytes(value.toString().getBytes(UTF8));
+      }
+      else if (value instanceof JSONObject)
+      {
+        writeByte(JSON_OBJECT);
+        writeBytes(value.toString().getBytes(UTF8));
+      }
+      else
+      {
+        throw new IllegalArgumentException("unsupported value type: " + value.getClass().getName());
+      }
+    }
+
+    void writeValues(Map<String, Object> values)
+        throws IOException
+    {
+      writeVarInt(values.size());
+      for (Map.Entry<String, Object> entry : values.entrySet())
+      {
+        writeString(entry.getKey());
+        writeValue(entry.getValue());
+      }
+    }
+  }
+
+  static class Decoder
+  {
+    private ByteBuffer _buf;
+    private final List<String> _strings = new ArrayList<String>();
+    private byte[] _scratch = new byte[256];
+
+    Decoder(ByteBuffer buf)
+    {
+      _buf = buf;
+    }
+
+    ByteBuffer buffer()
+    {
+      return _buf;
+    }
+
+    void setBuffer(ByteBuffer buf)
+    {
+      _buf = buf;
+    }
+
+    void resetStrings()
+    {
+      _strings.clear();
+    }
+
+    boolean hasRemaining()
+    {
+      return _buf.hasRemaining();
+    }
+
+    byte readByte()
+    {
+      return _buf.get();
+    }
+
+    int readInt()
+    {
+      return _buf.getInt();
+    }
+
+    long readLong()
+    {
+      return _buf.getLong();
+    }
+
+    long readVarLong()
+    {
+      long v = 0;
+      int shift = 0;
+      while (true)
+      {
+        byte b = _buf.get();
+        v |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) return v;
+        shift += 7;
+        if (shift > 63)
+        {
+          throw new IllegalArgumentException("malformed varint");
+        }
+      }
+    }
+
+    int readVarInt()
+    {
+      return (int) readVarLong();
+    }
+
+    long readSignedVarLong()
+    {
+      long v = readVarLong();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    String readUtf8()
+    {
+      int len = readVarInt();
+      if (_buf.hasArray())
+      {
+        String s = new String(_buf.array(), _buf.arrayOffset() + _buf.position(), len, UTF8);
+        _buf.position(_buf.position() + len);
+        return s;
+      }
+      if (_scratch.length < len)
+      {
+        _scratch = new byte[Math.max(len, _scratch.length * 2)];
+      }
+      _buf.get(_scratch, 0, len);
+      return new String(_scratch, 0, len, UTF8);
+    }
+
+    String readString()
+    {
+      int ref = readVarInt();
+      if (ref > 0) return _strings.get(ref - 1);
+
+      String s = readUtf8();
+      _strings.add(s);
+      return s;
+    }
+
+    Object readValue()
+    {
+      byte tag = _buf.get();
+      switch (tag)
+      {
+        case NULL: return null;
+        case STRING: return readString();
+        case INT: return (int) readSignedVarLong();
+        case LONG: return readSignedVarLong();
+        case DOUBLE: return Double.longBitsToDouble(_buf.getLong());
+        case TRUE: return Boolean.TRUE;
+        case FALSE: return Boolean.FALSE;
+        case JSON_NULL: return JSONObject.NULL;
+        case JSON_ARRAY:
+        case JSON_OBJECT:
+          String json = readUtf8();
+          try
+          {
+            return tag == JSON_ARRAY ? new JSONArray(json) : new JSONObject(json);
+          }
+          catch (JSONException e)
+          {
+            throw new IllegalArgumentException(e);
+          }
+        default:
+          throw new IllegalArgumentException("unknown value tag: " + tag);
+      }
+    }
+
+    Map<String, Object> readValues()
+    {
+      int count = readVarInt();
+      Map<String, Object> values = new HashMap<String, Object>(Math.max(4, count * 4 / 3 + 1));
+      for (int i = 0; i < count; i++)
+      {
+        String key = readString();
+        values.put(key, readValue());
+      }
+      return values;
+    }
+  }
+}
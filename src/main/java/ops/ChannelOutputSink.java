@@ -0,0 +1,262 @@
+package ops;
+
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+
+public class ChannelOutputSink implements OutputSink
+{
+  public static final int DEFAULT_BATCH_SIZE = 8 * 1024;
+  public static final int DEFAULT_MAX_BUFFERED = 8 * 1024 * 1024;
+  public static final long DEFAULT_FLUSH_INTERVAL_MS = 50;
+
+  private static ChannelOutputSink _stdout;
+
+  private final WritableByteChannel _channel;
+  private final boolean _closeChannel;
+  private final CharsetEncoder _encoder;
+  private final ByteBuffer _bytes = ByteBuffer.allocateDirect(64 * 1024);
+  private final int _batchSize;
+  private final int _maxBuffered;
+  private final long _flushIntervalMs;
+
+  private final Object _lock = new Object();
+  private final Object _writeLock = new Object();
+  private StringBuilder _active = new StringBuilder();
+  private StringBuilder _spare = new StringBuilder();
+  private volatile boolean _closed = false;
+  private final Thread _writer;
+
+  public static synchronized ChannelOutputSink stdout()
+  {
+    if (_stdout == null)
+    {
+      _stdout = new ChannelOutputSink(new FileOutputStream(FileDescriptor.out).getChannel(), false);
+
+      Runtime.getRuntime().addShutdownHook(new Thread()
+      {
+        @Override
+        public void run()
+        {
+          _stdout.flush();
+        }
+      });
+    }
+    return _stdout;
+  }
+
+  public static ChannelOutputSink open(File file, boolean append)
+      throws IOException
+  {
+    return new ChannelOutputSink(new FileOutputStream(file, append).getChannel(), true);
+  }
+
+  public ChannelOutputSink(WritableByteChannel channel, boolean closeChannel)
+  {
+    this(channel, closeChannel, Charset.defaultCharset(), DEFAULT_BATCH_SIZE, DEFAULT_MAX_BUFFERED, DEFAULT_FLUSH_INTERVAL_MS);
+  }
+
+  public ChannelOutputSink(
+    WritableByteChannel channel,
+    boolean closeChannel,
+    Charset charset,
+    int batchSize,
+    int maxBuffered,
+    long flushIntervalMs)
+  {
+    _channel = channel;
+    _closeChannel = closeChannel;
+    _encoder = charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    _batchSize = batchSize;
+    _maxBuffered = maxBuffered;
+    _flushIntervalMs = flushIntervalMs;
+
+    _writer = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        writeLoop();
+      }
+    }, "ops-output");
+    _writer.setDaemon(true);
+    _writer.start();
+  }
+
+  @Override
+  public void writeLine(CharSequence line)
+  {
+    synchronized (_lock)
+    {
+      if (_closed)
+      {
+        throw new IllegalStateException("output sink is closed");
+      }
+
+      // only back-pressure the caller when the writer has fallen far behind
+      while (_active.length() >= _maxBuffered && !_closed)
+      {
+        try
+        {
+          _lock.wait();
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      // closed while waiting: the writer has stopped, so the line would be lost
+      if (_closed)
+      {
+        throw new IllegalStateException("output sink is closed");
+      }
+
+      _active.append(line).append('\n');
+
+      if (_active.length() >= _batchSize)
+      {
+        _lock.notifyAll();
+      }
+    }
+  }
+
+  private void writeLoop()
+  {
+    while (!_closed)
+    {
+      synchronized (_lock)
+      {
+        if (_active.length() < _batchSize && !_closed)
+        {
+          try
+          {
+            _lock.wait(_flushIntervalMs);
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+        }
+      }
+
+      drain();
+    }
+  }
+
+  @Override
+  public void flush()
+  {
+    drain();
+  }
+
+  @Override
+  public void close()
+  {
+    synchronized (_lock)
+    {
+      if (_closed) return;
+      _closed = true;
+      _lock.notifyAll();
+    }
+
+    try
+    {
+      _writer.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    drain();
+
+    if (_closeChannel)
+    {
+      try
+      {
+        _channel.close();
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void drain()
+  {
+    synchronized (_writeLock)
+    {
+      StringBuilder batch;
+
+      synchronized (_lock)
+      {
+        if (_active.length() == 0) return;
+        batch = _active;
+        _active = _spare;
+        _lock.notifyAll();
+      }
+
+      try
+      {
+        write(batch);
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+      finally
+      {
+        batch.setLength(0);
+        _spare = batch;
+      }
+    }
+  }
+
+  private void write(CharSequence batch)
+      throws IOException
+  {
+    CharBuffer in = CharBuffer.wrap(batch);
+
+    _encoder.reset();
+
+    CoderResult result;
+    do
+    {
+      result = _encoder.encode(in, _bytes, true);
+      writeBytes();
+    }
+    while (result.isOverflow());
+
+    do
+    {
+      result = _encoder.flush(_bytes);
+      writeBytes();
+    }
+    while (result.isOverflow());
+  }
+
+  private void writeBytes()
+      throws IOException
+  {
+    _bytes.flip();
+    while (_bytes.hasRemaining())
+    {
+      _channel.write(_bytes);
+    }
+    _bytes.clear();
+  }
+}
@@ -0,0 +1,51 @@
+package ops;
+
+
+class CommandAction implements Action
+{
+  final Command Command;
+  final ValueRef[] Params;
+  final Object[] ConstantArgs;
+
+  CommandAction(Command command, ValueRef[] params)
+  {
+    Command = command;
+    Params = params;
+
+    Object[] constantArgs = new Object[params.length];
+    for (int i = 0; i < params.length; i++)
+    {
+      if (!params[i].isConstant())
+      {
+        constantArgs = null;
+        break;
+      }
+      constantArgs[i] = params[i].getConstant();
+    }
+    ConstantArgs = constantArgs;
+  }
+
+  boolean isAsync()
+  {
+    return Command instanceof AsyncCommand;
+  }
+
+  Object[] resolveArgs(CommandContext context)
+  {
+    if (ConstantArgs != null) return ConstantArgs;
+
+    Object[] args = new Object[Params.length];
+    for (int i = 0; i < args.length; i++)
+    {
+      args[i] = Params[i].get(context);
+    }
+    return args;
+  }
+
+  @Override
+  public void exec(CommandContext context)
+      throws Exception
+  {
+    Command.exec(context, resolveArgs(context));
+  }
+}
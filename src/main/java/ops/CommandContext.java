@@ -1,6 +1,7 @@
 package ops;
 
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,15 +9,29 @@ import java.util.Map;
 
 public class CommandContext
 {
-  Map<String, Object> _vars;
+  Map<String, Integer> _varSlots;
+  Object[] _vars;
+  Map<String, Object> _extraVars;
   List<MemoryElement> _elements;
   OPS _ops;
   Rule _rule;
 
   public CommandContext(OPS ops, Rule rule, List<MemoryElement> elements, Map<String, Object> vars)
+  {
+    this(ops, rule, elements, new HashMap<String, Integer>(), new Object[0]);
+    _extraVars = new HashMap<String, Object>(vars);
+  }
+
+  CommandContext(OPS ops, Rule rule, MemoryElement[] elements, Map<String, Integer> varSlots, Object[] vars)
+  {
+    this(ops, rule, Arrays.asList(elements), varSlots, vars);
+  }
+
+  private CommandContext(OPS ops, Rule rule, List<MemoryElement> elements, Map<String, Integer> varSlots, Object[] vars)
   {
     _ops = ops;
     _elements = elements;
+    _varSlots = varSlots;
     _vars = vars;
     _rule = rule;
   }
@@ -26,6 +41,21 @@ public class CommandContext
     _ops.halt();
   }
 
+  public void focus(String... groups)
+  {
+    _ops.focus(groups);
+  }
+
+  public void popFocus()
+  {
+    _ops.popFocus();
+  }
+
+  public OutputSink getOutputSink()
+  {
+    return _ops.getOutputSink();
+  }
+
   public void remove(int idx)
   {
     if (idx >= _elements.size())
@@ -41,9 +71,14 @@ public class CommandContext
     return _ops.getWorkingMemory().make(element);
   }
 
+  public MemoryElement make(String type, String[] keys, Object[] values)
+  {
+    return _ops.getWorkingMemory().make(type, keys, values);
+  }
+
   public MemoryElement modify(int idx, Map<String, Object> values)
   {
-    if (idx > _elements.size())
+    if (idx >= _elements.size())
     {
       throw new IllegalArgumentException(String.format("idx %d > match set", idx));
     }
@@ -56,10 +91,20 @@ public class CommandContext
       {
         throw new IllegalArgumentException("missing field name in element: " + key);
       }
-      element.Values.put(key, values.get(key));
     }
 
-    return element;
+    return _ops.getWorkingMemory().modify(element, values);
+  }
+
+  // keys are expected to have been validated against the element when the action was compiled
+  public MemoryElement modify(int idx, String[] keys, Object[] values)
+  {
+    return _ops.getWorkingMemory().modify(_elements.get(idx), keys, values);
+  }
+
+  public MemoryElement getElement(int idx)
+  {
+    return _elements.get(idx);
   }
 
   public Map<String, Object> resolveValues(Map<String, Object> values)
@@ -100,17 +145,48 @@ public class CommandContext
 
   public boolean hasVar(String name)
   {
-    return _vars.containsKey(name);
+    Integer slot = _varSlots.get(name);
+    if (slot != null && slot < _vars.length)
+    {
+      return _vars[slot] != PreparedQuery.UNBOUND;
+    }
+    return _extraVars != null && _extraVars.containsKey(name);
   }
 
   public Object getVar(String name)
   {
-    return _vars.get(name);
+    Integer slot = _varSlots.get(name);
+    if (slot != null && slot < _vars.length)
+    {
+      Object val = _vars[slot];
+      return val == PreparedQuery.UNBOUND ? null : val;
+    }
+    return _extraVars != null ? _extraVars.get(name) : null;
+  }
+
+  Object getVar(int slot, String name)
+  {
+    Object val = _vars[slot];
+    if (val == PreparedQuery.UNBOUND)
+    {
+      throw new IllegalArgumentException("missing var:" + name);
+    }
+    return val;
   }
 
   public void setVar(String name, Object val)
   {
-    _vars.put(name, val);
+    Integer slot = _varSlots.get(name);
+    if (slot != null && slot < _vars.length)
+    {
+      _vars[slot] = val;
+      return;
+    }
+    if (_extraVars == null)
+    {
+      _extraVars = new HashMap<String, Object>();
+    }
+    _extraVars.put(name, val);
   }
 
   public void make(String msg, Object... args)
@@ -0,0 +1,11 @@
+package ops;
+
+
+public interface CompilableCommand extends Command
+{
+  /**
+   * Compile the production params into an Action when the rule is added.
+   * Return null to fall back to resolving the params and calling exec on every firing.
+   */
+  Action compile(ActionCompiler compiler, Object[] params);
+}
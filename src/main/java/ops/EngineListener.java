@@ -0,0 +1,61 @@
+package ops;
+
+
+/**
+ * Hooks into the recognize-act cycle of an OPS instance, see OPS.addListener().  Every method
+ * does nothing by default, so listeners only override the events they care about.
+ *
+ * Events are plain calls on the engine thread (except asyncCompleted), and nothing is built for
+ * them while no listener is registered.  The element arrays passed in are reused by the engine,
+ * so listeners must copy what they want to keep.
+ */
+public abstract class EngineListener implements WorkingMemoryListener
+{
+  public void cycleStarted(long cycle)
+  {
+  }
+
+  // fired is false for the last cycle of a run, which found nothing to fire
+  public void cycleEnded(long cycle, boolean fired)
+  {
+  }
+
+  @Override
+  public void inserted(MemoryElement element)
+  {
+  }
+
+  @Override
+  public void removed(MemoryElement element)
+  {
+  }
+
+  @Override
+  public void modified(MemoryElement element, long oldTimeTag)
+  {
+  }
+
+  @Override
+  public void restored()
+  {
+  }
+
+  /**
+   * An activation that has not fired yet was found during conflict resolution.  There is no
+   * agenda kept between cycles, so an activation that does not fire is found again (and
+   * reported again) in the next cycle it still matches in.
+   */
+  public void activated(Rule rule, MemoryElement[] elements)
+  {
+  }
+
+  // the activation that won conflict resolution, reported before its actions run
+  public void fired(Rule rule, MemoryElement[] elements)
+  {
+  }
+
+  // called on the production pool thread once an asynchronous command is done; error is null if it succeeded
+  public void asyncCompleted(Rule rule, Throwable error)
+  {
+  }
+}
@@ -0,0 +1,213 @@
+package ops;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Keeps the last events of an engine in a fixed size ring, for looking at what led up to a
+ * problem after the fact.  The ring's slots are allocated up front and reused, so recording
+ * does not allocate once each slot has seen an activation of the same size.
+ */
+public class EventRecorder extends EngineListener
+{
+  public static final String CYCLE_STARTED = "cycle";
+  public static final String CYCLE_ENDED = "end";
+  public static final String INSERTED = "insert";
+  public static final String REMOVED = "remove";
+  public static final String MODIFIED = "modify";
+  public static final String ACTIVATED = "activate";
+  public static final String FIRED = "fire";
+  public static final String ASYNC_COMPLETED = "async";
+  public static final String ASYNC_FAILED = "async-failed";
+
+  public static class Event
+  {
+    public long Time;
+    public long Cycle;
+    public String Kind;
+    // the rule for activation, firing and async events, the type for fact events
+    public String Name;
+    // the element's time tag for fact events, the new one for modifications
+    public long TimeTag;
+    public long OldTimeTag;
+    // the matched elements' time tags for activation and firing events
+    public long[] TimeTags;
+
+    Event copy()
+    {
+      Event copy = new Event();
+      copy.Time = Time;
+      copy.Cycle = Cycle;
+      copy.Kind = Kind;
+      copy.Name = Name;
+      copy.TimeTag = TimeTag;
+      copy.OldTimeTag = OldTimeTag;
+      copy.TimeTags = (Kind == ACTIVATED || Kind == FIRED) ? TimeTags.clone() : null;
+      return copy;
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder sb = new StringBuilder();
+      sb.append(Cycle).append(' ').append(Kind);
+      if (Name != null)
+      {
+        sb.append(' ').append(Name);
+      }
+      if (Kind == MODIFIED)
+      {
+        sb.append(' ').append(OldTimeTag).append("->").append(TimeTag);
+      }
+      else if (Kind == INSERTED || Kind == REMOVED)
+      {
+        sb.append(' ').append(TimeTag);
+      }
+      else if (TimeTags != null)
+      {
+        for (long timeTag : TimeTags)
+        {
+          sb.append(' ').append(timeTag);
+        }
+      }
+      return sb.toString();
+    }
+  }
+
+  private final Event[] _ring;
+  private long _recorded;
+  private long _cycle;
+
+  public EventRecorder(int capacity)
+  {
+    if (capacity <= 0)
+    {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+
+    _ring = new Event[capacity];
+    for (int i = 0; i < capacity; i++)
+    {
+      _ring[i] = new Event();
+    }
+  }
+
+  public int getCapacity()
+  {
+    return _ring.length;
+  }
+
+  // every event seen so far, including those the ring no longer holds
+  public synchronized long getRecorded()
+  {
+    return _recorded;
+  }
+
+  // copies of the events still in the ring, oldest first
+  public synchronized List<Event> getEvents()
+  {
+    int count = (int) Math.min(_recorded, _ring.length);
+    List<Event> events = new ArrayList<Event>(count);
+    for (long i = _recorded - count; i < _recorded; i++)
+    {
+      events.add(_ring[(int) (i % _ring.length)].copy());
+    }
+    return events;
+  }
+
+  public void dump(Appendable out)
+      throws IOException
+  {
+    for (Event event : getEvents())
+    {
+      out.append(event.toString()).append('\n');
+    }
+  }
+
+  public synchronized void clear()
+  {
+    _recorded = 0;
+  }
+
+  private Event next(String kind, String name)
+  {
+    Event event = _ring[(int) (_recorded++ % _ring.length)];
+    event.Time = System.nanoTime();
+    event.Cycle = _cycle;
+    event.Kind = kind;
+    event.Name = name;
+    event.TimeTag = 0;
+    event.OldTimeTag = 0;
+    return event;
+  }
+
+  private static long[] timeTags(Event event, MemoryElement[] elements)
+  {
+    long[] timeTags = event.TimeTags;
+    if (timeTags == null || timeTags.length != elements.length)
+    {
+      timeTags = new long[elements.length];
+    }
+    for (int i = 0; i < elements.length; i++)
+    {
+      timeTags[i] = MemoryElement.timeTag(elements[i]);
+    }
+    return timeTags;
+  }
+
+  @Override
+  public synchronized void cycleStarted(long cycle)
+  {
+    _cycle = cycle;
+    next(CYCLE_STARTED, null);
+  }
+
+  @Override
+  public synchronized void cycleEnded(long cycle, boolean fired)
+  {
+    next(CYCLE_ENDED, null);
+  }
+
+  @Override
+  public synchronized void inserted(MemoryElement element)
+  {
+    next(INSERTED, element.Type).TimeTag = element.TimeTag;
+  }
+
+  @Override
+  public synchronized void removed(MemoryElement element)
+  {
+    next(REMOVED, element.Type).TimeTag = element.TimeTag;
+  }
+
+  @Override
+  public synchronized void modified(MemoryElement element, long oldTimeTag)
+  {
+    Event event = next(MODIFIED, element.Type);
+    event.TimeTag = element.TimeTag;
+    event.OldTimeTag = oldTimeTag;
+  }
+
+  @Override
+  public synchronized void activated(Rule rule, MemoryElement[] elements)
+  {
+    Event event = next(ACTIVATED, rule.Name);
+    event.TimeTags = timeTags(event, elements);
+  }
+
+  @Override
+  public synchronized void fired(Rule rule, MemoryElement[] elements)
+  {
+    Event event = next(FIRED, rule.Name);
+    event.TimeTags = timeTags(event, elements);
+  }
+
+  @Override
+  public synchronized void asyncCompleted(Rule rule, Throwable error)
+  {
+    next(error == null ? ASYNC_COMPLETED : ASYNC_FAILED, rule.Name);
+  }
+}
@@ -0,0 +1,297 @@
+package ops;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.json.JSONObject;
+
+
+/**
+ * How a rule's conditions are evaluated against the current working memory, see OPS.explain().
+ * Conditions are joined in the order they are written, depth first: each partial match of the
+ * conditions before a step is extended by the candidates of that step that pass its tests.
+ *
+ * The estimates assume the tests are independent: constants are counted exactly, joins are taken
+ * to keep one in as many candidates as the attribute has distinct values, and ranges over
+ * variables a third.  A negated step lets a partial match through with probability e^-n, where n
+ * is the number of elements expected to pass its tests, and an aggregate step yields one row,
+ * kept a third of the time for each aggregate that is tested.  The actual figures
+ * come from enumerating every match, up to a limit.
+ */
+public class ExplainPlan
+{
+  public static class Step
+  {
+    public int Position;
+    public String Type;
+    public String Tests;
+    // the elements of the type, and the attribute an index narrows them by (null for a full scan,
+    // "grouped" for a negated or aggregate step looked up in an AggregateIndex)
+    public int Elements;
+    public String Index;
+    public double EstimatedFanOut;
+    public double EstimatedRows;
+    // partial matches the step was reached with, candidates it tested and those that passed; a
+    // negated or aggregate step tests each partial match once
+    public long RowsIn;
+    public long Scanned;
+    public long Passed;
+    // time spent on this step, not including the steps after it
+    public long Nanos;
+    public String Hint;
+
+    public double getFanOut()
+    {
+      return RowsIn == 0 ? 0 : (double) Passed / RowsIn;
+    }
+  }
+
+  public static final int DEFAULT_LIMIT = 100000;
+
+  final String Rule;
+  final List<Step> Steps;
+  long Activations;
+  long Fired;
+  long Nanos;
+  boolean Truncated;
+
+  private ExplainPlan(String rule, List<Step> steps)
+  {
+    Rule = rule;
+    Steps = steps;
+  }
+
+  public String getRule()
+  {
+    return Rule;
+  }
+
+  public List<Step> getSteps()
+  {
+    return Collections.unmodifiableList(Steps);
+  }
+
+  // complete matches found, including those that have already fired
+  public long getActivations()
+  {
+    return Activations;
+  }
+
+  public long getFired()
+  {
+    return Fired;
+  }
+
+  public long getNanos()
+  {
+    return Nanos;
+  }
+
+  // whether enumeration stopped at the limit, which leaves the actual figures short
+  public boolean isTruncated()
+  {
+    return Truncated;
+  }
+
+  static ExplainPlan explain(PreparedRule rule, FactSource wm, final Refraction refraction, final int limit)
+  {
+    PreparedQuery.Condition[] conditions = rule.Query.Conditions;
+    String[] varNames = rule.VarSlots.keySet().toArray(new String[rule.VarSlots.size()]);
+
+    List<Step> steps = new ArrayList<Step>(conditions.length);
+    double rows = 1;
+    for (int i = 0; i < conditions.length; i++)
+    {
+      Step step = estimate(conditions[i], wm, varNames);
+      step.Position = i + 1;
+      rows *= step.EstimatedFanOut;
+      step.EstimatedRows = rows;
+      steps.add(step);
+    }
+
+    final ExplainPlan plan = new ExplainPlan(rule.Rule.Name, steps);
+    final Rule target = rule.Rule;
+
+    long[] scanned = new long[conditions.length];
+    long[] passed = new long[conditions.length];
+    long[] nanos = new long[conditions.length];
+    MemoryElement[] elements = new MemoryElement[conditions.length];
+    Object[] vars = new Object[rule.getVarCount()];
+    Arrays.fill(vars, PreparedQuery.UNBOUND);
+
+    long start = System.nanoTime();
+    plan.Truncated = rule.Query.explain(0, wm, elements, vars, new PreparedQuery.Visitor()
+    {
+      @Override
+      public boolean visit(MemoryElement[] elements, Object[] vars)
+      {
+        plan.Activations++;
+        if (refraction != null && refraction.hasFired(target, elements))
+        {
+          plan.Fired++;
+        }
+        return plan.Activations >= limit;
+      }
+    }, scanned, passed, nanos);
+    plan.Nanos = System.nanoTime() - start;
+
+    long rowsIn = 1;
+    for (int i = 0; i < conditions.length; i++)
+    {
+      Step step = steps.get(i);
+      step.RowsIn = rowsIn;
+      step.Scanned = scanned[i];
+      step.Passed = passed[i];
+      step.Nanos = nanos[i];
+      rowsIn = passed[i];
+    }
+
+    return plan;
+  }
+
+  private static Step estimate(PreparedQuery.Condition condition, FactSource wm, String[] varNames)
+  {
+    List<MemoryElement> elements = wm.get(condition.Type);
+
+    Step step = new Step();
+    step.Type = condition.Type;
+    step.Elements = elements != null ? elements.size() : 0;
+
+    PreparedQuery.Test indexed = condition.indexedTest(wm);
+    step.Index = indexed != null ? indexed.Key : null;
+    boolean grouped = condition.GroupSignature != null && wm.getAggregateIndex(condition.GroupSignature) != null;
+    if (grouped) step.Index = "grouped";
+
+    StringBuilder tests = new StringBuilder(condition.Negated ? "not" : "");
+    double aggregateSelectivity = 1;
+    if (condition.Aggregates != null)
+    {
+      for (Aggregate aggregate : condition.Aggregates)
+      {
+        if (tests.length() > 0) tests.append(' ');
+        tests.append(varNames[aggregate.Slot]).append('=').append(aggregate);
+        if (aggregate.Test != null)
+        {
+          tests.append(' ').append(aggregate.Test);
+          aggregateSelectivity /= 3;
+        }
+      }
+    }
+    double selectivity = 1;
+    String unindexedKey = null;
+    double unindexedSelectivity = 1;
+
+    for (PreparedQuery.Test test : condition.Tests)
+    {
+      if (tests.length() > 0) tests.append(' ');
+      tests.append(test.Key);
+
+      double testSelectivity = 1;
+      switch (test.Kind)
+      {
+        case PreparedQuery.IS_NULL:
+          tests.append("=null");
+          testSelectivity = frequency(elements, test);
+          break;
+        case PreparedQuery.EQUALS:
+          tests.append('=').append(test.Value instanceof String ? JSONObject.quote((String) test.Value) : String.valueOf(test.Value));
+          testSelectivity = frequency(elements, test);
+          break;
+        case PreparedQuery.BIND:
+          tests.append('=').append(varNames[test.Slot]);
+          break;
+        case PreparedQuery.JOIN:
+          tests.append("==").append(varNames[test.Slot]);
+          testSelectivity = 1.0 / Math.max(1, distinct(elements, test.Key));
+          break;
+        case PreparedQuery.PREDICATE:
+          tests.append(test.Value);
+          // with variable operands a range is taken to keep a third of the candidates
+          testSelectivity = test.Predicate.isConstant() ? frequency(elements, test) : 1.0 / 3;
+          break;
+      }
+
+      selectivity *= testSelectivity;
+      if (test.Kind != PreparedQuery.BIND && testSelectivity < unindexedSelectivity)
+      {
+        unindexedKey = test.Key;
+        unindexedSelectivity = testSelectivity;
+      }
+    }
+
+    step.Tests = tests.toString();
+    step.EstimatedFanOut = step.Elements * selectivity;
+    if (condition.Negated)
+    {
+      step.EstimatedFanOut = Math.exp(-step.EstimatedFanOut);
+    }
+    else if (condition.Aggregates != null)
+    {
+      step.EstimatedFanOut = aggregateSelectivity;
+    }
+
+    if (indexed == null && !grouped && unindexedKey != null && step.Elements > 1)
+    {
+      step.Hint = String.format("scans %d elements, an index on %s.%s would narrow them to about %.1f",
+        step.Elements, condition.Type, unindexedKey, step.Elements * unindexedSelectivity);
+    }
+
+    return step;
+  }
+
+  // the fraction of elements passing a constant test
+  private static double frequency(List<MemoryElement> elements, PreparedQuery.Test test)
+  {
+    if (elements == null || elements.isEmpty()) return 0;
+
+    int count = 0;
+    Object[] vars = new Object[0];
+    PreparedQuery.Condition single = new PreparedQuery.Condition();
+    single.Tests = new PreparedQuery.Test[] { test };
+    for (MemoryElement element : elements)
+    {
+      if (single.test(element, vars)) count++;
+    }
+    return (double) count / elements.size();
+  }
+
+  private static int distinct(List<MemoryElement> elements, String key)
+  {
+    if (elements == null) return 0;
+
+    Set<Object> values = new HashSet<Object>();
+    for (MemoryElement element : elements)
+    {
+      Object value = element.Values.get(key);
+      values.add(value == JSONObject.NULL ? null : value);
+    }
+    return values.size();
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("rule %s: %d activations (%d already fired)%s in %.3fms%n",
+      Rule, Activations, Fired, Truncated ? ", truncated," : "", Nanos / 1e6));
+    sb.append(String.format("%3s %-16s %8s %-12s %10s %10s %10s %10s %10s %8s %10s%n",
+      "#", "type", "elements", "index", "est.fanout", "est.rows", "rows.in", "scanned", "passed", "fanout", "ms"));
+
+    for (Step step : Steps)
+    {
+      sb.append(String.format("%3d %-16s %8d %-12s %10.2f %10.1f %10d %10d %10d %8.2f %10.3f%n",
+        step.Position, step.Type, step.Elements, step.Index != null ? step.Index : "-",
+        step.EstimatedFanOut, step.EstimatedRows, step.RowsIn, step.Scanned, step.Passed, step.getFanOut(), step.Nanos / 1e6));
+      sb.append("      ").append(step.Tests).append(String.format("%n"));
+      if (step.Hint != null)
+      {
+        sb.append("      ").append(step.Hint).append(String.format("%n"));
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,374 @@
+package ops;
+
+
+import ops.ingest.RecordDecoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A compact binary encoding of memory element batches, for moving facts between sessions or
+ * processes without going through JSON.  Facts are written in self-contained frames of up to a
+ * few hundred KB: an int length, an int fact count, then the facts.  Within a frame strings are
+ * written once and referred back to by index, and each distinct type and attribute set (a shape)
+ * is written once, after which a fact is its shape's index followed by its values as tagged
+ * varints, doubles or string references.
+ *
+ * Frames carry no state from one to the next, so a decoder can be shared between streams, and
+ * decoded elements own freshly built values that can be handed straight to
+ * {@link WorkingMemory#makeAll} or {@link WorkingMemory#insert}.
+ */
+public class FactCodec
+{
+  public static final int DEFAULT_FRAME_SIZE = 256 * 1024;
+  private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+  private static final int HEADER_SIZE = 8;
+
+  public static long write(Iterable<MemoryElement> elements, WritableByteChannel channel)
+      throws IOException
+  {
+    Encoder encoder = new Encoder(channel);
+    for (MemoryElement element : elements)
+    {
+      encoder.write(element);
+    }
+    encoder.flush();
+    return encoder.getFactCount();
+  }
+
+  // makes every fact in the stream in wm, one frame at a time; returns the number made
+  public static long read(ReadableByteChannel channel, WorkingMemory wm)
+      throws IOException
+  {
+    Decoder decoder = new Decoder();
+    List<MemoryElement> batch = new ArrayList<MemoryElement>();
+    ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_FRAME_SIZE + HEADER_SIZE);
+    long count = 0;
+
+    while (true)
+    {
+      int n = channel.read(buffer);
+      buffer.flip();
+      if (n < 0)
+      {
+        decoder.decodeLast(buffer, batch);
+      }
+      else
+      {
+        decoder.decode(buffer, batch);
+      }
+      count += wm.makeAll(batch);
+      batch.clear();
+
+      if (n < 0) return count;
+
+      if (buffer.position() == 0 && buffer.limit() == buffer.capacity())
+      {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, decoder.frameLength(buffer)));
+        larger.put(buffer);
+        buffer = larger;
+      }
+      else
+      {
+        buffer.compact();
+      }
+    }
+  }
+
+  private static class Shape
+  {
+    final int Index;
+    final String Type;
+    final String[] Keys;
+
+    Shape(int index, String type, String[] keys)
+    {
+      Index = index;
+      Type = type;
+      Keys = keys;
+    }
+
+    // whether values has exactly the shape's keys, in the same iteration order
+    boolean isOrderOf(Map<String, Object> values)
+    {
+      if (values.size() != Keys.length) return false;
+
+      int i = 0;
+      for (String key : values.keySet())
+      {
+        if (!key.equals(Keys[i++])) return false;
+      }
+      return true;
+    }
+
+    boolean hasKeysOf(Map<String, Object> values)
+    {
+      if (values.size() != Keys.length) return false;
+
+      for (String key : Keys)
+      {
+        if (!values.containsKey(key)) return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Buffers facts into frames, writing each frame to the channel once it reaches the frame size
+   * and on flush.  Not thread safe.
+   */
+  public static class Encoder
+  {
+    private final WritableByteChannel _channel;
+    private final int _frameSize;
+    private final BinaryFormat.Encoder _out;
+    private final Map<String, List<Shape>> _shapes = new HashMap<String, List<Shape>>();
+    private int _shapeCount;
+    private int _frameCount;
+    private long _factCount;
+    private long _bytesWritten;
+
+    public Encoder(WritableByteChannel channel)
+    {
+      this(channel, DEFAULT_FRAME_SIZE);
+    }
+
+    public Encoder(WritableByteChannel channel, int frameSize)
+    {
+      _channel = channel;
+      _frameSize = frameSize;
+      _out = new BinaryFormat.Encoder(null, frameSize + 4096);
+    }
+
+    public void write(MemoryElement element)
+        throws IOException
+    {
+      if (_frameCount == 0)
+      {
+        _out.writeInt(0);
+        _out.writeInt(0);
+      }
+
+      int start = _out.buffer().position();
+      try
+      {
+        writeFact(element);
+      }
+      catch (IllegalArgumentException e)
+      {
+        // the fact may have added strings and shapes the frame never carries, so end the frame before it
+        _out.buffer().position(start);
+        flush();
+        throw e;
+      }
+
+      _frameCount++;
+      _factCount++;
+
+      if (_out.buffer().position() >= _frameSize)
+      {
+        flush();
+      }
+    }
+
+    private void writeFact(MemoryElement element)
+        throws IOException
+    {
+      Map<String, Object> values = element.Values;
+      Shape shape = findShape(element.Type, values);
+      if (shape == null)
+      {
+        shape = addShape(element.Type, values);
+        _out.writeVarInt(0);
+        _out.writeString(shape.Type);
+        _out.writeVarInt(shape.Keys.length);
+        for (String key : shape.Keys)
+        {
+          _out.writeString(key);
+        }
+      }
+      else
+      {
+        _out.writeVarInt(shape.Index + 1);
+      }
+
+      if (shape.isOrderOf(values))
+      {
+        for (Object value : values.values())
+        {
+          _out.writeValue(value);
+        }
+      }
+      else
+      {
+        for (String key : shape.Keys)
+        {
+          _out.writeValue(values.get(key));
+        }
+      }
+    }
+
+    public void writeAll(Iterable<MemoryElement> elements)
+        throws IOException
+    {
+      for (MemoryElement element : elements)
+      {
+        write(element);
+      }
+    }
+
+    // writes out the current frame, if it has any facts
+    public void flush()
+        throws IOException
+    {
+      ByteBuffer buf = _out.buffer();
+      if (_frameCount > 0)
+      {
+        buf.putInt(0, buf.position() - 4);
+        buf.putInt(4, _frameCount);
+        buf.flip();
+        while (buf.hasRemaining())
+        {
+          _bytesWritten += _channel.write(buf);
+        }
+      }
+      buf.clear();
+
+      _out.resetStrings();
+      _shapes.clear();
+      _shapeCount = 0;
+      _frameCount = 0;
+    }
+
+    public long getFactCount()
+    {
+      return _factCount;
+    }
+
+    public long getBytesWritten()
+    {
+      return _bytesWritten;
+    }
+
+    private Shape findShape(String type, Map<String, Object> values)
+    {
+      List<Shape> shapes = _shapes.get(type);
+      if (shapes == null) return null;
+
+      for (int i = 0; i < shapes.size(); i++)
+      {
+        Shape shape = shapes.get(i);
+        if (shape.isOrderOf(values) || shape.hasKeysOf(values)) return shape;
+      }
+      return null;
+    }
+
+    private Shape addShape(String type, Map<String, Object> values)
+    {
+      List<Shape> shapes = _shapes.get(type);
+      if (shapes == null)
+      {
+        shapes = new ArrayList<Shape>(1);
+        _shapes.put(type, shapes);
+      }
+
+      Shape shape = new Shape(_shapeCount++, type, values.keySet().toArray(new String[values.size()]));
+      shapes.add(shape);
+      return shape;
+    }
+  }
+
+  /**
+   * Decodes whole frames, leaving a partial frame in the buffer for the next call, so it can
+   * also serve as the record decoder of a {@link ops.ingest.ChannelIngestor}.
+   */
+  public static class Decoder implements RecordDecoder
+  {
+    private final BinaryFormat.Decoder _in = new BinaryFormat.Decoder(ByteBuffer.allocate(0));
+    private final List<Shape> _shapes = new ArrayList<Shape>();
+
+    @Override
+    public void decode(ByteBuffer in, List<MemoryElement> out)
+    {
+      while (in.remaining() >= HEADER_SIZE)
+      {
+        int length = frameLength(in);
+        if (in.remaining() < length) return;
+
+        int start = in.position();
+        int count = in.getInt(start + 4);
+
+        ByteBuffer frame = in.duplicate();
+        frame.position(start + HEADER_SIZE);
+        frame.limit(start + length);
+        decodeFrame(frame, count, out);
+
+        in.position(start + length);
+      }
+    }
+
+    @Override
+    public void decodeLast(ByteBuffer in, List<MemoryElement> out)
+    {
+      decode(in, out);
+      if (in.hasRemaining())
+      {
+        System.err.println(String.format("dropping a truncated frame of %d bytes", in.remaining()));
+        in.position(in.limit());
+      }
+    }
+
+    // the length of the frame at the buffer's position, header included
+    int frameLength(ByteBuffer in)
+    {
+      int length = in.getInt(in.position());
+      if (length < 4 || length > MAX_FRAME_SIZE)
+      {
+        throw new IllegalArgumentException("bad fact frame length: " + length);
+      }
+      return length + 4;
+    }
+
+    private void decodeFrame(ByteBuffer frame, int count, List<MemoryElement> out)
+    {
+      _in.setBuffer(frame);
+      _in.resetStrings();
+      _shapes.clear();
+
+      for (int i = 0; i < count; i++)
+      {
+        int ref = _in.readVarInt();
+        Shape shape;
+        if (ref == 0)
+        {
+          String type = _in.readString();
+          String[] keys = new String[_in.readVarInt()];
+          for (int j = 0; j < keys.length; j++)
+          {
+            keys[j] = _in.readString();
+          }
+          shape = new Shape(_shapes.size(), type, keys);
+          _shapes.add(shape);
+        }
+        else
+        {
+          shape = _shapes.get(ref - 1);
+        }
+
+        String[] keys = shape.Keys;
+        Map<String, Object> values = new HashMap<String, Object>(Math.max(4, keys.length * 4 / 3 + 1));
+        for (String key : keys)
+        {
+          values.put(key, _in.readValue());
+        }
+        out.add(MemoryElement.wrap(shape.Type, values));
+      }
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package ops;
+
+
+import java.util.List;
+
+
+/**
+ * The elements conditions are matched against: the live working memory, or a published
+ * version of it.
+ */
+abstract class FactSource
+{
+  abstract List<MemoryElement> get(String type);
+
+  boolean hasIndexes(String type)
+  {
+    return false;
+  }
+
+  AttributeIndex getIndex(String type, String key)
+  {
+    return null;
+  }
+
+  AggregateIndex getAggregateIndex(String signature)
+  {
+    return null;
+  }
+}
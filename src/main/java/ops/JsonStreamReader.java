@@ -0,0 +1,280 @@
+package ops;
+
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+
+/**
+ * A pull tokenizer that reads JSON incrementally from a Reader through a fixed size buffer.
+ * Values are only materialized (as org.json objects) when readValue is called, so a caller
+ * can walk a large document one element at a time and skip the parts it does not need.
+ */
+class JsonStreamReader
+{
+  private final Reader _reader;
+  private final char[] _buf;
+  private int _pos = 0;
+  private int _len = 0;
+  private long _offset = 0;
+  private final StringBuilder _sb = new StringBuilder();
+  // set when an array or object was just opened, so its first element must not follow a ','
+  private boolean _opened = false;
+
+  JsonStreamReader(Reader reader, int bufferSize)
+  {
+    _reader = reader;
+    _buf = new char[bufferSize];
+  }
+
+  long getCharsRead()
+  {
+    return _offset + _pos;
+  }
+
+  int peek()
+      throws IOException
+  {
+    skipWhitespace();
+    return fill() ? _buf[_pos] : -1;
+  }
+
+  void expect(char c)
+      throws IOException, JSONException
+  {
+    int next = peek();
+    if (next != c)
+    {
+      throw error("expected '" + c + "' but found " + describe(next));
+    }
+    _pos++;
+    _opened = c == '[' || c == '{';
+  }
+
+  // consumes the ',' that must separate elements and reports whether another element follows
+  boolean hasNext(char close)
+      throws IOException, JSONException
+  {
+    boolean first = _opened;
+    _opened = false;
+
+    int next = peek();
+    if (next == close) return false;
+    if (next == -1) throw error("unexpected end of input");
+
+    if (!first)
+    {
+      if (next != ',') throw error("expected ',' or '" + close + "' but found " + describe(next));
+      _pos++;
+      next = peek();
+    }
+    if (next == ',' || next == close) throw error("expected a value but found " + describe(next));
+    return true;
+  }
+
+  String readString()
+      throws IOException, JSONException
+  {
+    expect('"');
+
+    _sb.setLength(0);
+
+    while (true)
+    {
+      if (!fill()) throw error("unterminated string");
+
+      int start = _pos;
+      while (_pos < _len && _buf[_pos] != '"' && _buf[_pos] != '\\')
+      {
+        _pos++;
+      }
+      _sb.append(_buf, start, _pos - start);
+
+      if (_pos == _len) continue;
+
+      char c = _buf[_pos++];
+      if (c == '"') break;
+
+      c = nextChar();
+      switch (c)
+      {
+        case 'b': _sb.append('\b'); break;
+        case 'f': _sb.append('\f'); break;
+        case 'n': _sb.append('\n'); break;
+        case 'r': _sb.append('\r'); break;
+        case 't': _sb.append('\t'); break;
+        case 'u':
+          char[] hex = new char[] { nextChar(), nextChar(), nextChar(), nextChar() };
+          try
+          {
+            _sb.append((char) Integer.parseInt(new String(hex), 16));
+          }
+          catch (NumberFormatException e)
+          {
+            throw error("bad unicode escape");
+          }
+          break;
+        default: _sb.append(c); break;
+      }
+    }
+
+    return _sb.toString();
+  }
+
+  Object readValue()
+      throws IOException, JSONException
+  {
+    int next = peek();
+
+    switch (next)
+    {
+      case '"':
+        return readString();
+      case '[':
+        _pos++;
+        _opened = true;
+        JSONArray arr = new JSONArray();
+        while (hasNext(']'))
+        {
+          arr.put(readValue());
+        }
+        expect(']');
+        return arr;
+      case '{':
+        _pos++;
+        _opened = true;
+        JSONObject obj = new JSONObject();
+        while (hasNext('}'))
+        {
+          String key = readString();
+          expect(':');
+          obj.put(key, readValue());
+        }
+        expect('}');
+        return obj;
+      case -1:
+        throw error("unexpected end of input");
+      default:
+        return readLiteral();
+    }
+  }
+
+  void skipValue()
+      throws IOException, JSONException
+  {
+    int next = peek();
+
+    if (next == '"')
+    {
+      readString();
+    }
+    else if (next == '[' || next == '{')
+    {
+      char close = next == '[' ? ']' : '}';
+      _pos++;
+      _opened = true;
+      while (hasNext(close))
+      {
+        if (close == '}')
+        {
+          readString();
+          expect(':');
+        }
+        skipValue();
+      }
+      expect(close);
+    }
+    else
+    {
+      readLiteral();
+    }
+  }
+
+  private Object readLiteral()
+      throws IOException, JSONException
+  {
+    _sb.setLength(0);
+
+    while (fill())
+    {
+      char c = _buf[_pos];
+      if (c == ',' || c == ']' || c == '}' || c == ':' || Character.isWhitespace(c)) break;
+      _sb.append(c);
+      _pos++;
+    }
+
+    String s = _sb.toString();
+
+    if (s.length() == 0) throw error("expected a value");
+    if (s.equals("true")) return Boolean.TRUE;
+    if (s.equals("false")) return Boolean.FALSE;
+    if (s.equals("null")) return JSONObject.NULL;
+
+    try
+    {
+      if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0)
+      {
+        long val = Long.parseLong(s);
+        if (val >= Integer.MIN_VALUE && val <= Integer.MAX_VALUE)
+        {
+          return (int) val;
+        }
+        return val;
+      }
+      return Double.valueOf(s);
+    }
+    catch (NumberFormatException e)
+    {
+      throw error("bad literal: " + s);
+    }
+  }
+
+  private char nextChar()
+      throws IOException, JSONException
+  {
+    if (!fill()) throw error("unexpected end of input");
+    return _buf[_pos++];
+  }
+
+  private void skipWhitespace()
+      throws IOException
+  {
+    while (fill() && Character.isWhitespace(_buf[_pos]))
+    {
+      _pos++;
+    }
+  }
+
+  private boolean fill()
+      throws IOException
+  {
+    if (_pos < _len) return true;
+
+    _offset += _len;
+    _pos = 0;
+    _len = 0;
+
+    int n;
+    while ((n = _reader.read(_buf, 0, _buf.length)) == 0)
+    {
+    }
+    if (n < 0) return false;
+
+    _len = n;
+    return true;
+  }
+
+  private static String describe(int c)
+  {
+    return c == -1 ? "end of input" : "'" + (char) c + "'";
+  }
+
+  private JSONException error(String msg)
+  {
+    return new JSONException(msg + " at character " + getCharsRead());
+  }
+}
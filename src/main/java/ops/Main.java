@@ -1,6 +1,10 @@
 package ops;
 
 
+import java.io.File;
+import java.util.Map;
+
+
 public class Main
 {
   public static void main(String[] args)
@@ -8,7 +12,25 @@ public class Main
   {
     if (args.length <= 0)
     {
-      System.out.println("usage: <rules.json>");
+      System.out.println("usage: <rules.json|rules.opsb>");
+      System.out.println("       --compile <rules.json> <rules.opsb>");
+      System.out.println("       --explain <rules.json|rules.opsb> <rule>");
+      return;
+    }
+
+    if (args[0].equals("--compile") && args.length == 3)
+    {
+      Map<String, Command> registry = OpsFactory.getDefaultRegistry();
+      OPS ops = OpsFactory.create(registry, args[1]);
+      RulebaseCodec.write(ops, registry, new File(args[2]));
+      return;
+    }
+
+    if (args[0].equals("--explain") && args.length == 3)
+    {
+      OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), args[1]);
+      ops.getWorkingMemory().drainInMemoryQueue();
+      System.out.print(ops.explain(args[2]));
       return;
     }
 
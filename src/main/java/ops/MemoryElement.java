@@ -10,6 +10,11 @@ public class MemoryElement
 {
   public String Type;
   public Map<String, Object> Values;
+  public long TimeTag;
+
+  // the copy of this element in the last published working memory version, if any
+  MemoryElement Frozen;
+  WorkingMemoryVersion.Chunk Chunk;
 
   public MemoryElement(String type)
   {
@@ -43,6 +48,25 @@ public class MemoryElement
     }
   }
 
+  private MemoryElement()
+  {
+  }
+
+  // the time tag of an element in a match, or 0 at the position of a negated condition
+  static long timeTag(MemoryElement element)
+  {
+    return element != null ? element.TimeTag : 0;
+  }
+
+  // takes ownership of values instead of copying them
+  static MemoryElement wrap(String type, Map<String, Object> values)
+  {
+    MemoryElement element = new MemoryElement();
+    element.Type = type;
+    element.Values = values;
+    return element;
+  }
+
   public MemoryElement clone()
   {
     return new MemoryElement(Type, Values);
@@ -58,6 +82,16 @@ public class MemoryElement
     return clone;
   }
 
+  public MemoryElement make(String[] keys, Object[] values)
+  {
+    MemoryElement clone = clone();
+    for (int i = 0; i < keys.length; i++)
+    {
+      clone.Values.put(keys[i], values[i]);
+    }
+    return clone;
+  }
+
   public String toString()
   {
     StringBuilder sb = new StringBuilder();
@@ -1,6 +1,7 @@
 package ops;
 
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -11,21 +12,78 @@ public class OPS
 
   private List<Rule> _rules = new ArrayList<Rule>();
   private List<PreparedRule> _preparedRules = new ArrayList<PreparedRule>();
-  private Rule _lastRuleFired = null;
+  private final Refraction _refraction = new Refraction();
+  private final RefractedMatch _refractedMatch = new RefractedMatch();
   private Map<String, String> _asyncTickets = new ConcurrentHashMap<String, String>();
 
-  ExecutorService _productionPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-  ExecutorService _rulePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  private ExecutorService _productionPool;
+  private boolean _ownsProductionPool = false;
+  private volatile Runnable _wakeListener;
 
-  private boolean _halt = false;
+  private OutputSink _outputSink;
+  private WriteAheadLog _writeAheadLog;
+
+  private final Map<String, List<Rule>> _ruleSets = new HashMap<String, List<Rule>>();
+  private final Map<String, AgendaGroup> _groups = new HashMap<String, AgendaGroup>();
+  private final BestMatch _bestMatch = new BestMatch();
+  private long _nextSequence = 0;
+
+  private final LinkedList<String> _focusStack = new LinkedList<String>();
+  private final Queue<Runnable> _updates = new ConcurrentLinkedQueue<Runnable>();
+  private Thread _engineThread;
+  private volatile boolean _versionRequested;
+
+  private final RuleProfiler _profiler = new RuleProfiler();
+  // the profiler while it is enabled, checked once per cycle
+  private RuleProfiler _cycleProfiler;
+
+  private volatile EngineListener[] _listeners = new EngineListener[0];
+  private long _cycle;
+
+  private volatile boolean _halt = false;
   private boolean _sortRulesBySpecificity = false;
 
+  // breaks salience ties: (optionally) higher specificity first, then the order added
+  private final Comparator<PreparedRule> _tieOrder = new Comparator<PreparedRule>()
+  {
+    @Override
+    public int compare(PreparedRule a, PreparedRule b)
+    {
+      if (_sortRulesBySpecificity && !a.Specificity.equals(b.Specificity))
+      {
+        return b.Specificity.compareTo(a.Specificity);
+      }
+      return a.Sequence < b.Sequence ? -1 : (a.Sequence == b.Sequence ? 0 : 1);
+    }
+  };
+
+  // conflict resolution order: higher salience first, then the tie order
+  private final Comparator<PreparedRule> _ruleOrder = new Comparator<PreparedRule>()
+  {
+    @Override
+    public int compare(PreparedRule a, PreparedRule b)
+    {
+      if (a.Rule.Salience != b.Rule.Salience)
+      {
+        return a.Rule.Salience > b.Rule.Salience ? -1 : 1;
+      }
+      return _tieOrder.compare(a, b);
+    }
+  };
+
   public OPS() {
     this(new WorkingMemory());
   }
 
   public OPS(WorkingMemory wm) {
+    this(wm, null);
+  }
+
+  public OPS(WorkingMemory wm, ExecutorService productionPool) {
     _wm = wm;
+    _wm.addListener(_refraction);
+    _wm.addGroupListener(_refraction);
+    _productionPool = productionPool;
   }
 
   public WorkingMemory getWorkingMemory() {
@@ -33,20 +91,152 @@ public class OPS
   }
 
   public void setWorkingMemory(WorkingMemory wm) {
+    _wm.removeListener(_refraction);
+    _wm.removeGroupListener(_refraction);
+    _refraction.clear();
+    if (_writeAheadLog != null)
+    {
+      _wm.removeListener(_writeAheadLog);
+      wm.addListener(_writeAheadLog);
+    }
+    for (EngineListener listener : _listeners)
+    {
+      _wm.removeListener(listener);
+      wm.addListener(listener);
+    }
+    for (PreparedRule preparedRule : _preparedRules)
+    {
+      _wm.releaseAggregates(preparedRule.Query);
+      wm.acquireAggregates(preparedRule.Query);
+    }
     _wm = wm;
+    _wm.addListener(_refraction);
+    _wm.addGroupListener(_refraction);
+    _wm.setQueueListener(_wakeListener);
+  }
+
+  public synchronized void setProductionPool(ExecutorService productionPool)
+  {
+    if (_ownsProductionPool)
+    {
+      _productionPool.shutdown();
+      _ownsProductionPool = false;
+    }
+    _productionPool = productionPool;
+  }
+
+  private synchronized ExecutorService getProductionPool()
+  {
+    if (_productionPool == null)
+    {
+      _productionPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+      _ownsProductionPool = true;
+    }
+    return _productionPool;
+  }
+
+  // called whenever new memory elements are queued or an async production completes
+  public void setWakeListener(Runnable wakeListener)
+  {
+    _wakeListener = wakeListener;
+    _wm.setQueueListener(wakeListener);
+  }
+
+  public OutputSink getOutputSink()
+  {
+    return _outputSink != null ? _outputSink : ChannelOutputSink.stdout();
+  }
+
+  public void setOutputSink(OutputSink outputSink)
+  {
+    _outputSink = outputSink;
+  }
+
+  public WriteAheadLog getWriteAheadLog()
+  {
+    return _writeAheadLog;
+  }
+
+  // logs every working memory change from now on, committing once per cycle
+  public void setWriteAheadLog(WriteAheadLog writeAheadLog)
+  {
+    if (_writeAheadLog != null)
+    {
+      _wm.removeListener(_writeAheadLog);
+    }
+    _writeAheadLog = writeAheadLog;
+    if (_writeAheadLog != null)
+    {
+      _wm.addListener(_writeAheadLog);
+    }
+  }
+
+  // also registers the listener with working memory for the fact events
+  public synchronized void addListener(EngineListener listener)
+  {
+    EngineListener[] listeners = Arrays.copyOf(_listeners, _listeners.length + 1);
+    listeners[_listeners.length] = listener;
+    _listeners = listeners;
+    _wm.addListener(listener);
+  }
+
+  public synchronized void removeListener(EngineListener listener)
+  {
+    List<EngineListener> listeners = new ArrayList<EngineListener>(Arrays.asList(_listeners));
+    if (!listeners.remove(listener)) return;
+    _listeners = listeners.toArray(new EngineListener[listeners.size()]);
+    _wm.removeListener(listener);
+  }
+
+  public ExplainPlan explain(String ruleName)
+  {
+    return explain(ruleName, ExplainPlan.DEFAULT_LIMIT);
+  }
+
+  /**
+   * Shows how the first rule with the given name is matched against working memory as it is now,
+   * enumerating up to limit activations.  Like a snapshot, this must be called between cycles;
+   * made elements still waiting in the queue are not included.
+   */
+  public ExplainPlan explain(String ruleName, int limit)
+  {
+    for (PreparedRule rule : _preparedRules)
+    {
+      if (rule.Rule.Name.equals(ruleName))
+      {
+        return ExplainPlan.explain(rule, _wm, _refraction, limit);
+      }
+    }
+    throw new IllegalArgumentException("no such rule: " + ruleName);
+  }
+
+  // per rule match and firing statistics, recorded once enabled
+  public RuleProfiler getProfiler()
+  {
+    return _profiler;
   }
 
   public void reset()
   {
     _halt = false;
     _rules.clear();
+    _preparedRules.clear();
+    _ruleSets.clear();
+    _groups.clear();
+    _focusStack.clear();
+    _refraction.clear();
+    _profiler.reset();
     _wm.reset();
   }
 
-  public void shutdown()
+  public synchronized void shutdown()
   {
-    _productionPool.shutdown();
-    _rulePool.shutdown();
+    if (_ownsProductionPool)
+    {
+      _productionPool.shutdown();
+    }
+    commitLog();
+    getOutputSink().flush();
   }
 
   public void halt()
@@ -54,6 +244,16 @@ public class OPS
     _halt = true;
   }
 
+  public boolean isHalted()
+  {
+    return _halt;
+  }
+
+  public boolean hasPendingWork()
+  {
+    return _wm.HasQueuedItems() || _asyncTickets.size() > 0 || !_updates.isEmpty();
+  }
+
   public void run()
   {
     run(-1);
@@ -64,357 +264,744 @@ public class OPS
     _halt = false;
     boolean checkSteps = steps > 0;
 
-    while ((!checkSteps || steps-- > 0) && !_halt)
+    enterEngine();
+    try
     {
-      _wm.drainInMemoryQueue();
+      while ((!checkSteps || steps-- > 0) && !_halt)
+      {
+        if (!cycle())
+        {
+          boolean dequedNew = _wm.drainInMemoryQueueBlockable();
+
+          if (!dequedNew && _asyncTickets.size() == 0 && _updates.isEmpty())
+          {
+            break;
+          }
+        }
+      }
+    }
+    finally
+    {
+      exitEngine();
+    }
 
-      Match match = match(_rules, _lastRuleFired, _wm);
-      if (match == null)
+    _halt = true;
+  }
+
+  /**
+   * Run up to steps recognize-act cycles without ever blocking for new memory elements.
+   * Returns the number of productions fired, which is less than steps when the session
+   * halted or ran out of matches.
+   */
+  public int step(int steps)
+  {
+    _halt = false;
+    int fired = 0;
+
+    enterEngine();
+    try
+    {
+      while (fired < steps && !_halt)
+      {
+        if (!cycle()) break;
+        fired++;
+      }
+    }
+    finally
+    {
+      exitEngine();
+    }
+
+    return fired;
+  }
+
+  private boolean cycle()
+  {
+    long cycle = ++_cycle;
+    EngineListener[] listeners = _listeners;
+    for (EngineListener listener : listeners)
+    {
+      listener.cycleStarted(cycle);
+    }
+
+    applyUpdates();
+    _wm.drainInMemoryQueue();
+
+    _cycleProfiler = _profiler.isEnabled() ? _profiler : null;
+
+    final Match match = matchFocus();
+    if (match == null)
+    {
+      endCycle(cycle, false);
+      return false;
+    }
+
+    _refraction.fired(match.Rule, match.Elements, match.Vars);
+    if (_writeAheadLog != null)
+    {
+      _writeAheadLog.fired(Collections.binarySearch(_preparedRules, match.Rule, _ruleOrder), match.Rule.Rule, match.Elements);
+    }
+    for (EngineListener listener : listeners)
+    {
+      listener.fired(match.Rule.Rule, match.Elements);
+    }
+
+    final CommandContext context = new CommandContext(this, match.Rule.Rule, match.Elements, match.Rule.VarSlots, match.Vars);
+
+    Action[] actions = match.Rule.Actions;
+    long actionStart = _cycleProfiler != null ? System.nanoTime() : 0;
+
+    for (int i = 0; i < actions.length; i++)
+    {
+      try
       {
-        boolean dequedNew = _wm.drainInMemoryQueueBlockable();
+        if ((actions[i] instanceof CommandAction) && ((CommandAction) actions[i]).isAsync())
+        {
+          CommandAction action = (CommandAction) actions[i];
+          OpsRunnable opsRunnable = new OpsRunnable(match.Rule.Rule, action.Command, context, action.resolveArgs(context));
+
+          _asyncTickets.put(opsRunnable.Id, match.Rule.Rule.Name);
 
-        if (!dequedNew && _asyncTickets.size() == 0)
+          getProductionPool().submit(opsRunnable);
+        }
+        else
         {
-          break;
+          actions[i].exec(context);
         }
-        continue;
       }
+      catch (Exception e)
+      {
+        System.err.println(match.Rule.Rule.Productions.get(i).toString());
+        e.printStackTrace();
+      }
+    }
 
-      _lastRuleFired = match.Rule;
+    if (_cycleProfiler != null)
+    {
+      _cycleProfiler.profile(match.Rule.Rule).fired(System.nanoTime() - actionStart);
+    }
+
+    endCycle(cycle, true);
 
-      final CommandContext context = new CommandContext(this, match.Rule, match.Elements, match.Vars);
+    return true;
+  }
 
-      for (final ProductionSpec production : match.Rule.Productions)
+  private void endCycle(long cycle, boolean fired)
+  {
+    // insert what the production made now, so it is logged with the cycle's other changes
+    if (fired)
+    {
+      _wm.drainInMemoryQueue();
+    }
+    commitLog();
+
+    if (_cycleProfiler != null)
+    {
+      _cycleProfiler.cycleEnded(_wm);
+    }
+
+    for (EngineListener listener : _listeners)
+    {
+      listener.cycleEnded(cycle, fired);
+    }
+
+    if (_versionRequested)
+    {
+      _versionRequested = false;
+      _wm.publish();
+    }
+  }
+
+  /**
+   * Returns working memory as of a recent cycle boundary, for reading from any thread without
+   * stopping the engine.  This never waits for the engine once a version has been published:
+   * it returns the last one and asks the engine to publish a newer one at the end of its
+   * current cycle.
+   */
+  public WorkingMemoryVersion getWorkingMemoryVersion()
+  {
+    WorkingMemoryVersion version = _wm.getPublished();
+    if (version == null)
+    {
+      return awaitWorkingMemoryVersion();
+    }
+
+    _versionRequested = true;
+    return version;
+  }
+
+  // publishes a version at the next cycle boundary (or right away while the engine is idle) and waits for it
+  public WorkingMemoryVersion awaitWorkingMemoryVersion()
+  {
+    synchronized (_updates)
+    {
+      if (_engineThread == Thread.currentThread())
       {
-        final Object[] args = new Object[production.Params.length];
+        return _wm.publish();
+      }
+    }
+
+    final CountDownLatch published = new CountDownLatch(1);
+    final WorkingMemoryVersion[] version = new WorkingMemoryVersion[1];
+    update(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        version[0] = _wm.publish();
+        published.countDown();
+      }
+    });
+
+    try
+    {
+      published.await();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return _wm.getPublished();
+    }
+    return version[0];
+  }
+
+  // a cycle whose changes cannot be logged must not be followed by more, so a failed commit halts
+  private void commitLog()
+  {
+    if (_writeAheadLog == null) return;
+
+    try
+    {
+      _writeAheadLog.commit();
+    }
+    catch (IOException e)
+    {
+      System.err.println("failed to commit the write-ahead log, halting");
+      e.printStackTrace();
+      _halt = true;
+    }
+  }
+
+  public void addRules(List<Rule> rules)
+  {
+    addRules(null, rules);
+  }
+
+  public void addRule(Rule rule)
+  {
+    addRules(null, Collections.singletonList(rule));
+  }
 
-        for (int i = 0; i < args.length; i++)
+  // adds rules to a named rule set (created on first use) that can later be removed as a whole
+  public void addRules(final String ruleSet, List<Rule> rules)
+  {
+    final List<Rule> added = new ArrayList<Rule>(rules);
+
+    update(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        for (Rule rule : added)
         {
-          args[i] = context.resolveValue(production.Params[i]);
+          insertRule(new PreparedRule(rule, _wm));
         }
 
-        try
+        if (ruleSet != null)
         {
-          if (production.Command instanceof AsyncCommand)
+          List<Rule> members = _ruleSets.get(ruleSet);
+          if (members == null)
           {
-            OpsRunnable opsRunnable =
-                new OpsRunnable(
-                  match.Rule.Name,
-                  new Runnable()
-                  {
-                    @Override
-                    public void run()
-                    {
-                      try
-                      {
-                        production.Command.exec(context, args);
-                      }
-                      catch (Exception e)
-                      {
-                        e.printStackTrace();
-                      }
-                    }
-                  });
-
-            _asyncTickets.put(opsRunnable.Id, match.Rule.Name);
-
-            _productionPool.submit(opsRunnable);
+            members = new ArrayList<Rule>();
+            _ruleSets.put(ruleSet, members);
           }
-          else
+          members.addAll(added);
+        }
+      }
+    });
+  }
+
+  public void removeRule(final Rule rule)
+  {
+    update(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        deleteRule(rule);
+      }
+    });
+  }
+
+  // removes every rule with the given name
+  public void removeRule(final String name)
+  {
+    update(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        for (Rule rule : new ArrayList<Rule>(_rules))
+        {
+          if (rule.Name.equals(name))
           {
-            production.Command.exec(context, args);
+            deleteRule(rule);
           }
         }
-        catch (Exception e)
+      }
+    });
+  }
+
+  public void removeRules(final String ruleSet)
+  {
+    update(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        List<Rule> members = _ruleSets.remove(ruleSet);
+        if (members == null) return;
+
+        for (Rule rule : members)
         {
-          System.err.println(production.toString());
-          e.printStackTrace();
+          deleteRule(rule);
         }
       }
-    }
+    });
+  }
 
-    _halt = true;
+  public Set<String> getRuleSets()
+  {
+    return Collections.unmodifiableSet(_ruleSets.keySet());
   }
 
-  public void addRules(List<Rule> rules)
+  /**
+   * Pushes groups onto the focus stack, the first one ending up on top.  Only the rules of the
+   * group in focus are matched; ungrouped rules belong to MAIN, which is in focus when the stack
+   * is empty.
+   */
+  public void focus(String... groups)
   {
-    _rules.addAll(rules);
-    prepareQueries();
+    final String[] pushed = groups.clone();
+
+    update(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        for (int i = pushed.length - 1; i >= 0; i--)
+        {
+          if (!pushed[i].equals(_focusStack.peekFirst()))
+          {
+            _focusStack.addFirst(pushed[i]);
+          }
+        }
+        logFocus();
+      }
+    });
   }
 
-  public void addRule(Rule rule)
+  public void popFocus()
   {
-    _rules.add(rule);
-    prepareQueries();
+    update(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        _focusStack.pollFirst();
+        logFocus();
+      }
+    });
   }
 
-  private void prepareQueries()
+  public String getFocus()
   {
-    _preparedRules.clear();
+    String focus = _focusStack.peekFirst();
+    return focus != null ? focus : Rule.MAIN;
+  }
+
+  // top first, not including the implicit MAIN at the bottom
+  List<String> getFocusStack()
+  {
+    return Collections.unmodifiableList(_focusStack);
+  }
+
+  void setFocusStack(List<String> focusStack)
+  {
+    _focusStack.clear();
+    _focusStack.addAll(focusStack);
+  }
 
-    for (Rule rule : _rules)
+  private void logFocus()
+  {
+    if (_writeAheadLog != null)
     {
-      PreparedRule preparedRule = new PreparedRule();
-      preparedRule.Rule = rule;
-      preparedRule.Specificity = computeSpecificity(rule);
-      _preparedRules.add(preparedRule);
+      _writeAheadLog.focused(_focusStack);
     }
+  }
 
-    if (_sortRulesBySpecificity)
+  // rule and focus changes apply right away while the engine is idle, and at the next cycle boundary while it runs
+  private void update(Runnable update)
+  {
+    synchronized (_updates)
     {
-      Collections.sort(_preparedRules, new Comparator<PreparedRule>()
+      if (_engineThread == null)
       {
-        @Override
-        public int compare(PreparedRule preparedRule, PreparedRule preparedRule1)
-        {
-          return preparedRule1.Specificity.compareTo(preparedRule.Specificity);
-        }
-      });
+        update.run();
+        return;
+      }
+      _updates.add(update);
     }
 
-    _rules.clear();
-    for (PreparedRule preparedRule : _preparedRules)
+    Runnable wakeListener = _wakeListener;
+    if (wakeListener != null)
+    {
+      wakeListener.run();
+    }
+  }
+
+  private void applyUpdates()
+  {
+    Runnable update;
+    while ((update = _updates.poll()) != null)
     {
-      _rules.add(preparedRule.Rule);
+      update.run();
     }
   }
 
-  private Integer computeSpecificity(Rule rule)
+  private void enterEngine()
   {
-    Integer specificity = 0;
+    synchronized (_updates)
+    {
+      _engineThread = Thread.currentThread();
+    }
+  }
 
-    for (QueryElement element : rule.Query)
+  // leaves a current version behind for readers once any have asked for one
+  private void exitEngine()
+  {
+    synchronized (_updates)
     {
-      Integer elementSpecificity = 0;
+      applyUpdates();
+      if (_wm.getPublished() != null)
+      {
+        _wm.publish();
+      }
+      _engineThread = null;
+    }
+  }
+
+  public boolean isSortRulesBySpecificity()
+  {
+    return _sortRulesBySpecificity;
+  }
 
-      for (QueryPair queryPair : element.QueryPairs)
+  // orders rules of equal salience by specificity (most specific first) instead of the order they were added in
+  public void setSortRulesBySpecificity(final boolean sortRulesBySpecificity)
+  {
+    update(new Runnable()
+    {
+      @Override
+      public void run()
       {
-        if (!(queryPair.Value instanceof String)) continue;
-        String strVal = (String) queryPair.Value;
-        if (!strVal.startsWith("$")) continue;
-        elementSpecificity++;
+        if (_sortRulesBySpecificity == sortRulesBySpecificity) return;
+        _sortRulesBySpecificity = sortRulesBySpecificity;
+
+        Collections.sort(_preparedRules, _ruleOrder);
+        _rules.clear();
+        for (PreparedRule preparedRule : _preparedRules)
+        {
+          _rules.add(preparedRule.Rule);
+        }
+        for (AgendaGroup group : _groups.values())
+        {
+          group.sort(_ruleOrder);
+        }
       }
+    });
+  }
+
+  // only the new rule is prepared and it is placed by binary search, both in the rule list and in its group
+  private void insertRule(PreparedRule preparedRule)
+  {
+    preparedRule.Sequence = _nextSequence++;
 
-      specificity += elementSpecificity;
+    int idx = AgendaGroup.insertionPoint(_preparedRules, preparedRule, _ruleOrder);
+    _preparedRules.add(idx, preparedRule);
+    _rules.add(idx, preparedRule.Rule);
+    _wm.acquireAggregates(preparedRule.Query);
+
+    AgendaGroup group = _groups.get(preparedRule.Rule.Group);
+    if (group == null)
+    {
+      group = new AgendaGroup();
+      _groups.put(preparedRule.Rule.Group, group);
     }
+    group.add(preparedRule, _ruleOrder);
+  }
 
-    return specificity;
+  private void deleteRule(Rule rule)
+  {
+    for (int i = 0; i < _rules.size(); i++)
+    {
+      if (_rules.get(i) != rule) continue;
+
+      _rules.remove(i);
+      PreparedRule preparedRule = _preparedRules.remove(i);
+      _refraction.forget(rule);
+      _profiler.forget(rule);
+      _wm.releaseAggregates(preparedRule.Query);
+
+      AgendaGroup group = _groups.get(rule.Group);
+      group.remove(preparedRule);
+      if (group.isEmpty())
+      {
+        _groups.remove(rule.Group);
+      }
+      break;
+    }
+
+    for (List<Rule> members : _ruleSets.values())
+    {
+      members.remove(rule);
+    }
+  }
+
+  List<Rule> getRules()
+  {
+    return Collections.unmodifiableList(_rules);
+  }
+
+  Refraction getRefraction()
+  {
+    return _refraction;
+  }
+
+  List<PreparedRule> getPreparedRules()
+  {
+    return Collections.unmodifiableList(_preparedRules);
+  }
+
+  // adds rules that were prepared elsewhere (e.g. loaded from a compiled rulebase) in the given order
+  void addPreparedRules(final List<PreparedRule> preparedRules)
+  {
+    update(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        for (PreparedRule preparedRule : preparedRules)
+        {
+          insertRule(preparedRule);
+        }
+      }
+    });
   }
 
   private class OpsRunnable implements Runnable
   {
     public String Id = UUID.randomUUID().toString();
-    public Runnable Runnable;
-    public String Name;
-    public OpsRunnable(String name, Runnable runnable)
+    public Rule Rule;
+    public Command Command;
+    public CommandContext Context;
+    public Object[] Args;
+
+    public OpsRunnable(Rule rule, Command command, CommandContext context, Object[] args)
     {
-      Name = name;
-      Runnable = runnable;
+      Rule = rule;
+      Command = command;
+      Context = context;
+      Args = args;
     }
 
     @Override
     public void run()
     {
+      Throwable error = null;
       try
       {
-        Runnable.run();
+        Command.exec(Context, Args);
       }
       catch (Exception e)
       {
+        error = e;
         e.printStackTrace();
       }
       finally
       {
         _asyncTickets.remove(Id);
+
+        for (EngineListener listener : _listeners)
+        {
+          listener.asyncCompleted(Rule, error);
+        }
+
+        Runnable wakeListener = _wakeListener;
+        if (wakeListener != null)
+        {
+          wakeListener.run();
+        }
       }
     }
   }
 
-  private class PreparedRule
+  private class RefractedMatch implements PreparedQuery.Visitor
   {
-    Rule Rule;
-    Integer Specificity;
-  }
-
-  private static class MatchContext
-  {
-    public Set<MemoryElement> Elements;
-    public Map<String, Object> Vars;
-    public Integer QeIdx;
-    public Integer MeIdx;
-
-    public MatchContext()
-    {
-      this(
-        new LinkedHashSet<MemoryElement>(),
-        new HashMap<String, Object>(),
-        0,
-        0);
-    }
+    PreparedRule Rule;
 
-    public MatchContext(
-      Set<MemoryElement> element,
-      Map<String, Object> vars,
-      Integer qeIdx,
-      Integer meIdx)
+    @Override
+    public boolean visit(MemoryElement[] elements, Object[] vars)
     {
-      Elements = element;
-      Vars = vars;
-      QeIdx = qeIdx;
-      MeIdx = meIdx;
-    }
+      // keep searching past activations that have already fired
+      if (_refraction.hasFired(Rule.Rule, elements)) return false;
 
-    public MatchContext(MatchContext mc)
-    {
-      this(
-        new LinkedHashSet<MemoryElement>(mc.Elements),
-        new HashMap<String, Object>(mc.Vars),
-        mc.QeIdx,
-        mc.MeIdx);
+      for (EngineListener listener : _listeners)
+      {
+        listener.activated(Rule.Rule, elements);
+      }
+      return true;
     }
   }
 
-  private static Match match(Rule rule, WorkingMemory wm)
+  private Match match(PreparedRule rule, WorkingMemory wm)
   {
-    Match match = null;
+    MemoryElement[] elements = new MemoryElement[rule.Query.Conditions.length];
+    Object[] vars = new Object[rule.getVarCount()];
+    Arrays.fill(vars, PreparedQuery.UNBOUND);
 
-    MatchContext mc = new MatchContext();
-
-    Stack<MatchContext> stack = new Stack<MatchContext>();
-    stack.push(mc);
-
-    while((mc.QeIdx < rule.Query.size()) && (stack.size() > 0))
+    _refractedMatch.Rule = rule;
+    if (_cycleProfiler != null)
     {
-      mc = stack.pop();
+      if (!profiledMatch(rule, wm, elements, vars, _refractedMatch)) return null;
+    }
+    else if (!rule.Query.match(wm, elements, vars, _refractedMatch)) return null;
 
-      QueryElement qe = rule.Query.get(mc.QeIdx);
+    return new Match(rule, elements, vars, rule.Rule.Salience);
+  }
 
-      List<MemoryElement> wme = wm.get(qe.Type);
-      if (wme == null) break;
+  // finds the activation of a dynamic salience rule with the highest salience
+  private class BestMatch implements PreparedQuery.Visitor
+  {
+    PreparedRule Rule;
+    Match Best;
 
-      boolean haveMatch = false;
+    @Override
+    public boolean visit(MemoryElement[] elements, Object[] vars)
+    {
+      if (_refraction.hasFired(Rule.Rule, elements)) return false;
 
-      while(mc.MeIdx < wme.size())
+      for (EngineListener listener : _listeners)
       {
-        MemoryElement me = wme.get(mc.MeIdx++);
-
-        if (mc.Elements.contains(me)) continue;
+        listener.activated(Rule.Rule, elements);
+      }
 
-        MatchContext tmpMc = new MatchContext(mc);
-        haveMatch = compare(qe, me, tmpMc.Vars);
-        if (haveMatch)
-        {
-          stack.push(mc);
-          mc = tmpMc;
-          mc.MeIdx = 0;
-          mc.QeIdx++;
-          mc.Elements.add(me);
-          stack.push(mc);
-          break;
-        }
+      int salience = Rule.getSalience(vars);
+      if (Best == null || salience > Best.Salience)
+      {
+        Best = new Match(Rule, elements.clone(), vars.clone(), salience);
       }
+      return false;
     }
+  }
+
+  private Match matchBest(PreparedRule rule, WorkingMemory wm)
+  {
+    MemoryElement[] elements = new MemoryElement[rule.Query.Conditions.length];
+    Object[] vars = new Object[rule.getVarCount()];
+    Arrays.fill(vars, PreparedQuery.UNBOUND);
 
-    if (mc.Elements.size() == rule.Query.size())
+    _bestMatch.Rule = rule;
+    _bestMatch.Best = null;
+    if (_cycleProfiler != null)
     {
-      match = new Match(rule, new ArrayList<MemoryElement>(mc.Elements), mc.Vars);
+      profiledMatch(rule, wm, elements, vars, _bestMatch);
+    }
+    else
+    {
+      rule.Query.match(wm, elements, vars, _bestMatch);
     }
 
-    return match;
+    Match best = _bestMatch.Best;
+    _bestMatch.Best = null;
+    return best;
   }
 
-  private Match match(List<Rule> rules, Rule lastRuleFired, final WorkingMemory wm)
+  private boolean profiledMatch(PreparedRule rule, WorkingMemory wm, MemoryElement[] elements, Object[] vars, PreparedQuery.Visitor visitor)
   {
-    List<Match> hits = new ArrayList<Match>();
-
-    for (final Rule rule : rules)
+    RuleProfile profile = _cycleProfiler.profile(rule.Rule);
+    long start = System.nanoTime();
+    try
     {
-      Match m = match(rule, wm);
-      if (m != null)
-      {
-        hits.add(m);
-      }
+      return rule.Query.match(wm, elements, vars, visitor, profile);
+    }
+    finally
+    {
+      profile.Matches++;
+      profile.MatchNanos += System.nanoTime() - start;
     }
+  }
 
-    if (hits.size() == 0) return null;
+  // only the focused group is matched; a group with nothing left to fire loses focus to the one below it
+  private Match matchFocus()
+  {
+    while (true)
+    {
+      AgendaGroup group = _groups.get(getFocus());
+      Match m = group != null ? match(group, _wm) : null;
+      if (m != null || _focusStack.isEmpty()) return m;
 
-    // RESOLVE CONFLICT
-    if (hits.size() == 1) return hits.get(0);
-    hits.remove(lastRuleFired);
-    return hits.get(0);
+      _focusStack.removeFirst();
+      logFocus();
+    }
   }
 
-  private static boolean compare(QueryElement qe, MemoryElement me, Map<String, Object> vars)
+  // RESOLVE CONFLICT: the activation that has not fired yet with the highest salience, ties going to
+  // the rule that comes first.  Dynamic rules are matched in full to find their best activation; the
+  // sorted static rules are then matched tier by tier, stopping as soon as no later rule can win.
+  private Match match(AgendaGroup group, WorkingMemory wm)
   {
-    if (!(me.Type.equals(qe.Type))) return false;
+    Match best = null;
 
-    for (QueryPair qp : qe.QueryPairs)
+    for (PreparedRule rule : group.Dynamic)
     {
-      Object val = me.Values.containsKey(qp.Key) ? me.Values.get(qp.Key) : null;
+      Match m = matchBest(rule, wm);
+      if (m != null && (best == null || m.Salience > best.Salience || (m.Salience == best.Salience && _tieOrder.compare(m.Rule, best.Rule) < 0)))
+      {
+        best = m;
+      }
+    }
 
-      if (qp.Value == null)
+    for (PreparedRule rule : group.Rules)
+    {
+      if (best != null)
       {
-        if (val == null)
-        {
-          // match
-        }
-        else
-        {
-          return false;
-        }
+        if (rule.Rule.Salience < best.Salience) break;
+        if (rule.Rule.Salience == best.Salience && _tieOrder.compare(rule, best.Rule) > 0) break;
       }
-      else
+
+      Match m = match(rule, wm);
+      if (m != null)
       {
-        if (qp.Value instanceof String)
-        {
-          String strQpVal = (String)qp.Value;
-          if (strQpVal.startsWith("$"))
-          {
-            if (vars.containsKey(strQpVal))
-            {
-              if (!vars.get(strQpVal).equals(val))
-              {
-                return false;
-              }
-            }
-            else
-            {
-              // variable matches everything
-              vars.put(strQpVal, val);
-            }
-          }
-          else
-          {
-            if (!strQpVal.equals(val))
-            {
-              return false;
-            }
-          }
-        }
-        else
-        {
-          if (!qp.Value.equals(val))
-          {
-            return false;
-          }
-        }
+        return m;
       }
     }
 
-    return true;
+    return best;
   }
 
   private static class Match
   {
-    public Rule Rule;
-    public List<MemoryElement> Elements;
-    public Map<String, Object> Vars;
+    public PreparedRule Rule;
+    public MemoryElement[] Elements;
+    public Object[] Vars;
+    public int Salience;
 
-    public Match(Rule rule, List<MemoryElement> elements, Map<String, Object> vars)
+    public Match(PreparedRule rule, MemoryElement[] elements, Object[] vars, int salience)
     {
       Rule = rule;
       Elements = elements;
       Vars = vars;
+      Salience = salience;
     }
   }
 }
@@ -9,14 +9,21 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.*;
 
 
 public class OpsFactory
 {
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+  private static final int STREAM_DRAIN_INTERVAL = 4096;
+
   public static Map<String, Command> getDefaultRegistry()
   {
     Map<String, Command> registry = new HashMap<String, Command>();
@@ -26,6 +33,8 @@ public class OpsFactory
     registry.put("halt", new halt());
     registry.put("make", new make());
     registry.put("modify", new modify());
+    registry.put("focus", new focus());
+    registry.put("popfocus", new popfocus());
     return registry;
   }
 
@@ -51,8 +60,13 @@ public class OpsFactory
 
     try
     {
-      JSONObject obj = readJSONFile(opsFile.getCanonicalPath());
-      ops = processOPSFile(registry, obj);
+      if (RulebaseCodec.isRulebase(opsFile))
+      {
+        return RulebaseCodec.read(registry, opsFile);
+      }
+
+      ops = new OPS();
+      load(registry, opsFile, ops);
       return ops;
     }
     catch (Exception e)
@@ -97,7 +111,14 @@ public class OpsFactory
       throws Exception
   {
     OPS ops = new OPS();
+    load(registry, obj, ops);
+    return ops;
+  }
 
+  // loads a parsed ops file into an existing engine, e.g. one whose working memory waits for items
+  public static void load(Map<String, Command> registry, JSONObject obj, OPS ops)
+      throws JSONException
+  {
     if (!obj.has("ops"))
     {
       throw new IllegalArgumentException("missing ops section");
@@ -109,81 +130,231 @@ public class OpsFactory
 
     for (int i = 0; i < arr.length(); i++)
     {
-      JSONArray statement = arr.getJSONArray(i);
-      if (statement.length() < 2)
+      processStatement(registry, ops, arr.getJSONArray(i), rulesToAdd);
+    }
+
+    ops.addRules(rulesToAdd);
+    ops.getWorkingMemory().drainInMemoryQueue();
+  }
+
+  static void processStatement(Map<String, Command> registry, OPS ops, JSONArray statement, List<Rule> rulesToAdd)
+      throws JSONException
+  {
+    if (statement.length() < 2)
+    {
+      System.err.println("malformed statement: " + statement);
+    }
+
+    String cmd = statement.getString(0);
+    if (cmd.equals("literalize"))
+    {
+      String recordName = statement.getString(1);
+      if (recordName.equals("not") || recordName.equals("aggregate"))
       {
-        System.err.println("malformed statement: " + statement);
+        // a condition starting with either is read as a negated or aggregate condition
+        throw new IllegalArgumentException(String.format("cannot literalize %s: it is a condition keyword", recordName));
       }
-
-      String cmd = statement.getString(0);
-      if (cmd.equals("literalize"))
+      Map<String, Object> values = new HashMap<String, Object>();
+      for (int j = 2; j < statement.length(); j++)
       {
-        String recordName = statement.getString(1);
-        Map<String, Object> values = new HashMap<String, Object>();
-        for (int j = 2; j < statement.length(); j++)
+        Object field = statement.get(j);
+        if (field instanceof String)
         {
-          Object field = statement.get(j);
-          if (field instanceof String)
-          {
-            values.put(field.toString(), null);
-          }
-          else if (field instanceof JSONObject)
+          values.put(field.toString(), null);
+        }
+        else if (field instanceof JSONObject)
+        {
+          JSONObject fieldObj = (JSONObject)field;
+          Iterator<String> keys = fieldObj.keys();
+          while (keys.hasNext())
           {
-            JSONObject fieldObj = (JSONObject)field;
-            Iterator<String> keys = fieldObj.keys();
-            while (keys.hasNext())
-            {
-              String key = keys.next();
-              values.put(key, fieldObj.get(key));
-            }
+            String key = keys.next();
+            values.put(key, fieldObj.get(key));
           }
         }
+      }
 
-        ops.getWorkingMemory().literalize(new MemoryElement(recordName, values));
+      ops.getWorkingMemory().literalize(new MemoryElement(recordName, values));
+    }
+    else if (cmd.equals("make"))
+    {
+      String recordName = statement.getString(1);
+      Map<String, Object> values = new HashMap<String, Object>();
+      for (int j = 2; j < statement.length(); j += 2)
+      {
+        values.put(statement.getString(j), statement.get(j+1));
       }
-      else if (cmd.equals("make"))
+      ops.getWorkingMemory().make(new MemoryElement(recordName, values));
+    }
+    else if (cmd.equals("p"))
+    {
+      String productionName = statement.getString(1);
+
+      List<QueryElement> query = parseConditions(statement.getJSONArray(2));
+
+      List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+      JSONArray list = statement.getJSONArray(3);
+      for (int j = 0; j < list.length(); j++)
       {
-        String recordName = statement.getString(1);
-        Map<String, Object> values = new HashMap<String, Object>();
-        for (int j = 2; j < statement.length(); j += 2)
+        JSONArray production = list.getJSONArray(j);
+        String commandName = production.getString(0);
+        Command command = getCommand(registry, commandName);
+        Object[] params = sublist(1, production);
+        if (command instanceof bind && params.length > 1 && "@SOCKET".equals(params[1]))
         {
-          values.put(statement.getString(j), statement.get(j+1));
+          throw new IllegalArgumentException(
+            String.format("rule %s: bind @SOCKET is not supported, stream facts in with ops.ingest.ChannelIngestor", productionName));
         }
-        ops.getWorkingMemory().make(new MemoryElement(recordName, values));
+        productions.add(new ProductionSpec(command, params));
       }
-      else if (cmd.equals("p"))
+
+      // an optional trailing object holds rule options, e.g. {"group": "phase1", "salience": 10}
+      String group = null;
+      Object salience = null;
+      if (statement.length() > 4)
       {
-        String productionName = statement.getString(1);
+        JSONObject options = statement.getJSONObject(4);
+        group = options.optString("group", null);
+        salience = options.opt("salience");
+      }
+
+      rulesToAdd.add(new Rule(productionName, query, productions, group, salience));
+    }
+    else if (cmd.equals("query"))
+    {
+      // ["query", name, [conditions], {"params": ["$x", ...]}]
+      String queryName = statement.getString(1);
+      List<QueryElement> query = parseConditions(statement.getJSONArray(2));
 
-        List<QueryElement> query = new ArrayList<QueryElement>();
-        JSONArray list = statement.getJSONArray(2);
-        for (int j = 0; j < list.length(); j++)
+      String[] params = new String[0];
+      if (statement.length() > 3)
+      {
+        JSONArray list = statement.getJSONObject(3).optJSONArray("params");
+        if (list != null)
         {
-          JSONArray matcher = list.getJSONArray(j);
-          String recordName = matcher.getString(0);
-          Object[] values = sublist(1, matcher);
-          query.add(new QueryElement(recordName, values));
+          params = new String[list.length()];
+          for (int j = 0; j < params.length; j++)
+          {
+            params[j] = list.getString(j);
+          }
         }
+      }
+
+      ops.getWorkingMemory().defineQuery(new Query(queryName, query, params));
+    }
+    else if (cmd.equals("index"))
+    {
+      // ["index", type, key, key, ..., {"sorted": true}]
+      String recordName = statement.getString(1);
+      int end = statement.length();
+      JSONObject options = statement.optJSONObject(end - 1);
+      if (options != null) end--;
+      boolean sorted = options != null && options.optBoolean("sorted");
 
-        List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
-        list = statement.getJSONArray(3);
-        for (int j = 0; j < list.length(); j++)
+      for (int j = 2; j < end; j++)
+      {
+        ops.getWorkingMemory().createIndex(recordName, statement.getString(j), sorted);
+      }
+    }
+  }
+
+  /**
+   * Stream the statements of an ops file into an engine one at a time, without building
+   * the whole document in memory.  Memory elements are drained into working memory as the
+   * file is read, so peak memory is the working memory itself plus one statement.
+   */
+  public static void load(Map<String, Command> registry, File opsFile, OPS ops)
+      throws IOException, JSONException
+  {
+    FileInputStream stream = new FileInputStream(opsFile);
+    try
+    {
+      CharsetDecoder decoder =
+        Charset.defaultCharset().newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+      Reader reader = Channels.newReader(stream.getChannel(), decoder, STREAM_BUFFER_SIZE);
+      JsonStreamReader json = new JsonStreamReader(reader, STREAM_BUFFER_SIZE);
+
+      List<Rule> rulesToAdd = new ArrayList<Rule>();
+      boolean hasOps = false;
+      long count = 0;
+
+      json.expect('{');
+      while (json.hasNext('}'))
+      {
+        String key = json.readString();
+        json.expect(':');
+
+        if (!key.equals("ops"))
         {
-          JSONArray production = list.getJSONArray(j);
-          String commandName = production.getString(0);
-          Command command = getCommand(registry, commandName);
-          Object[] params = sublist(1, production);
-          productions.add(new ProductionSpec(command, params));
+          json.skipValue();
+          continue;
+        }
+
+        hasOps = true;
+
+        json.expect('[');
+        while (json.hasNext(']'))
+        {
+          Object statement = json.readValue();
+          if (!(statement instanceof JSONArray))
+          {
+            throw new JSONException("malformed statement: " + statement);
+          }
+
+          processStatement(registry, ops, (JSONArray) statement, rulesToAdd);
+
+          if (++count % STREAM_DRAIN_INTERVAL == 0)
+          {
+            ops.getWorkingMemory().drainInMemoryQueue();
+          }
         }
+        json.expect(']');
+      }
+      json.expect('}');
 
-        rulesToAdd.add(new Rule(productionName, query, productions));
+      if (!hasOps)
+      {
+        throw new IllegalArgumentException("missing ops section");
       }
-    }
 
-    ops.addRules(rulesToAdd);
-    ops.getWorkingMemory().drainInMemoryQueue();
+      ops.addRules(rulesToAdd);
+      ops.getWorkingMemory().drainInMemoryQueue();
+    }
+    finally
+    {
+      stream.close();
+    }
+  }
 
-    return ops;
+  private static List<QueryElement> parseConditions(JSONArray list)
+      throws JSONException
+  {
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    for (int j = 0; j < list.length(); j++)
+    {
+      // [type, key, value, ...], negated ["not", type, key, value, ...] or
+      // ["aggregate", type, key, value, ..., {"$var": aggregate, ...}]
+      JSONArray matcher = list.getJSONArray(j);
+      if (matcher.getString(0).equals("not"))
+      {
+        query.add(QueryElement.not(matcher.getString(1), sublist(2, matcher)));
+        continue;
+      }
+      if (matcher.getString(0).equals("aggregate"))
+      {
+        JSONObject aggregates = matcher.getJSONObject(matcher.length() - 1);
+        Object[] values = sublist(2, matcher);
+        query.add(QueryElement.aggregate(matcher.getString(1), aggregates, Arrays.copyOf(values, values.length - 1)));
+        continue;
+      }
+      String recordName = matcher.getString(0);
+      Object[] values = sublist(1, matcher);
+      query.add(new QueryElement(recordName, values));
+    }
+    return query;
   }
 
   private static Object[] sublist(int startIdx, JSONArray arr)
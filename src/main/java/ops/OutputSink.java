@@ -0,0 +1,16 @@
+package ops;
+
+
+/**
+ * Where the write command sends its lines.  The line passed to writeLine() is a buffer the caller
+ * reuses once the call returns, so a sink that keeps a line past the call (to queue or store it)
+ * must copy it first, e.g. with toString().
+ */
+public interface OutputSink
+{
+  void writeLine(CharSequence line);
+
+  void flush();
+
+  void close();
+}
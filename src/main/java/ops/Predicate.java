@@ -0,0 +1,287 @@
+package ops;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * A relational test on one attribute, written in a condition as an object of operators, e.g.
+ * {"&gt;": 10}, {"&gt;=": "$low", "&lt;": "$high"}, {"between": [1, 5]} or {"&lt;&gt;": "closed"}.
+ * Operands are constants or variables bound by an earlier test.  Numbers compare by value
+ * whatever their type and strings compare lexicographically; anything else, including a missing
+ * attribute, fails every operator except &lt;&gt;.
+ *
+ * {"in": ["a", "b", "c"]} tests membership in a set of constants, hashed once when the predicate
+ * is compiled.  Members are matched as constant tests are, by equals, with a JSON null standing
+ * for null, and an index on the attribute looks each member up in turn.
+ */
+class Predicate
+{
+  static final int LT = 0;
+  static final int LE = 1;
+  static final int GT = 2;
+  static final int GE = 3;
+  static final int NE = 4;
+  static final int IN = 5;
+
+  private static final String[] OPERATORS = { "<", "<=", ">", ">=", "<>", "in" };
+  private static final String BETWEEN = "between";
+
+  final int[] Ops;
+  final Object[] Operands;
+  // the variable slot of each operand, or -1 for a constant
+  final int[] Slots;
+
+  private Predicate(int count)
+  {
+    Ops = new int[count];
+    Operands = new Object[count];
+    Slots = new int[count];
+  }
+
+  // a JSON object whose keys are all operators; any other object is a plain value
+  static boolean isPredicate(Object value)
+  {
+    if (!(value instanceof JSONObject)) return false;
+
+    JSONObject spec = (JSONObject) value;
+    if (spec.length() == 0) return false;
+
+    Iterator<?> keys = spec.keys();
+    while (keys.hasNext())
+    {
+      Object key = keys.next();
+      if (!BETWEEN.equals(key) && operator((String) key) < 0) return false;
+    }
+    return true;
+  }
+
+  private static int operator(String name)
+  {
+    for (int i = 0; i < OPERATORS.length; i++)
+    {
+      if (OPERATORS[i].equals(name)) return i;
+    }
+    return -1;
+  }
+
+  static Predicate compile(JSONObject spec, Map<String, Integer> varSlots)
+  {
+    try
+    {
+      int count = spec.length() + (spec.has(BETWEEN) ? 1 : 0);
+      Predicate predicate = new Predicate(count);
+
+      int i = 0;
+      Iterator<?> keys = spec.keys();
+      while (keys.hasNext())
+      {
+        String key = (String) keys.next();
+        if (key.equals(BETWEEN))
+        {
+          JSONArray range = spec.getJSONArray(key);
+          if (range.length() != 2)
+          {
+            throw new IllegalArgumentException("between takes [low, high]: " + spec);
+          }
+          predicate.set(i++, GE, range.get(0), varSlots);
+          predicate.set(i++, LE, range.get(1), varSlots);
+        }
+        else
+        {
+          predicate.set(i++, operator(key), spec.get(key), varSlots);
+        }
+      }
+      return predicate;
+    }
+    catch (JSONException e)
+    {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private void set(int i, int op, Object operand, Map<String, Integer> varSlots)
+  {
+    Ops[i] = op;
+    Operands[i] = operand;
+    Slots[i] = -1;
+
+    if (op == IN)
+    {
+      Operands[i] = members(operand);
+    }
+    else if (PreparedQuery.isVar(operand))
+    {
+      Integer slot = varSlots.get(operand);
+      if (slot == null)
+      {
+        throw new IllegalArgumentException(String.format("%s must be bound before it is compared", operand));
+      }
+      Slots[i] = slot;
+    }
+  }
+
+  private static Set<Object> members(Object operand)
+  {
+    if (!(operand instanceof JSONArray))
+    {
+      throw new IllegalArgumentException("in takes a list of values: " + operand);
+    }
+
+    JSONArray list = (JSONArray) operand;
+    Set<Object> members = new LinkedHashSet<Object>(list.length() * 2);
+    for (int i = 0; i < list.length(); i++)
+    {
+      Object member = list.opt(i);
+      if (PreparedQuery.isVar(member) || member instanceof JSONArray || member instanceof JSONObject)
+      {
+        throw new IllegalArgumentException("in takes a list of constants: " + operand);
+      }
+      members.add(member == JSONObject.NULL ? null : member);
+    }
+    return members;
+  }
+
+  // the values of the first membership test, if any
+  Set<?> members()
+  {
+    for (int i = 0; i < Ops.length; i++)
+    {
+      if (Ops[i] == IN) return (Set<?>) Operands[i];
+    }
+    return null;
+  }
+
+  Object operand(int i, Object[] vars)
+  {
+    return Slots[i] < 0 ? Operands[i] : vars[Slots[i]];
+  }
+
+  boolean test(Object value, Object[] vars)
+  {
+    for (int i = 0; i < Ops.length; i++)
+    {
+      Object operand = operand(i, vars);
+
+      if (Ops[i] == IN)
+      {
+        if (!((Set<?>) operand).contains(value == JSONObject.NULL ? null : value)) return false;
+        continue;
+      }
+
+      if (Ops[i] == NE)
+      {
+        if (isComparable(value, operand) ? compare(value, operand) == 0 : equal(value, operand)) return false;
+        continue;
+      }
+
+      if (!isComparable(value, operand)) return false;
+
+      int c = compare(value, operand);
+      switch (Ops[i])
+      {
+        case LT: if (c >= 0) return false; break;
+        case LE: if (c > 0) return false; break;
+        case GT: if (c <= 0) return false; break;
+        case GE: if (c < 0) return false; break;
+      }
+    }
+    return true;
+  }
+
+  // the elements of a sorted index within the first lower and upper bound; the test applies the rest
+  Collection<MemoryElement> candidates(AttributeIndex index, Object[] vars)
+  {
+    Object low = null;
+    Object high = null;
+    for (int i = 0; i < Ops.length; i++)
+    {
+      if (Ops[i] == IN) continue;
+
+      Object operand = operand(i, vars);
+      if (operand == null || operand == JSONObject.NULL)
+      {
+        if (Ops[i] != NE) return Collections.emptySet();
+        continue;
+      }
+
+      if ((Ops[i] == GT || Ops[i] == GE) && low == null) low = operand;
+      if ((Ops[i] == LT || Ops[i] == LE) && high == null) high = operand;
+    }
+    return index.range(low, high);
+  }
+
+  boolean isConstant()
+  {
+    for (int slot : Slots)
+    {
+      if (slot >= 0) return false;
+    }
+    return true;
+  }
+
+  // whether any operator bounds the value, so a sorted index can serve it
+  boolean isRange()
+  {
+    for (int op : Ops)
+    {
+      if (op != NE && op != IN) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < Ops.length; i++)
+    {
+      if (i > 0) sb.append(' ');
+      sb.append(OPERATORS[Ops[i]]).append(Operands[i]);
+    }
+    return sb.toString();
+  }
+
+  private static boolean equal(Object a, Object b)
+  {
+    if (a == JSONObject.NULL) a = null;
+    if (b == JSONObject.NULL) b = null;
+    return a == null ? b == null : a.equals(b);
+  }
+
+  static boolean isComparable(Object a, Object b)
+  {
+    return (a instanceof Number && b instanceof Number) || (a instanceof String && b instanceof String);
+  }
+
+  // orders numbers by value, before strings; only numbers and strings are ordered
+  static int compare(Object a, Object b)
+  {
+    if (a instanceof Number)
+    {
+      if (!(b instanceof Number)) return -1;
+      if (isIntegral(a) && isIntegral(b))
+      {
+        long x = ((Number) a).longValue();
+        long y = ((Number) b).longValue();
+        return x < y ? -1 : (x == y ? 0 : 1);
+      }
+      return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+    }
+    if (b instanceof Number) return 1;
+    return ((String) a).compareTo((String) b);
+  }
+
+  static boolean isIntegral(Object n)
+  {
+    return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+  }
+}
@@ -0,0 +1,614 @@
+package ops;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONObject;
+
+
+class PreparedQuery
+{
+  static final Object UNBOUND = new Object();
+
+  static final int IS_NULL = 0;
+  static final int EQUALS = 1;
+  static final int BIND = 2;
+  static final int JOIN = 3;
+  static final int PREDICATE = 4;
+
+  final List<QueryElement> Query;
+  final Condition[] Conditions;
+
+  interface Visitor
+  {
+    // return true to stop the search
+    boolean visit(MemoryElement[] elements, Object[] vars);
+  }
+
+  static class Condition
+  {
+    String Type;
+    Test[] Tests;
+    int[] BindSlots;
+
+    boolean Negated;
+    // the values an aggregate condition binds, else null
+    Aggregate[] Aggregates;
+    // for a negated or aggregate condition whose tests are all constants or joins, the signature of
+    // the AggregateIndex grouping the elements that pass the constant tests by the join attributes
+    String GroupSignature;
+    Test[] GroupFilter;
+    String[] GroupKeys;
+    int[] GroupSlots;
+
+    boolean test(MemoryElement me, Object[] vars)
+    {
+      for (Test test : Tests)
+      {
+        Object val = me.Values.get(test.Key);
+
+        switch (test.Kind)
+        {
+          case IS_NULL:
+            if (val != null) return false;
+            break;
+          case EQUALS:
+            if (!test.Value.equals(val)) return false;
+            break;
+          case BIND:
+            vars[test.Slot] = val;
+            break;
+          case JOIN:
+            Object bound = vars[test.Slot];
+            if (bound == null ? val != null : !bound.equals(val)) return false;
+            break;
+          case PREDICATE:
+            if (!test.Predicate.test(val, vars)) return false;
+            break;
+        }
+      }
+
+      return true;
+    }
+
+    // the elements that can pass this condition, narrowed by an index on an equality tested
+    // attribute, failing that by an index on one tested for membership in a set, or by a sorted
+    // index on a range tested one
+    Collection<MemoryElement> candidates(FactSource wm, Object[] vars)
+    {
+      if (wm.hasIndexes(Type))
+      {
+        Test members = null;
+        Test range = null;
+
+        for (Test test : Tests)
+        {
+          Object value;
+          switch (test.Kind)
+          {
+            case IS_NULL: value = null; break;
+            case EQUALS: value = test.Value; break;
+            case JOIN: value = vars[test.Slot]; break;
+            case PREDICATE:
+              if (members == null && isMembershipIndexed(wm, test)) members = test;
+              if (range == null && isRangeIndexed(wm, test)) range = test;
+              continue;
+            default: continue;
+          }
+
+          AttributeIndex index = wm.getIndex(Type, test.Key);
+          if (index != null)
+          {
+            return index.get(value);
+          }
+        }
+
+        if (members != null)
+        {
+          return wm.getIndex(Type, members.Key).getAll(members.Predicate.members());
+        }
+        if (range != null)
+        {
+          return range.Predicate.candidates(wm.getIndex(Type, range.Key), vars);
+        }
+      }
+
+      return wm.get(Type);
+    }
+
+    private boolean isMembershipIndexed(FactSource wm, Test test)
+    {
+      return test.Predicate.members() != null && wm.getIndex(Type, test.Key) != null;
+    }
+
+    private boolean isRangeIndexed(FactSource wm, Test test)
+    {
+      if (!test.Predicate.isRange()) return false;
+      AttributeIndex index = wm.getIndex(Type, test.Key);
+      return index != null && index.Sorted;
+    }
+
+    // the test candidates() narrows by, if any
+    Test indexedTest(FactSource wm)
+    {
+      if (!wm.hasIndexes(Type)) return null;
+
+      Test members = null;
+      Test range = null;
+      for (Test test : Tests)
+      {
+        if (test.Kind == PREDICATE)
+        {
+          if (members == null && isMembershipIndexed(wm, test)) members = test;
+          if (range == null && isRangeIndexed(wm, test)) range = test;
+        }
+        else if (test.Kind != BIND && wm.getIndex(Type, test.Key) != null)
+        {
+          return test;
+        }
+      }
+      return members != null ? members : range;
+    }
+
+    void unbind(Object[] vars)
+    {
+      for (int slot : BindSlots)
+      {
+        vars[slot] = UNBOUND;
+      }
+    }
+
+    void negate()
+    {
+      Negated = true;
+      group();
+    }
+
+    void aggregate(JSONObject aggregates, Map<String, Integer> varSlots)
+    {
+      Aggregates = Aggregate.compile(aggregates, varSlots);
+      group();
+    }
+
+    private void group()
+    {
+      List<Test> filter = new ArrayList<Test>();
+      List<Test> joins = new ArrayList<Test>();
+      StringBuilder signature = new StringBuilder(Type);
+      for (Test test : Tests)
+      {
+        if (test.Kind == BIND || (test.Kind == PREDICATE && !test.Predicate.isConstant())) return;
+        if (test.Kind == JOIN)
+        {
+          joins.add(test);
+          continue;
+        }
+
+        filter.add(test);
+        signature.append('|').append(test.Key).append(' ').append(test.Kind);
+        if (test.Value != null)
+        {
+          signature.append(' ').append(test.Value.getClass().getName()).append(' ').append(test.Value);
+        }
+      }
+
+      GroupFilter = filter.toArray(new Test[filter.size()]);
+      GroupKeys = new String[joins.size()];
+      GroupSlots = new int[joins.size()];
+      signature.append('|');
+      for (int i = 0; i < GroupKeys.length; i++)
+      {
+        GroupKeys[i] = joins.get(i).Key;
+        GroupSlots[i] = joins.get(i).Slot;
+        signature.append(' ').append(GroupKeys[i]);
+      }
+      if (Aggregates != null)
+      {
+        signature.append('|');
+        for (Aggregate aggregate : Aggregates)
+        {
+          signature.append(' ').append(aggregate);
+        }
+      }
+      GroupSignature = signature.toString();
+    }
+
+    // whether an element passes this negated condition, given the bindings so far
+    boolean blocked(FactSource wm, Object[] vars)
+    {
+      AggregateIndex counts = GroupSignature != null ? wm.getAggregateIndex(GroupSignature) : null;
+      if (counts != null)
+      {
+        return counts.blocks(vars, GroupSlots);
+      }
+
+      Collection<MemoryElement> candidates = candidates(wm, vars);
+      if (candidates == null) return false;
+
+      for (MemoryElement me : candidates)
+      {
+        boolean passed = test(me, vars);
+        unbind(vars);
+        if (passed) return true;
+      }
+      return false;
+    }
+
+    // the group of elements passing this aggregate condition, given the bindings so far, which
+    // stands in for the element matched; its values are bound, unless one fails its test and
+    // null is returned.  A scanned group's stamp is the newest time tag in it
+    MemoryElement aggregate(FactSource wm, Object[] vars)
+    {
+      AggregateIndex index = GroupSignature != null ? wm.getAggregateIndex(GroupSignature) : null;
+      AggregateIndex.Group group;
+      if (index != null)
+      {
+        group = index.get(vars, GroupSlots);
+      }
+      else
+      {
+        group = new AggregateIndex.Group(Aggregates);
+        Collection<MemoryElement> candidates = candidates(wm, vars);
+        if (candidates != null)
+        {
+          for (MemoryElement me : candidates)
+          {
+            if (test(me, vars))
+            {
+              group.add(me);
+              group.Stamp = Math.max(group.Stamp, me.TimeTag);
+            }
+            unbind(vars);
+          }
+        }
+      }
+
+      if (group == null)
+      {
+        group = new AggregateIndex.Group(Aggregates);
+      }
+
+      MemoryElement result = group.result(Type);
+      for (Aggregate aggregate : Aggregates)
+      {
+        Object value = result.Values.get(aggregate.Var);
+        vars[aggregate.Slot] = value;
+        if (aggregate.Test != null && !aggregate.Test.test(value, vars))
+        {
+          unbind(vars);
+          return null;
+        }
+      }
+      return result;
+    }
+  }
+
+  static class Test
+  {
+    String Key;
+    int Kind;
+    Object Value;
+    int Slot;
+    Predicate Predicate;
+  }
+
+  PreparedQuery(List<QueryElement> query, Condition[] conditions)
+  {
+    Query = query;
+    Conditions = conditions;
+  }
+
+  PreparedQuery(List<QueryElement> query, Map<String, Integer> varSlots)
+  {
+    Query = query;
+    Conditions = new Condition[query.size()];
+
+    // variables first bound in the tests of a negated or aggregate condition, which later
+    // conditions cannot use
+    Set<String> local = new HashSet<String>();
+    boolean positive = false;
+
+    for (int i = 0; i < Conditions.length; i++)
+    {
+      QueryElement qe = query.get(i);
+      positive |= !qe.Negated;
+
+      Condition condition = new Condition();
+      condition.Type = qe.Type;
+      condition.Tests = new Test[qe.QueryPairs.size()];
+
+      List<Integer> bindSlots = new ArrayList<Integer>();
+
+      for (int j = 0; j < condition.Tests.length; j++)
+      {
+        QueryPair qp = qe.QueryPairs.get(j);
+
+        Test test = new Test();
+        test.Key = qp.Key;
+        test.Value = qp.Value;
+
+        if (qp.Value == null)
+        {
+          test.Kind = IS_NULL;
+        }
+        else if (Predicate.isPredicate(qp.Value))
+        {
+          test.Kind = PREDICATE;
+          test.Predicate = Predicate.compile((JSONObject) qp.Value, varSlots);
+        }
+        else if (isVar(qp.Value))
+        {
+          String name = (String) qp.Value;
+          if (local.contains(name))
+          {
+            throw new IllegalArgumentException(String.format("%s is bound in a negated or aggregate condition and cannot be used outside it", name));
+          }
+          if (varSlots.containsKey(name))
+          {
+            test.Kind = JOIN;
+            test.Slot = varSlots.get(name);
+          }
+          else
+          {
+            test.Kind = BIND;
+            test.Slot = varSlots.size();
+            varSlots.put(name, test.Slot);
+            bindSlots.add(test.Slot);
+            if (qe.Negated || qe.Aggregates != null) local.add(name);
+          }
+        }
+        else
+        {
+          test.Kind = EQUALS;
+        }
+
+        condition.Tests[j] = test;
+      }
+
+      if (qe.Aggregates != null)
+      {
+        for (String var : Aggregate.vars(qe.Aggregates))
+        {
+          if (!isVar(var) || varSlots.containsKey(var))
+          {
+            throw new IllegalArgumentException(String.format("aggregates must be bound to new $vars: %s", var));
+          }
+          varSlots.put(var, varSlots.size());
+          bindSlots.add(varSlots.get(var));
+        }
+      }
+
+      condition.BindSlots = new int[bindSlots.size()];
+      for (int j = 0; j < condition.BindSlots.length; j++)
+      {
+        condition.BindSlots[j] = bindSlots.get(j);
+      }
+
+      if (qe.Negated)
+      {
+        condition.negate();
+      }
+      else if (qe.Aggregates != null)
+      {
+        condition.aggregate(qe.Aggregates, varSlots);
+      }
+      Conditions[i] = condition;
+    }
+
+    if (!positive && Conditions.length > 0)
+    {
+      throw new IllegalArgumentException("at least one condition must not be negated");
+    }
+  }
+
+  static boolean isVar(Object value)
+  {
+    return (value instanceof String) && ((String) value).startsWith("$");
+  }
+
+  // binds the variables of a match again from the elements it matched, e.g. for an activation
+  // read back from a snapshot; false if an element is missing or no longer passes its condition
+  boolean bind(FactSource wm, MemoryElement[] elements, Object[] vars)
+  {
+    for (int i = 0; i < Conditions.length; i++)
+    {
+      Condition condition = Conditions[i];
+      if (condition.Negated) continue;
+
+      if (condition.Aggregates != null)
+      {
+        if (condition.aggregate(wm, vars) == null) return false;
+      }
+      else if (elements[i] == null || !condition.test(elements[i], vars))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  boolean match(FactSource wm, MemoryElement[] elements, Object[] vars, Visitor visitor)
+  {
+    return match(0, wm, elements, vars, visitor, -1, null, null);
+  }
+
+  // counts the candidates, partial matches and activations into profile, unless it is null
+  boolean match(FactSource wm, MemoryElement[] elements, Object[] vars, Visitor visitor, RuleProfile profile)
+  {
+    return match(0, wm, elements, vars, visitor, -1, null, profile);
+  }
+
+  // only matches that use the given element for condition fixedIdx, e.g. those a new element produces
+  boolean match(FactSource wm, MemoryElement[] elements, Object[] vars, Visitor visitor, int fixedIdx, MemoryElement fixed)
+  {
+    return match(0, wm, elements, vars, visitor, fixedIdx, fixed, null);
+  }
+
+  private boolean match(int ceIdx, FactSource wm, MemoryElement[] elements, Object[] vars, Visitor visitor, int fixedIdx, MemoryElement fixed, RuleProfile profile)
+  {
+    if (ceIdx == Conditions.length)
+    {
+      if (profile != null) profile.Activations++;
+      return visitor.visit(elements, vars);
+    }
+
+    Condition condition = Conditions[ceIdx];
+
+    if (condition.Negated)
+    {
+      if (profile != null) profile.Candidates++;
+      if (condition.blocked(wm, vars))
+      {
+        if (profile != null) profile.FailedTests++;
+        return false;
+      }
+
+      if (profile != null) profile.PartialMatches++;
+      return match(ceIdx + 1, wm, elements, vars, visitor, fixedIdx, fixed, profile);
+    }
+
+    if (condition.Aggregates != null)
+    {
+      if (profile != null) profile.Candidates++;
+      MemoryElement result = condition.aggregate(wm, vars);
+      if (result == null)
+      {
+        if (profile != null) profile.FailedTests++;
+        return false;
+      }
+
+      if (profile != null) profile.PartialMatches++;
+      elements[ceIdx] = result;
+      if (match(ceIdx + 1, wm, elements, vars, visitor, fixedIdx, fixed, profile))
+      {
+        return true;
+      }
+      condition.unbind(vars);
+      elements[ceIdx] = null;
+      return false;
+    }
+
+    Collection<MemoryElement> wme = ceIdx == fixedIdx ? Collections.singletonList(fixed) : condition.candidates(wm, vars);
+    if (wme == null) return false;
+
+    for (MemoryElement me : wme)
+    {
+      if (isMatched(me, elements, ceIdx)) continue;
+
+      if (profile != null) profile.Candidates++;
+
+      if (condition.test(me, vars))
+      {
+        if (profile != null) profile.PartialMatches++;
+
+        elements[ceIdx] = me;
+        if (match(ceIdx + 1, wm, elements, vars, visitor, fixedIdx, fixed, profile))
+        {
+          return true;
+        }
+      }
+      else if (profile != null)
+      {
+        profile.FailedTests++;
+      }
+
+      condition.unbind(vars);
+    }
+
+    elements[ceIdx] = null;
+
+    return false;
+  }
+
+  // enumerates matches like match() does, counting per condition the candidates tested, those that
+  // passed and the time spent on the condition itself, not including the conditions after it
+  boolean explain(int ceIdx, FactSource wm, MemoryElement[] elements, Object[] vars, Visitor visitor, long[] scanned, long[] passed, long[] nanos)
+  {
+    if (ceIdx == Conditions.length)
+    {
+      return visitor.visit(elements, vars);
+    }
+
+    long start = System.nanoTime();
+    Condition condition = Conditions[ceIdx];
+
+    if (condition.Negated)
+    {
+      scanned[ceIdx]++;
+      boolean stop = false;
+      if (!condition.blocked(wm, vars))
+      {
+        passed[ceIdx]++;
+        long inner = System.nanoTime();
+        stop = explain(ceIdx + 1, wm, elements, vars, visitor, scanned, passed, nanos);
+        start += System.nanoTime() - inner;
+      }
+      nanos[ceIdx] += System.nanoTime() - start;
+      return stop;
+    }
+
+    if (condition.Aggregates != null)
+    {
+      scanned[ceIdx]++;
+      boolean stop = false;
+      MemoryElement result = condition.aggregate(wm, vars);
+      if (result != null)
+      {
+        passed[ceIdx]++;
+        elements[ceIdx] = result;
+        long inner = System.nanoTime();
+        stop = explain(ceIdx + 1, wm, elements, vars, visitor, scanned, passed, nanos);
+        start += System.nanoTime() - inner;
+        if (!stop)
+        {
+          condition.unbind(vars);
+          elements[ceIdx] = null;
+        }
+      }
+      nanos[ceIdx] += System.nanoTime() - start;
+      return stop;
+    }
+
+    for (MemoryElement me : condition.candidates(wm, vars))
+    {
+      if (isMatched(me, elements, ceIdx)) continue;
+
+      scanned[ceIdx]++;
+      if (condition.test(me, vars))
+      {
+        passed[ceIdx]++;
+        elements[ceIdx] = me;
+
+        long inner = System.nanoTime();
+        boolean stop = explain(ceIdx + 1, wm, elements, vars, visitor, scanned, passed, nanos);
+        start += System.nanoTime() - inner;
+        if (stop)
+        {
+          nanos[ceIdx] += System.nanoTime() - start;
+          return true;
+        }
+      }
+
+      condition.unbind(vars);
+    }
+
+    elements[ceIdx] = null;
+    nanos[ceIdx] += System.nanoTime() - start;
+
+    return false;
+  }
+
+  private static boolean isMatched(MemoryElement me, MemoryElement[] elements, int count)
+  {
+    for (int i = 0; i < count; i++)
+    {
+      if (elements[i] == me) return true;
+    }
+    return false;
+  }
+}
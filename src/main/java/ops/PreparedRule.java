@@ -0,0 +1,115 @@
+package ops;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+class PreparedRule
+{
+  Rule Rule;
+  Integer Specificity;
+  PreparedQuery Query;
+  Map<String, Integer> VarSlots;
+  Action[] Actions;
+  int SalienceSlot = -1;
+  // the order rules were added in, which breaks ties in conflict resolution
+  long Sequence;
+
+  PreparedRule(Rule rule, WorkingMemory wm)
+  {
+    Rule = rule;
+    VarSlots = new LinkedHashMap<String, Integer>();
+    Query = new PreparedQuery(rule.Query, VarSlots);
+    Specificity = computeSpecificity(rule);
+    resolveSalience();
+    compileActions(wm);
+  }
+
+  PreparedRule(Rule rule, PreparedQuery query, Map<String, Integer> varSlots, Integer specificity, WorkingMemory wm)
+  {
+    Rule = rule;
+    VarSlots = varSlots;
+    Query = query;
+    Specificity = specificity;
+    resolveSalience();
+    compileActions(wm);
+  }
+
+  boolean isDynamic()
+  {
+    return SalienceSlot >= 0;
+  }
+
+  // the salience of an activation, given its bindings; one whose salience variable is bound to
+  // anything but a number (a fact missing the attribute, say) gets the rule's static salience
+  int getSalience(Object[] vars)
+  {
+    if (SalienceSlot < 0) return Rule.Salience;
+
+    Object salience = vars[SalienceSlot];
+    if (!(salience instanceof Number)) return Rule.Salience;
+    return ((Number) salience).intValue();
+  }
+
+  private void resolveSalience()
+  {
+    if (Rule.SalienceVar == null) return;
+
+    Integer slot = VarSlots.get(Rule.SalienceVar);
+    if (slot == null)
+    {
+      throw new IllegalArgumentException(
+        String.format("salience %s of rule %s is not bound on the left hand side", Rule.SalienceVar, Rule.Name));
+    }
+    SalienceSlot = slot;
+  }
+
+  private void compileActions(WorkingMemory wm)
+  {
+    ActionCompiler compiler = new ActionCompiler(Rule, VarSlots, wm);
+
+    Actions = new Action[Rule.Productions.size()];
+    for (int i = 0; i < Actions.length; i++)
+    {
+      ProductionSpec production = Rule.Productions.get(i);
+
+      if ((production.Command instanceof CompilableCommand) && !(production.Command instanceof AsyncCommand))
+      {
+        Actions[i] = ((CompilableCommand) production.Command).compile(compiler, production.Params);
+      }
+
+      if (Actions[i] == null)
+      {
+        Actions[i] = new CommandAction(production.Command, compiler.compileValues(production.Params, 0));
+      }
+    }
+  }
+
+  int getVarCount()
+  {
+    return VarSlots.size();
+  }
+
+  private static Integer computeSpecificity(Rule rule)
+  {
+    Integer specificity = 0;
+
+    for (QueryElement element : rule.Query)
+    {
+      Integer elementSpecificity = 0;
+
+      for (QueryPair queryPair : element.QueryPairs)
+      {
+        if (!(queryPair.Value instanceof String)) continue;
+        String strVal = (String) queryPair.Value;
+        if (!strVal.startsWith("$")) continue;
+        elementSpecificity++;
+      }
+
+      specificity += elementSpecificity;
+    }
+
+    return specificity;
+  }
+}
@@ -0,0 +1,103 @@
+package ops;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A named query: rule conditions without productions, matched against working memory on demand
+ * or kept up to date as a live view.  Parameters are $vars that are bound from the arguments
+ * before matching, so conditions using them are joins on the given values and can use indexes.
+ *
+ * Queries read working memory without locking, so they must be executed (and views opened or
+ * closed) from the thread running the engine, or while it is idle.  Other threads execute them
+ * against a {@link WorkingMemoryVersion} instead.
+ */
+public class Query
+{
+  String Name;
+  List<QueryElement> Conditions;
+  String[] Params;
+
+  final Map<String, Integer> VarSlots = new LinkedHashMap<String, Integer>();
+  final PreparedQuery Prepared;
+
+  public Query(String name, List<QueryElement> conditions, String... params)
+  {
+    Name = name;
+    Conditions = conditions;
+    Params = params;
+
+    for (String param : params)
+    {
+      if (!PreparedQuery.isVar(param) || VarSlots.containsKey(param))
+      {
+        throw new IllegalArgumentException(String.format("parameters of query %s must be distinct $vars: %s", name, param));
+      }
+      VarSlots.put(param, VarSlots.size());
+    }
+
+    Prepared = new PreparedQuery(conditions, VarSlots);
+  }
+
+  public String getName()
+  {
+    return Name;
+  }
+
+  public List<QueryResult> execute(WorkingMemory wm, Object... args)
+  {
+    final List<QueryResult> results = new ArrayList<QueryResult>();
+    match(wm, args, -1, null, results);
+    return results;
+  }
+
+  // reads a published version, which may be done from any thread
+  public List<QueryResult> execute(WorkingMemoryVersion version, Object... args)
+  {
+    final List<QueryResult> results = new ArrayList<QueryResult>();
+    match(version, args, -1, null, results);
+    return results;
+  }
+
+  public QueryView open(WorkingMemory wm, QueryListener listener, Object... args)
+  {
+    bindArgs(args);
+    return new QueryView(this, wm, listener, args.clone());
+  }
+
+  // matches with the arguments bound, optionally only the matches using element for condition fixedIdx
+  void match(FactSource wm, Object[] args, int fixedIdx, MemoryElement element, final List<QueryResult> results)
+  {
+    MemoryElement[] elements = new MemoryElement[Prepared.Conditions.length];
+    Object[] vars = bindArgs(args);
+
+    Prepared.match(wm, elements, vars, new PreparedQuery.Visitor()
+    {
+      @Override
+      public boolean visit(MemoryElement[] elements, Object[] vars)
+      {
+        results.add(new QueryResult(Query.this, elements.clone(), vars.clone()));
+        return false;
+      }
+    }, fixedIdx, element);
+  }
+
+  Object[] bindArgs(Object[] args)
+  {
+    if (args.length != Params.length)
+    {
+      throw new IllegalArgumentException(
+        String.format("query %s takes %d arguments %s, got %d", Name, Params.length, Arrays.toString(Params), args.length));
+    }
+
+    Object[] vars = new Object[VarSlots.size()];
+    Arrays.fill(vars, PreparedQuery.UNBOUND);
+    System.arraycopy(args, 0, vars, 0, args.length);
+    return vars;
+  }
+}
@@ -4,12 +4,29 @@ package ops;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import org.json.JSONObject;
 
 
+/**
+ * One condition: a type and attribute tests.  A test value is a constant, null, a $variable (bound
+ * by its first occurrence, joined on later ones) or a JSONObject of relational operators such as
+ * {"&gt;": 10}, {"between": ["$low", "$high"]} or {"in": ["a", "b"]}, see Predicate.
+ *
+ * A negated condition matches when no element passes its tests.  It matches no element itself, so
+ * its position in a match holds null, and variables it binds are only visible within it.  An
+ * activation that fired fires again once an element blocking it has come and gone.
+ *
+ * An aggregate condition matches once per partial match, binding values computed over the group of
+ * elements that pass its tests, such as {"$n": "count", "$total": ["sum", "amount"]}, see Aggregate.
+ * Its position in a match holds an element with the values by variable name.  An activation fires
+ * again when the group changes.
+ */
 public class QueryElement
 {
   public String Type;
   public List<QueryPair> QueryPairs;
+  public boolean Negated;
+  public JSONObject Aggregates;
 
   public QueryElement(String type, List<QueryPair> queryPairs)
   {
@@ -39,4 +56,17 @@ public class QueryElement
     }
   }
 
+  public static QueryElement not(String type, Object... values)
+  {
+    QueryElement qe = new QueryElement(type, values);
+    qe.Negated = true;
+    return qe;
+  }
+
+  public static QueryElement aggregate(String type, JSONObject aggregates, Object... values)
+  {
+    QueryElement qe = new QueryElement(type, values);
+    qe.Aggregates = aggregates;
+    return qe;
+  }
 }
@@ -0,0 +1,12 @@
+package ops;
+
+
+import java.util.List;
+
+
+public interface QueryListener
+{
+  void added(QueryView view, List<QueryResult> results);
+
+  void removed(QueryView view, List<QueryResult> results);
+}
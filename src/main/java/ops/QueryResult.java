@@ -0,0 +1,78 @@
+package ops;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * One match of a query: the elements matched by each condition and the values of its $vars.
+ * The time tags are those the elements had when matched; the elements themselves are live.
+ */
+public class QueryResult
+{
+  private final Query _query;
+  private final MemoryElement[] _elements;
+  private final long[] _timeTags;
+  private final Object[] _vars;
+
+  QueryResult(Query query, MemoryElement[] elements, Object[] vars)
+  {
+    _query = query;
+    _elements = elements;
+    _vars = vars;
+
+    _timeTags = new long[elements.length];
+    for (int i = 0; i < elements.length; i++)
+    {
+      _timeTags[i] = MemoryElement.timeTag(elements[i]);
+    }
+  }
+
+  public Object get(String var)
+  {
+    Integer slot = _query.VarSlots.get(var);
+    if (slot == null)
+    {
+      throw new IllegalArgumentException(String.format("query %s has no variable %s", _query.Name, var));
+    }
+    return _vars[slot];
+  }
+
+  // the values of the variables by slot
+  Object[] getVars()
+  {
+    return _vars;
+  }
+
+  public Map<String, Object> getBindings()
+  {
+    Map<String, Object> bindings = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Integer> entry : _query.VarSlots.entrySet())
+    {
+      bindings.put(entry.getKey(), _vars[entry.getValue()]);
+    }
+    return bindings;
+  }
+
+  public MemoryElement getElement(int idx)
+  {
+    return _elements[idx];
+  }
+
+  public long getTimeTag(int idx)
+  {
+    return _timeTags[idx];
+  }
+
+  public int size()
+  {
+    return _elements.length;
+  }
+
+  @Override
+  public String toString()
+  {
+    return getBindings().toString();
+  }
+}
@@ -0,0 +1,462 @@
+package ops;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * The results of a query kept up to date as working memory changes.  Only the changes are
+ * matched: an inserted or modified element is matched with the other conditions to find the
+ * rows it adds, and rows are retired by the time tags of removed or modified elements.  A change
+ * to a group of a negated or aggregate condition can add or retire rows that do not contain the
+ * changed element, so the rows bound to that group's key are matched again, starting from the
+ * elements that bind the key, and compared with the rows the view had for it.  A negated or
+ * aggregate condition that is scanned rather than grouped has no keys, so a change to its type
+ * is answered by matching the whole query again.
+ *
+ * Deltas are delivered to the listener on the thread that changed working memory, removals
+ * before additions.  Restoring a snapshot delivers the rows it adds and removes the same way.
+ */
+public class QueryView implements WorkingMemoryListener
+{
+  /**
+   * A grouped condition and the view's rows by the key of the group they were matched with.  The
+   * rows of a key are matched again from the elements of the condition that binds one of the key's
+   * values, or by matching the whole query if no condition does, e.g. when the key is an argument.
+   */
+  private static class Grouping
+  {
+    String Signature;
+    int[] Slots;
+    // the condition binding the key's value at Bound, and the attribute it binds it from, or -1
+    int Binder = -1;
+    String BinderKey;
+    int Bound;
+    // the key when the arguments bind all of it, else null
+    Object Fixed;
+    final Map<Object, List<QueryResult>> Rows = new HashMap<Object, List<QueryResult>>();
+  }
+
+  private final Query _query;
+  private final WorkingMemory _wm;
+  private final QueryListener _listener;
+  private final Object[] _args;
+
+  private final Set<QueryResult> _rows = new LinkedHashSet<QueryResult>();
+  private final Map<Long, List<QueryResult>> _byTimeTag = new HashMap<Long, List<QueryResult>>();
+  private final List<Grouping> _groupings = new ArrayList<Grouping>();
+  private final Set<String> _scannedTypes = new HashSet<String>();
+  // the keys of the groups changed since the last delta, matched again after the change is
+  private final Map<Grouping, Set<Object>> _changed = new LinkedHashMap<Grouping, Set<Object>>();
+
+  private final AggregateIndex.Listener _groupListener = new AggregateIndex.Listener()
+  {
+    @Override
+    public void changed(String signature, Object key)
+    {
+      for (Grouping grouping : _groupings)
+      {
+        if (!grouping.Signature.equals(signature)) continue;
+
+        Set<Object> keys = _changed.get(grouping);
+        if (keys == null)
+        {
+          keys = new LinkedHashSet<Object>();
+          _changed.put(grouping, keys);
+        }
+        keys.add(key);
+      }
+    }
+  };
+
+  QueryView(Query query, WorkingMemory wm, QueryListener listener, Object[] args)
+  {
+    _query = query;
+    _wm = wm;
+    _listener = listener;
+    _args = args;
+
+    PreparedQuery.Condition[] conditions = query.Prepared.Conditions;
+    for (PreparedQuery.Condition condition : conditions)
+    {
+      if (!condition.Negated && condition.Aggregates == null) continue;
+
+      if (condition.GroupSignature == null)
+      {
+        _scannedTypes.add(condition.Type);
+      }
+      else
+      {
+        _groupings.add(grouping(condition));
+      }
+    }
+
+    wm.acquireAggregates(query.Prepared);
+    List<QueryResult> rows = new ArrayList<QueryResult>();
+    query.match(wm, _args, -1, null, rows);
+    add(rows);
+
+    wm.addListener(this);
+    wm.addGroupListener(_groupListener);
+  }
+
+  private Grouping grouping(PreparedQuery.Condition grouped)
+  {
+    Grouping grouping = new Grouping();
+    grouping.Signature = grouped.GroupSignature;
+    grouping.Slots = grouped.GroupSlots;
+
+    PreparedQuery.Condition[] conditions = _query.Prepared.Conditions;
+    for (int i = 0; i < conditions.length && grouping.Binder < 0; i++)
+    {
+      if (conditions[i].Negated || conditions[i].Aggregates != null) continue;
+
+      for (PreparedQuery.Test test : conditions[i].Tests)
+      {
+        if (test.Kind != PreparedQuery.BIND) continue;
+
+        for (int j = 0; j < grouping.Slots.length; j++)
+        {
+          if (grouping.Slots[j] == test.Slot && grouping.Binder < 0)
+          {
+            grouping.Binder = i;
+            grouping.BinderKey = test.Key;
+            grouping.Bound = j;
+          }
+        }
+      }
+    }
+
+    boolean fixed = true;
+    for (int slot : grouping.Slots)
+    {
+      fixed &= slot < _args.length;
+    }
+    if (fixed)
+    {
+      grouping.Fixed = AggregateIndex.key(_query.bindArgs(_args), grouping.Slots);
+    }
+
+    return grouping;
+  }
+
+  public Query getQuery()
+  {
+    return _query;
+  }
+
+  public Collection<QueryResult> getRows()
+  {
+    return Collections.unmodifiableCollection(_rows);
+  }
+
+  public int size()
+  {
+    return _rows.size();
+  }
+
+  public void close()
+  {
+    _wm.removeGroupListener(_groupListener);
+    _wm.removeListener(this);
+    _wm.releaseAggregates(_query.Prepared);
+    _rows.clear();
+    _byTimeTag.clear();
+    _changed.clear();
+    for (Grouping grouping : _groupings)
+    {
+      grouping.Rows.clear();
+    }
+  }
+
+  @Override
+  public void inserted(MemoryElement element)
+  {
+    if (_scannedTypes.contains(element.Type))
+    {
+      refresh();
+      return;
+    }
+
+    List<QueryResult> added = match(element);
+    add(added);
+    deliver(new ArrayList<QueryResult>(), added);
+  }
+
+  @Override
+  public void removed(MemoryElement element)
+  {
+    if (_scannedTypes.contains(element.Type))
+    {
+      refresh();
+      return;
+    }
+
+    deliver(retire(element.TimeTag), new ArrayList<QueryResult>());
+  }
+
+  @Override
+  public void modified(MemoryElement element, long oldTimeTag)
+  {
+    if (_scannedTypes.contains(element.Type))
+    {
+      refresh();
+      return;
+    }
+
+    List<QueryResult> removed = retire(oldTimeTag);
+    List<QueryResult> added = match(element);
+    add(added);
+    deliver(removed, added);
+  }
+
+  @Override
+  public void restored()
+  {
+    refresh();
+  }
+
+  // matches the rows of the changed groups again, then tells the listener of the deltas
+  private void deliver(List<QueryResult> removed, List<QueryResult> added)
+  {
+    for (Map.Entry<Grouping, Set<Object>> entry : _changed.entrySet())
+    {
+      for (Object key : entry.getValue())
+      {
+        rematch(entry.getKey(), key, removed, added);
+      }
+    }
+    _changed.clear();
+
+    if (_listener == null) return;
+    if (!removed.isEmpty()) _listener.removed(this, removed);
+    if (!added.isEmpty()) _listener.added(this, added);
+  }
+
+  // replaces the rows of a group's key with those matched now, keeping the rows matched by the same elements
+  private void rematch(Grouping grouping, Object key, List<QueryResult> removed, List<QueryResult> added)
+  {
+    Map<List<Long>, QueryResult> current = new LinkedHashMap<List<Long>, QueryResult>();
+    List<QueryResult> rows = grouping.Rows.get(key);
+    if (rows != null)
+    {
+      for (QueryResult row : rows)
+      {
+        current.put(timeTags(row), row);
+      }
+    }
+
+    List<QueryResult> matched = new ArrayList<QueryResult>();
+    for (QueryResult row : match(grouping, key))
+    {
+      if (current.remove(timeTags(row)) == null)
+      {
+        matched.add(row);
+      }
+    }
+
+    for (QueryResult row : current.values())
+    {
+      forget(row);
+      removed.add(row);
+    }
+    add(matched);
+    added.addAll(matched);
+  }
+
+  // the rows the query matches now with the given key for the grouping
+  private List<QueryResult> match(Grouping grouping, Object key)
+  {
+    List<QueryResult> results = new ArrayList<QueryResult>();
+    if (grouping.Fixed != null && !grouping.Fixed.equals(key)) return results;
+
+    if (grouping.Binder < 0)
+    {
+      _query.match(_wm, _args, -1, null, results);
+    }
+    else
+    {
+      Object value = grouping.Slots.length == 1 ? key : ((List<?>) key).get(grouping.Bound);
+      String type = _query.Prepared.Conditions[grouping.Binder].Type;
+      for (MemoryElement element : elements(type, grouping.BinderKey, value))
+      {
+        _query.match(_wm, _args, grouping.Binder, element, results);
+      }
+    }
+
+    List<QueryResult> rows = new ArrayList<QueryResult>(results.size());
+    for (QueryResult row : results)
+    {
+      Object rowKey = AggregateIndex.key(row.getVars(), grouping.Slots);
+      if (rowKey == null ? key == null : rowKey.equals(key))
+      {
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  // the elements of a type with the value for an attribute, from its index if it has one
+  private Collection<MemoryElement> elements(String type, String attribute, Object value)
+  {
+    AttributeIndex index = _wm.getIndex(type, attribute);
+    if (index != null) return index.get(value);
+
+    List<MemoryElement> elements = new ArrayList<MemoryElement>();
+    List<MemoryElement> all = _wm.get(type);
+    if (all == null) return elements;
+
+    for (MemoryElement element : all)
+    {
+      Object val = element.Values.get(attribute);
+      if (value == null ? val == null : value.equals(val))
+      {
+        elements.add(element);
+      }
+    }
+    return elements;
+  }
+
+  // matches the whole query again, keeping the rows that are still matched by the same elements
+  private void refresh()
+  {
+    _changed.clear();
+
+    List<QueryResult> rows = new ArrayList<QueryResult>();
+    _query.match(_wm, _args, -1, null, rows);
+
+    Map<List<Long>, QueryResult> current = new LinkedHashMap<List<Long>, QueryResult>();
+    for (QueryResult row : _rows)
+    {
+      current.put(timeTags(row), row);
+    }
+
+    List<QueryResult> added = new ArrayList<QueryResult>();
+    for (QueryResult row : rows)
+    {
+      if (current.remove(timeTags(row)) == null)
+      {
+        added.add(row);
+      }
+    }
+
+    List<QueryResult> removed = new ArrayList<QueryResult>(current.values());
+    for (QueryResult row : removed)
+    {
+      forget(row);
+    }
+    add(added);
+
+    if (_listener == null) return;
+    if (!removed.isEmpty()) _listener.removed(this, removed);
+    if (!added.isEmpty()) _listener.added(this, added);
+  }
+
+  private static List<Long> timeTags(QueryResult row)
+  {
+    List<Long> timeTags = new ArrayList<Long>(row.size());
+    for (int i = 0; i < row.size(); i++)
+    {
+      timeTags.add(row.getTimeTag(i));
+    }
+    return timeTags;
+  }
+
+  // the new rows an element takes part in, trying it for each condition on its type
+  private List<QueryResult> match(MemoryElement element)
+  {
+    List<QueryResult> results = new ArrayList<QueryResult>();
+
+    PreparedQuery.Condition[] conditions = _query.Prepared.Conditions;
+    for (int i = 0; i < conditions.length; i++)
+    {
+      if (conditions[i].Type.equals(element.Type) && !conditions[i].Negated && conditions[i].Aggregates == null)
+      {
+        _query.match(_wm, _args, i, element, results);
+      }
+    }
+
+    return results;
+  }
+
+  private void add(List<QueryResult> rows)
+  {
+    for (QueryResult row : rows)
+    {
+      _rows.add(row);
+      for (int i = 0; i < row.size(); i++)
+      {
+        if (row.getTimeTag(i) == 0) continue;
+
+        List<QueryResult> tagged = _byTimeTag.get(row.getTimeTag(i));
+        if (tagged == null)
+        {
+          tagged = new ArrayList<QueryResult>(2);
+          _byTimeTag.put(row.getTimeTag(i), tagged);
+        }
+        tagged.add(row);
+      }
+
+      for (Grouping grouping : _groupings)
+      {
+        Object key = AggregateIndex.key(row.getVars(), grouping.Slots);
+        List<QueryResult> grouped = grouping.Rows.get(key);
+        if (grouped == null)
+        {
+          grouped = new ArrayList<QueryResult>(2);
+          grouping.Rows.put(key, grouped);
+        }
+        grouped.add(row);
+      }
+    }
+  }
+
+  private List<QueryResult> retire(long timeTag)
+  {
+    List<QueryResult> rows = _byTimeTag.remove(timeTag);
+    if (rows == null) return new ArrayList<QueryResult>();
+
+    for (QueryResult row : rows)
+    {
+      forget(row);
+    }
+    return rows;
+  }
+
+  // drops a row from the view and from the time tags and groups it is listed under
+  private void forget(QueryResult row)
+  {
+    _rows.remove(row);
+    for (int i = 0; i < row.size(); i++)
+    {
+      List<QueryResult> tagged = _byTimeTag.get(row.getTimeTag(i));
+      if (tagged == null) continue;
+      tagged.remove(row);
+      if (tagged.isEmpty())
+      {
+        _byTimeTag.remove(row.getTimeTag(i));
+      }
+    }
+
+    for (Grouping grouping : _groupings)
+    {
+      Object key = AggregateIndex.key(row.getVars(), grouping.Slots);
+      List<QueryResult> grouped = grouping.Rows.get(key);
+      if (grouped == null) continue;
+      grouped.remove(row);
+      if (grouped.isEmpty())
+      {
+        grouping.Rows.remove(key);
+      }
+    }
+  }
+}
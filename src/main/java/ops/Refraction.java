@@ -0,0 +1,454 @@
+package ops;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Remembers which activations (a rule plus the time tags of the elements it matched) have fired,
+ * so the same activation is not fired again. Entries are dropped as soon as one of their elements
+ * is removed or modified, since the activation can never recur once a time tag is retired.
+ *
+ * A negated or grouped aggregate condition has no time tag of its own in an activation: its entry
+ * is dropped instead when the group the activation's bindings select changes, so an activation
+ * fires again once a blocker has come and gone, or once the aggregated values change.  A negated
+ * condition that is not grouped drops the entries of the activations an inserted element blocks.
+ */
+class Refraction implements WorkingMemoryListener, AggregateIndex.Listener
+{
+  private final Set<Activation> _fired = new HashSet<Activation>();
+  private final Map<Long, Set<Activation>> _byTimeTag = new HashMap<Long, Set<Activation>>();
+  private final Map<String, Map<Object, Set<Activation>>> _byGroup = new HashMap<String, Map<Object, Set<Activation>>>();
+  // activations with a negated condition that is not grouped, by the condition's type
+  private final Map<String, Set<Activation>> _byScannedType = new HashMap<String, Set<Activation>>();
+  private final Activation _probe = new Activation(null, new long[0]);
+
+  boolean hasFired(Rule rule, MemoryElement[] elements)
+  {
+    if (_fired.isEmpty()) return false;
+
+    if (_probe.TimeTags.length != elements.length)
+    {
+      _probe.TimeTags = new long[elements.length];
+    }
+    _probe.Rule = rule;
+    for (int i = 0; i < elements.length; i++)
+    {
+      _probe.TimeTags[i] = timeTag(elements[i]);
+    }
+    _probe.rehash();
+
+    return _fired.contains(_probe);
+  }
+
+  void fired(PreparedRule rule, MemoryElement[] elements, Object[] vars)
+  {
+    long[] timeTags = new long[elements.length];
+    for (int i = 0; i < elements.length; i++)
+    {
+      timeTags[i] = timeTag(elements[i]);
+    }
+
+    Activation activation = fired(rule.Rule, timeTags);
+    if (activation != null)
+    {
+      group(activation, rule.Query, vars);
+    }
+  }
+
+  // an activation read back from a snapshot or log, whose variables are bound again from the
+  // elements it matched; one whose elements no longer match is dropped
+  void fired(PreparedRule rule, long[] timeTags, Map<Long, MemoryElement> byTimeTag, FactSource facts)
+  {
+    MemoryElement[] elements = new MemoryElement[timeTags.length];
+    for (int i = 0; i < timeTags.length; i++)
+    {
+      timeTags[i] = Math.max(timeTags[i], 0);
+      elements[i] = byTimeTag.get(timeTags[i]);
+    }
+
+    Object[] vars = null;
+    if (isGrouped(rule.Query))
+    {
+      vars = new Object[rule.getVarCount()];
+      Arrays.fill(vars, PreparedQuery.UNBOUND);
+      if (!rule.Query.bind(facts, elements, vars)) return;
+    }
+
+    Activation activation = fired(rule.Rule, timeTags);
+    if (activation != null && vars != null)
+    {
+      group(activation, rule.Query, vars);
+    }
+  }
+
+  // the activation added, or null if it had already fired
+  private Activation fired(Rule rule, long[] timeTags)
+  {
+    Activation activation = new Activation(rule, timeTags);
+    if (!_fired.add(activation)) return null;
+
+    for (long timeTag : timeTags)
+    {
+      if (timeTag == 0) continue;
+
+      Set<Activation> activations = _byTimeTag.get(timeTag);
+      if (activations == null)
+      {
+        activations = new LinkedHashSet<Activation>();
+        _byTimeTag.put(timeTag, activations);
+      }
+      activations.add(activation);
+    }
+    return activation;
+  }
+
+  // a group's stamp is not a time tag, as the activation is retired by the group's key instead
+  private static long timeTag(MemoryElement element)
+  {
+    return Math.max(MemoryElement.timeTag(element), 0);
+  }
+
+  private static boolean isGrouped(PreparedQuery query)
+  {
+    for (PreparedQuery.Condition condition : query.Conditions)
+    {
+      if (condition.Negated || condition.GroupSignature != null) return true;
+    }
+    return false;
+  }
+
+  private void group(Activation activation, PreparedQuery query, Object[] vars)
+  {
+    List<Object> groups = null;
+    for (PreparedQuery.Condition condition : query.Conditions)
+    {
+      if (condition.GroupSignature != null)
+      {
+        Object key = AggregateIndex.key(vars, condition.GroupSlots);
+        Map<Object, Set<Activation>> byKey = _byGroup.get(condition.GroupSignature);
+        if (byKey == null)
+        {
+          byKey = new HashMap<Object, Set<Activation>>();
+          _byGroup.put(condition.GroupSignature, byKey);
+        }
+        Set<Activation> activations = byKey.get(key);
+        if (activations == null)
+        {
+          activations = new LinkedHashSet<Activation>();
+          byKey.put(key, activations);
+        }
+        activations.add(activation);
+        if (groups == null) groups = new ArrayList<Object>(2);
+        groups.add(condition.GroupSignature);
+        groups.add(key);
+      }
+      else if (condition.Negated)
+      {
+        // the variables are kept to test the elements that arrive against the condition
+        activation.Query = query;
+        activation.Vars = vars.clone();
+        Set<Activation> activations = _byScannedType.get(condition.Type);
+        if (activations == null)
+        {
+          activations = new LinkedHashSet<Activation>();
+          _byScannedType.put(condition.Type, activations);
+        }
+        activations.add(activation);
+      }
+    }
+    if (groups != null) activation.Groups = groups.toArray();
+  }
+
+  void clear()
+  {
+    _fired.clear();
+    _byTimeTag.clear();
+    _byGroup.clear();
+    _byScannedType.clear();
+  }
+
+  int size()
+  {
+    return _fired.size();
+  }
+
+  // drops the activations of a rule that is being removed
+  void forget(Rule rule)
+  {
+    List<Activation> activations = new ArrayList<Activation>();
+    for (Activation activation : _fired)
+    {
+      if (activation.Rule == rule)
+      {
+        activations.add(activation);
+      }
+    }
+
+    for (Activation activation : activations)
+    {
+      // time tags start at 1, so no entry is skipped
+      retire(activation, 0);
+    }
+  }
+
+  // rules are written by their position in the rule list, with the name kept as a check on restore
+  void write(BinaryFormat.Encoder out, List<Rule> rules)
+      throws IOException
+  {
+    Map<Rule, Integer> ruleIds = new IdentityHashMap<Rule, Integer>();
+    for (int i = 0; i < rules.size(); i++)
+    {
+      ruleIds.put(rules.get(i), i);
+    }
+
+    List<Activation> activations = new ArrayList<Activation>();
+    for (Activation activation : _fired)
+    {
+      if (ruleIds.containsKey(activation.Rule))
+      {
+        activations.add(activation);
+      }
+    }
+
+    out.writeVarInt(activations.size());
+    for (Activation activation : activations)
+    {
+      out.writeVarInt(ruleIds.get(activation.Rule));
+      out.writeString(activation.Rule.Name);
+      out.writeVarInt(activation.TimeTags.length);
+      for (long timeTag : activation.TimeTags)
+      {
+        out.writeVarLong(timeTag);
+      }
+    }
+  }
+
+  // activations of rules that are no longer at the same position are dropped; the others are
+  // bound to the elements of the restored working memory
+  int read(BinaryFormat.Decoder in, List<PreparedRule> rules, WorkingMemory wm)
+  {
+    Map<Long, MemoryElement> byTimeTag = new HashMap<Long, MemoryElement>();
+    for (String type : wm.getTypes())
+    {
+      for (MemoryElement element : wm.get(type))
+      {
+        byTimeTag.put(element.TimeTag, element);
+      }
+    }
+
+    int dropped = 0;
+
+    int count = in.readVarInt();
+    for (int i = 0; i < count; i++)
+    {
+      int ruleId = in.readVarInt();
+      String name = in.readString();
+      long[] timeTags = new long[in.readVarInt()];
+      for (int j = 0; j < timeTags.length; j++)
+      {
+        timeTags[j] = in.readVarLong();
+      }
+
+      if (ruleId < rules.size() && rules.get(ruleId).Rule.Name.equals(name))
+      {
+        fired(rules.get(ruleId), timeTags, byTimeTag, wm);
+      }
+      else
+      {
+        dropped++;
+      }
+    }
+
+    return dropped;
+  }
+
+  @Override
+  public void inserted(MemoryElement element)
+  {
+    retireBlocked(element);
+  }
+
+  @Override
+  public void removed(MemoryElement element)
+  {
+    retireTimeTag(element.TimeTag);
+  }
+
+  @Override
+  public void modified(MemoryElement element, long oldTimeTag)
+  {
+    retireTimeTag(oldTimeTag);
+    retireBlocked(element);
+  }
+
+  @Override
+  public void changed(String signature, Object key)
+  {
+    Map<Object, Set<Activation>> byKey = _byGroup.get(signature);
+    if (byKey == null) return;
+
+    Set<Activation> activations = byKey.remove(key);
+    if (activations == null) return;
+    if (byKey.isEmpty())
+    {
+      _byGroup.remove(signature);
+    }
+
+    for (Activation activation : activations)
+    {
+      retire(activation, 0);
+    }
+  }
+
+  // the activations with a negated condition that is not grouped which the element blocks
+  private void retireBlocked(MemoryElement element)
+  {
+    Set<Activation> activations = _byScannedType.get(element.Type);
+    if (activations == null) return;
+
+    List<Activation> blocked = new ArrayList<Activation>();
+    for (Activation activation : activations)
+    {
+      for (PreparedQuery.Condition condition : activation.Query.Conditions)
+      {
+        if (!condition.Negated || condition.GroupSignature != null || !condition.Type.equals(element.Type)) continue;
+
+        boolean passed = condition.test(element, activation.Vars);
+        condition.unbind(activation.Vars);
+        if (passed)
+        {
+          blocked.add(activation);
+          break;
+        }
+      }
+    }
+
+    for (Activation activation : blocked)
+    {
+      retire(activation, 0);
+    }
+  }
+
+  // a restored snapshot brings its own refraction state, and a replayed log retires as it goes
+  @Override
+  public void restored()
+  {
+  }
+
+  private void retireTimeTag(long timeTag)
+  {
+    Set<Activation> activations = _byTimeTag.remove(timeTag);
+    if (activations == null) return;
+
+    for (Activation activation : activations)
+    {
+      retire(activation, timeTag);
+    }
+  }
+
+  private void retire(Activation activation, long retiredTimeTag)
+  {
+    _fired.remove(activation);
+
+    for (long timeTag : activation.TimeTags)
+    {
+      if (timeTag == retiredTimeTag) continue;
+
+      Set<Activation> activations = _byTimeTag.get(timeTag);
+      if (activations == null) continue;
+
+      activations.remove(activation);
+      if (activations.isEmpty())
+      {
+        _byTimeTag.remove(timeTag);
+      }
+    }
+
+    if (activation.Groups != null)
+    {
+      for (int i = 0; i < activation.Groups.length; i += 2)
+      {
+        Map<Object, Set<Activation>> byKey = _byGroup.get(activation.Groups[i]);
+        if (byKey == null) continue;
+
+        Set<Activation> activations = byKey.get(activation.Groups[i + 1]);
+        if (activations == null) continue;
+
+        activations.remove(activation);
+        if (activations.isEmpty())
+        {
+          byKey.remove(activation.Groups[i + 1]);
+          if (byKey.isEmpty())
+          {
+            _byGroup.remove(activation.Groups[i]);
+          }
+        }
+      }
+    }
+
+    if (activation.Query != null)
+    {
+      for (PreparedQuery.Condition condition : activation.Query.Conditions)
+      {
+        if (!condition.Negated || condition.GroupSignature != null) continue;
+
+        Set<Activation> activations = _byScannedType.get(condition.Type);
+        if (activations == null) continue;
+
+        activations.remove(activation);
+        if (activations.isEmpty())
+        {
+          _byScannedType.remove(condition.Type);
+        }
+      }
+    }
+  }
+
+  private static class Activation
+  {
+    Rule Rule;
+    long[] TimeTags;
+    int Hash;
+    // the signature and key of each group the activation is retired by, in pairs, or null
+    Object[] Groups;
+    // for an activation with a negated condition that is not grouped, the query and bindings
+    PreparedQuery Query;
+    Object[] Vars;
+
+    Activation(Rule rule, long[] timeTags)
+    {
+      Rule = rule;
+      TimeTags = timeTags;
+      rehash();
+    }
+
+    void rehash()
+    {
+      Hash = 31 * System.identityHashCode(Rule) + Arrays.hashCode(TimeTags);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof Activation)) return false;
+      Activation activation = (Activation) obj;
+      return Rule == activation.Rule && Arrays.equals(TimeTags, activation.TimeTags);
+    }
+  }
+}
@@ -6,14 +6,54 @@ import java.util.List;
 
 public class Rule
 {
+  public static final String MAIN = "MAIN";
+
   String Name;
   List<QueryElement> Query;
   List<ProductionSpec> Productions;
+  String Group;
+  int Salience;
+  String SalienceVar;
 
   public Rule(String name, List<QueryElement> query, List<ProductionSpec> productions)
+  {
+    this(name, query, productions, MAIN);
+  }
+
+  public Rule(String name, List<QueryElement> query, List<ProductionSpec> productions, String group)
+  {
+    this(name, query, productions, group, 0);
+  }
+
+  // salience is either a number or a $var bound on the left hand side, which makes it dynamic
+  public Rule(String name, List<QueryElement> query, List<ProductionSpec> productions, String group, Object salience)
   {
     Name = name;
     Query = query;
     Productions = productions;
+    Group = group != null ? group : MAIN;
+
+    if (salience instanceof Number)
+    {
+      Salience = ((Number) salience).intValue();
+    }
+    else if (PreparedQuery.isVar(salience))
+    {
+      SalienceVar = (String) salience;
+    }
+    else if (salience != null)
+    {
+      throw new IllegalArgumentException(String.format("salience of rule %s must be a number or a $var: %s", name, salience));
+    }
+  }
+
+  public String getName()
+  {
+    return Name;
+  }
+
+  public String getGroup()
+  {
+    return Group;
   }
 }
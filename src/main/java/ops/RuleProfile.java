@@ -0,0 +1,117 @@
+package ops;
+
+
+/**
+ * What matching and firing one rule has cost so far.  Candidates are the elements a condition
+ * was tested against, partial matches the tests that passed (joins of the first conditions) and
+ * activations the complete matches found, whether or not they fired.
+ */
+public class RuleProfile
+{
+  final String Rule;
+  final String Group;
+  long Matches;
+  long MatchNanos;
+  long Candidates;
+  long PartialMatches;
+  long FailedTests;
+  long Activations;
+  long Firings;
+  long ActionNanos;
+  long MaxActionNanos;
+
+  RuleProfile(String rule, String group)
+  {
+    Rule = rule;
+    Group = group;
+  }
+
+  RuleProfile copy()
+  {
+    RuleProfile copy = new RuleProfile(Rule, Group);
+    copy.Matches = Matches;
+    copy.MatchNanos = MatchNanos;
+    copy.Candidates = Candidates;
+    copy.PartialMatches = PartialMatches;
+    copy.FailedTests = FailedTests;
+    copy.Activations = Activations;
+    copy.Firings = Firings;
+    copy.ActionNanos = ActionNanos;
+    copy.MaxActionNanos = MaxActionNanos;
+    return copy;
+  }
+
+  void fired(long actionNanos)
+  {
+    Firings++;
+    ActionNanos += actionNanos;
+    if (actionNanos > MaxActionNanos)
+    {
+      MaxActionNanos = actionNanos;
+    }
+  }
+
+  public String getRule()
+  {
+    return Rule;
+  }
+
+  public String getGroup()
+  {
+    return Group;
+  }
+
+  // the number of times the rule was matched, i.e. the cycles it was considered in
+  public long getMatches()
+  {
+    return Matches;
+  }
+
+  public long getMatchNanos()
+  {
+    return MatchNanos;
+  }
+
+  public long getCandidates()
+  {
+    return Candidates;
+  }
+
+  public long getPartialMatches()
+  {
+    return PartialMatches;
+  }
+
+  public long getFailedTests()
+  {
+    return FailedTests;
+  }
+
+  public long getActivations()
+  {
+    return Activations;
+  }
+
+  public long getFirings()
+  {
+    return Firings;
+  }
+
+  // time spent running the actions on the engine thread (for asynchronous commands, submitting them)
+  public long getActionNanos()
+  {
+    return ActionNanos;
+  }
+
+  public long getMaxActionNanos()
+  {
+    return MaxActionNanos;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("%s: %d matches %.3fms, %d candidates, %d partial, %d failed, %d activations, %d fired %.3fms (max %.3fms)",
+      Rule, Matches, MatchNanos / 1e6, Candidates, PartialMatches, FailedTests, Activations, Firings, ActionNanos / 1e6, MaxActionNanos / 1e6);
+  }
+}
@@ -0,0 +1,167 @@
+package ops;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Per rule match and firing statistics of an OPS instance, see OPS.getProfiler().  Nothing is
+ * recorded until it is enabled, and while disabled the engine only checks a flag once per cycle.
+ *
+ * The engine thread records without locking, so the profiles returned to other threads are
+ * copies that can be a cycle behind and are not necessarily consistent with one another.
+ */
+public class RuleProfiler implements RuleProfilerMXBean
+{
+  private volatile boolean _enabled;
+  private final Map<Rule, RuleProfile> _profiles = new ConcurrentHashMap<Rule, RuleProfile>();
+  private volatile Map<String, Integer> _sizes = Collections.emptyMap();
+  private volatile long _cycles;
+  private ObjectName _objectName;
+
+  private static final Comparator<RuleProfile> BY_COST = new Comparator<RuleProfile>()
+  {
+    @Override
+    public int compare(RuleProfile a, RuleProfile b)
+    {
+      long costA = a.MatchNanos + a.ActionNanos;
+      long costB = b.MatchNanos + b.ActionNanos;
+      return costA > costB ? -1 : (costA == costB ? 0 : 1);
+    }
+  };
+
+  RuleProfiler()
+  {
+  }
+
+  public boolean isEnabled()
+  {
+    return _enabled;
+  }
+
+  public void setEnabled(boolean enabled)
+  {
+    _enabled = enabled;
+  }
+
+  public void reset()
+  {
+    _profiles.clear();
+    _sizes = Collections.emptyMap();
+    _cycles = 0;
+  }
+
+  public long getCycles()
+  {
+    return _cycles;
+  }
+
+  public long getMatchNanos()
+  {
+    long total = 0;
+    for (RuleProfile profile : _profiles.values())
+    {
+      total += profile.MatchNanos;
+    }
+    return total;
+  }
+
+  public long getActionNanos()
+  {
+    long total = 0;
+    for (RuleProfile profile : _profiles.values())
+    {
+      total += profile.ActionNanos;
+    }
+    return total;
+  }
+
+  // a copy of every profile, the most expensive (match plus action time) first
+  public List<RuleProfile> getRules()
+  {
+    List<RuleProfile> rules = new ArrayList<RuleProfile>(_profiles.size());
+    for (RuleProfile profile : _profiles.values())
+    {
+      rules.add(profile.copy());
+    }
+    Collections.sort(rules, BY_COST);
+    return rules;
+  }
+
+  // the number of elements of each type at the end of the last profiled cycle
+  public Map<String, Integer> getWorkingMemorySizes()
+  {
+    return _sizes;
+  }
+
+  /**
+   * Registers with the platform MBean server as ops:type=RuleProfiler,name=&lt;name&gt;,
+   * replacing whatever was registered under that name before.
+   */
+  public synchronized ObjectName register(String name)
+      throws JMException
+  {
+    unregister();
+
+    ObjectName objectName = new ObjectName("ops:type=RuleProfiler,name=" + ObjectName.quote(name));
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (server.isRegistered(objectName))
+    {
+      server.unregisterMBean(objectName);
+    }
+    server.registerMBean(this, objectName);
+    _objectName = objectName;
+    return objectName;
+  }
+
+  public synchronized void unregister()
+      throws JMException
+  {
+    if (_objectName == null) return;
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (server.isRegistered(_objectName))
+    {
+      server.unregisterMBean(_objectName);
+    }
+    _objectName = null;
+  }
+
+  RuleProfile profile(Rule rule)
+  {
+    RuleProfile profile = _profiles.get(rule);
+    if (profile == null)
+    {
+      profile = new RuleProfile(rule.Name, rule.Group);
+      _profiles.put(rule, profile);
+    }
+    return profile;
+  }
+
+  void forget(Rule rule)
+  {
+    _profiles.remove(rule);
+  }
+
+  void cycleEnded(WorkingMemory wm)
+  {
+    Map<String, Integer> sizes = new TreeMap<String, Integer>();
+    for (String type : wm.getTypes())
+    {
+      sizes.put(type, wm.get(type).size());
+    }
+    _sizes = Collections.unmodifiableMap(sizes);
+    _cycles++;
+  }
+}
@@ -0,0 +1,25 @@
+package ops;
+
+
+import java.util.List;
+import java.util.Map;
+
+
+public interface RuleProfilerMXBean
+{
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  void reset();
+
+  long getCycles();
+
+  long getMatchNanos();
+
+  long getActionNanos();
+
+  List<RuleProfile> getRules();
+
+  Map<String, Integer> getWorkingMemorySizes();
+}
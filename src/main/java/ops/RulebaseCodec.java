@@ -0,0 +1,391 @@
+package ops;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONObject;
+
+
+/**
+ * Reads and writes a compiled rulebase: templates, the memory elements made while loading,
+ * and each rule along with its prepared match structures (variable slots, test kinds and
+ * specificity, negated and aggregate conditions), named queries and attribute indexes.
+ * Commands are stored by registry name and looked up again on read, so loading only has to
+ * rebuild the objects, not re-parse or re-analyze the rules.
+ */
+public class RulebaseCodec
+{
+  private static final int MAGIC = 0x4F505352; // OPSR
+  private static final int VERSION = 1;
+
+  public static boolean isRulebase(File file)
+  {
+    if (file.length() < 8) return false;
+
+    try
+    {
+      FileInputStream stream = new FileInputStream(file);
+      try
+      {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        stream.getChannel().read(header, 0);
+        header.flip();
+        return header.remaining() == 4 && header.getInt() == MAGIC;
+      }
+      finally
+      {
+        stream.close();
+      }
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  public static void write(OPS ops, Map<String, Command> registry, File file)
+      throws IOException
+  {
+    Map<Command, String> commandNames = new IdentityHashMap<Command, String>();
+    for (Map.Entry<String, Command> entry : registry.entrySet())
+    {
+      commandNames.put(entry.getValue(), entry.getKey());
+    }
+
+    WorkingMemory wm = ops.getWorkingMemory();
+    wm.drainInMemoryQueue();
+
+    FileOutputStream stream = new FileOutputStream(file);
+    try
+    {
+      BinaryFormat.Encoder out = new BinaryFormat.Encoder(stream.getChannel(), 64 * 1024);
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      out.writeVarInt(wm.getTemplates().size());
+      for (MemoryElement template : wm.getTemplates())
+      {
+        out.writeString(template.Type);
+        out.writeValues(template.Values);
+      }
+
+      List<MemoryElement> facts = new ArrayList<MemoryElement>();
+      for (String type : wm.getTypes())
+      {
+        facts.addAll(wm.get(type));
+      }
+
+      out.writeVarInt(facts.size());
+      for (MemoryElement fact : facts)
+      {
+        out.writeString(fact.Type);
+        out.writeValues(fact.Values);
+      }
+
+      // in the order they were added, so salience ties resolve the same way once read back
+      List<PreparedRule> rules = new ArrayList<PreparedRule>(ops.getPreparedRules());
+      Collections.sort(rules, new Comparator<PreparedRule>()
+      {
+        @Override
+        public int compare(PreparedRule a, PreparedRule b)
+        {
+          return a.Sequence < b.Sequence ? -1 : (a.Sequence == b.Sequence ? 0 : 1);
+        }
+      });
+
+      out.writeVarInt(rules.size());
+      for (PreparedRule rule : rules)
+      {
+        writeRule(out, rule, commandNames);
+      }
+
+      out.writeVarInt(wm.getQueries().size());
+      for (Query query : wm.getQueries())
+      {
+        out.writeString(query.Name);
+        out.writeVarInt(query.Params.length);
+        for (String param : query.Params)
+        {
+          out.writeString(param);
+        }
+        writeConditions(out, query.Conditions);
+      }
+
+      List<AttributeIndex> indexes = wm.getIndexes();
+      out.writeVarInt(indexes.size());
+      for (AttributeIndex index : indexes)
+      {
+        out.writeString(index.Type);
+        out.writeString(index.Key);
+        out.writeByte(index.Sorted ? 1 : 0);
+      }
+
+      out.flush();
+    }
+    finally
+    {
+      stream.close();
+    }
+  }
+
+  private static void writeRule(BinaryFormat.Encoder out, PreparedRule prepared, Map<Command, String> commandNames)
+      throws IOException
+  {
+    Rule rule = prepared.Rule;
+
+    out.writeString(rule.Name);
+    out.writeString(rule.Group);
+    out.writeSignedVarLong(rule.Salience);
+    out.writeValue(rule.SalienceVar);
+
+    writeConditions(out, rule.Query);
+
+    out.writeVarInt(prepared.VarSlots.size());
+    for (String var : prepared.VarSlots.keySet())
+    {
+      out.writeString(var);
+    }
+    out.writeVarInt(prepared.Specificity);
+
+    for (PreparedQuery.Condition condition : prepared.Query.Conditions)
+    {
+      for (PreparedQuery.Test test : condition.Tests)
+      {
+        out.writeByte(test.Kind);
+        out.writeVarInt(test.Slot);
+      }
+      out.writeVarInt(condition.BindSlots.length);
+      for (int slot : condition.BindSlots)
+      {
+        out.writeVarInt(slot);
+      }
+    }
+
+    out.writeVarInt(rule.Productions.size());
+    for (ProductionSpec production : rule.Productions)
+    {
+      String name = commandNames.get(production.Command);
+      if (name == null)
+      {
+        throw new IllegalArgumentException(
+          String.format("command %s in rule %s is not in the registry", production.Command.getClass().getName(), rule.Name));
+      }
+
+      out.writeString(name);
+      out.writeVarInt(production.Params.length);
+      for (Object param : production.Params)
+      {
+        out.writeValue(param);
+      }
+    }
+  }
+
+  private static void writeConditions(BinaryFormat.Encoder out, List<QueryElement> conditions)
+      throws IOException
+  {
+    out.writeVarInt(conditions.size());
+    for (QueryElement qe : conditions)
+    {
+      out.writeString(qe.Type);
+      out.writeByte(qe.Negated ? 1 : (qe.Aggregates != null ? 2 : 0));
+      if (qe.Aggregates != null)
+      {
+        out.writeValue(qe.Aggregates);
+      }
+      out.writeVarInt(qe.QueryPairs.size());
+      for (QueryPair qp : qe.QueryPairs)
+      {
+        out.writeString(qp.Key);
+        out.writeValue(qp.Value);
+      }
+    }
+  }
+
+  private static List<QueryElement> readConditions(BinaryFormat.Decoder in)
+  {
+    int ceCount = in.readVarInt();
+    List<QueryElement> conditions = new ArrayList<QueryElement>(ceCount);
+    for (int i = 0; i < ceCount; i++)
+    {
+      String type = in.readString();
+      int kind = in.readByte();
+      JSONObject aggregates = kind == 2 ? (JSONObject) in.readValue() : null;
+      int pairCount = in.readVarInt();
+      List<QueryPair> pairs = new ArrayList<QueryPair>(pairCount);
+      for (int j = 0; j < pairCount; j++)
+      {
+        String key = in.readString();
+        pairs.add(new QueryPair(key, in.readValue()));
+      }
+      QueryElement qe = new QueryElement(type, pairs);
+      qe.Negated = kind == 1;
+      qe.Aggregates = aggregates;
+      conditions.add(qe);
+    }
+    return conditions;
+  }
+
+  public static OPS read(Map<String, Command> registry, File file)
+      throws IOException
+  {
+    FileInputStream stream = new FileInputStream(file);
+    try
+    {
+      FileChannel channel = stream.getChannel();
+      BinaryFormat.Decoder in = new BinaryFormat.Decoder(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+
+      if (in.readInt() != MAGIC)
+      {
+        throw new IllegalArgumentException("not a compiled rulebase: " + file);
+      }
+      int version = in.readInt();
+      if (version != VERSION)
+      {
+        throw new IllegalArgumentException("unsupported rulebase version: " + version);
+      }
+
+      OPS ops = new OPS();
+      WorkingMemory wm = ops.getWorkingMemory();
+
+      int templateCount = in.readVarInt();
+      for (int i = 0; i < templateCount; i++)
+      {
+        String type = in.readString();
+        wm.literalize(MemoryElement.wrap(type, in.readValues()));
+      }
+
+      int factCount = in.readVarInt();
+      for (int i = 0; i < factCount; i++)
+      {
+        String type = in.readString();
+        wm.insert(MemoryElement.wrap(type, in.readValues()));
+      }
+
+      int ruleCount = in.readVarInt();
+      List<PreparedRule> rules = new ArrayList<PreparedRule>(ruleCount);
+      for (int i = 0; i < ruleCount; i++)
+      {
+        rules.add(readRule(in, registry, wm));
+      }
+      ops.addPreparedRules(rules);
+
+      int queryCount = in.readVarInt();
+      for (int i = 0; i < queryCount; i++)
+      {
+        String name = in.readString();
+        String[] params = new String[in.readVarInt()];
+        for (int j = 0; j < params.length; j++)
+        {
+          params[j] = in.readString();
+        }
+        wm.defineQuery(new Query(name, readConditions(in), params));
+      }
+
+      int indexCount = in.readVarInt();
+      for (int i = 0; i < indexCount; i++)
+      {
+        String type = in.readString();
+        String key = in.readString();
+        wm.createIndex(type, key, in.readByte() != 0);
+      }
+
+      return ops;
+    }
+    finally
+    {
+      stream.close();
+    }
+  }
+
+  private static PreparedRule readRule(BinaryFormat.Decoder in, Map<String, Command> registry, WorkingMemory wm)
+  {
+    String name = in.readString();
+    String group = in.readString();
+    int staticSalience = (int) in.readSignedVarLong();
+    Object salienceVar = in.readValue();
+    Object salience = salienceVar != null ? salienceVar : staticSalience;
+
+    List<QueryElement> query = readConditions(in);
+    int ceCount = query.size();
+
+    int varCount = in.readVarInt();
+    Map<String, Integer> varSlots = new LinkedHashMap<String, Integer>();
+    for (int i = 0; i < varCount; i++)
+    {
+      varSlots.put(in.readString(), i);
+    }
+    Integer specificity = in.readVarInt();
+
+    PreparedQuery.Condition[] conditions = new PreparedQuery.Condition[ceCount];
+    for (int i = 0; i < ceCount; i++)
+    {
+      QueryElement qe = query.get(i);
+
+      PreparedQuery.Condition condition = new PreparedQuery.Condition();
+      condition.Type = qe.Type;
+      condition.Tests = new PreparedQuery.Test[qe.QueryPairs.size()];
+      for (int j = 0; j < condition.Tests.length; j++)
+      {
+        PreparedQuery.Test test = new PreparedQuery.Test();
+        test.Key = qe.QueryPairs.get(j).Key;
+        test.Value = qe.QueryPairs.get(j).Value;
+        test.Kind = in.readByte();
+        test.Slot = in.readVarInt();
+        if (test.Kind == PreparedQuery.PREDICATE)
+        {
+          test.Predicate = Predicate.compile((JSONObject) test.Value, varSlots);
+        }
+        condition.Tests[j] = test;
+      }
+      condition.BindSlots = new int[in.readVarInt()];
+      for (int j = 0; j < condition.BindSlots.length; j++)
+      {
+        condition.BindSlots[j] = in.readVarInt();
+      }
+      if (qe.Negated)
+      {
+        condition.negate();
+      }
+      else if (qe.Aggregates != null)
+      {
+        condition.aggregate(qe.Aggregates, varSlots);
+      }
+      conditions[i] = condition;
+    }
+
+    int productionCount = in.readVarInt();
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>(productionCount);
+    for (int i = 0; i < productionCount; i++)
+    {
+      String commandName = in.readString();
+      Command command = registry.get(commandName);
+      if (command == null)
+      {
+        throw new IllegalArgumentException(String.format("command %s not found", commandName));
+      }
+
+      Object[] params = new Object[in.readVarInt()];
+      for (int j = 0; j < params.length; j++)
+      {
+        params[j] = in.readValue();
+      }
+      productions.add(new ProductionSpec(command, params));
+    }
+
+    Rule rule = new Rule(name, query, productions, group, salience);
+
+    return new PreparedRule(rule, new PreparedQuery(query, conditions), varSlots, specificity, wm);
+  }
+}
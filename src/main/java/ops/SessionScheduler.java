@@ -0,0 +1,268 @@
+package ops;
+
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Multiplexes many OPS sessions over a fixed set of worker threads.
+ *
+ * Each turn runs a session for at most stepBudget cycles through OPS.step, so no session
+ * holds a worker for long. Runnable sessions are picked by stride scheduling: a session is
+ * charged cycles / priority after each turn and the session with the lowest charge runs next,
+ * so CPU share is proportional to priority. Sessions that run out of matches with nothing
+ * queued are parked and cost nothing until new memory elements or an async completion wake them.
+ */
+public class SessionScheduler
+{
+  public static final int DEFAULT_STEP_BUDGET = 64;
+
+  private static final int PARKED = 0;
+  private static final int QUEUED = 1;
+  private static final int RUNNING = 2;
+  private static final int FINISHED = 3;
+
+  private static final long STRIDE = 1 << 20;
+
+  private final PriorityQueue<Session> _runQueue = new PriorityQueue<Session>();
+  private final Thread[] _workers;
+  private final ExecutorService _productionPool;
+  private final int _stepBudget;
+
+  private long _virtualTime = 0;
+  private long _sequence = 0;
+  private volatile boolean _shutdown = false;
+
+  public SessionScheduler()
+  {
+    this(Runtime.getRuntime().availableProcessors(), DEFAULT_STEP_BUDGET);
+  }
+
+  public SessionScheduler(int workerCount, int stepBudget)
+  {
+    _stepBudget = stepBudget;
+    _productionPool = Executors.newFixedThreadPool(workerCount);
+    _workers = new Thread[workerCount];
+
+    for (int i = 0; i < workerCount; i++)
+    {
+      _workers[i] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          workLoop();
+        }
+      }, "ops-session-worker-" + i);
+      _workers[i].setDaemon(true);
+      _workers[i].start();
+    }
+  }
+
+  public Session add(OPS ops)
+  {
+    return add(ops, 1);
+  }
+
+  public Session add(final OPS ops, int priority)
+  {
+    if (priority < 1)
+    {
+      throw new IllegalArgumentException("priority must be >= 1");
+    }
+
+    final Session session = new Session(ops, priority);
+
+    ops.setProductionPool(_productionPool);
+    ops.setWakeListener(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        wake(session);
+      }
+    });
+
+    session.State.set(QUEUED);
+    enqueue(session);
+
+    return session;
+  }
+
+  public void remove(Session session)
+  {
+    session.State.set(FINISHED);
+    session.Ops.setWakeListener(null);
+
+    synchronized (_runQueue)
+    {
+      _runQueue.remove(session);
+    }
+  }
+
+  public void shutdown()
+  {
+    _shutdown = true;
+
+    synchronized (_runQueue)
+    {
+      _runQueue.notifyAll();
+    }
+
+    for (Thread worker : _workers)
+    {
+      try
+      {
+        worker.join();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    _productionPool.shutdown();
+  }
+
+  public int getRunnableCount()
+  {
+    synchronized (_runQueue)
+    {
+      return _runQueue.size();
+    }
+  }
+
+  private void wake(Session session)
+  {
+    if (session.State.compareAndSet(PARKED, QUEUED))
+    {
+      enqueue(session);
+    }
+  }
+
+  private void enqueue(Session session)
+  {
+    synchronized (_runQueue)
+    {
+      // a session returning from a park does not get to bank the time it slept
+      if (session.Pass < _virtualTime)
+      {
+        session.Pass = _virtualTime;
+      }
+      session.Sequence = _sequence++;
+      _runQueue.add(session);
+      _runQueue.notify();
+    }
+  }
+
+  private Session take()
+      throws InterruptedException
+  {
+    synchronized (_runQueue)
+    {
+      while (_runQueue.isEmpty() && !_shutdown)
+      {
+        _runQueue.wait();
+      }
+      if (_shutdown) return null;
+
+      Session session = _runQueue.poll();
+      _virtualTime = session.Pass;
+      return session;
+    }
+  }
+
+  private void workLoop()
+  {
+    while (!_shutdown)
+    {
+      Session session;
+      try
+      {
+        session = take();
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      if (session == null) return;
+
+      if (!session.State.compareAndSet(QUEUED, RUNNING)) continue;
+
+      int fired = 0;
+      try
+      {
+        fired = session.Ops.step(_stepBudget);
+      }
+      catch (Exception e)
+      {
+        e.printStackTrace();
+      }
+
+      session.Cycles += fired;
+      session.Pass += (Math.max(fired, 1) * STRIDE) / session.Priority;
+
+      if (session.Ops.isHalted())
+      {
+        remove(session);
+      }
+      else if (fired == _stepBudget)
+      {
+        if (session.State.compareAndSet(RUNNING, QUEUED))
+        {
+          enqueue(session);
+        }
+      }
+      else if (session.State.compareAndSet(RUNNING, PARKED))
+      {
+        // re-check after parking so a wake that raced with this turn is not lost
+        if (session.Ops.hasPendingWork())
+        {
+          wake(session);
+        }
+      }
+    }
+  }
+
+  public static class Session implements Comparable<Session>
+  {
+    public final OPS Ops;
+    public final int Priority;
+
+    final AtomicInteger State = new AtomicInteger(PARKED);
+    volatile long Cycles = 0;
+    long Pass = 0;
+    long Sequence = 0;
+
+    Session(OPS ops, int priority)
+    {
+      Ops = ops;
+      Priority = priority;
+    }
+
+    public boolean isParked()
+    {
+      return State.get() == PARKED;
+    }
+
+    public boolean isFinished()
+    {
+      return State.get() == FINISHED;
+    }
+
+    public long getCycles()
+    {
+      return Cycles;
+    }
+
+    @Override
+    public int compareTo(Session session)
+    {
+      if (Pass != session.Pass) return Pass < session.Pass ? -1 : 1;
+      return Sequence < session.Sequence ? -1 : (Sequence == session.Sequence ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,314 @@
+package ops;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Checkpoints the working memory of an OPS instance (templates, facts with their time tags, the
+ * queue of made but not yet inserted elements, the focus stack and, optionally, the refraction
+ * state) and restores it again.  Facts are written in blocks of a few MB so that restoring can map
+ * each block in turn, regardless of how large the whole file is.
+ *
+ * Snapshots must be taken between cycles (from the thread running the engine, or while it is idle),
+ * and restoring expects the same rules to be loaded as when the snapshot was taken.
+ */
+public class Snapshot
+{
+  private static final int MAGIC = 0x4F505353; // OPSS
+  private static final int VERSION = 1;
+  private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+  public static void write(OPS ops, File file)
+      throws IOException
+  {
+    write(ops, file, true);
+  }
+
+  public static void write(OPS ops, File file, boolean includeRefraction)
+      throws IOException
+  {
+    WorkingMemory wm = ops.getWorkingMemory();
+
+    FileOutputStream stream = new FileOutputStream(file);
+    try
+    {
+      BlockWriter blocks = new BlockWriter(stream.getChannel());
+      BinaryFormat.Encoder out = blocks.Out;
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      blocks.begin();
+
+      out.writeVarLong(wm.getNextTimeTag());
+
+      out.writeVarInt(wm.getTemplates().size());
+      for (MemoryElement template : wm.getTemplates())
+      {
+        out.writeString(template.Type);
+        out.writeValues(template.Values);
+      }
+
+      List<String> types = new ArrayList<String>(wm.getTypes());
+      out.writeVarInt(types.size());
+      for (String type : types)
+      {
+        out.writeString(type);
+        out.writeVarInt(wm.get(type).size());
+      }
+
+      blocks.end();
+      blocks.begin();
+
+      for (String type : types)
+      {
+        long timeTag = 0;
+        for (MemoryElement element : wm.get(type))
+        {
+          blocks.split();
+          out.writeSignedVarLong(element.TimeTag - timeTag);
+          out.writeValues(element.Values);
+          timeTag = element.TimeTag;
+        }
+      }
+
+      blocks.end();
+      blocks.begin();
+
+      List<MemoryElement> queued = wm.getQueuedItems();
+      out.writeVarInt(queued.size());
+      for (MemoryElement element : queued)
+      {
+        out.writeString(element.Type);
+        out.writeValues(element.Values);
+      }
+
+      List<String> focusStack = ops.getFocusStack();
+      out.writeVarInt(focusStack.size());
+      for (String group : focusStack)
+      {
+        out.writeString(group);
+      }
+
+      out.writeByte(includeRefraction ? 1 : 0);
+      if (includeRefraction)
+      {
+        ops.getRefraction().write(out, ops.getRules());
+      }
+
+      blocks.end();
+    }
+    finally
+    {
+      stream.close();
+    }
+  }
+
+  // open query views and engine listeners are told through restored(); a write-ahead log must be
+  // detached first
+  public static void restore(OPS ops, File file)
+      throws IOException
+  {
+    if (ops.getWriteAheadLog() != null)
+    {
+      throw new IllegalStateException("detach the write-ahead log before restoring a snapshot");
+    }
+
+    FileInputStream stream = new FileInputStream(file);
+    try
+    {
+      BlockReader blocks = new BlockReader(stream.getChannel());
+
+      ByteBuffer header = blocks.read(0, 8);
+      if (header.getInt() != MAGIC)
+      {
+        throw new IllegalArgumentException("not a snapshot: " + file);
+      }
+      int version = header.getInt();
+      if (version != VERSION)
+      {
+        throw new IllegalArgumentException("unsupported snapshot version: " + version);
+      }
+      blocks.Position = 8;
+
+      BinaryFormat.Decoder in = blocks.next();
+
+      long nextTimeTag = in.readVarLong();
+
+      int templateCount = in.readVarInt();
+      List<MemoryElement> templates = new ArrayList<MemoryElement>(templateCount);
+      for (int i = 0; i < templateCount; i++)
+      {
+        String type = in.readString();
+        templates.add(MemoryElement.wrap(type, in.readValues()));
+      }
+
+      int typeCount = in.readVarInt();
+      String[] types = new String[typeCount];
+      int[] counts = new int[typeCount];
+      for (int i = 0; i < typeCount; i++)
+      {
+        types[i] = in.readString();
+        counts[i] = in.readVarInt();
+      }
+
+      in = blocks.next();
+
+      Map<String, List<MemoryElement>> facts = new HashMap<String, List<MemoryElement>>(typeCount * 4 / 3 + 1);
+      for (int i = 0; i < typeCount; i++)
+      {
+        List<MemoryElement> elements = new ArrayList<MemoryElement>(counts[i]);
+        long timeTag = 0;
+        for (int j = 0; j < counts[i]; j++)
+        {
+          if (!in.hasRemaining())
+          {
+            in = blocks.next();
+          }
+
+          timeTag += in.readSignedVarLong();
+          MemoryElement element = MemoryElement.wrap(types[i], in.readValues());
+          element.TimeTag = timeTag;
+          elements.add(element);
+        }
+        facts.put(types[i], elements);
+      }
+
+      in = blocks.next();
+
+      int queuedCount = in.readVarInt();
+      List<MemoryElement> queued = new ArrayList<MemoryElement>(queuedCount);
+      for (int i = 0; i < queuedCount; i++)
+      {
+        String type = in.readString();
+        queued.add(MemoryElement.wrap(type, in.readValues()));
+      }
+
+      WorkingMemory wm = ops.getWorkingMemory();
+      wm.reset();
+      for (MemoryElement template : templates)
+      {
+        wm.literalize(template);
+      }
+      wm.restore(facts, queued, nextTimeTag);
+
+      int focusCount = in.readVarInt();
+      List<String> focusStack = new ArrayList<String>(focusCount);
+      for (int i = 0; i < focusCount; i++)
+      {
+        focusStack.add(in.readString());
+      }
+      ops.setFocusStack(focusStack);
+
+      ops.getRefraction().clear();
+      if (in.readByte() != 0)
+      {
+        int dropped = ops.getRefraction().read(in, ops.getPreparedRules(), wm);
+        if (dropped > 0)
+        {
+          System.err.println(String.format("snapshot %s: dropped %d activations of rules that are no longer loaded", file, dropped));
+        }
+      }
+    }
+    finally
+    {
+      stream.close();
+    }
+  }
+
+  // each block is an int length followed by that many bytes; the string dictionary spans blocks
+  private static class BlockWriter
+  {
+    final FileChannel Channel;
+    final BinaryFormat.Encoder Out;
+    long Start;
+
+    BlockWriter(FileChannel channel)
+    {
+      Channel = channel;
+      Out = new BinaryFormat.Encoder(channel, 64 * 1024);
+    }
+
+    void begin()
+        throws IOException
+    {
+      Out.flush();
+      Start = Out.position();
+      Out.writeInt(0);
+    }
+
+    // starts a new block if the current one is full, to be called before each record
+    void split()
+        throws IOException
+    {
+      if (Out.position() - Start < BLOCK_SIZE) return;
+      end();
+      begin();
+    }
+
+    void end()
+        throws IOException
+    {
+      Out.flush();
+
+      ByteBuffer length = ByteBuffer.allocate(4);
+      length.putInt((int) (Out.position() - Start - 4));
+      length.flip();
+      while (length.hasRemaining())
+      {
+        Channel.write(length, Start + length.position());
+      }
+    }
+  }
+
+  private static class BlockReader
+  {
+    final FileChannel Channel;
+    final BinaryFormat.Decoder In = new BinaryFormat.Decoder(ByteBuffer.allocate(0));
+    long Position;
+
+    BlockReader(FileChannel channel)
+    {
+      Channel = channel;
+    }
+
+    ByteBuffer read(long position, int length)
+        throws IOException
+    {
+      ByteBuffer buf = ByteBuffer.allocate(length);
+      while (buf.hasRemaining())
+      {
+        if (Channel.read(buf, position + buf.position()) < 0)
+        {
+          throw new IllegalArgumentException("truncated snapshot");
+        }
+      }
+      buf.flip();
+      return buf;
+    }
+
+    BinaryFormat.Decoder next()
+        throws IOException
+    {
+      int length = read(Position, 4).getInt();
+      if (Position + 4 + length > Channel.size())
+      {
+        throw new IllegalArgumentException("truncated snapshot");
+      }
+
+      In.setBuffer(Channel.map(FileChannel.MapMode.READ_ONLY, Position + 4, length));
+      Position += 4 + length;
+      return In;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package ops;
+
+
+public class ValueRef
+{
+  final Object Constant;
+  final String Name;
+  final int Slot;
+
+  ValueRef(Object constant)
+  {
+    Constant = constant;
+    Name = null;
+    Slot = -1;
+  }
+
+  ValueRef(String name, int slot)
+  {
+    Constant = null;
+    Name = name;
+    Slot = slot;
+  }
+
+  public boolean isConstant()
+  {
+    return Slot < 0;
+  }
+
+  public Object getConstant()
+  {
+    return Constant;
+  }
+
+  public Object get(CommandContext context)
+  {
+    return Slot < 0 ? Constant : context.getVar(Slot, Name);
+  }
+}
@@ -2,11 +2,15 @@ package ops;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
@@ -19,13 +23,26 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 
-public class WorkingMemory
+public class WorkingMemory extends FactSource
 {
   private HashMap<String, List<MemoryElement>> _wm = new HashMap<String, List<MemoryElement>>();
   private Map<String, MemoryElement> _templates = new HashMap<String, MemoryElement>();
   private ConcurrentLinkedQueue<MemoryElement> _memoryInQueue = new ConcurrentLinkedQueue<MemoryElement>();
 
   private final boolean _waitForItems;
+  private volatile Runnable _queueListener;
+  private WorkingMemoryListener[] _listeners = new WorkingMemoryListener[0];
+  private long _nextTimeTag = 1;
+  private final Map<String, Map<String, AttributeIndex>> _indexes = new HashMap<String, Map<String, AttributeIndex>>();
+  private final Map<String, AggregateIndex> _aggregates = new HashMap<String, AggregateIndex>();
+  private final Map<String, List<AggregateIndex>> _aggregatesByType = new HashMap<String, List<AggregateIndex>>();
+  private AggregateIndex.Listener[] _groupListeners = new AggregateIndex.Listener[0];
+  // counts down, so a group's stamp is never a time tag
+  private long _lastStamp;
+  private final Map<String, Query> _queries = new LinkedHashMap<String, Query>();
+  private long _version;
+  private WorkingMemoryVersion.Tracker _tracker;
+  private volatile WorkingMemoryVersion _published;
 
   public WorkingMemory() {
     this(false);
@@ -35,17 +52,372 @@ public class WorkingMemory
     _waitForItems = waitForItems;
   }
 
+  // whether a running engine waits for new items instead of returning once it runs out of matches
+  public boolean isWaitForItems()
+  {
+    return _waitForItems;
+  }
+
   public void reset()
   {
     _templates.clear();
     _wm.clear();
+    rebuildIndexes();
+    rebuildAggregates();
+    resetTracker();
     notifyDrain();
   }
 
+  /**
+   * Publishes the current facts as an immutable version that other threads can read, through
+   * {@link #getPublished}, while this one goes on changing working memory.  Must be called from
+   * the thread that changes working memory.  The first call starts tracking changes; later calls
+   * only copy the parts that changed since the last version.
+   */
+  public WorkingMemoryVersion publish()
+  {
+    if (_tracker == null)
+    {
+      _tracker = new WorkingMemoryVersion.Tracker(_wm);
+    }
+
+    WorkingMemoryVersion published = _published;
+    if (published == null || published.getVersion() != _version)
+    {
+      published = _tracker.publish(_version, _nextTimeTag);
+      _published = published;
+    }
+    return published;
+  }
+
+  // the last published version, or null if none has been
+  public WorkingMemoryVersion getPublished()
+  {
+    return _published;
+  }
+
+  private void resetTracker()
+  {
+    _version++;
+    if (_tracker != null)
+    {
+      _tracker = new WorkingMemoryVersion.Tracker(_wm);
+    }
+  }
+
+  /**
+   * Creates a hash index on one attribute of a type.  Rule and query conditions that test the
+   * attribute for equality with a constant or an already bound variable then look candidates up
+   * in the index instead of scanning every element of the type.  Buckets keep elements in the
+   * order they were inserted, so matches are found in the same order as without the index,
+   * except that an element whose indexed attribute is modified moves after the others.
+   */
+  public void createIndex(String type, String key)
+  {
+    createIndex(type, key, false);
+  }
+
+  /**
+   * Creates a hash index or, if sorted, an index that also serves relational predicates such as
+   * {"&gt;": 10} with a range lookup.  Range lookups find elements in value order.  An existing
+   * index on the attribute is replaced if it is of the other kind.
+   */
+  public void createIndex(String type, String key, boolean sorted)
+  {
+    Map<String, AttributeIndex> indexes = _indexes.get(type);
+    if (indexes == null)
+    {
+      indexes = new HashMap<String, AttributeIndex>();
+      _indexes.put(type, indexes);
+    }
+    AttributeIndex existing = indexes.get(key);
+    if (existing != null && existing.Sorted == sorted) return;
+
+    AttributeIndex index = new AttributeIndex(type, key, sorted);
+    List<MemoryElement> elements = _wm.get(type);
+    if (elements != null)
+    {
+      for (MemoryElement element : elements)
+      {
+        index.add(element);
+      }
+    }
+    indexes.put(key, index);
+  }
+
+  public void dropIndex(String type, String key)
+  {
+    Map<String, AttributeIndex> indexes = _indexes.get(type);
+    if (indexes == null) return;
+
+    indexes.remove(key);
+    if (indexes.isEmpty())
+    {
+      _indexes.remove(type);
+    }
+  }
+
+  boolean hasIndexes(String type)
+  {
+    return !_indexes.isEmpty() && _indexes.containsKey(type);
+  }
+
+  AttributeIndex getIndex(String type, String key)
+  {
+    Map<String, AttributeIndex> indexes = _indexes.get(type);
+    return indexes != null ? indexes.get(key) : null;
+  }
+
+  List<AttributeIndex> getIndexes()
+  {
+    List<AttributeIndex> indexes = new ArrayList<AttributeIndex>();
+    for (Map<String, AttributeIndex> typeIndexes : _indexes.values())
+    {
+      indexes.addAll(typeIndexes.values());
+    }
+    return indexes;
+  }
+
+  private void rebuildIndexes()
+  {
+    for (Map.Entry<String, Map<String, AttributeIndex>> entry : _indexes.entrySet())
+    {
+      List<MemoryElement> elements = _wm.get(entry.getKey());
+      for (AttributeIndex index : entry.getValue().values())
+      {
+        index.clear();
+        if (elements == null) continue;
+        for (MemoryElement element : elements)
+        {
+          index.add(element);
+        }
+      }
+    }
+  }
+
+  // groups elements for the negated and aggregate conditions of a rule or query that can be kept
+  // up to date incrementally, sharing the groups between conditions with the same tests
+  void acquireAggregates(PreparedQuery query)
+  {
+    for (PreparedQuery.Condition condition : query.Conditions)
+    {
+      if (condition.GroupSignature == null) continue;
+
+      AggregateIndex index = _aggregates.get(condition.GroupSignature);
+      if (index == null)
+      {
+        index = new AggregateIndex(condition);
+        index.addAll(_wm.get(index.Type), --_lastStamp);
+        _aggregates.put(index.Signature, index);
+
+        List<AggregateIndex> typeIndexes = _aggregatesByType.get(index.Type);
+        if (typeIndexes == null)
+        {
+          typeIndexes = new ArrayList<AggregateIndex>(2);
+          _aggregatesByType.put(index.Type, typeIndexes);
+        }
+        typeIndexes.add(index);
+      }
+      index.References++;
+    }
+  }
+
+  void releaseAggregates(PreparedQuery query)
+  {
+    for (PreparedQuery.Condition condition : query.Conditions)
+    {
+      if (condition.GroupSignature == null) continue;
+
+      AggregateIndex index = _aggregates.get(condition.GroupSignature);
+      if (index == null || --index.References > 0) continue;
+
+      _aggregates.remove(index.Signature);
+      List<AggregateIndex> typeIndexes = _aggregatesByType.get(index.Type);
+      typeIndexes.remove(index);
+      if (typeIndexes.isEmpty())
+      {
+        _aggregatesByType.remove(index.Type);
+      }
+    }
+  }
+
+  AggregateIndex getAggregateIndex(String signature)
+  {
+    return _aggregates.get(signature);
+  }
+
+  private void rebuildAggregates()
+  {
+    for (AggregateIndex index : _aggregates.values())
+    {
+      index.clear();
+      index.addAll(_wm.get(index.Type), --_lastStamp);
+    }
+  }
+
+  // adds an element to, or removes it from, the negation and aggregate groups of its type
+  private void count(MemoryElement element, boolean add)
+  {
+    List<AggregateIndex> indexes = _aggregatesByType.get(element.Type);
+    if (indexes == null) return;
+
+    long stamp = --_lastStamp;
+    for (AggregateIndex index : indexes)
+    {
+      Object key = add ? index.add(element, stamp) : index.remove(element, stamp);
+      if (key != AggregateIndex.UNGROUPED)
+      {
+        for (AggregateIndex.Listener listener : _groupListeners)
+        {
+          listener.changed(index.Signature, key);
+        }
+      }
+    }
+  }
+
+  // tells the group listeners of the groups an element is in, without changing them, for changes
+  // made elsewhere, e.g. by a log being replayed
+  void groupsChanged(MemoryElement element)
+  {
+    List<AggregateIndex> indexes = _aggregatesByType.get(element.Type);
+    if (indexes == null) return;
+
+    for (AggregateIndex index : indexes)
+    {
+      Object key = index.group(element);
+      if (key != AggregateIndex.UNGROUPED)
+      {
+        for (AggregateIndex.Listener listener : _groupListeners)
+        {
+          listener.changed(index.Signature, key);
+        }
+      }
+    }
+  }
+
+  synchronized void addGroupListener(AggregateIndex.Listener listener)
+  {
+    AggregateIndex.Listener[] listeners = Arrays.copyOf(_groupListeners, _groupListeners.length + 1);
+    listeners[_groupListeners.length] = listener;
+    _groupListeners = listeners;
+  }
+
+  synchronized void removeGroupListener(AggregateIndex.Listener listener)
+  {
+    List<AggregateIndex.Listener> listeners = new ArrayList<AggregateIndex.Listener>(Arrays.asList(_groupListeners));
+    listeners.remove(listener);
+    _groupListeners = listeners.toArray(new AggregateIndex.Listener[listeners.size()]);
+  }
+
+  public void defineQuery(Query query)
+  {
+    Query replaced = _queries.put(query.Name, query);
+    if (replaced != null)
+    {
+      releaseAggregates(replaced.Prepared);
+    }
+    acquireAggregates(query.Prepared);
+  }
+
+  public Query getQuery(String name)
+  {
+    return _queries.get(name);
+  }
+
+  public Collection<Query> getQueries()
+  {
+    return Collections.unmodifiableCollection(_queries.values());
+  }
+
+  public List<QueryResult> query(String name, Object... args)
+  {
+    return requireQuery(name).execute(this, args);
+  }
+
+  public QueryView openView(String name, QueryListener listener, Object... args)
+  {
+    return requireQuery(name).open(this, listener, args);
+  }
+
+  private Query requireQuery(String name)
+  {
+    Query query = _queries.get(name);
+    if (query == null)
+    {
+      throw new IllegalArgumentException(String.format("query %s not defined", name));
+    }
+    return query;
+  }
+
+  public void setQueueListener(Runnable queueListener)
+  {
+    _queueListener = queueListener;
+  }
+
+  public synchronized void addListener(WorkingMemoryListener listener)
+  {
+    WorkingMemoryListener[] listeners = Arrays.copyOf(_listeners, _listeners.length + 1);
+    listeners[_listeners.length] = listener;
+    _listeners = listeners;
+  }
+
+  public synchronized void removeListener(WorkingMemoryListener listener)
+  {
+    List<WorkingMemoryListener> listeners = new ArrayList<WorkingMemoryListener>(Arrays.asList(_listeners));
+    listeners.remove(listener);
+    _listeners = listeners.toArray(new WorkingMemoryListener[listeners.size()]);
+  }
+
   public List<MemoryElement> get(String key) {
     return _wm.get(key);
   }
   
+  public Set<String> getTypes()
+  {
+    return Collections.unmodifiableSet(_wm.keySet());
+  }
+
+  public Collection<MemoryElement> getTemplates()
+  {
+    return Collections.unmodifiableCollection(_templates.values());
+  }
+
+  public MemoryElement getTemplate(String type)
+  {
+    return _templates.get(type);
+  }
+
+  long getNextTimeTag()
+  {
+    return _nextTimeTag;
+  }
+
+  List<MemoryElement> getQueuedItems()
+  {
+    return new ArrayList<MemoryElement>(_memoryInQueue);
+  }
+
+  // replaces the facts and queue wholesale, keeping the elements' time tags; listeners are told
+  // once, with restored()
+  void restore(Map<String, List<MemoryElement>> facts, List<MemoryElement> queued, long nextTimeTag)
+  {
+    _wm.clear();
+    _wm.putAll(facts);
+    rebuildIndexes();
+    rebuildAggregates();
+    resetTracker();
+    _memoryInQueue.clear();
+    _memoryInQueue.addAll(queued);
+    _nextTimeTag = nextTimeTag;
+
+    for (WorkingMemoryListener listener : _listeners)
+    {
+      listener.restored();
+    }
+
+    notifyDrain();
+  }
+
   public void literalize(MemoryElement template)
   {
     _templates.put(template.Type, template);
@@ -68,6 +440,27 @@ public class WorkingMemory
       _wm.put(element.Type, new ArrayList<MemoryElement>());
     }
     _wm.get(element.Type).add(element);
+    element.TimeTag = _nextTimeTag++;
+    _version++;
+    if (_tracker != null)
+    {
+      _tracker.inserted(element);
+    }
+
+    Map<String, AttributeIndex> indexes = _indexes.get(element.Type);
+    if (indexes != null)
+    {
+      for (AttributeIndex index : indexes.values())
+      {
+        index.add(element);
+      }
+    }
+    count(element, true);
+
+    for (WorkingMemoryListener listener : _listeners)
+    {
+      listener.inserted(element);
+    }
 
     notifyDrain();
   }
@@ -76,7 +469,108 @@ public class WorkingMemory
   {
     List<MemoryElement> wme = _wm.get(element.Type);
     if (wme == null) return;
-    wme.remove(element);
+    if (!wme.remove(element)) return;
+
+    _version++;
+    if (_tracker != null)
+    {
+      _tracker.removed(element);
+    }
+
+    Map<String, AttributeIndex> indexes = _indexes.get(element.Type);
+    if (indexes != null)
+    {
+      for (AttributeIndex index : indexes.values())
+      {
+        index.remove(element);
+      }
+    }
+    count(element, false);
+
+    for (WorkingMemoryListener listener : _listeners)
+    {
+      listener.removed(element);
+    }
+  }
+
+  public MemoryElement modify(MemoryElement element, String[] keys, Object[] values)
+  {
+    Object[] indexed = indexedValues(element);
+    count(element, false);
+    copyOnWrite(element);
+    for (int i = 0; i < keys.length; i++)
+    {
+      element.Values.put(keys[i], values[i]);
+    }
+    reindex(element, indexed);
+    return touch(element);
+  }
+
+  public MemoryElement modify(MemoryElement element, Map<String, Object> values)
+  {
+    Object[] indexed = indexedValues(element);
+    count(element, false);
+    copyOnWrite(element);
+    element.Values.putAll(values);
+    reindex(element, indexed);
+    return touch(element);
+  }
+
+  // a published version may share the element's values, in which case it gets a copy to change
+  private static void copyOnWrite(MemoryElement element)
+  {
+    MemoryElement frozen = element.Frozen;
+    if (frozen != null && frozen.Values == element.Values)
+    {
+      element.Values = new HashMap<String, Object>(element.Values);
+    }
+  }
+
+  // the values of an element's indexed attributes, taken before it is modified
+  private Object[] indexedValues(MemoryElement element)
+  {
+    Map<String, AttributeIndex> indexes = _indexes.get(element.Type);
+    if (indexes == null) return null;
+
+    Object[] values = new Object[indexes.size()];
+    int i = 0;
+    for (AttributeIndex index : indexes.values())
+    {
+      values[i++] = element.Values.get(index.Key);
+    }
+    return values;
+  }
+
+  // only moves the element between buckets of the indexes whose attribute changed
+  private void reindex(MemoryElement element, Object[] indexed)
+  {
+    if (indexed == null) return;
+
+    int i = 0;
+    for (AttributeIndex index : _indexes.get(element.Type).values())
+    {
+      index.update(element, indexed[i++]);
+    }
+  }
+
+  // a modified element is a new fact as far as matching is concerned, so it gets a new time tag
+  private MemoryElement touch(MemoryElement element)
+  {
+    long oldTimeTag = element.TimeTag;
+    element.TimeTag = _nextTimeTag++;
+    count(element, true);
+    _version++;
+    if (_tracker != null)
+    {
+      _tracker.modified(element);
+    }
+
+    for (WorkingMemoryListener listener : _listeners)
+    {
+      listener.modified(element, oldTimeTag);
+    }
+
+    return element;
   }
 
   private void notifyDrain() {
@@ -85,6 +579,11 @@ public class WorkingMemory
         _memoryInQueue.notify();
       }
     }
+
+    Runnable queueListener = _queueListener;
+    if (queueListener != null) {
+      queueListener.run();
+    }
   }
 
   public MemoryElement make(String type, Object... args)
@@ -119,6 +618,57 @@ public class WorkingMemory
     return newElement;
   }
 
+  public MemoryElement make(String type, String[] keys, Object[] values)
+  {
+    MemoryElement template = _templates.get(type);
+    if (template == null)
+    {
+      throw new IllegalArgumentException(String.format("memory element type %s not literalized", type));
+    }
+
+    MemoryElement newElement = template.make(keys, values);
+
+    _memoryInQueue.add(newElement);
+
+    notifyDrain();
+
+    return newElement;
+  }
+
+  // takes ownership of the elements, filling in template defaults in place
+  public int makeAll(List<MemoryElement> elements)
+  {
+    int count = 0;
+
+    for (MemoryElement element : elements)
+    {
+      MemoryElement template = _templates.get(element.Type);
+      if (template == null)
+      {
+        System.err.println(String.format("memory element type %s not literalized", element.Type));
+        continue;
+      }
+
+      for (Map.Entry<String, Object> entry : template.Values.entrySet())
+      {
+        if (!element.Values.containsKey(entry.getKey()))
+        {
+          element.Values.put(entry.getKey(), entry.getValue());
+        }
+      }
+
+      _memoryInQueue.add(element);
+      count++;
+    }
+
+    if (count > 0)
+    {
+      notifyDrain();
+    }
+
+    return count;
+  }
+
   public boolean drainInMemoryQueueBlockable()
   {
     if (_waitForItems) {
@@ -0,0 +1,15 @@
+package ops;
+
+
+public interface WorkingMemoryListener
+{
+  void inserted(MemoryElement element);
+
+  void removed(MemoryElement element);
+
+  void modified(MemoryElement element, long oldTimeTag);
+
+  // the facts were replaced wholesale, by Snapshot.restore or WriteAheadLog.replay, without an
+  // event per element
+  void restored();
+}
@@ -0,0 +1,435 @@
+package ops;
+
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+
+/**
+ * An immutable version of working memory as of one cycle boundary, which any thread can read
+ * and query while the engine keeps running.
+ *
+ * Versions share structure: each type is stored as chunks of 1024 elements (CHUNK_SIZE), and
+ * publishing a new version only copies the chunks that changed since the last one.  Elements
+ * are frozen copies that share their values with the live element until it is modified, when
+ * working memory gives the live element a fresh copy of its values instead of changing them in
+ * place.  The elements and their values must not be changed by readers.
+ */
+public class WorkingMemoryVersion extends FactSource
+{
+  private static final int CHUNK_SIZE = 1024;
+
+  private final long _version;
+  private final long _nextTimeTag;
+  private final Map<String, List<MemoryElement>> _types;
+
+  private WorkingMemoryVersion(long version, long nextTimeTag, Map<String, List<MemoryElement>> types)
+  {
+    _version = version;
+    _nextTimeTag = nextTimeTag;
+    _types = types;
+  }
+
+  // counts the changes made to working memory, so equal versions hold the same facts
+  public long getVersion()
+  {
+    return _version;
+  }
+
+  public long getNextTimeTag()
+  {
+    return _nextTimeTag;
+  }
+
+  public Set<String> getTypes()
+  {
+    return Collections.unmodifiableSet(_types.keySet());
+  }
+
+  @Override
+  public List<MemoryElement> get(String type)
+  {
+    return _types.get(type);
+  }
+
+  public int size()
+  {
+    int size = 0;
+    for (List<MemoryElement> elements : _types.values())
+    {
+      size += elements.size();
+    }
+    return size;
+  }
+
+  public List<QueryResult> query(Query query, Object... args)
+  {
+    return query.execute(this, args);
+  }
+
+  static class Chunk
+  {
+    final List<MemoryElement> Live = new ArrayList<MemoryElement>(CHUNK_SIZE);
+    MemoryElement[] Published;
+    int Index;
+
+    // what changed since the chunk was last published: appended or modified elements, unless one was removed
+    final List<MemoryElement> Changed = new ArrayList<MemoryElement>();
+    boolean Removed;
+    boolean Dirty;
+  }
+
+  private static class TypeChunks
+  {
+    final String Type;
+    final List<Chunk> Chunks = new ArrayList<Chunk>();
+    final List<Chunk> DirtyChunks = new ArrayList<Chunk>();
+    ChunkList Published;
+    boolean Compact;
+    boolean Dirty = true;
+
+    TypeChunks(String type)
+    {
+      Type = type;
+    }
+  }
+
+  /**
+   * Follows the changes to working memory in chunks, on the thread that makes them, and
+   * publishes versions from them.  Publishing copies the previous version's chunk table and
+   * refreezes only the changed elements of the changed chunks; chunks left mostly empty by
+   * removals are folded together now and then.
+   */
+  static class Tracker
+  {
+    private final Map<String, TypeChunks> _types = new HashMap<String, TypeChunks>();
+    private final List<TypeChunks> _dirty = new ArrayList<TypeChunks>();
+    private WorkingMemoryVersion _last;
+
+    Tracker(Map<String, List<MemoryElement>> facts)
+    {
+      for (Map.Entry<String, List<MemoryElement>> entry : facts.entrySet())
+      {
+        TypeChunks chunks = getChunks(entry.getKey());
+        for (MemoryElement element : entry.getValue())
+        {
+          append(chunks, element);
+        }
+      }
+    }
+
+    void inserted(MemoryElement element)
+    {
+      append(getChunks(element.Type), element);
+    }
+
+    void removed(MemoryElement element)
+    {
+      Chunk chunk = element.Chunk;
+      if (chunk == null) return;
+
+      for (int i = 0; i < chunk.Live.size(); i++)
+      {
+        if (chunk.Live.get(i) == element)
+        {
+          chunk.Live.remove(i);
+          break;
+        }
+      }
+      element.Chunk = null;
+
+      TypeChunks chunks = _types.get(element.Type);
+      chunk.Removed = true;
+      markDirty(chunks, chunk);
+      if (chunk.Live.size() < CHUNK_SIZE / 4)
+      {
+        chunks.Compact = true;
+      }
+    }
+
+    void modified(MemoryElement element)
+    {
+      Chunk chunk = element.Chunk;
+      if (chunk == null) return;
+
+      chunk.Changed.add(element);
+      markDirty(_types.get(element.Type), chunk);
+    }
+
+    WorkingMemoryVersion publish(long version, long nextTimeTag)
+    {
+      if (_last != null && _dirty.isEmpty())
+      {
+        return _last = new WorkingMemoryVersion(version, nextTimeTag, _last._types);
+      }
+
+      Map<String, List<MemoryElement>> types =
+        _last != null ? new HashMap<String, List<MemoryElement>>(_last._types) : new HashMap<String, List<MemoryElement>>();
+      for (TypeChunks chunks : _dirty)
+      {
+        chunks.Published = chunks.Published == null || chunks.Compact ? rebuild(chunks) : patch(chunks);
+        chunks.DirtyChunks.clear();
+        chunks.Dirty = false;
+        types.put(chunks.Type, chunks.Published);
+      }
+      _dirty.clear();
+
+      return _last = new WorkingMemoryVersion(version, nextTimeTag, types);
+    }
+
+    // copies the previous chunk table, replacing the changed chunks and shifting the offsets after them
+    private ChunkList patch(TypeChunks chunks)
+    {
+      ChunkList last = chunks.Published;
+      int count = chunks.Chunks.size();
+      MemoryElement[][] published = Arrays.copyOf(last.Chunks, count);
+      int[] offsets = last.Offsets;
+      boolean copied = false;
+
+      for (Chunk chunk : chunks.DirtyChunks)
+      {
+        int lastLength = chunk.Index < last.Chunks.length ? last.Chunks[chunk.Index].length : 0;
+        published[chunk.Index] = publish(chunk);
+
+        int delta = chunk.Published.length - lastLength;
+        if (delta != 0 || chunk.Index >= offsets.length)
+        {
+          if (!copied)
+          {
+            offsets = Arrays.copyOf(offsets, count);
+            copied = true;
+          }
+          for (int i = chunk.Index + 1; i < last.Chunks.length; i++)
+          {
+            offsets[i] += delta;
+          }
+        }
+      }
+
+      for (int i = last.Chunks.length; i < count; i++)
+      {
+        offsets[i] = i == 0 ? 0 : offsets[i - 1] + published[i - 1].length;
+      }
+      return new ChunkList(published, offsets);
+    }
+
+    // folds each changed chunk into the ones after it while they fit, then lays out a new chunk table
+    private ChunkList rebuild(TypeChunks chunks)
+    {
+      List<Chunk> list = chunks.Chunks;
+      for (int i = 0; i < list.size(); i++)
+      {
+        Chunk chunk = list.get(i);
+        if (!chunk.Dirty && chunk.Published != null) continue;
+
+        while (i + 1 < list.size() && chunk.Live.size() + list.get(i + 1).Live.size() <= CHUNK_SIZE)
+        {
+          Chunk next = list.remove(i + 1);
+          for (MemoryElement element : next.Live)
+          {
+            element.Chunk = chunk;
+            chunk.Live.add(element);
+          }
+          chunk.Removed = true;
+        }
+
+        if (chunk.Live.isEmpty() && list.size() > 1)
+        {
+          list.remove(i--);
+          continue;
+        }
+        publish(chunk);
+      }
+      chunks.Compact = false;
+
+      MemoryElement[][] published = new MemoryElement[list.size()][];
+      int[] offsets = new int[published.length];
+      for (int i = 0; i < published.length; i++)
+      {
+        Chunk chunk = list.get(i);
+        chunk.Index = i;
+        published[i] = chunk.Published;
+        offsets[i] = i == 0 ? 0 : offsets[i - 1] + published[i - 1].length;
+      }
+      return new ChunkList(published, offsets);
+    }
+
+    private static MemoryElement[] publish(Chunk chunk)
+    {
+      List<MemoryElement> live = chunk.Live;
+      MemoryElement[] published;
+      if (chunk.Published == null || chunk.Removed)
+      {
+        published = new MemoryElement[live.size()];
+        for (int i = 0; i < published.length; i++)
+        {
+          published[i] = freeze(live.get(i));
+        }
+      }
+      else
+      {
+        // only appended and modified elements need freezing; the rest keep their place
+        published = Arrays.copyOf(chunk.Published, live.size());
+        for (MemoryElement element : chunk.Changed)
+        {
+          int idx = indexOf(live, element);
+          if (idx >= 0)
+          {
+            published[idx] = freeze(element);
+          }
+        }
+      }
+
+      chunk.Published = published;
+      chunk.Changed.clear();
+      chunk.Removed = false;
+      chunk.Dirty = false;
+      return published;
+    }
+
+    private static int indexOf(List<MemoryElement> live, MemoryElement element)
+    {
+      for (int i = live.size() - 1; i >= 0; i--)
+      {
+        if (live.get(i) == element) return i;
+      }
+      return -1;
+    }
+
+    private static MemoryElement freeze(MemoryElement element)
+    {
+      MemoryElement frozen = element.Frozen;
+      if (frozen == null || frozen.TimeTag != element.TimeTag || frozen.Values != element.Values)
+      {
+        frozen = MemoryElement.wrap(element.Type, element.Values);
+        frozen.TimeTag = element.TimeTag;
+        element.Frozen = frozen;
+      }
+      return frozen;
+    }
+
+    private TypeChunks getChunks(String type)
+    {
+      TypeChunks chunks = _types.get(type);
+      if (chunks == null)
+      {
+        chunks = new TypeChunks(type);
+        _types.put(type, chunks);
+        _dirty.add(chunks);
+      }
+      return chunks;
+    }
+
+    private void append(TypeChunks chunks, MemoryElement element)
+    {
+      List<Chunk> list = chunks.Chunks;
+      Chunk tail = list.isEmpty() ? null : list.get(list.size() - 1);
+      if (tail == null || tail.Live.size() >= CHUNK_SIZE)
+      {
+        tail = new Chunk();
+        tail.Index = list.size();
+        list.add(tail);
+      }
+      tail.Live.add(element);
+      tail.Changed.add(element);
+      element.Chunk = tail;
+      markDirty(chunks, tail);
+    }
+
+    private void markDirty(TypeChunks chunks, Chunk chunk)
+    {
+      if (!chunk.Dirty)
+      {
+        chunk.Dirty = true;
+        chunks.DirtyChunks.add(chunk);
+      }
+      markDirty(chunks);
+    }
+
+    private void markDirty(TypeChunks chunks)
+    {
+      if (chunks.Dirty) return;
+      chunks.Dirty = true;
+      _dirty.add(chunks);
+    }
+  }
+
+  // a read-only list over the published chunks of one type
+  private static class ChunkList extends AbstractList<MemoryElement> implements RandomAccess
+  {
+    final MemoryElement[][] Chunks;
+    final int[] Offsets;
+    private final int _size;
+
+    ChunkList(MemoryElement[][] chunks, int[] offsets)
+    {
+      Chunks = chunks;
+      Offsets = offsets;
+      _size = chunks.length == 0 ? 0 : offsets[chunks.length - 1] + chunks[chunks.length - 1].length;
+    }
+
+    @Override
+    public MemoryElement get(int index)
+    {
+      if (index < 0 || index >= _size) throw new IndexOutOfBoundsException(String.valueOf(index));
+
+      int lo = 0;
+      int hi = Offsets.length - 1;
+      while (lo < hi)
+      {
+        int mid = (lo + hi + 1) >>> 1;
+        if (Offsets[mid] <= index) lo = mid; else hi = mid - 1;
+      }
+      return Chunks[lo][index - Offsets[lo]];
+    }
+
+    @Override
+    public int size()
+    {
+      return _size;
+    }
+
+    @Override
+    public Iterator<MemoryElement> iterator()
+    {
+      return new Iterator<MemoryElement>()
+      {
+        private int _chunk;
+        private int _idx;
+
+        @Override
+        public boolean hasNext()
+        {
+          while (_chunk < Chunks.length && _idx == Chunks[_chunk].length)
+          {
+            _chunk++;
+            _idx = 0;
+          }
+          return _chunk < Chunks.length;
+        }
+
+        @Override
+        public MemoryElement next()
+        {
+          if (!hasNext()) throw new NoSuchElementException();
+          return Chunks[_chunk][_idx++];
+        }
+
+        @Override
+        public void remove()
+        {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,553 @@
+package ops;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+
+/**
+ * An append-only log of working memory changes (inserts, modifies, removes), fired activations and
+ * focus changes.
+ * Records are buffered and written as one checksummed frame per commit; OPS commits at the end of
+ * every recognize-act cycle, after inserting the elements its production made, so a cycle's changes
+ * reach the log together or not at all.  Elements made by asynchronous commands are logged with the
+ * cycle that inserts them.
+ *
+ * To recover, restore the last snapshot (if any), replay the log, then attach a log again:
+ *
+ *   Snapshot.restore(ops, snapshot);
+ *   WriteAheadLog.replay(ops, log);
+ *   ops.setWriteAheadLog(WriteAheadLog.open(log, WriteAheadLog.SYNC_INTERVAL));
+ *
+ * checkpoint writes a new snapshot and truncates the log.  Templates are not logged; they are
+ * expected to come from the rulebase (or snapshot) as before.
+ */
+public class WriteAheadLog implements WorkingMemoryListener
+{
+  // leave flushing to the OS: survives a process crash but not a power loss
+  public static final int SYNC_NEVER = 0;
+  // force every commit to disk before the next cycle starts
+  public static final int SYNC_COMMIT = 1;
+  // force at most once per sync interval
+  public static final int SYNC_INTERVAL = 2;
+
+  public static final long DEFAULT_SYNC_INTERVAL = 100;
+
+  private static final byte INSERT = 1;
+  private static final byte REMOVE = 2;
+  private static final byte MODIFY = 3;
+  private static final byte FIRED = 4;
+  private static final byte FOCUS = 5;
+
+  private static final int FRAME_HEADER_SIZE = 8;
+  private static final int MAP_SIZE = 16 * 1024 * 1024;
+  // the string dictionary carries over between frames until a frame flagged in its length resets it
+  private static final int RESET_STRINGS = 0x80000000;
+  private static final int MAX_STRINGS = 64 * 1024;
+
+  private final RandomAccessFile _file;
+  private final FileChannel _channel;
+  private final int _syncPolicy;
+  private final long _syncIntervalNanos;
+  private final BinaryFormat.Encoder _out = new BinaryFormat.Encoder(null, 64 * 1024);
+  private final CRC32 _crc = new CRC32();
+  private MappedByteBuffer _map;
+  private long _mapStart;
+  private long _lastSync = System.nanoTime();
+  private boolean _dirty = false;
+  private boolean _resetStrings = true;
+  private long _commits = 0;
+
+  public static WriteAheadLog open(File file, int syncPolicy)
+      throws IOException
+  {
+    return new WriteAheadLog(file, syncPolicy, DEFAULT_SYNC_INTERVAL);
+  }
+
+  // a torn frame left at the end of the file by a crash is cut off before appending
+  public WriteAheadLog(File file, int syncPolicy, long syncIntervalMillis)
+      throws IOException
+  {
+    _file = new RandomAccessFile(file, "rw");
+    _channel = _file.getChannel();
+    _syncPolicy = syncPolicy;
+    _syncIntervalNanos = syncIntervalMillis * 1000000L;
+
+    long end = readFrames(_channel, null);
+    _channel.truncate(end);
+    map(end, MAP_SIZE);
+  }
+
+  // frames are copied into a mapped region, so a commit that is not synced costs no system call
+  // and still survives the process dying; the zeroed space past the last frame ends a replay
+  private void map(long position, int size)
+      throws IOException
+  {
+    _mapStart = position;
+    _map = _channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+  }
+
+  private long end()
+  {
+    return _mapStart + _map.position();
+  }
+
+  public long getCommitCount()
+  {
+    return _commits;
+  }
+
+  public synchronized long size()
+  {
+    return end();
+  }
+
+  @Override
+  public synchronized void inserted(MemoryElement element)
+  {
+    try
+    {
+      startRecord();
+      _out.writeByte(INSERT);
+      _out.writeVarLong(element.TimeTag);
+      _out.writeString(element.Type);
+      _out.writeValues(element.Values);
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public synchronized void removed(MemoryElement element)
+  {
+    try
+    {
+      startRecord();
+      _out.writeByte(REMOVE);
+      _out.writeVarLong(element.TimeTag);
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public synchronized void modified(MemoryElement element, long oldTimeTag)
+  {
+    try
+    {
+      startRecord();
+      _out.writeByte(MODIFY);
+      _out.writeVarLong(oldTimeTag);
+      _out.writeVarLong(element.TimeTag);
+      _out.writeValues(element.Values);
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // the records logged so far describe changes to the facts that were just replaced, so replaying
+  // later ones on top of the last checkpoint would go wrong; Snapshot.restore and replay refuse to
+  // run while a log is attached, so this is only reached by restoring a working memory directly
+  @Override
+  public void restored()
+  {
+    throw new IllegalStateException("working memory was restored while a write-ahead log was attached");
+  }
+
+  // the rule is stored by its position in the session's rule list, plus its name as a check
+  synchronized void fired(int position, Rule rule, MemoryElement[] elements)
+  {
+    try
+    {
+      startRecord();
+      _out.writeByte(FIRED);
+      _out.writeVarInt(position);
+      _out.writeString(rule.Name);
+      _out.writeVarInt(elements.length);
+      for (MemoryElement element : elements)
+      {
+        _out.writeVarLong(MemoryElement.timeTag(element));
+      }
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  synchronized void focused(List<String> focusStack)
+  {
+    try
+    {
+      startRecord();
+      _out.writeByte(FOCUS);
+      _out.writeVarInt(focusStack.size());
+      for (String group : focusStack)
+      {
+        _out.writeString(group);
+      }
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // the dictionary may only be reset at the start of a frame
+  private void startRecord()
+  {
+    if (_out.buffer().position() == 0 && (_resetStrings || _out.stringCount() > MAX_STRINGS))
+    {
+      _out.resetStrings();
+      _resetStrings = true;
+    }
+  }
+
+  // writes everything logged since the last commit as one frame
+  public synchronized void commit()
+      throws IOException
+  {
+    ByteBuffer buf = _out.buffer();
+
+    if (buf.position() > 0)
+    {
+      int length = buf.position();
+
+      _crc.reset();
+      _crc.update(buf.array(), buf.arrayOffset(), length);
+
+      if (_map.remaining() < FRAME_HEADER_SIZE + length)
+      {
+        if (_dirty) sync();
+        map(end(), Math.max(MAP_SIZE, FRAME_HEADER_SIZE + length));
+      }
+
+      _map.putInt(_resetStrings ? length | RESET_STRINGS : length);
+      _map.putInt((int) _crc.getValue());
+      buf.flip();
+      _map.put(buf);
+
+      buf.clear();
+      _resetStrings = false;
+      _dirty = true;
+      _commits++;
+    }
+
+    if (!_dirty || _syncPolicy == SYNC_NEVER) return;
+
+    if (_syncPolicy == SYNC_COMMIT || System.nanoTime() - _lastSync >= _syncIntervalNanos)
+    {
+      sync();
+    }
+  }
+
+  public synchronized void sync()
+      throws IOException
+  {
+    _map.force();
+    _lastSync = System.nanoTime();
+    _dirty = false;
+  }
+
+  // commits, writes a snapshot (via a temporary file, so a crash never leaves a partial one) and empties the log
+  public synchronized void checkpoint(OPS ops, File snapshot)
+      throws IOException
+  {
+    commit();
+
+    File tmp = new File(snapshot.getPath() + ".tmp");
+    Snapshot.write(ops, tmp);
+    if (!tmp.renameTo(snapshot))
+    {
+      snapshot.delete();
+      if (!tmp.renameTo(snapshot))
+      {
+        throw new IOException("failed to replace snapshot " + snapshot);
+      }
+    }
+
+    _channel.truncate(0);
+    _channel.force(true);
+    map(0, MAP_SIZE);
+    _resetStrings = true;
+  }
+
+  // trims the unused mapped space off the end of the file
+  public synchronized void close()
+      throws IOException
+  {
+    commit();
+    if (_dirty) sync();
+    _channel.truncate(end());
+    _file.close();
+  }
+
+  /**
+   * Applies the logged changes on top of the current working memory (normally just restored from the
+   * snapshot the log was truncated with) and returns the number of records replayed.  Replay stops at
+   * the first incomplete or corrupt frame.  Other listeners are only told once, through restored(),
+   * and a log may not be attached while replaying, so replay before attaching one.
+   */
+  public static int replay(OPS ops, File file)
+      throws IOException
+  {
+    if (ops.getWriteAheadLog() != null)
+    {
+      throw new IllegalStateException("detach the write-ahead log before replaying one");
+    }
+    if (!file.exists()) return 0;
+
+    Replay replay = new Replay(ops);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try
+    {
+      readFrames(raf.getChannel(), replay);
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    replay.finish();
+
+    return replay.Records;
+  }
+
+  // visits each complete frame and returns the position just past the last one
+  private static long readFrames(FileChannel channel, Replay replay)
+      throws IOException
+  {
+    long size = channel.size();
+    long position = 0;
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    ByteBuffer payload = ByteBuffer.allocate(64 * 1024);
+    BinaryFormat.Decoder in = new BinaryFormat.Decoder(payload);
+    CRC32 crc = new CRC32();
+
+    while (position + FRAME_HEADER_SIZE <= size)
+    {
+      header.clear();
+      readFully(channel, header, position);
+      header.flip();
+      int length = header.getInt();
+      int checksum = header.getInt();
+      boolean resetStrings = (length & RESET_STRINGS) != 0;
+      length &= ~RESET_STRINGS;
+
+      if (length <= 0 || position + FRAME_HEADER_SIZE + length > size) break;
+
+      if (payload.capacity() < length)
+      {
+        payload = ByteBuffer.allocate(Math.max(length, payload.capacity() * 2));
+      }
+      payload.clear();
+      payload.limit(length);
+      readFully(channel, payload, position + FRAME_HEADER_SIZE);
+      payload.flip();
+
+      crc.reset();
+      crc.update(payload.array(), payload.arrayOffset(), length);
+      if ((int) crc.getValue() != checksum) break;
+
+      if (replay != null)
+      {
+        in.setBuffer(payload);
+        if (resetStrings)
+        {
+          in.resetStrings();
+        }
+        while (in.hasRemaining())
+        {
+          replay.apply(in);
+        }
+      }
+
+      position += FRAME_HEADER_SIZE + length;
+    }
+
+    return position;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buf, long position)
+      throws IOException
+  {
+    while (buf.hasRemaining())
+    {
+      if (channel.read(buf, position + buf.position()) < 0) return;
+    }
+  }
+
+  private static class Replay
+  {
+    final OPS Ops;
+    final WorkingMemory WM;
+    final Map<Long, MemoryElement> ByTimeTag = new HashMap<Long, MemoryElement>();
+    final Map<String, Set<MemoryElement>> ByType = new LinkedHashMap<String, Set<MemoryElement>>();
+    final List<PreparedRule> Rules;
+    long NextTimeTag;
+    int Records = 0;
+
+    // read-only lists of ByType, built on first use and dropped when their type gains or loses an element
+    final Map<String, List<MemoryElement>> Views = new HashMap<String, List<MemoryElement>>();
+
+    // the replayed elements, for binding the variables of fired activations
+    final FactSource Facts = new FactSource()
+    {
+      @Override
+      List<MemoryElement> get(String type)
+      {
+        List<MemoryElement> view = Views.get(type);
+        if (view == null)
+        {
+          Set<MemoryElement> elements = ByType.get(type);
+          if (elements == null) return Collections.emptyList();
+          view = Collections.unmodifiableList(new ArrayList<MemoryElement>(elements));
+          Views.put(type, view);
+        }
+        return view;
+      }
+    };
+
+    Replay(OPS ops)
+    {
+      Ops = ops;
+      WM = ops.getWorkingMemory();
+      NextTimeTag = WM.getNextTimeTag();
+
+      for (String type : WM.getTypes())
+      {
+        Set<MemoryElement> elements = new LinkedHashSet<MemoryElement>(WM.get(type));
+        ByType.put(type, elements);
+        for (MemoryElement element : elements)
+        {
+          ByTimeTag.put(element.TimeTag, element);
+        }
+      }
+
+      Rules = ops.getPreparedRules();
+    }
+
+    void apply(BinaryFormat.Decoder in)
+    {
+      byte kind = in.readByte();
+
+      switch (kind)
+      {
+        case INSERT:
+        {
+          long timeTag = in.readVarLong();
+          String type = in.readString();
+          MemoryElement element = MemoryElement.wrap(type, in.readValues());
+          element.TimeTag = timeTag;
+
+          Set<MemoryElement> elements = ByType.get(type);
+          if (elements == null)
+          {
+            elements = new LinkedHashSet<MemoryElement>();
+            ByType.put(type, elements);
+          }
+          elements.add(element);
+          Views.remove(type);
+          ByTimeTag.put(timeTag, element);
+          NextTimeTag = Math.max(NextTimeTag, timeTag + 1);
+          WM.groupsChanged(element);
+          Ops.getRefraction().inserted(element);
+          break;
+        }
+        case REMOVE:
+        {
+          MemoryElement element = ByTimeTag.remove(in.readVarLong());
+          if (element != null)
+          {
+            ByType.get(element.Type).remove(element);
+            Views.remove(element.Type);
+            WM.groupsChanged(element);
+            Ops.getRefraction().removed(element);
+          }
+          break;
+        }
+        case MODIFY:
+        {
+          long oldTimeTag = in.readVarLong();
+          long timeTag = in.readVarLong();
+          Map<String, Object> values = in.readValues();
+
+          MemoryElement element = ByTimeTag.remove(oldTimeTag);
+          if (element != null)
+          {
+            WM.groupsChanged(element);
+            element.Values = values;
+            element.TimeTag = timeTag;
+            ByTimeTag.put(timeTag, element);
+            WM.groupsChanged(element);
+            Ops.getRefraction().modified(element, oldTimeTag);
+          }
+          NextTimeTag = Math.max(NextTimeTag, timeTag + 1);
+          break;
+        }
+        case FIRED:
+        {
+          int position = in.readVarInt();
+          String name = in.readString();
+          long[] timeTags = new long[in.readVarInt()];
+          for (int i = 0; i < timeTags.length; i++)
+          {
+            timeTags[i] = in.readVarLong();
+          }
+          // as with a snapshot's activations, a rule no longer at the same position is skipped
+          if (position < Rules.size() && Rules.get(position).Rule.Name.equals(name))
+          {
+            Ops.getRefraction().fired(Rules.get(position), timeTags, ByTimeTag, Facts);
+          }
+          break;
+        }
+        case FOCUS:
+        {
+          List<String> focusStack = new ArrayList<String>();
+          int count = in.readVarInt();
+          for (int i = 0; i < count; i++)
+          {
+            focusStack.add(in.readString());
+          }
+          Ops.setFocusStack(focusStack);
+          break;
+        }
+        default:
+          throw new IllegalArgumentException("unknown log record: " + kind);
+      }
+
+      Records++;
+    }
+
+    void finish()
+    {
+      Map<String, List<MemoryElement>> facts = new HashMap<String, List<MemoryElement>>();
+      for (Map.Entry<String, Set<MemoryElement>> entry : ByType.entrySet())
+      {
+        facts.put(entry.getKey(), new ArrayList<MemoryElement>(entry.getValue()));
+      }
+
+      WM.restore(facts, WM.getQueuedItems(), NextTimeTag);
+    }
+  }
+}
@@ -6,15 +6,16 @@ import ops.CommandContext;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 
 public class bind implements Command
 {
+  private static BufferedReader _stdin;
+
   @Override
   public void exec(CommandContext context, Object[] args)
   {
-    if (args.length < 1)
+    if (args.length < 2)
     {
       throw new IllegalArgumentException("usage: bind <var> <value>");
     }
@@ -24,23 +25,26 @@ public class bind implements Command
 
     if (value.equals("@STDIN"))
     {
+      context.getOutputSink().flush();
       value = readline();
     }
-    else if (name.equals("@SOCKET"))
+    else if (value.equals("@SOCKET"))
     {
-      // TODO:
-      throw new NotImplementedException();
+      throw new UnsupportedOperationException("bind @SOCKET is not supported, stream facts in with ops.ingest.ChannelIngestor");
     }
 
     context.setVar("$"+name, value);
   }
 
-  private String readline()
+  private static synchronized String readline()
   {
     try
     {
-      BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
-      return stdin.readLine();
+      if (_stdin == null)
+      {
+        _stdin = new BufferedReader(new InputStreamReader(System.in));
+      }
+      return _stdin.readLine();
     }
     catch (IOException e)
     {
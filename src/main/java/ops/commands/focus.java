@@ -0,0 +1,54 @@
+package ops.commands;
+
+
+import ops.Action;
+import ops.ActionCompiler;
+import ops.CommandContext;
+import ops.CompilableCommand;
+import ops.ValueRef;
+
+
+public class focus implements CompilableCommand
+{
+  @Override
+  public void exec(CommandContext context, Object[] args)
+  {
+    context.focus(toGroups(args));
+  }
+
+  @Override
+  public Action compile(ActionCompiler compiler, Object[] params)
+  {
+    if (params.length == 0)
+    {
+      throw new IllegalArgumentException("focus requires at least one group");
+    }
+
+    for (Object param : params)
+    {
+      ValueRef ref = compiler.compileValue(param);
+      if (!ref.isConstant()) return null;
+    }
+
+    final String[] groups = toGroups(params);
+
+    return new Action()
+    {
+      @Override
+      public void exec(CommandContext context)
+      {
+        context.focus(groups);
+      }
+    };
+  }
+
+  private static String[] toGroups(Object[] args)
+  {
+    String[] groups = new String[args.length];
+    for (int i = 0; i < args.length; i++)
+    {
+      groups[i] = args[i].toString();
+    }
+    return groups;
+  }
+}
@@ -1,15 +1,30 @@
 package ops.commands;
 
 
-import ops.Command;
+import ops.Action;
+import ops.ActionCompiler;
 import ops.CommandContext;
+import ops.CompilableCommand;
 
 
-public class halt implements Command
+public class halt implements CompilableCommand
 {
   @Override
   public void exec(CommandContext context, Object[] args)
   {
     context.halt();
   }
+
+  @Override
+  public Action compile(ActionCompiler compiler, Object[] params)
+  {
+    return new Action()
+    {
+      @Override
+      public void exec(CommandContext context)
+      {
+        context.halt();
+      }
+    };
+  }
 }
@@ -1,14 +1,17 @@
 package ops.commands;
 
 
-import ops.Command;
+import ops.Action;
+import ops.ActionCompiler;
 import ops.CommandContext;
+import ops.CompilableCommand;
 import ops.MemoryElement;
+import ops.ValueRef;
 import java.util.HashMap;
 import java.util.Map;
 
 
-public class make implements Command
+public class make implements CompilableCommand
 {
   @Override
   public void exec(CommandContext context, Object[] args)
@@ -35,4 +38,41 @@ public class make implements Command
 
     context.make(new MemoryElement(type, values));
   }
+
+  @Override
+  public Action compile(ActionCompiler compiler, Object[] params)
+  {
+    if (params.length == 0 || ((params.length - 1) % 2) != 0)
+    {
+      throw new IllegalArgumentException("values must be in the form: type key value key value ...");
+    }
+
+    ValueRef typeRef = compiler.compileValue(params[0]);
+    if (!typeRef.isConstant() || !(params[0] instanceof String)) return null;
+
+    final String type = (String)params[0];
+    final String[] keys = new String[(params.length - 1) / 2];
+    final ValueRef[] values = new ValueRef[keys.length];
+
+    for (int i = 1, j = 0; i < params.length; i += 2, j++)
+    {
+      if (!compiler.compileValue(params[i]).isConstant()) return null;
+      keys[j] = params[i].toString();
+      values[j] = compiler.compileValue(params[i+1]);
+    }
+
+    return new Action()
+    {
+      @Override
+      public void exec(CommandContext context)
+      {
+        Object[] vals = new Object[values.length];
+        for (int i = 0; i < vals.length; i++)
+        {
+          vals[i] = values[i].get(context);
+        }
+        context.make(type, keys, vals);
+      }
+    };
+  }
 }
@@ -1,13 +1,18 @@
 package ops.commands;
 
 
-import ops.Command;
+import ops.Action;
+import ops.ActionCompiler;
 import ops.CommandContext;
+import ops.CompilableCommand;
+import ops.MemoryElement;
+import ops.QueryElement;
+import ops.ValueRef;
 import java.util.HashMap;
 import java.util.Map;
 
 
-public class modify implements Command
+public class modify implements CompilableCommand
 {
   @Override
   public void exec(CommandContext context, Object[] args)
@@ -34,4 +39,58 @@ public class modify implements Command
 
     context.modify(idx, values);
   }
+
+  @Override
+  public Action compile(ActionCompiler compiler, Object[] params)
+  {
+    if (params.length == 0 || ((params.length - 1) % 2) != 0)
+    {
+      throw new IllegalArgumentException("values must be in the form: idx key value key value ...");
+    }
+    if (!(params[0] instanceof Integer)) return null;
+
+    final int idx = (Integer)params[0];
+    QueryElement qe = compiler.getQueryElement(idx);
+    MemoryElement template = compiler.getTemplate(qe.Type);
+
+    final String[] keys = new String[(params.length - 1) / 2];
+    final ValueRef[] values = new ValueRef[keys.length];
+    boolean validated = true;
+
+    for (int i = 1, j = 0; i < params.length; i += 2, j++)
+    {
+      if (!compiler.compileValue(params[i]).isConstant()) return null;
+      keys[j] = params[i].toString();
+      values[j] = compiler.compileValue(params[i+1]);
+      validated &= (template != null && template.Values.containsKey(keys[j]));
+    }
+
+    final boolean checkKeys = !validated;
+
+    return new Action()
+    {
+      @Override
+      public void exec(CommandContext context)
+      {
+        if (checkKeys)
+        {
+          MemoryElement element = context.getElement(idx);
+          for (String key : keys)
+          {
+            if (!element.Values.containsKey(key))
+            {
+              throw new IllegalArgumentException("missing field name in element: " + key);
+            }
+          }
+        }
+
+        Object[] vals = new Object[values.length];
+        for (int i = 0; i < vals.length; i++)
+        {
+          vals[i] = values[i].get(context);
+        }
+        context.modify(idx, keys, vals);
+      }
+    };
+  }
 }
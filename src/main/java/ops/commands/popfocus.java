@@ -0,0 +1,30 @@
+package ops.commands;
+
+
+import ops.Action;
+import ops.ActionCompiler;
+import ops.CommandContext;
+import ops.CompilableCommand;
+
+
+public class popfocus implements CompilableCommand
+{
+  @Override
+  public void exec(CommandContext context, Object[] args)
+  {
+    context.popFocus();
+  }
+
+  @Override
+  public Action compile(ActionCompiler compiler, Object[] params)
+  {
+    return new Action()
+    {
+      @Override
+      public void exec(CommandContext context)
+      {
+        context.popFocus();
+      }
+    };
+  }
+}
@@ -1,11 +1,13 @@
 package ops.commands;
 
 
-import ops.Command;
+import ops.Action;
+import ops.ActionCompiler;
 import ops.CommandContext;
+import ops.CompilableCommand;
 
 
-public class remove implements Command
+public class remove implements CompilableCommand
 {
   @Override
   public void exec(CommandContext context, Object[] args)
@@ -21,4 +23,22 @@ public class remove implements Command
     int idx = (Integer)args[0];
     context.remove(idx);
   }
+
+  @Override
+  public Action compile(ActionCompiler compiler, Object[] params)
+  {
+    if (params.length == 0 || !(params[0] instanceof Integer)) return null;
+
+    final int idx = (Integer)params[0];
+    compiler.getQueryElement(idx);
+
+    return new Action()
+    {
+      @Override
+      public void exec(CommandContext context)
+      {
+        context.remove(idx);
+      }
+    };
+  }
 }
@@ -1,25 +1,114 @@
 package ops.commands;
 
 
-import ops.Command;
+import ops.Action;
+import ops.ActionCompiler;
 import ops.CommandContext;
+import ops.CompilableCommand;
+import ops.ValueRef;
+import java.util.ArrayList;
+import java.util.List;
 
 
-public class write implements Command
+public class write implements CompilableCommand
 {
   @Override
   public void exec(CommandContext context, Object[] args)
   {
-    String fmt = args[0].toString();
+    Template template = new Template(args[0].toString(), args.length - 1);
 
-    String s = new String(fmt);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < template.Args.length; i++)
+    {
+      sb.append(template.Literals[i]).append(args[template.Args[i] + 1]);
+    }
+    sb.append(template.Literals[template.Args.length]);
+
+    context.getOutputSink().writeLine(sb);
+  }
+
+  @Override
+  public Action compile(ActionCompiler compiler, Object[] params)
+  {
+    if (params.length == 0) return null;
+
+    ValueRef fmtRef = compiler.compileValue(params[0]);
+    if (!fmtRef.isConstant()) return null;
 
-    for (int i = 1; i < args.length; i++)
+    final Template template = new Template(params[0].toString(), params.length - 1);
+    final ValueRef[] values = compiler.compileValues(params, 1);
+    // reused by every firing, which OutputSink.writeLine() allows
+    final StringBuilder sb = new StringBuilder();
+
+    return new Action()
     {
-      String val = args[i].toString();
-      s = s.replace(String.format("{%d}", i-1), val);
+      @Override
+      public void exec(CommandContext context)
+      {
+        sb.setLength(0);
+        for (int i = 0; i < template.Args.length; i++)
+        {
+          sb.append(template.Literals[i]).append(values[template.Args[i]].get(context));
+        }
+        sb.append(template.Literals[template.Args.length]);
+
+        context.getOutputSink().writeLine(sb);
+      }
+    };
+  }
+
+  // a format string split on its {i} placeholders: Literals[0] Args[0] Literals[1] ... Literals[n]
+  static class Template
+  {
+    final String[] Literals;
+    final int[] Args;
+
+    Template(String fmt, int argCount)
+    {
+      List<String> literals = new ArrayList<String>();
+      List<Integer> args = new ArrayList<Integer>();
+
+      StringBuilder literal = new StringBuilder();
+      int i = 0;
+      while (i < fmt.length())
+      {
+        char c = fmt.charAt(i);
+        int end = (c == '{') ? fmt.indexOf('}', i) : -1;
+        if (end > i + 1)
+        {
+          int idx = parseIndex(fmt, i + 1, end);
+          if (idx >= 0 && idx < argCount)
+          {
+            literals.add(literal.toString());
+            args.add(idx);
+            literal.setLength(0);
+            i = end + 1;
+            continue;
+          }
+        }
+        literal.append(c);
+        i++;
+      }
+      literals.add(literal.toString());
+
+      Literals = literals.toArray(new String[literals.size()]);
+      Args = new int[args.size()];
+      for (int j = 0; j < Args.length; j++)
+      {
+        Args[j] = args.get(j);
+      }
     }
 
-    System.out.println(s);
+    private static int parseIndex(String fmt, int start, int end)
+    {
+      int idx = 0;
+      for (int i = start; i < end; i++)
+      {
+        char c = fmt.charAt(i);
+        if (c < '0' || c > '9') return -1;
+        idx = idx * 10 + (c - '0');
+      }
+      return idx;
+    }
   }
 }
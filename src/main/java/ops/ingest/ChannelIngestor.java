@@ -0,0 +1,292 @@
+package ops.ingest;
+
+
+import ops.MemoryElement;
+import ops.WorkingMemory;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Reads records from tailed files and loopback TCP connections on a single thread,
+ * decoding each read straight into a batch of MemoryElements that is handed to
+ * WorkingMemory.makeAll in one call.
+ */
+public class ChannelIngestor implements Closeable
+{
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  public static final long DEFAULT_POLL_INTERVAL_MS = 10;
+
+  private final WorkingMemory _wm;
+  private final RecordDecoder _decoder;
+  private final int _bufferSize;
+  private final long _pollIntervalMs;
+  private final Selector _selector;
+
+  private final List<TailedFile> _tailed = new CopyOnWriteArrayList<TailedFile>();
+  private final ConcurrentLinkedQueue<ServerSocketChannel> _pendingServers = new ConcurrentLinkedQueue<ServerSocketChannel>();
+  private final List<MemoryElement> _batch = new ArrayList<MemoryElement>();
+
+  private volatile boolean _closed = false;
+  private volatile long _recordCount = 0;
+  private Thread _thread;
+
+  public ChannelIngestor(WorkingMemory wm, RecordDecoder decoder)
+      throws IOException
+  {
+    this(wm, decoder, DEFAULT_BUFFER_SIZE, DEFAULT_POLL_INTERVAL_MS);
+  }
+
+  public ChannelIngestor(WorkingMemory wm, RecordDecoder decoder, int bufferSize, long pollIntervalMs)
+      throws IOException
+  {
+    _wm = wm;
+    _decoder = decoder;
+    _bufferSize = bufferSize;
+    _pollIntervalMs = pollIntervalMs;
+    _selector = Selector.open();
+  }
+
+  public void tail(File file, boolean fromStart)
+      throws IOException
+  {
+    FileChannel channel = new FileInputStream(file).getChannel();
+    TailedFile tailed = new TailedFile(channel, ByteBuffer.allocate(_bufferSize));
+    if (!fromStart)
+    {
+      tailed.Position = channel.size();
+    }
+    _tailed.add(tailed);
+    _selector.wakeup();
+  }
+
+  // listens on the loopback interface, pass 0 for an ephemeral port; returns the bound port
+  public int listen(int port)
+      throws IOException
+  {
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.configureBlocking(false);
+    server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+    _pendingServers.add(server);
+    _selector.wakeup();
+    return server.socket().getLocalPort();
+  }
+
+  public synchronized void start()
+  {
+    if (_thread != null) return;
+
+    _thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        ingestLoop();
+      }
+    }, "ops-ingest");
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  public long getRecordCount()
+  {
+    return _recordCount;
+  }
+
+  @Override
+  public void close()
+      throws IOException
+  {
+    _closed = true;
+    _selector.wakeup();
+
+    if (_thread != null)
+    {
+      try
+      {
+        _thread.join();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    for (SelectionKey key : _selector.keys())
+    {
+      key.channel().close();
+    }
+    _selector.close();
+
+    for (TailedFile tailed : _tailed)
+    {
+      tailed.Channel.close();
+    }
+  }
+
+  private void ingestLoop()
+  {
+    while (!_closed)
+    {
+      try
+      {
+        registerPending();
+
+        _selector.select(_tailed.isEmpty() ? 0 : _pollIntervalMs);
+
+        Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+        while (it.hasNext())
+        {
+          SelectionKey key = it.next();
+          it.remove();
+
+          if (!key.isValid()) continue;
+
+          if (key.isAcceptable())
+          {
+            accept((ServerSocketChannel) key.channel());
+          }
+          else if (key.isReadable())
+          {
+            read(key);
+          }
+        }
+
+        for (TailedFile tailed : _tailed)
+        {
+          poll(tailed);
+        }
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void registerPending()
+      throws IOException
+  {
+    ServerSocketChannel server;
+    while ((server = _pendingServers.poll()) != null)
+    {
+      server.register(_selector, SelectionKey.OP_ACCEPT);
+    }
+  }
+
+  private void accept(ServerSocketChannel server)
+      throws IOException
+  {
+    SocketChannel channel = server.accept();
+    if (channel == null) return;
+    channel.configureBlocking(false);
+    channel.register(_selector, SelectionKey.OP_READ, ByteBuffer.allocate(_bufferSize));
+  }
+
+  private void read(SelectionKey key)
+  {
+    SocketChannel channel = (SocketChannel) key.channel();
+    ByteBuffer buffer = (ByteBuffer) key.attachment();
+
+    try
+    {
+      int n = channel.read(buffer);
+
+      if (n < 0)
+      {
+        buffer.flip();
+        _decoder.decodeLast(buffer, _batch);
+        publish();
+        key.cancel();
+        channel.close();
+        return;
+      }
+
+      key.attach(decode(buffer));
+    }
+    catch (IOException e)
+    {
+      key.cancel();
+      try
+      {
+        channel.close();
+      }
+      catch (IOException ignored)
+      {
+      }
+    }
+  }
+
+  private void poll(TailedFile tailed)
+      throws IOException
+  {
+    long size = tailed.Channel.size();
+    if (size < tailed.Position)
+    {
+      // truncated or rotated in place, start over
+      tailed.Position = 0;
+      tailed.Buffer.clear();
+    }
+
+    while (tailed.Position < size)
+    {
+      int n = tailed.Channel.read(tailed.Buffer, tailed.Position);
+      if (n <= 0) break;
+      tailed.Position += n;
+      tailed.Buffer = decode(tailed.Buffer);
+    }
+  }
+
+  private ByteBuffer decode(ByteBuffer buffer)
+  {
+    buffer.flip();
+    _decoder.decode(buffer, _batch);
+    publish();
+
+    if (buffer.position() == 0 && buffer.limit() == buffer.capacity())
+    {
+      // a single record is larger than the buffer
+      ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+      larger.put(buffer);
+      return larger;
+    }
+
+    buffer.compact();
+    return buffer;
+  }
+
+  private void publish()
+  {
+    if (_batch.isEmpty()) return;
+    _recordCount += _wm.makeAll(_batch);
+    _batch.clear();
+  }
+
+  private static class TailedFile
+  {
+    FileChannel Channel;
+    ByteBuffer Buffer;
+    long Position;
+
+    TailedFile(FileChannel channel, ByteBuffer buffer)
+    {
+      Channel = channel;
+      Buffer = buffer;
+    }
+  }
+}
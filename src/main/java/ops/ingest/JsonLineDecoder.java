@@ -0,0 +1,261 @@
+package ops.ingest;
+
+
+import ops.MemoryElement;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Decodes newline-delimited records in the same compact form as a make statement:
+ *
+ *   ["sphrase", "actor", "Brian", "verb", "share", "count", 3]
+ *
+ * Values may be strings, numbers, true, false or null.
+ */
+public class JsonLineDecoder implements RecordDecoder
+{
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private byte[] _line = new byte[1024];
+  private int _pos;
+  private int _end;
+  private final StringBuilder _sb = new StringBuilder();
+
+  @Override
+  public void decode(ByteBuffer in, List<MemoryElement> out)
+  {
+    int limit = in.limit();
+
+    for (int i = in.position(); i < limit; i++)
+    {
+      if (in.get(i) != '\n') continue;
+
+      decodeLine(in, i, out);
+      in.position(i + 1);
+    }
+  }
+
+  @Override
+  public void decodeLast(ByteBuffer in, List<MemoryElement> out)
+  {
+    decode(in, out);
+    if (in.hasRemaining())
+    {
+      decodeLine(in, in.limit(), out);
+      in.position(in.limit());
+    }
+  }
+
+  private void decodeLine(ByteBuffer in, int end, List<MemoryElement> out)
+  {
+    int len = end - in.position();
+    if (len > _line.length)
+    {
+      _line = new byte[Math.max(len, _line.length * 2)];
+    }
+    in.get(_line, 0, len);
+
+    _pos = 0;
+    _end = len;
+
+    try
+    {
+      MemoryElement element = parseRecord();
+      if (element != null)
+      {
+        out.add(element);
+      }
+    }
+    catch (IllegalArgumentException e)
+    {
+      System.err.println("malformed record: " + new String(_line, 0, len, UTF8) + " (" + e.getMessage() + ")");
+    }
+  }
+
+  private MemoryElement parseRecord()
+  {
+    skipWhitespace();
+    if (_pos == _end) return null;
+
+    expect('[');
+
+    skipWhitespace();
+    Object type = parseValue();
+    if (!(type instanceof String))
+    {
+      throw new IllegalArgumentException("record type must be a string");
+    }
+
+    Map<String, Object> values = new HashMap<String, Object>();
+
+    skipWhitespace();
+    while (peek() == ',')
+    {
+      _pos++;
+      skipWhitespace();
+      Object key = parseValue();
+      if (!(key instanceof String))
+      {
+        throw new IllegalArgumentException("attribute names must be strings");
+      }
+      skipWhitespace();
+      expect(',');
+      skipWhitespace();
+      values.put((String) key, parseValue());
+      skipWhitespace();
+    }
+
+    expect(']');
+
+    return new MemoryElement((String) type, values);
+  }
+
+  private Object parseValue()
+  {
+    byte b = peek();
+
+    if (b == '"') return parseString();
+    if (b == '-' || (b >= '0' && b <= '9')) return parseNumber();
+    if (matchLiteral("true")) return Boolean.TRUE;
+    if (matchLiteral("false")) return Boolean.FALSE;
+    if (matchLiteral("null")) return null;
+
+    throw new IllegalArgumentException("unexpected character at " + _pos);
+  }
+
+  private String parseString()
+  {
+    expect('"');
+
+    int start = _pos;
+    while (_pos < _end && _line[_pos] != '"' && _line[_pos] != '\\')
+    {
+      _pos++;
+    }
+
+    if (peek() == '"')
+    {
+      _pos++;
+      return new String(_line, start, _pos - start - 1, UTF8);
+    }
+
+    _sb.setLength(0);
+    _sb.append(new String(_line, start, _pos - start, UTF8));
+
+    while (true)
+    {
+      byte b = next();
+      if (b == '"') break;
+
+      if (b == '\\')
+      {
+        byte esc = next();
+        switch (esc)
+        {
+          case 'b': _sb.append('\b'); break;
+          case 'f': _sb.append('\f'); break;
+          case 'n': _sb.append('\n'); break;
+          case 'r': _sb.append('\r'); break;
+          case 't': _sb.append('\t'); break;
+          case 'u':
+            if (_pos + 4 > _end) throw new IllegalArgumentException("truncated escape");
+            _sb.append((char) Integer.parseInt(new String(_line, _pos, 4, UTF8), 16));
+            _pos += 4;
+            break;
+          default: _sb.append((char) esc); break;
+        }
+        continue;
+      }
+
+      start = _pos - 1;
+      while (_pos < _end && _line[_pos] != '"' && _line[_pos] != '\\')
+      {
+        _pos++;
+      }
+      _sb.append(new String(_line, start, _pos - start, UTF8));
+    }
+
+    return _sb.toString();
+  }
+
+  private Object parseNumber()
+  {
+    int start = _pos;
+    boolean integral = true;
+
+    while (_pos < _end)
+    {
+      byte b = _line[_pos];
+      if (b == '.' || b == 'e' || b == 'E')
+      {
+        integral = false;
+      }
+      else if (!(b == '-' || b == '+' || (b >= '0' && b <= '9')))
+      {
+        break;
+      }
+      _pos++;
+    }
+
+    String num = new String(_line, start, _pos - start, UTF8);
+
+    try
+    {
+      if (!integral) return Double.valueOf(num);
+
+      long val = Long.parseLong(num);
+      if (val >= Integer.MIN_VALUE && val <= Integer.MAX_VALUE)
+      {
+        return (int) val;
+      }
+      return val;
+    }
+    catch (NumberFormatException e)
+    {
+      throw new IllegalArgumentException("bad number: " + num);
+    }
+  }
+
+  private boolean matchLiteral(String literal)
+  {
+    int len = literal.length();
+    if (_pos + len > _end) return false;
+    for (int i = 0; i < len; i++)
+    {
+      if (_line[_pos + i] != literal.charAt(i)) return false;
+    }
+    _pos += len;
+    return true;
+  }
+
+  private void skipWhitespace()
+  {
+    while (_pos < _end && (_line[_pos] == ' ' || _line[_pos] == '\t' || _line[_pos] == '\r'))
+    {
+      _pos++;
+    }
+  }
+
+  private byte peek()
+  {
+    return _pos < _end ? _line[_pos] : 0;
+  }
+
+  private byte next()
+  {
+    if (_pos >= _end) throw new IllegalArgumentException("unexpected end of record");
+    return _line[_pos++];
+  }
+
+  private void expect(char c)
+  {
+    if (next() != c)
+    {
+      throw new IllegalArgumentException("expected " + c + " at " + (_pos - 1));
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package ops.ingest;
+
+
+import ops.MemoryElement;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+public interface RecordDecoder
+{
+  /**
+   * Decode every complete record in the buffer into out, leaving the buffer
+   * positioned at the start of the first incomplete record.
+   */
+  void decode(ByteBuffer in, List<MemoryElement> out);
+
+  /**
+   * Decode whatever is left in the buffer once its channel has reached end of stream.
+   */
+  void decodeLast(ByteBuffer in, List<MemoryElement> out);
+}
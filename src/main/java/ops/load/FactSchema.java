@@ -0,0 +1,134 @@
+package ops.load;
+
+
+import java.util.Iterator;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+/**
+ * Generates facts of one type for a load run, from a spec such as
+ *
+ *   {"type": "order", "weight": 3, "values": {"region": ["eu", "us"], "amount": {"min": 1, "max": 500}, "id": "$seq"}}
+ *
+ * where an array picks one of its elements, min/max picks a number in the range (a double if
+ * either bound is one), "$seq" is the producer's sequence number and anything else is a constant.
+ */
+public class FactSchema
+{
+  private static final int CONSTANT = 0;
+  private static final int CHOICE = 1;
+  private static final int INT_RANGE = 2;
+  private static final int DOUBLE_RANGE = 3;
+  private static final int SEQUENCE = 4;
+
+  final String Type;
+  final int Weight;
+  final String[] Keys;
+  private final int[] _kinds;
+  private final Object[] _specs;
+
+  public FactSchema(JSONObject spec)
+      throws JSONException
+  {
+    Type = spec.getString("type");
+    Weight = spec.optInt("weight", 1);
+    if (Weight < 1)
+    {
+      throw new IllegalArgumentException("weight of schema " + Type + " must be positive");
+    }
+
+    JSONObject values = spec.optJSONObject("values");
+    int count = values != null ? values.length() : 0;
+    Keys = new String[count];
+    _kinds = new int[count];
+    _specs = new Object[count];
+
+    int i = 0;
+    Iterator<?> keys = values != null ? values.keys() : null;
+    while (keys != null && keys.hasNext())
+    {
+      String key = (String) keys.next();
+      Object value = values.get(key);
+      Keys[i] = key;
+      _specs[i] = value;
+
+      if (value instanceof JSONArray)
+      {
+        _kinds[i] = CHOICE;
+      }
+      else if (value instanceof JSONObject && ((JSONObject) value).has("min"))
+      {
+        JSONObject range = (JSONObject) value;
+        if (isInteger(range.get("min")) && isInteger(range.get("max")))
+        {
+          _kinds[i] = INT_RANGE;
+          _specs[i] = new long[] { range.getLong("min"), range.getLong("max") };
+        }
+        else
+        {
+          _kinds[i] = DOUBLE_RANGE;
+          _specs[i] = new double[] { range.getDouble("min"), range.getDouble("max") };
+        }
+      }
+      else if ("$seq".equals(value))
+      {
+        _kinds[i] = SEQUENCE;
+      }
+      else
+      {
+        _kinds[i] = CONSTANT;
+      }
+      i++;
+    }
+  }
+
+  private static boolean isInteger(Object value)
+  {
+    return value instanceof Integer || value instanceof Long;
+  }
+
+  public String getType()
+  {
+    return Type;
+  }
+
+  // the values for Keys, in order, followed by extra empty slots
+  Object[] generate(Random random, long seq, int extra)
+      throws JSONException
+  {
+    Object[] values = new Object[Keys.length + extra];
+    for (int i = 0; i < Keys.length; i++)
+    {
+      switch (_kinds[i])
+      {
+        case CONSTANT:
+          values[i] = _specs[i];
+          break;
+        case CHOICE:
+          JSONArray choices = (JSONArray) _specs[i];
+          values[i] = choices.get(random.nextInt(choices.length()));
+          break;
+        case INT_RANGE:
+        {
+          long[] range = (long[]) _specs[i];
+          long value = range[0] + (long) (random.nextDouble() * (range[1] - range[0] + 1));
+          values[i] = value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? (Object) (int) value : (Object) value;
+          break;
+        }
+        case DOUBLE_RANGE:
+        {
+          double[] range = (double[]) _specs[i];
+          values[i] = range[0] + random.nextDouble() * (range[1] - range[0]);
+          break;
+        }
+        case SEQUENCE:
+          values[i] = seq;
+          break;
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,123 @@
+package ops.load;
+
+
+import java.util.Arrays;
+
+
+/**
+ * A log-linear histogram of nanosecond values in the style of HdrHistogram: each power of two is
+ * split into 128 equal sub-buckets, so a recorded value is reported within 1% of what it was,
+ * over the full range of a long, in a fixed 60KB of counts.
+ *
+ * Recording is not synchronized; a histogram has one writer and is read once that writer is done.
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BITS = 8;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int HALF_COUNT = SUB_COUNT / 2;
+
+  private final long[] _counts = new long[SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT];
+  private long _count;
+  private long _min = Long.MAX_VALUE;
+  private long _max;
+  private double _sum;
+
+  public void record(long value)
+  {
+    if (value < 0) value = 0;
+
+    _counts[index(value)]++;
+    _count++;
+    _sum += value;
+    if (value < _min) _min = value;
+    if (value > _max) _max = value;
+  }
+
+  public void add(LatencyHistogram other)
+  {
+    for (int i = 0; i < _counts.length; i++)
+    {
+      _counts[i] += other._counts[i];
+    }
+    _count += other._count;
+    _sum += other._sum;
+    _min = Math.min(_min, other._min);
+    _max = Math.max(_max, other._max);
+  }
+
+  public void reset()
+  {
+    Arrays.fill(_counts, 0);
+    _count = 0;
+    _sum = 0;
+    _min = Long.MAX_VALUE;
+    _max = 0;
+  }
+
+  public long getCount()
+  {
+    return _count;
+  }
+
+  public long getMin()
+  {
+    return _count == 0 ? 0 : _min;
+  }
+
+  public long getMax()
+  {
+    return _max;
+  }
+
+  public double getMean()
+  {
+    return _count == 0 ? 0 : _sum / _count;
+  }
+
+  // the smallest value at or below which the given percentage of recorded values fall, to within a bucket
+  public long getValueAtPercentile(double percentile)
+  {
+    if (_count == 0) return 0;
+
+    long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * _count);
+    rank = Math.max(rank, 1);
+
+    long seen = 0;
+    for (int i = 0; i < _counts.length; i++)
+    {
+      seen += _counts[i];
+      if (seen >= rank)
+      {
+        return Math.min(highestValue(i), _max);
+      }
+    }
+    return _max;
+  }
+
+  // values below SUB_COUNT have a bucket each; above, each power of two has HALF_COUNT buckets
+  static int index(long value)
+  {
+    if (value < SUB_COUNT) return (int) value;
+
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+    return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+  }
+
+  static long highestValue(int index)
+  {
+    if (index < SUB_COUNT) return index;
+
+    int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+    long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("count %d  min %.1fus  p50 %.1fus  p99 %.1fus  p99.9 %.1fus  max %.1fus  mean %.1fus",
+      getCount(), getMin() / 1e3, getValueAtPercentile(50) / 1e3, getValueAtPercentile(99) / 1e3,
+      getValueAtPercentile(99.9) / 1e3, getMax() / 1e3, getMean() / 1e3);
+  }
+}
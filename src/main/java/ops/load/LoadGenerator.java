@@ -0,0 +1,338 @@
+package ops.load;
+
+
+import ops.EngineListener;
+import ops.MemoryElement;
+import ops.OPS;
+import ops.OpsFactory;
+import ops.Rule;
+import ops.WorkingMemory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+
+/**
+ * Drives a session whose working memory waits for items with facts made by producer threads, and
+ * measures the time from a fact being made to the first production that matched it firing.
+ *
+ * Each fact carries its send time and a producer/sequence id in two extra attributes.  With a
+ * rate set, producers follow a fixed schedule and the send time is the scheduled one, so a stall
+ * counts against every fact that should have been made during it rather than only the first.
+ * Latencies of each producer's first warmup facts are not recorded.
+ *
+ *   usage: {@code LoadGenerator <rules.json> <schemas.json> [producers] [facts per producer] [rate per producer] [warmup per producer]}
+ */
+public class LoadGenerator
+{
+  public static final String SENT = "load_sent";
+  public static final String ID = "load_id";
+
+  private static final String STOP = "load_stop";
+  private static final int PRODUCER_SHIFT = 40;
+  private static final long SPIN_NANOS = 50000;
+
+  public static class Result
+  {
+    public long Facts;
+    public long Reacted;
+    public long Cycles;
+    // from the first fact being made to the last one being made, and to the last reaction
+    public long ProduceNanos;
+    public long ElapsedNanos;
+    public LatencyHistogram Latency;
+
+    public double getThroughput()
+    {
+      return ElapsedNanos == 0 ? 0 : Reacted / (ElapsedNanos / 1e9);
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%d facts made at %.0f/s, %d reacted to at %.0f/s in %d cycles%nlatency %s",
+        Facts, ProduceNanos == 0 ? 0 : Facts / (ProduceNanos / 1e9), Reacted, getThroughput(), Cycles, Latency);
+    }
+  }
+
+  private final OPS _ops;
+  private final List<FactSchema> _schemas;
+  private int _producers = 1;
+  private int _factsPerProducer = 100000;
+  private int _warmupPerProducer = 10000;
+  private double _ratePerProducer = 0;
+  private long _drainTimeoutMillis = 10000;
+  private Set<String> _reactingRules;
+
+  public LoadGenerator(OPS ops, List<FactSchema> schemas)
+  {
+    if (!ops.getWorkingMemory().isWaitForItems())
+    {
+      throw new IllegalArgumentException("the session's working memory must wait for items");
+    }
+    if (schemas.isEmpty())
+    {
+      throw new IllegalArgumentException("no fact schemas");
+    }
+    _ops = ops;
+    _schemas = new ArrayList<FactSchema>(schemas);
+  }
+
+  public void setProducers(int producers)
+  {
+    _producers = producers;
+  }
+
+  public void setFactsPerProducer(int factsPerProducer)
+  {
+    _factsPerProducer = factsPerProducer;
+  }
+
+  public void setWarmupPerProducer(int warmupPerProducer)
+  {
+    _warmupPerProducer = warmupPerProducer;
+  }
+
+  // facts per second from each producer, 0 to make them as fast as possible
+  public void setRatePerProducer(double ratePerProducer)
+  {
+    _ratePerProducer = ratePerProducer;
+  }
+
+  // how long to wait for reactions once the producers are done, for facts that no rule matches
+  public void setDrainTimeout(long drainTimeoutMillis)
+  {
+    _drainTimeoutMillis = drainTimeoutMillis;
+  }
+
+  // only firings of these rules count as reactions; by default any rule does
+  public void setReactingRules(String... rules)
+  {
+    _reactingRules = rules.length > 0 ? new HashSet<String>(Arrays.asList(rules)) : null;
+  }
+
+  public Result run()
+      throws Exception
+  {
+    final WorkingMemory wm = _ops.getWorkingMemory();
+    if (wm.getTemplate(STOP) == null)
+    {
+      wm.literalize(new MemoryElement(STOP));
+    }
+
+    Reactions reactions = new Reactions();
+    _ops.addListener(reactions);
+
+    Thread engine = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        _ops.run();
+      }
+    }, "load-engine");
+    engine.start();
+
+    final CountDownLatch go = new CountDownLatch(1);
+    final long[] start = new long[1];
+    Thread[] producers = new Thread[_producers];
+    for (int i = 0; i < producers.length; i++)
+    {
+      final int producer = i;
+      producers[i] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            go.await();
+            produce(wm, producer, start[0]);
+          }
+          catch (Exception e)
+          {
+            e.printStackTrace();
+          }
+        }
+      }, "load-producer-" + i);
+      producers[i].start();
+    }
+
+    start[0] = System.nanoTime();
+    go.countDown();
+    for (Thread producer : producers)
+    {
+      producer.join();
+    }
+    long produced = System.nanoTime();
+
+    long total = (long) _producers * _factsPerProducer;
+    long deadline = produced + _drainTimeoutMillis * 1000000L;
+    while (reactions.Reacted < total && System.nanoTime() < deadline)
+    {
+      Thread.sleep(1);
+    }
+
+    _ops.halt();
+    wm.make(new MemoryElement(STOP));
+    engine.join();
+    _ops.removeListener(reactions);
+
+    Result result = new Result();
+    result.Facts = total;
+    result.Reacted = reactions.Reacted;
+    result.Cycles = reactions.Cycles;
+    result.ProduceNanos = produced - start[0];
+    result.ElapsedNanos = Math.max(reactions.Last, produced) - start[0];
+    result.Latency = reactions.Latency;
+    return result;
+  }
+
+  private void produce(WorkingMemory wm, int producer, long start)
+      throws Exception
+  {
+    Random random = new Random(producer * 7919L + 1);
+    long interval = _ratePerProducer > 0 ? (long) (1e9 / _ratePerProducer) : 0;
+
+    int totalWeight = 0;
+    for (FactSchema schema : _schemas)
+    {
+      totalWeight += schema.Weight;
+    }
+
+    String[][] keys = new String[_schemas.size()][];
+    for (int i = 0; i < keys.length; i++)
+    {
+      String[] schemaKeys = _schemas.get(i).Keys;
+      keys[i] = Arrays.copyOf(schemaKeys, schemaKeys.length + 2);
+      keys[i][schemaKeys.length] = SENT;
+      keys[i][schemaKeys.length + 1] = ID;
+    }
+
+    for (int seq = 0; seq < _factsPerProducer; seq++)
+    {
+      int pick = random.nextInt(totalWeight);
+      int idx = 0;
+      while (pick >= _schemas.get(idx).Weight)
+      {
+        pick -= _schemas.get(idx).Weight;
+        idx++;
+      }
+      FactSchema schema = _schemas.get(idx);
+      Object[] values = schema.generate(random, seq, 2);
+
+      long sent;
+      if (interval > 0)
+      {
+        sent = start + seq * interval;
+        long wait;
+        while ((wait = sent - System.nanoTime()) > 0)
+        {
+          if (wait > SPIN_NANOS)
+          {
+            LockSupport.parkNanos(wait - SPIN_NANOS);
+          }
+        }
+      }
+      else
+      {
+        sent = System.nanoTime();
+      }
+
+      values[values.length - 2] = sent;
+      values[values.length - 1] = ((long) producer << PRODUCER_SHIFT) | seq;
+      wm.make(schema.Type, keys[idx], values);
+    }
+  }
+
+  // runs on the engine thread, except for the counters read once the engine is done
+  private class Reactions extends EngineListener
+  {
+    final BitSet[] Seen = new BitSet[_producers];
+    final LatencyHistogram Latency = new LatencyHistogram();
+    volatile long Reacted;
+    long Cycles;
+    long Last;
+
+    Reactions()
+    {
+      for (int i = 0; i < Seen.length; i++)
+      {
+        Seen[i] = new BitSet(_factsPerProducer);
+      }
+    }
+
+    @Override
+    public void fired(Rule rule, MemoryElement[] elements)
+    {
+      Cycles++;
+      if (_reactingRules != null && !_reactingRules.contains(rule.getName())) return;
+
+      long now = System.nanoTime();
+      for (MemoryElement element : elements)
+      {
+        Object id = element.Values.get(ID);
+        if (!(id instanceof Long)) continue;
+
+        int producer = (int) ((Long) id >>> PRODUCER_SHIFT);
+        int seq = (int) ((Long) id & ((1L << PRODUCER_SHIFT) - 1));
+        if (producer >= Seen.length || Seen[producer].get(seq)) continue;
+
+        Seen[producer].set(seq);
+        if (seq >= _warmupPerProducer)
+        {
+          Latency.record(now - (Long) element.Values.get(SENT));
+        }
+        Last = now;
+        Reacted++;
+      }
+    }
+  }
+
+  public static void main(String[] args)
+      throws Exception
+  {
+    if (args.length < 2)
+    {
+      System.out.println("usage: LoadGenerator <rules.json> <schemas.json> [producers] [facts per producer] [rate per producer] [warmup per producer]");
+      return;
+    }
+
+    OPS ops = new OPS(new WorkingMemory(true));
+    OpsFactory.load(OpsFactory.getDefaultRegistry(), new File(args[0]), ops);
+
+    List<FactSchema> schemas = new ArrayList<FactSchema>();
+    String spec = OpsFactory.readFile(args[1]).trim();
+    if (spec.startsWith("["))
+    {
+      JSONArray array = new JSONArray(spec);
+      for (int i = 0; i < array.length(); i++)
+      {
+        schemas.add(new FactSchema(array.getJSONObject(i)));
+      }
+    }
+    else
+    {
+      schemas.add(new FactSchema(new JSONObject(spec)));
+    }
+
+    LoadGenerator generator = new LoadGenerator(ops, schemas);
+    if (args.length > 2) generator.setProducers(Integer.parseInt(args[2]));
+    if (args.length > 3) generator.setFactsPerProducer(Integer.parseInt(args[3]));
+    if (args.length > 4) generator.setRatePerProducer(Double.parseDouble(args[4]));
+    if (args.length > 5) generator.setWarmupPerProducer(Integer.parseInt(args[5]));
+
+    Result result = generator.run();
+    ops.shutdown();
+    System.out.println(result);
+  }
+}
@@ -0,0 +1,64 @@
+package ops;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+
+/**
+ * For tests that load a rulebase written as JSON and check it by the lines its write actions
+ * produce.
+ */
+abstract class RulebaseTestCase extends TestCase
+{
+  private static class Recorder implements OutputSink
+  {
+    final List<String> Lines = new ArrayList<String>();
+
+    @Override
+    public void writeLine(CharSequence line)
+    {
+      Lines.add(line.toString());
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+
+  protected static OPS load(Map<String, Command> registry, CharSequence rules)
+      throws Exception
+  {
+    OPS ops = OpsFactory.create(registry, new JSONObject(rules.toString()));
+    ops.setOutputSink(new Recorder());
+    return ops;
+  }
+
+  // runs the session until nothing fires, returning the lines written meanwhile in sorted order
+  protected static List<String> run(OPS ops)
+  {
+    Recorder recorder = (Recorder) ops.getOutputSink();
+    recorder.Lines.clear();
+    ops.run();
+    List<String> lines = new ArrayList<String>(recorder.Lines);
+    Collections.sort(lines);
+    return lines;
+  }
+
+  protected static List<String> lines(String... lines)
+  {
+    List<String> list = new ArrayList<String>();
+    Collections.addAll(list, lines);
+    return list;
+  }
+}
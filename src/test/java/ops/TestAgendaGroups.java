@@ -0,0 +1,105 @@
+package ops;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+
+public class TestAgendaGroups extends TestCase
+{
+  private static final String RULES =
+    "{\"name\": \"phases\", \"ops\": [" +
+    "  [\"literalize\", \"goal\", \"type\"]," +
+    "  [\"literalize\", \"step\", \"n\"]," +
+    "  [\"p\", \"start\", [[\"goal\", \"type\", \"run\"]], [[\"focus\", \"validate\", \"report\"], [\"remove\", 0]]]," +
+    "  [\"p\", \"validate_step\", [[\"step\", \"n\", \"$n\"]], [[\"write\", \"validate {0}\", \"$n\"]], {\"group\": \"validate\"}]," +
+    "  [\"p\", \"report_done\", [[\"step\", \"n\", 2]], [[\"popfocus\"]], {\"group\": \"report\"}]," +
+    "  [\"p\", \"report_step\", [[\"step\", \"n\", \"$n\"]], [[\"write\", \"report {0}\", \"$n\"]], {\"group\": \"report\"}]," +
+    "  [\"p\", \"main_step\", [[\"step\", \"n\", \"$n\"]], [[\"write\", \"main {0}\", \"$n\"]]]," +
+    "  [\"make\", \"goal\", \"type\", \"run\"]," +
+    "  [\"make\", \"step\", \"n\", 1]" +
+    "]}";
+
+  private final List<String> _lines = new ArrayList<String>();
+
+  public void testFocusStack()
+      throws Exception
+  {
+    OPS ops = createOps();
+    ops.run();
+
+    // each group runs until it has nothing left to fire, then MAIN resumes
+    assertEquals(Arrays.asList("validate 1", "report 1", "main 1"), _lines);
+    assertEquals(Rule.MAIN, ops.getFocus());
+  }
+
+  public void testGroupsOutOfFocusAreNotMatched()
+      throws Exception
+  {
+    OPS ops = createOps();
+    ops.removeRule("start");
+    ops.getWorkingMemory().make(new MemoryElement("step", "n", 2));
+    ops.run();
+    assertEquals(Arrays.asList("main 1", "main 2"), _lines);
+
+    // report_done comes first in the group and pops it before report_step can fire
+    ops.focus("report");
+    assertEquals("report", ops.getFocus());
+    ops.run();
+    assertEquals(Arrays.asList("main 1", "main 2"), _lines);
+    assertEquals(Rule.MAIN, ops.getFocus());
+  }
+
+  public void testGroupSurvivesCompiledRulebase()
+      throws Exception
+  {
+    Map<String, Command> registry = OpsFactory.getDefaultRegistry();
+    OPS ops = OpsFactory.create(registry, new JSONObject(RULES));
+    File compiled = File.createTempFile("phases", ".opsb");
+    compiled.deleteOnExit();
+    RulebaseCodec.write(ops, registry, compiled);
+
+    OPS loaded = OpsFactory.create(registry, compiled);
+    setSink(loaded);
+    loaded.run();
+    assertEquals(Arrays.asList("validate 1", "report 1", "main 1"), _lines);
+  }
+
+  public void testFocusStackSurvivesSnapshot()
+      throws Exception
+  {
+    OPS ops = createOps();
+    ops.focus("validate", "report");
+
+    File file = File.createTempFile("ops", ".snapshot");
+    file.deleteOnExit();
+    Snapshot.write(ops, file);
+
+    OPS restored = createOps();
+    Snapshot.restore(restored, file);
+    assertEquals(Arrays.asList("validate", "report"), restored.getFocusStack());
+  }
+
+  private OPS createOps()
+      throws Exception
+  {
+    OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), new JSONObject(RULES));
+    setSink(ops);
+    return ops;
+  }
+
+  private void setSink(OPS ops)
+  {
+    ops.setOutputSink(new OutputSink()
+    {
+      public void writeLine(CharSequence line) { _lines.add(line.toString()); }
+      public void flush() {}
+      public void close() {}
+    });
+  }
+}
@@ -0,0 +1,275 @@
+package ops;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONObject;
+
+
+public class TestAggregates extends RulebaseTestCase
+{
+  private OPS createOps(Map<String, Command> registry, String payments)
+      throws Exception
+  {
+    StringBuilder rules = new StringBuilder();
+    rules.append("{\"name\": \"aggregates\", \"ops\": [");
+    rules.append("[\"literalize\", \"account\", \"id\", \"limit\", \"floor\"],");
+    rules.append("[\"literalize\", \"payment\", \"account\", \"amount\"],");
+    rules.append("[\"p\", \"over_limit\", [[\"account\", \"id\", \"$a\", \"limit\", \"$limit\", \"floor\", \"$floor\"],");
+    rules.append("  [\"aggregate\", \"payment\", \"account\", \"$a\"").append(payments).append(",");
+    rules.append("    {\"$total\": [\"sum\", \"amount\", {\">\": \"$limit\"}], \"$n\": \"count\", \"$max\": [\"max\", \"amount\"]}]],");
+    rules.append("  [[\"write\", \"over {0} {1} {2} {3}\", \"$a\", \"$total\", \"$n\", \"$max\"]]],");
+    rules.append("[\"p\", \"idle\", [[\"account\", \"id\", \"$a\"],");
+    rules.append("  [\"aggregate\", \"payment\", \"account\", \"$a\", {\"$n\": [\"count\", {\"<\": 1}]}]],");
+    rules.append("  [[\"write\", \"idle {0}\", \"$a\"]]],");
+    rules.append("[\"make\", \"account\", \"id\", \"a\", \"limit\", 100, \"floor\", 0],");
+    rules.append("[\"make\", \"account\", \"id\", \"b\", \"limit\", 50, \"floor\", 0],");
+    rules.append("[\"make\", \"account\", \"id\", \"c\", \"limit\", 50, \"floor\", 0],");
+    rules.append("[\"make\", \"payment\", \"account\", \"a\", \"amount\", 60],");
+    rules.append("[\"make\", \"payment\", \"account\", \"a\", \"amount\", 50],");
+    rules.append("[\"make\", \"payment\", \"account\", \"b\", \"amount\", 20]");
+    rules.append("]}");
+
+    return load(registry, rules);
+  }
+
+  private static MemoryElement payment(WorkingMemory wm, String account, Object amount)
+  {
+    for (MemoryElement element : wm.get("payment"))
+    {
+      if (element.Values.get("account").equals(account) && element.Values.get("amount").equals(amount)) return element;
+    }
+    throw new IllegalArgumentException(account + " " + amount);
+  }
+
+  private void checkUpdates(OPS ops)
+  {
+    WorkingMemory wm = ops.getWorkingMemory();
+    assertEquals(lines("idle c", "over a 110 2 60"), run(ops));
+
+    wm.make(new MemoryElement("payment", "account", "b", "amount", 40));
+    assertEquals(lines("over b 60 2 40"), run(ops));
+
+    // a changed total fires again, an unchanged one does not
+    wm.make(new MemoryElement("payment", "account", "a", "amount", 5.5));
+    assertEquals(lines("over a 115.5 3 60"), run(ops));
+    assertEquals(lines(), run(ops));
+
+    wm.remove(payment(wm, "a", 60));
+    assertEquals(lines(), run(ops));
+
+    wm.modify(payment(wm, "a", 50), new String[] { "amount" }, new Object[] { 200 });
+    assertEquals(lines("over a 205.5 2 200"), run(ops));
+
+    // back to no payments, so idle again
+    wm.remove(payment(wm, "a", 200));
+    wm.remove(payment(wm, "a", 5.5));
+    assertEquals(lines("idle a"), run(ops));
+  }
+
+  public void testGroupedAggregates()
+      throws Exception
+  {
+    OPS ops = createOps(OpsFactory.getDefaultRegistry(), "");
+    PreparedQuery.Condition payments = ops.getPreparedRules().get(0).Query.Conditions[1];
+    assertNotNull(payments.GroupSignature);
+    AggregateIndex index = ops.getWorkingMemory().getAggregateIndex(payments.GroupSignature);
+    assertNotNull(index);
+    assertEquals(2, index.size());
+    assertEquals("grouped", ops.explain("over_limit").getSteps().get(1).Index);
+
+    checkUpdates(ops);
+  }
+
+  public void testScannedAggregates()
+      throws Exception
+  {
+    // a variable operand keeps the condition from being grouped, so each match scans the payments
+    OPS ops = createOps(OpsFactory.getDefaultRegistry(), ", \"amount\", {\">=\": \"$floor\"}");
+    assertNull(ops.getPreparedRules().get(0).Query.Conditions[1].GroupSignature);
+
+    checkUpdates(ops);
+  }
+
+  public void testChangedGroupsAreRetired()
+      throws Exception
+  {
+    OPS ops = createOps(OpsFactory.getDefaultRegistry(), "");
+    WorkingMemory wm = ops.getWorkingMemory();
+    assertEquals(lines("idle c", "over a 110 2 60"), run(ops));
+    int fired = ops.getRefraction().size();
+
+    for (int i = 0; i < 10000; i++)
+    {
+      MemoryElement payment = wm.make(new MemoryElement("payment", "account", "c", "amount", 60));
+      assertEquals(lines("over c 60 1 60"), run(ops));
+      wm.remove(payment);
+      assertEquals(lines("idle c"), run(ops));
+    }
+    assertEquals(fired, ops.getRefraction().size());
+  }
+
+  public void testGroupValues()
+      throws Exception
+  {
+    JSONObject spec = new JSONObject("{\"$sum\": [\"sum\", \"v\"], \"$min\": [\"min\", \"v\"], \"$max\": [\"max\", \"v\"]}");
+    Map<String, Integer> varSlots = new HashMap<String, Integer>();
+    varSlots.put("$max", 0);
+    varSlots.put("$min", 1);
+    varSlots.put("$sum", 2);
+    Aggregate[] aggregates = Aggregate.compile(spec, varSlots);
+
+    AggregateIndex.Group group = new AggregateIndex.Group(aggregates);
+    MemoryElement three = new MemoryElement("t", "v", 3);
+    MemoryElement half = new MemoryElement("t", "v", 1.5);
+    MemoryElement seven = new MemoryElement("t", "v", 7L);
+    MemoryElement text = new MemoryElement("t", "v", "x");
+    group.add(three);
+    group.add(half);
+    group.add(seven);
+    group.add(text);
+    assertEquals(4, group.Count);
+    assertEquals(11.5, group.result("t").Values.get("$sum"));
+    assertEquals(1.5, group.result("t").Values.get("$min"));
+    assertEquals("x", group.result("t").Values.get("$max"));
+
+    group.remove(text);
+    group.remove(seven);
+    assertEquals(3, group.result("t").Values.get("$max"));
+    group.remove(half);
+    assertEquals(3, group.result("t").Values.get("$sum"));
+    assertEquals(3, group.result("t").Values.get("$min"));
+    group.remove(three);
+    assertEquals(0, group.result("t").Values.get("$sum"));
+    assertNull(group.result("t").Values.get("$min"));
+  }
+
+  public void testQueryView()
+      throws Exception
+  {
+    WorkingMemory wm = new WorkingMemory();
+    wm.literalize("payment", "account", "amount");
+    List<QueryElement> conditions = new ArrayList<QueryElement>();
+    conditions.add(QueryElement.aggregate("payment", new JSONObject("{\"$total\": [\"sum\", \"amount\"]}"), "account", "$a"));
+    wm.defineQuery(new Query("balance", conditions, "$a"));
+
+    wm.make(new MemoryElement("payment", "account", "a", "amount", 10));
+    wm.drainInMemoryQueue();
+
+    final List<Object> totals = new ArrayList<Object>();
+    QueryView view = wm.openView("balance", new QueryListener()
+    {
+      public void added(QueryView view, List<QueryResult> rows)
+      {
+        for (QueryResult row : rows) totals.add(row.get("$total"));
+      }
+
+      public void removed(QueryView view, List<QueryResult> rows)
+      {
+      }
+    }, "a");
+    assertEquals(10, view.getRows().iterator().next().get("$total"));
+
+    wm.make(new MemoryElement("payment", "account", "a", "amount", 15));
+    wm.make(new MemoryElement("payment", "account", "b", "amount", 99));
+    wm.drainInMemoryQueue();
+    assertEquals(Collections.<Object>singletonList(25), totals);
+    assertEquals(1, view.size());
+    view.close();
+  }
+
+  public void testQueryViewRematchesChangedGroupsOnly()
+      throws Exception
+  {
+    WorkingMemory wm = new WorkingMemory();
+    wm.literalize("account", "id");
+    wm.literalize("payment", "account", "amount");
+    List<QueryElement> conditions = new ArrayList<QueryElement>();
+    conditions.add(new QueryElement("account", "id", "$a"));
+    conditions.add(QueryElement.aggregate("payment", new JSONObject("{\"$total\": [\"sum\", \"amount\"]}"), "account", "$a"));
+    wm.defineQuery(new Query("balances", conditions));
+
+    wm.make(new MemoryElement("account", "id", "a"));
+    wm.make(new MemoryElement("account", "id", "b"));
+    wm.make(new MemoryElement("payment", "account", "a", "amount", 10));
+    wm.make(new MemoryElement("payment", "account", "b", "amount", 20));
+    wm.drainInMemoryQueue();
+
+    final List<String> deltas = new ArrayList<String>();
+    QueryView view = wm.openView("balances", new QueryListener()
+    {
+      public void added(QueryView view, List<QueryResult> rows)
+      {
+        for (QueryResult row : rows) deltas.add("+" + row.get("$a") + " " + row.get("$total"));
+      }
+
+      public void removed(QueryView view, List<QueryResult> rows)
+      {
+        for (QueryResult row : rows) deltas.add("-" + row.get("$a") + " " + row.get("$total"));
+      }
+    });
+    assertEquals(2, view.size());
+    QueryResult a = null;
+    for (QueryResult row : view.getRows())
+    {
+      if (row.get("$a").equals("a")) a = row;
+    }
+
+    // the row of account a is left alone
+    MemoryElement payment = wm.make(new MemoryElement("payment", "account", "b", "amount", 5));
+    wm.drainInMemoryQueue();
+    assertEquals(lines("-b 20", "+b 25"), deltas);
+    assertTrue(view.getRows().contains(a));
+
+    deltas.clear();
+    wm.modify(payment, new String[] { "account" }, new Object[] { "a" });
+    wm.drainInMemoryQueue();
+    assertEquals(lines("-b 25", "-a 10", "+b 20", "+a 15"), deltas);
+
+    deltas.clear();
+    wm.make(new MemoryElement("account", "id", "c"));
+    wm.make(new MemoryElement("payment", "account", "c", "amount", 1));
+    wm.make(new MemoryElement("payment", "account", "z", "amount", 1));
+    wm.drainInMemoryQueue();
+    assertEquals(lines("+c 0", "-c 0", "+c 1"), deltas);
+    assertEquals(3, view.size());
+    view.close();
+  }
+
+  public void testAggregateVariablesMustBeNew()
+      throws Exception
+  {
+    List<QueryElement> conditions = new ArrayList<QueryElement>();
+    conditions.add(new QueryElement("account", "id", "$a", "limit", "$n"));
+    conditions.add(QueryElement.aggregate("payment", new JSONObject("{\"$n\": \"count\"}"), "account", "$a"));
+    try
+    {
+      new Query("bad", conditions);
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertTrue(e.getMessage().contains("$n"));
+    }
+  }
+
+  public void testCompiledRulebase()
+      throws Exception
+  {
+    Map<String, Command> registry = OpsFactory.getDefaultRegistry();
+    OPS ops = createOps(registry, "");
+
+    File compiled = File.createTempFile("ops", ".opsb");
+    compiled.deleteOnExit();
+    RulebaseCodec.write(ops, registry, compiled);
+
+    OPS loaded = OpsFactory.create(registry, compiled);
+    loaded.setOutputSink(ops.getOutputSink());
+    assertNotNull(loaded.getRules().get(0).Query.get(1).Aggregates);
+    checkUpdates(loaded);
+  }
+}
@@ -2,6 +2,7 @@ package ops;
 
 
 import ops.commands.halt;
+import ops.commands.make;
 import ops.commands.modify;
 import ops.commands.remove;
 import ops.commands.write;
@@ -68,6 +69,75 @@ public class TestCommands extends TestCase
     testContext.OPS.run();
   }
 
+  public void testWriteToOutputSink()
+  {
+    TestContext testContext = createContext();
+    final List<String> lines = new ArrayList<String>();
+    testContext.OPS.setOutputSink(new OutputSink()
+    {
+      public void writeLine(CharSequence line) { lines.add(line.toString()); }
+      public void flush() {}
+      public void close() {}
+    });
+    testContext.OPS.getWorkingMemory().literalize(new MemoryElement("goal", "type", null, "status", null));
+    testContext.OPS.getWorkingMemory().literalize(new MemoryElement("monkey", "action", null));
+    testContext.OPS.getWorkingMemory().make(new MemoryElement("goal", "type", "remove"));
+    testContext.OPS.getWorkingMemory().make(new MemoryElement("monkey", "action", "remove"));
+    testContext.OPS.addRule(createGoalRuleWithTwoVar());
+    testContext.OPS.run();
+
+    assertEquals(1, lines.size());
+    assertEquals("the goal is remove and the monkey action is also remove", lines.get(0));
+  }
+
+  public void testRefraction()
+  {
+    TestContext testContext = createContext();
+    final List<String> lines = new ArrayList<String>();
+    testContext.OPS.setOutputSink(new OutputSink()
+    {
+      public void writeLine(CharSequence line) { lines.add(line.toString()); }
+      public void flush() {}
+      public void close() {}
+    });
+    WorkingMemory wm = testContext.OPS.getWorkingMemory();
+    wm.literalize(new MemoryElement("goal", "type", null, "status", null));
+    wm.make(new MemoryElement("goal", "type", "a"));
+    wm.make(new MemoryElement("goal", "type", "b"));
+
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("goal", "type", "$type"));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new write(), "goal {0}", "$type"));
+    testContext.OPS.addRule(new Rule("goal_write", query, productions));
+
+    testContext.OPS.run();
+    assertEquals(2, lines.size());
+
+    testContext.OPS.addRule(createModifyGoalRule());
+    wm.make(new MemoryElement("goal", "type", "remove"));
+    testContext.OPS.run();
+
+    // the new goal is written, then modified to eat and written once more
+    assertEquals(5, lines.size());
+    assertEquals("goal eat", lines.get(4));
+  }
+
+  public void testMakeAndModifyWithVars()
+  {
+    TestContext testContext = createContext();
+    WorkingMemory wm = testContext.OPS.getWorkingMemory();
+    wm.literalize(new MemoryElement("goal", "type", null, "status", null));
+    wm.literalize(new MemoryElement("monkey", "action", null));
+    wm.make(new MemoryElement("goal", "type", "eat"));
+    testContext.OPS.addRule(createMakeMonkeyRule());
+    testContext.OPS.run(1);
+    wm.drainInMemoryQueue();
+
+    assertEquals(1, wm.get("monkey").size());
+    assertEquals("eat", wm.get("monkey").get(0).Values.get("action"));
+    assertEquals("done", wm.get("goal").get(0).Values.get("status"));
+  }
 
   private TestContext createContext()
   {
@@ -116,6 +186,18 @@ public class TestCommands extends TestCase
     return new Rule("goal_remove_with_two_var", query, productions);
   }
 
+  private Rule createMakeMonkeyRule()
+  {
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("goal", "type", "$type", "status", null));
+
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new make(), "monkey", "action", "$type"));
+    productions.add(new ProductionSpec(new modify(), 0, "status", "done"));
+
+    return new Rule("goal_make_monkey", query, productions);
+  }
+
   private Rule createWriteHelloWorldRule()
   {
     List<QueryElement> query = new ArrayList<QueryElement>();
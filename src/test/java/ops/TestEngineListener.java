@@ -0,0 +1,82 @@
+package ops;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+
+public class TestEngineListener extends TestCase
+{
+  private static final String RULES =
+    "{\"name\": \"events\", \"ops\": [" +
+    "  [\"literalize\", \"order\", \"id\", \"status\"]," +
+    "  [\"p\", \"ship\", [[\"order\", \"id\", \"$id\", \"status\", null]], [[\"modify\", 0, \"status\", \"shipped\"]]]," +
+    "  [\"make\", \"order\", \"id\", 1]" +
+    "]}";
+
+  public void testReportsTheCycle()
+      throws Exception
+  {
+    OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), new JSONObject(RULES));
+
+    final List<String> events = new ArrayList<String>();
+    ops.addListener(new EngineListener()
+    {
+      public void cycleStarted(long cycle) { events.add("start " + cycle); }
+      public void cycleEnded(long cycle, boolean fired) { events.add("end " + cycle + " " + fired); }
+      public void inserted(MemoryElement element) { events.add("insert " + element.Type); }
+      public void modified(MemoryElement element, long oldTimeTag) { events.add("modify " + element.Type); }
+      public void activated(Rule rule, MemoryElement[] elements) { events.add("activate " + rule.getName()); }
+      public void fired(Rule rule, MemoryElement[] elements) { events.add("fire " + rule.getName()); }
+    });
+    ops.run();
+    ops.getWorkingMemory().make(new MemoryElement("order", "id", 2));
+    ops.run();
+
+    assertEquals(Arrays.asList(
+      "start 1", "activate ship", "fire ship", "modify order", "end 1 true", "start 2", "end 2 false",
+      "start 3", "insert order", "activate ship", "fire ship", "modify order", "end 3 true", "start 4", "end 4 false"), events);
+  }
+
+  public void testRecorderKeepsTheLastEvents()
+      throws Exception
+  {
+    OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), new JSONObject(RULES));
+    EventRecorder recorder = new EventRecorder(4);
+    ops.addListener(recorder);
+    ops.run();
+
+    assertEquals(7, recorder.getRecorded());
+    List<EventRecorder.Event> events = recorder.getEvents();
+    assertEquals(4, events.size());
+    assertEquals(EventRecorder.MODIFIED, events.get(0).Kind);
+    assertEquals("order", events.get(0).Name);
+    assertEquals(EventRecorder.CYCLE_ENDED, events.get(1).Kind);
+    assertEquals(EventRecorder.CYCLE_STARTED, events.get(2).Kind);
+    assertEquals(EventRecorder.CYCLE_ENDED, events.get(3).Kind);
+    assertEquals(2, events.get(3).Cycle);
+
+    ops.removeListener(recorder);
+    ops.getWorkingMemory().make(new MemoryElement("order", "id", 2));
+    ops.run();
+    assertEquals(7, recorder.getRecorded());
+  }
+
+  public void testRecordsMatchedTimeTags()
+      throws Exception
+  {
+    OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), new JSONObject(RULES));
+    EventRecorder recorder = new EventRecorder(16);
+    ops.addListener(recorder);
+    ops.run();
+
+    EventRecorder.Event fired = recorder.getEvents().get(2);
+    assertEquals(EventRecorder.FIRED, fired.Kind);
+    assertEquals("ship", fired.Name);
+    assertEquals(1, fired.TimeTags.length);
+    assertEquals("1 fire ship " + fired.TimeTags[0], fired.toString());
+  }
+}
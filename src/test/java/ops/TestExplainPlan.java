@@ -0,0 +1,94 @@
+package ops;
+
+
+import java.util.List;
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+
+public class TestExplainPlan extends TestCase
+{
+  private OPS createOps(boolean indexed)
+      throws Exception
+  {
+    StringBuilder rules = new StringBuilder();
+    rules.append("{\"name\": \"explain\", \"ops\": [");
+    rules.append("[\"literalize\", \"order\", \"id\", \"customer\", \"status\"],");
+    rules.append("[\"literalize\", \"customer\", \"id\", \"region\"],");
+    rules.append("[\"p\", \"ship\", [[\"order\", \"id\", \"$id\", \"customer\", \"$c\", \"status\", \"open\"],");
+    rules.append("  [\"customer\", \"id\", \"$c\", \"region\", \"$r\"]], [[\"write\", \"{0}\", \"$id\"]]],");
+    if (indexed)
+    {
+      rules.append("[\"index\", \"customer\", \"id\"],");
+    }
+    for (int i = 0; i < 10; i++)
+    {
+      rules.append("[\"make\", \"customer\", \"id\", ").append(i).append(", \"region\", \"r").append(i % 2).append("\"],");
+    }
+    for (int i = 0; i < 40; i++)
+    {
+      rules.append("[\"make\", \"order\", \"id\", ").append(i).append(", \"customer\", ").append(i % 10)
+        .append(", \"status\", \"").append(i % 4 == 0 ? "open" : "closed").append("\"],");
+    }
+    rules.setLength(rules.length() - 1);
+    rules.append("]}");
+
+    OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), new JSONObject(rules.toString()));
+    ops.getWorkingMemory().drainInMemoryQueue();
+    return ops;
+  }
+
+  public void testEstimatesAndCounts()
+      throws Exception
+  {
+    ExplainPlan plan = createOps(false).explain("ship");
+    assertEquals(10, plan.getActivations());
+    assertEquals(0, plan.getFired());
+    assertFalse(plan.isTruncated());
+
+    List<ExplainPlan.Step> steps = plan.getSteps();
+    assertEquals(2, steps.size());
+
+    ExplainPlan.Step orders = steps.get(0);
+    assertEquals(40, orders.Elements);
+    assertNull(orders.Index);
+    assertEquals(10.0, orders.EstimatedFanOut, 1e-9);
+    assertEquals(40, orders.Scanned);
+    assertEquals(10, orders.Passed);
+    assertEquals("id=$id customer=$c status=\"open\"", orders.Tests);
+    assertNotNull(orders.Hint);
+
+    ExplainPlan.Step customers = steps.get(1);
+    assertEquals(1.0, customers.EstimatedFanOut, 1e-9);
+    assertEquals(10.0, customers.EstimatedRows, 1e-9);
+    assertEquals(10, customers.RowsIn);
+    assertEquals(100, customers.Scanned);
+    assertEquals(10, customers.Passed);
+    assertEquals(1.0, customers.getFanOut(), 1e-9);
+    assertTrue(customers.Hint.contains("customer.id"));
+  }
+
+  public void testIndexesAndRefraction()
+      throws Exception
+  {
+    OPS ops = createOps(true);
+    ops.setOutputSink(new OutputSink()
+    {
+      public void writeLine(CharSequence line) {}
+      public void flush() {}
+      public void close() {}
+    });
+    ops.step(3);
+
+    ExplainPlan plan = ops.explain("ship", 5);
+    assertTrue(plan.isTruncated());
+    assertEquals(5, plan.getActivations());
+    assertEquals(3, plan.getFired());
+
+    ExplainPlan.Step customers = plan.getSteps().get(1);
+    assertEquals("id", customers.Index);
+    assertNull(customers.Hint);
+    assertEquals(customers.RowsIn, customers.Scanned);
+    assertTrue(plan.toString().startsWith("rule ship: 5 activations (3 already fired), truncated,"));
+  }
+}
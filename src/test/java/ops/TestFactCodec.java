@@ -0,0 +1,122 @@
+package ops;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+
+public class TestFactCodec extends TestCase
+{
+  public void testRoundTrip()
+      throws Exception
+  {
+    List<MemoryElement> facts = createFacts(5000);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FactCodec.Encoder encoder = new FactCodec.Encoder(Channels.newChannel(bytes), 4096);
+    encoder.writeAll(facts);
+    encoder.flush();
+    assertEquals(facts.size(), encoder.getFactCount());
+    assertEquals(bytes.size(), encoder.getBytesWritten());
+
+    // fed in uneven pieces, as a socket would deliver them
+    ByteBuffer all = ByteBuffer.wrap(bytes.toByteArray());
+    ByteBuffer buffer = ByteBuffer.allocate(all.capacity());
+    FactCodec.Decoder decoder = new FactCodec.Decoder();
+    List<MemoryElement> decoded = new ArrayList<MemoryElement>();
+    for (int pos = 0, step = 1; pos < all.capacity(); pos += step, step = step * 3 % 997 + 1)
+    {
+      ByteBuffer piece = all.duplicate();
+      piece.position(pos);
+      piece.limit(Math.min(all.capacity(), pos + step));
+      buffer.put(piece);
+      buffer.flip();
+      decoder.decode(buffer, decoded);
+      buffer.compact();
+    }
+    assertEquals(0, buffer.position());
+
+    assertEquals(facts.size(), decoded.size());
+    for (int i = 0; i < facts.size(); i++)
+    {
+      assertEquals(facts.get(i).Type, decoded.get(i).Type);
+      assertEquals(facts.get(i).Values.toString(), decoded.get(i).Values.toString());
+    }
+  }
+
+  public void testReadIntoWorkingMemory()
+      throws Exception
+  {
+    WorkingMemory source = new WorkingMemory();
+    for (MemoryElement fact : createFacts(1000))
+    {
+      source.insert(fact);
+    }
+
+    int events = source.get("event").size();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    assertEquals(events, FactCodec.write(source.get("event"), Channels.newChannel(bytes)));
+
+    WorkingMemory target = new WorkingMemory();
+    target.literalize("event", "id", "kind", "score", "flag", "extra");
+    assertEquals(events, FactCodec.read(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), target));
+    target.drainInMemoryQueue();
+
+    assertEquals(events, target.get("event").size());
+    assertEquals(source.get("event").get(7).Values.get("score"), target.get("event").get(7).Values.get("score"));
+    assertTrue(target.get("event").get(7).Values.containsKey("extra"));
+  }
+
+  public void testUnsupportedValueEndsFrame()
+      throws Exception
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FactCodec.Encoder encoder = new FactCodec.Encoder(Channels.newChannel(bytes));
+    encoder.write(new MemoryElement("event", "id", 1, "kind", "a"));
+    try
+    {
+      encoder.write(new MemoryElement("event", "id", 2, "kind", new Object()));
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+    }
+    encoder.write(new MemoryElement("event", "id", 3, "kind", "a"));
+    encoder.flush();
+
+    List<MemoryElement> decoded = new ArrayList<MemoryElement>();
+    new FactCodec.Decoder().decodeLast(ByteBuffer.wrap(bytes.toByteArray()), decoded);
+    assertEquals(2, decoded.size());
+    assertEquals(3, decoded.get(1).Values.get("id"));
+    assertEquals("a", decoded.get(1).Values.get("kind"));
+  }
+
+  private List<MemoryElement> createFacts(int count)
+      throws Exception
+  {
+    List<MemoryElement> facts = new ArrayList<MemoryElement>();
+    for (int i = 0; i < count; i++)
+    {
+      Map<String, Object> values = new LinkedHashMap<String, Object>();
+      values.put("id", i % 2 == 0 ? (Object) i : (Object) ((long) i << 33));
+      values.put("kind", "k" + (i % 50));
+      values.put("score", i / 3.0);
+      values.put("flag", i % 3 == 0 ? null : (Object) (i % 2 == 0));
+      if (i % 7 == 0)
+      {
+        values.put("extra", i % 14 == 0 ? new JSONArray("[1, \"a\"]") : new JSONObject("{\"a\": 1}"));
+      }
+      facts.add(new MemoryElement(i % 11 == 0 ? "other" : "event", values));
+    }
+    return facts;
+  }
+}
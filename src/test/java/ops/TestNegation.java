@@ -0,0 +1,260 @@
+package ops;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+public class TestNegation extends RulebaseTestCase
+{
+  private OPS createOps(Map<String, Command> registry, String hold)
+      throws Exception
+  {
+    StringBuilder rules = new StringBuilder();
+    rules.append("{\"name\": \"negation\", \"ops\": [");
+    rules.append("[\"literalize\", \"order\", \"id\", \"customer\"],");
+    rules.append("[\"literalize\", \"hold\", \"customer\", \"level\"],");
+    rules.append("[\"literalize\", \"shipped\", \"id\"],");
+    rules.append("[\"p\", \"ship\", [[\"order\", \"id\", \"$id\", \"customer\", \"$c\"],");
+    rules.append("  [\"not\", \"hold\", \"customer\", \"$c\"").append(hold).append("],");
+    rules.append("  [\"not\", \"shipped\", \"id\", \"$id\"]],");
+    rules.append("  [[\"write\", \"ship {0}\", \"$id\"], [\"make\", \"shipped\", \"id\", \"$id\"]]],");
+    rules.append("[\"make\", \"order\", \"id\", 1, \"customer\", \"a\"],");
+    rules.append("[\"make\", \"order\", \"id\", 2, \"customer\", \"b\"],");
+    rules.append("[\"make\", \"order\", \"id\", 3, \"customer\", \"a\"],");
+    rules.append("[\"make\", \"hold\", \"customer\", \"a\", \"level\", 2]");
+    rules.append("]}");
+
+    return load(registry, rules);
+  }
+
+  private void checkArrivalAndRetraction(OPS ops)
+  {
+    WorkingMemory wm = ops.getWorkingMemory();
+    assertEquals(lines("ship 2"), run(ops));
+
+    wm.remove(wm.get("hold").get(0));
+    assertEquals(lines("ship 1", "ship 3"), run(ops));
+
+    wm.make(new MemoryElement("hold", "customer", "b", "level", 2));
+    wm.make(new MemoryElement("order", "id", 4, "customer", "b"));
+    wm.make(new MemoryElement("order", "id", 5, "customer", "c"));
+    assertEquals(lines("ship 5"), run(ops));
+
+    // a modified blocker no longer blocks
+    wm.modify(wm.get("hold").get(0), new String[] { "customer" }, new Object[] { "z" });
+    assertEquals(lines("ship 4"), run(ops));
+  }
+
+  public void testCountedNegation()
+      throws Exception
+  {
+    OPS ops = createOps(OpsFactory.getDefaultRegistry(), "");
+    PreparedQuery.Condition hold = ops.getPreparedRules().get(0).Query.Conditions[1];
+    assertNotNull(hold.GroupSignature);
+    AggregateIndex counts = ops.getWorkingMemory().getAggregateIndex(hold.GroupSignature);
+    assertNotNull(counts);
+    assertEquals(1, counts.size());
+
+    checkArrivalAndRetraction(ops);
+
+    ops.removeRule("ship");
+    assertNull(ops.getWorkingMemory().getAggregateIndex(hold.GroupSignature));
+  }
+
+  public void testScannedNegation()
+      throws Exception
+  {
+    // a variable operand keeps the condition from being counted, so it is looked up by scanning
+    OPS ops = createOps(OpsFactory.getDefaultRegistry(), ", \"level\", {\">\": \"$id\"}");
+    assertNull(ops.getPreparedRules().get(0).Query.Conditions[1].GroupSignature);
+
+    WorkingMemory wm = ops.getWorkingMemory();
+    // the hold only blocks orders with ids below its level
+    assertEquals(lines("ship 2", "ship 3"), run(ops));
+
+    wm.modify(wm.get("hold").get(0), new String[] { "level" }, new Object[] { 5 });
+    wm.make(new MemoryElement("order", "id", 6, "customer", "a"));
+    assertEquals(lines("ship 6"), run(ops));
+  }
+
+  public void testConstantTestsAreCounted()
+      throws Exception
+  {
+    OPS ops = createOps(OpsFactory.getDefaultRegistry(), ", \"level\", {\">=\": 2}");
+    PreparedQuery.Condition hold = ops.getPreparedRules().get(0).Query.Conditions[1];
+    assertNotNull(hold.GroupSignature);
+    checkArrivalAndRetraction(ops);
+
+    WorkingMemory wm = ops.getWorkingMemory();
+    wm.make(new MemoryElement("hold", "customer", "d", "level", 1));
+    wm.make(new MemoryElement("order", "id", 7, "customer", "d"));
+    assertEquals(lines("ship 7"), run(ops));
+  }
+
+  private OPS createHoldOps(String hold)
+      throws Exception
+  {
+    StringBuilder rules = new StringBuilder();
+    rules.append("{\"name\": \"holds\", \"ops\": [");
+    rules.append("[\"literalize\", \"order\", \"id\"],");
+    rules.append("[\"literalize\", \"hold\", \"id\", \"level\"],");
+    rules.append("[\"p\", \"release\", [[\"order\", \"id\", \"$id\"], [\"not\", \"hold\", \"id\", \"$id\"").append(hold).append("]],");
+    rules.append("  [[\"write\", \"release {0}\", \"$id\"]]],");
+    rules.append("[\"make\", \"order\", \"id\", 1],");
+    rules.append("[\"make\", \"order\", \"id\", 2]");
+    rules.append("]}");
+
+    return load(OpsFactory.getDefaultRegistry(), rules);
+  }
+
+  private void checkBlockerComesAndGoes(OPS ops)
+  {
+    WorkingMemory wm = ops.getWorkingMemory();
+    assertEquals(lines("release 1", "release 2"), run(ops));
+
+    MemoryElement hold = wm.make(new MemoryElement("hold", "id", 1, "level", 1));
+    wm.make(new MemoryElement("hold", "id", 3, "level", 1));
+    assertEquals(lines(), run(ops));
+
+    // the order was blocked in between, so it fires again; the other one does not
+    wm.remove(hold);
+    assertEquals(lines("release 1"), run(ops));
+    assertEquals(lines(), run(ops));
+  }
+
+  public void testCountedBlockerComesAndGoes()
+      throws Exception
+  {
+    OPS ops = createHoldOps("");
+    assertNotNull(ops.getPreparedRules().get(0).Query.Conditions[1].GroupSignature);
+    checkBlockerComesAndGoes(ops);
+  }
+
+  public void testScannedBlockerComesAndGoes()
+      throws Exception
+  {
+    OPS ops = createHoldOps(", \"level\", \"$level\"");
+    assertNull(ops.getPreparedRules().get(0).Query.Conditions[1].GroupSignature);
+    checkBlockerComesAndGoes(ops);
+  }
+
+  public void testBlockerAfterRestore()
+      throws Exception
+  {
+    File snapshot = File.createTempFile("ops", ".snapshot");
+    snapshot.deleteOnExit();
+    File log = File.createTempFile("ops", ".wal");
+    log.deleteOnExit();
+
+    OPS ops = createHoldOps("");
+    assertEquals(lines("release 1", "release 2"), run(ops));
+    Snapshot.write(ops, snapshot, true);
+
+    OPS restored = createHoldOps("");
+    Snapshot.restore(restored, snapshot);
+    WriteAheadLog wal = WriteAheadLog.open(log, WriteAheadLog.SYNC_COMMIT);
+    restored.setWriteAheadLog(wal);
+    WorkingMemory wm = restored.getWorkingMemory();
+    MemoryElement hold = wm.make(new MemoryElement("hold", "id", 2, "level", 1));
+    wm.drainInMemoryQueue();
+    wm.remove(hold);
+    restored.setWriteAheadLog(null);
+    wal.close();
+
+    // the activations restored from the snapshot are retired by the hold, whether live or replayed
+    assertEquals(lines("release 2"), run(restored));
+
+    OPS replayed = createHoldOps("");
+    Snapshot.restore(replayed, snapshot);
+    WriteAheadLog.replay(replayed, log);
+    assertEquals(lines("release 2"), run(replayed));
+  }
+
+  public void testQueryView()
+  {
+    WorkingMemory wm = new WorkingMemory();
+    wm.literalize("order", "id", "customer");
+    wm.literalize("hold", "customer");
+    List<QueryElement> conditions = new ArrayList<QueryElement>();
+    conditions.add(new QueryElement("order", "id", "$id", "customer", "$c"));
+    conditions.add(QueryElement.not("hold", "customer", "$c"));
+    wm.defineQuery(new Query("open_orders", conditions));
+
+    MemoryElement hold = wm.make(new MemoryElement("hold", "customer", "a"));
+    wm.make(new MemoryElement("order", "id", 1, "customer", "a"));
+    wm.make(new MemoryElement("order", "id", 2, "customer", "b"));
+    wm.drainInMemoryQueue();
+    assertEquals(1, wm.query("open_orders").size());
+
+    final List<String> deltas = new ArrayList<String>();
+    QueryView view = wm.openView("open_orders", new QueryListener()
+    {
+      public void added(QueryView view, List<QueryResult> rows)
+      {
+        for (QueryResult row : rows) deltas.add("+" + row.get("$id"));
+      }
+
+      public void removed(QueryView view, List<QueryResult> rows)
+      {
+        for (QueryResult row : rows) deltas.add("-" + row.get("$id"));
+      }
+    });
+    assertEquals(1, view.size());
+
+    wm.remove(hold);
+    wm.make(new MemoryElement("hold", "customer", "b"));
+    wm.drainInMemoryQueue();
+    assertEquals(lines("+1", "-2"), deltas);
+    assertEquals(1, view.size());
+    assertEquals(1, view.getRows().iterator().next().get("$id"));
+    assertNull(view.getRows().iterator().next().getElement(1));
+    view.close();
+  }
+
+  public void testVariablesStayLocal()
+  {
+    List<QueryElement> conditions = new ArrayList<QueryElement>();
+    conditions.add(new QueryElement("order", "id", "$id"));
+    conditions.add(QueryElement.not("hold", "customer", "$c"));
+    conditions.add(new QueryElement("shipped", "id", "$c"));
+    try
+    {
+      new Query("bad", conditions);
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertTrue(e.getMessage().contains("$c"));
+    }
+
+    try
+    {
+      new Query("only_negated", Collections.singletonList(QueryElement.not("hold")));
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+    }
+  }
+
+  public void testCompiledRulebase()
+      throws Exception
+  {
+    Map<String, Command> registry = OpsFactory.getDefaultRegistry();
+    OPS ops = createOps(registry, "");
+
+    File compiled = File.createTempFile("ops", ".opsb");
+    compiled.deleteOnExit();
+    RulebaseCodec.write(ops, registry, compiled);
+
+    OPS loaded = OpsFactory.create(registry, compiled);
+    loaded.setOutputSink(ops.getOutputSink());
+    assertTrue(loaded.getRules().get(0).Query.get(1).Negated);
+    assertNotNull(loaded.getWorkingMemory().getAggregateIndex(loaded.getPreparedRules().get(0).Query.Conditions[1].GroupSignature));
+    checkArrivalAndRetraction(loaded);
+  }
+}
@@ -0,0 +1,189 @@
+package ops;
+
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.json.JSONException;
+
+
+public class TestOpsFactory extends TestCase
+{
+  public void testStreamingLoadMatchesDocumentLoad()
+      throws Exception
+  {
+    Map<String, Command> registry = createRegistry();
+    File file = new File("ops/sample_nlg.json");
+
+    OPS streamed = OpsFactory.create(registry, file);
+    OPS parsed = OpsFactory.create(registry, OpsFactory.readJSONFile(file.getPath()));
+
+    assertNotNull(streamed);
+    assertNotNull(parsed);
+
+    for (String type : new String[] { "goal", "sphrase" })
+    {
+      List<MemoryElement> expected = parsed.getWorkingMemory().get(type);
+      List<MemoryElement> actual = streamed.getWorkingMemory().get(type);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++)
+      {
+        assertEquals(expected.get(i).Values, actual.get(i).Values);
+      }
+    }
+
+    assertEquals("present", streamed.getWorkingMemory().getTemplate("sphrase").Values.get("verb.tense"));
+  }
+
+  public void testStreamingLoadRequiresOneCommaBetweenElements()
+      throws Exception
+  {
+    Map<String, Command> registry = createRegistry();
+    OPS ops = loadStreamed(registry, "{\"ops\": [[\"literalize\", \"a\", \"v\"], [\"make\", \"a\", \"v\", [1, [], {}]] , [\"make\", \"a\"]]}");
+    assertEquals(2, ops.getWorkingMemory().get("a").size());
+
+    String[] malformed = {
+      "{\"ops\": [[\"literalize\", \"a\", \"v\"], [\"make\", \"a\", \"v\", [1 2]]]}",
+      "{\"ops\": [[\"literalize\", \"a\", \"v\"], [\"make\", \"a\", \"v\", [,,1]]]}",
+      "{\"ops\": [[\"literalize\", \"a\", \"v\"], [\"make\", \"a\", \"v\", [1,,2]]]}",
+      "{\"ops\": [[\"literalize\", \"a\", \"v\"], [\"make\", \"a\", \"v\", [1,]]]}",
+      "{\"ops\": [[\"literalize\", \"a\", \"v\"], [\"make\", \"a\"] [\"make\", \"a\"]]}",
+      "{\"ops\": [[\"literalize\", \"a\", \"v\"], [\"make\", \"a\", \"v\", {\"x\": 1 \"y\": 2}]]}",
+      "{, \"ops\": [[\"literalize\", \"a\", \"v\"]]}"
+    };
+    for (String json : malformed)
+    {
+      try
+      {
+        loadStreamed(registry, json);
+        fail(json);
+      }
+      catch (JSONException e)
+      {
+      }
+    }
+  }
+
+  private static OPS loadStreamed(Map<String, Command> registry, String json)
+      throws Exception
+  {
+    File file = File.createTempFile("ops", ".json");
+    file.deleteOnExit();
+    Writer writer = new FileWriter(file);
+    writer.write(json);
+    writer.close();
+
+    OPS ops = new OPS();
+    OpsFactory.load(registry, file, ops);
+    return ops;
+  }
+
+  public void testCompiledRulebaseRoundTrip()
+      throws Exception
+  {
+    Map<String, Command> registry = createRegistry();
+    File file = new File("ops/sample_nlg.json");
+    File compiled = File.createTempFile("sample_nlg", ".opsb");
+    compiled.deleteOnExit();
+
+    OPS source = OpsFactory.create(registry, file);
+    RulebaseCodec.write(source, registry, compiled);
+    assertTrue(RulebaseCodec.isRulebase(compiled));
+    assertFalse(RulebaseCodec.isRulebase(file));
+
+    OPS loaded = OpsFactory.create(registry, compiled);
+    assertNotNull(loaded);
+    assertEquals(source.getPreparedRules().size(), loaded.getPreparedRules().size());
+    assertEquals(
+      source.getWorkingMemory().getTemplate("sphrase").Values,
+      loaded.getWorkingMemory().getTemplate("sphrase").Values);
+
+    source.run();
+    loaded.run();
+
+    for (String type : new String[] { "goal", "sphrase" })
+    {
+      List<MemoryElement> expected = source.getWorkingMemory().get(type);
+      List<MemoryElement> actual = loaded.getWorkingMemory().get(type);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++)
+      {
+        assertEquals(expected.get(i).Values, actual.get(i).Values);
+      }
+    }
+  }
+
+  public void testCompiledRulebaseOfAnotherVersion()
+      throws Exception
+  {
+    Map<String, Command> registry = createRegistry();
+    File compiled = File.createTempFile("sample_nlg", ".opsb");
+    compiled.deleteOnExit();
+    RulebaseCodec.write(OpsFactory.create(registry, new File("ops/sample_nlg.json")), registry, compiled);
+
+    RandomAccessFile raf = new RandomAccessFile(compiled, "rw");
+    raf.seek(4);
+    raf.writeInt(2);
+    raf.close();
+
+    try
+    {
+      RulebaseCodec.read(registry, compiled);
+      fail("expected the version to be rejected");
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertEquals("unsupported rulebase version: 2", e.getMessage());
+    }
+  }
+
+  public void testBindSocketIsRejectedAtLoad()
+      throws Exception
+  {
+    try
+    {
+      loadStreamed(createRegistry(), "{\"ops\": [[\"p\", \"listen\", [[\"start\"]], [[\"bind\", \"line\", \"@SOCKET\"]]]]}");
+      fail("expected bind @SOCKET to be rejected");
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertEquals("rule listen: bind @SOCKET is not supported, stream facts in with ops.ingest.ChannelIngestor", e.getMessage());
+    }
+  }
+
+  public void testConditionKeywordsCannotNameTypes()
+      throws Exception
+  {
+    for (String keyword : new String[] { "not", "aggregate" })
+    {
+      try
+      {
+        loadStreamed(createRegistry(), "{\"ops\": [[\"literalize\", \"" + keyword + "\", \"v\"]]}");
+        fail("expected " + keyword + " to be rejected");
+      }
+      catch (IllegalArgumentException e)
+      {
+        assertEquals("cannot literalize " + keyword + ": it is a condition keyword", e.getMessage());
+      }
+    }
+  }
+
+  static Map<String, Command> createRegistry()
+  {
+    Map<String, Command> registry = OpsFactory.getDefaultRegistry();
+    Command nop = new Command()
+    {
+      @Override
+      public void exec(CommandContext context, Object[] args)
+      {
+      }
+    };
+    registry.put("nlg", nop);
+    registry.put("nlgAgg", nop);
+    return registry;
+  }
+}
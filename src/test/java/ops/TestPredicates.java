@@ -0,0 +1,133 @@
+package ops;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONObject;
+
+
+public class TestPredicates extends RulebaseTestCase
+{
+  private OPS createOps(Map<String, Command> registry, String index)
+      throws Exception
+  {
+    StringBuilder rules = new StringBuilder();
+    rules.append("{\"name\": \"predicates\", \"ops\": [");
+    rules.append("[\"literalize\", \"reading\", \"sensor\", \"ts\", \"value\"],");
+    rules.append("[\"literalize\", \"window\", \"from\", \"to\"],");
+    rules.append("[\"p\", \"high\", [[\"reading\", \"sensor\", {\"<>\": \"test\"}, \"value\", {\">\": 10}, \"ts\", \"$ts\"]],");
+    rules.append("  [[\"write\", \"high {0}\", \"$ts\"]]],");
+    rules.append("[\"p\", \"in_window\", [[\"window\", \"from\", \"$from\", \"to\", \"$to\"],");
+    rules.append("  [\"reading\", \"ts\", {\"between\": [\"$from\", \"$to\"]}, \"value\", {\"<=\": 10}]],");
+    rules.append("  [[\"write\", \"window {0}\", \"$to\"]]],");
+    rules.append(index);
+    for (int ts = 0; ts < 20; ts++)
+    {
+      rules.append("[\"make\", \"reading\", \"sensor\", \"").append(ts == 15 ? "test" : "s1").append("\", \"ts\", ").append(ts);
+      rules.append(", \"value\", ").append(ts % 2 == 0 ? String.valueOf(ts) : ts + ".5").append("],");
+    }
+    rules.append("[\"make\", \"window\", \"from\", 3, \"to\", 6.5]");
+    rules.append("]}");
+
+    return load(registry, rules);
+  }
+
+  public void testOperators()
+      throws Exception
+  {
+    List<String> lines = run(createOps(OpsFactory.getDefaultRegistry(), ""));
+
+    // values above 10 except the test sensor's, then readings from 3 to 6.5 with values up to 10
+    List<String> expected = new ArrayList<String>();
+    for (int ts = 11; ts < 20; ts++)
+    {
+      if (ts != 15) expected.add("high " + ts);
+    }
+    for (int ts = 3; ts <= 6; ts++)
+    {
+      expected.add("window 6.5");
+    }
+    Collections.sort(expected);
+    assertEquals(expected, lines);
+  }
+
+  public void testSortedIndexServesRanges()
+      throws Exception
+  {
+    List<String> scanned = run(createOps(OpsFactory.getDefaultRegistry(), ""));
+
+    OPS ops = createOps(OpsFactory.getDefaultRegistry(), "[\"index\", \"reading\", \"ts\", \"value\", {\"sorted\": true}],");
+    ExplainPlan plan = ops.explain("in_window");
+    ExplainPlan.Step readings = plan.getSteps().get(1);
+    assertEquals("ts", readings.Index);
+    assertEquals(4, readings.Scanned);
+    assertEquals(4, readings.Passed);
+
+    plan = ops.explain("high");
+    assertEquals("value", plan.getSteps().get(0).Index);
+    // bounds are looked up inclusively, the predicate drops the 10 itself and the test sensor
+    assertEquals(10, plan.getSteps().get(0).Scanned);
+    assertEquals(8, plan.getSteps().get(0).Passed);
+
+    assertEquals(scanned, run(ops));
+  }
+
+  public void testRangeLookup()
+  {
+    AttributeIndex index = new AttributeIndex("t", "v", true);
+    Object[] values = { 1, 2.5, 3L, 4, "a", "b", null, JSONObject.NULL, true, 5.0 };
+    for (Object value : values)
+    {
+      index.add(new MemoryElement("t", "v", value));
+    }
+
+    assertEquals(3, index.range(2, 4).size());
+    assertEquals(1, index.range(null, 2).size());
+    // numeric bounds run on into the strings, which the predicate then rejects
+    assertEquals(4, index.range(4, null).size());
+    assertEquals(2, index.range("a", null).size());
+    assertEquals(0, index.range(5, 1).size());
+    assertEquals(2, index.get(null).size());
+    assertEquals(1, index.get(5).size());
+    assertEquals(1, index.get(true).size());
+
+    MemoryElement three = index.range(3.0, 3.0).iterator().next();
+    index.remove(three);
+    assertEquals(0, index.range(3, 3).size());
+  }
+
+  public void testUnboundOperand()
+  {
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("reading", "ts", new JSONObject(Collections.singletonMap(">", "$since"))));
+    try
+    {
+      new PreparedQuery(query, new java.util.HashMap<String, Integer>());
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertTrue(e.getMessage().contains("$since"));
+    }
+  }
+
+  public void testCompiledRulebase()
+      throws Exception
+  {
+    Map<String, Command> registry = OpsFactory.getDefaultRegistry();
+    OPS ops = createOps(registry, "[\"index\", \"reading\", \"ts\", {\"sorted\": true}],");
+    List<String> expected = run(createOps(registry, ""));
+
+    File compiled = File.createTempFile("ops", ".opsb");
+    compiled.deleteOnExit();
+    RulebaseCodec.write(ops, registry, compiled);
+
+    OPS loaded = OpsFactory.create(registry, compiled);
+    loaded.setOutputSink(ops.getOutputSink());
+    assertTrue(loaded.getWorkingMemory().getIndex("reading", "ts").Sorted);
+    assertEquals(expected, run(loaded));
+  }
+}
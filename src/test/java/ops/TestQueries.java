@@ -0,0 +1,136 @@
+package ops;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+
+public class TestQueries extends TestCase
+{
+  private static final String RULES =
+    "{\"name\": \"orders\", \"ops\": [" +
+    "  [\"literalize\", \"customer\", \"id\", \"tier\"]," +
+    "  [\"literalize\", \"order\", \"customer\", \"status\", \"total\"]," +
+    "  [\"index\", \"order\", \"customer\", \"status\"]," +
+    "  [\"query\", \"open_orders\", [[\"customer\", \"id\", \"$c\", \"tier\", \"$tier\"], [\"order\", \"customer\", \"$c\", \"status\", \"open\", \"total\", \"$total\"]]]," +
+    "  [\"query\", \"orders_of\", [[\"order\", \"customer\", \"$c\", \"total\", \"$total\"]], {\"params\": [\"$c\"]}]," +
+    "  [\"make\", \"customer\", \"id\", 1, \"tier\", \"gold\"]," +
+    "  [\"make\", \"customer\", \"id\", 2, \"tier\", \"basic\"]," +
+    "  [\"make\", \"order\", \"customer\", 1, \"status\", \"open\", \"total\", 10]," +
+    "  [\"make\", \"order\", \"customer\", 1, \"status\", \"shipped\", \"total\", 20]," +
+    "  [\"make\", \"order\", \"customer\", 2, \"status\", \"open\", \"total\", 30]" +
+    "]}";
+
+  public void testExecute()
+      throws Exception
+  {
+    WorkingMemory wm = createOps().getWorkingMemory();
+
+    List<QueryResult> results = wm.query("open_orders");
+    assertEquals(2, results.size());
+    assertEquals(1, results.get(0).get("$c"));
+    assertEquals("gold", results.get(0).get("$tier"));
+    assertEquals(10, results.get(0).get("$total"));
+    assertEquals(30, results.get(1).get("$total"));
+    assertEquals("order", results.get(1).getElement(1).Type);
+
+    results = wm.query("orders_of", 1);
+    assertEquals(2, results.size());
+    assertEquals(Arrays.<Object>asList(10, 20), Arrays.asList(results.get(0).get("$total"), results.get(1).get("$total")));
+    assertTrue(wm.query("orders_of", 3).isEmpty());
+
+    try
+    {
+      wm.query("orders_of");
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+    }
+  }
+
+  public void testIndexMatchesScan()
+      throws Exception
+  {
+    WorkingMemory wm = createOps().getWorkingMemory();
+    MemoryElement shipped = wm.get("order").get(1);
+    wm.modify(shipped, new String[] { "status" }, new Object[] { "open" });
+    wm.remove(wm.get("order").get(2));
+
+    List<QueryResult> indexed = wm.query("open_orders");
+    wm.dropIndex("order", "customer");
+    wm.dropIndex("order", "status");
+    List<QueryResult> scanned = wm.query("open_orders");
+
+    assertEquals(2, indexed.size());
+    assertEquals(scanned.toString(), indexed.toString());
+  }
+
+  public void testLiveView()
+      throws Exception
+  {
+    WorkingMemory wm = createOps().getWorkingMemory();
+
+    final List<String> deltas = new ArrayList<String>();
+    QueryView view = wm.openView("open_orders", new QueryListener()
+    {
+      public void added(QueryView view, List<QueryResult> results) { deltas.add("+" + results); }
+      public void removed(QueryView view, List<QueryResult> results) { deltas.add("-" + results); }
+    });
+    assertEquals(2, view.size());
+
+    wm.insert(new MemoryElement("order", "customer", 2, "status", "open", "total", 40));
+    assertEquals(3, view.size());
+
+    MemoryElement order = wm.get("order").get(0);
+    wm.modify(order, new String[] { "status" }, new Object[] { "shipped" });
+    assertEquals(2, view.size());
+
+    // a new customer joins with the orders already in memory
+    wm.insert(new MemoryElement("order", "customer", 3, "status", "open", "total", 50));
+    assertEquals(2, view.size());
+    wm.insert(new MemoryElement("customer", "id", 3, "tier", "gold"));
+    assertEquals(3, view.size());
+
+    wm.remove(wm.get("customer").get(1));
+    assertEquals(1, view.size());
+
+    assertEquals(Arrays.asList(
+      "+[{$c=2, $tier=basic, $total=40}]",
+      "-[{$c=1, $tier=gold, $total=10}]",
+      "+[{$c=3, $tier=gold, $total=50}]",
+      "-[{$c=2, $tier=basic, $total=30}, {$c=2, $tier=basic, $total=40}]"), deltas);
+
+    assertEquals(wm.query("open_orders").toString(), new ArrayList<QueryResult>(view.getRows()).toString());
+
+    view.close();
+    wm.insert(new MemoryElement("order", "customer", 3, "status", "open", "total", 60));
+    assertEquals(4, deltas.size());
+  }
+
+  public void testQueriesSurviveCompiledRulebase()
+      throws Exception
+  {
+    Map<String, Command> registry = OpsFactory.getDefaultRegistry();
+    OPS ops = OpsFactory.create(registry, new JSONObject(RULES));
+    File compiled = File.createTempFile("orders", ".opsb");
+    compiled.deleteOnExit();
+    RulebaseCodec.write(ops, registry, compiled);
+
+    WorkingMemory wm = OpsFactory.create(registry, compiled).getWorkingMemory();
+    assertEquals(2, wm.getQueries().size());
+    assertNotNull(wm.getIndex("order", "status"));
+    assertEquals(ops.getWorkingMemory().query("orders_of", 1).toString(), wm.query("orders_of", 1).toString());
+  }
+
+  private OPS createOps()
+      throws Exception
+  {
+    return OpsFactory.create(OpsFactory.getDefaultRegistry(), new JSONObject(RULES));
+  }
+}
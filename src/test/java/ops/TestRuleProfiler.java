@@ -0,0 +1,105 @@
+package ops;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+
+public class TestRuleProfiler extends TestCase
+{
+  private static final String RULES =
+    "{\"name\": \"profile\", \"ops\": [" +
+    "  [\"literalize\", \"order\", \"id\", \"customer\", \"status\"]," +
+    "  [\"literalize\", \"customer\", \"id\"]," +
+    "  [\"p\", \"ship\", [[\"order\", \"id\", \"$id\", \"customer\", \"$c\", \"status\", null], [\"customer\", \"id\", \"$c\"]]," +
+    "    [[\"modify\", 0, \"status\", \"shipped\"]]]," +
+    "  [\"make\", \"customer\", \"id\", 1]," +
+    "  [\"make\", \"customer\", \"id\", 2]," +
+    "  [\"make\", \"order\", \"id\", 10, \"customer\", 1]," +
+    "  [\"make\", \"order\", \"id\", 11, \"customer\", 2]," +
+    "  [\"make\", \"order\", \"id\", 12, \"customer\", 3]" +
+    "]}";
+
+  private OPS createOps()
+      throws Exception
+  {
+    OPS ops = OpsFactory.create(OpsFactory.getDefaultRegistry(), new JSONObject(RULES));
+    ops.getWorkingMemory().drainInMemoryQueue();
+    return ops;
+  }
+
+  public void testDisabledRecordsNothing()
+      throws Exception
+  {
+    OPS ops = createOps();
+    ops.run();
+
+    assertEquals(0, ops.getProfiler().getCycles());
+    assertTrue(ops.getProfiler().getRules().isEmpty());
+  }
+
+  public void testCountsMatchingAndFiring()
+      throws Exception
+  {
+    OPS ops = createOps();
+    RuleProfiler profiler = ops.getProfiler();
+    profiler.setEnabled(true);
+    ops.run();
+
+    // two orders ship, then a third cycle finds nothing left to fire
+    assertEquals(3, profiler.getCycles());
+
+    List<RuleProfile> rules = profiler.getRules();
+    assertEquals(1, rules.size());
+    RuleProfile ship = rules.get(0);
+    assertEquals("ship", ship.getRule());
+    assertEquals(3, ship.getMatches());
+    assertEquals(2, ship.getFirings());
+    assertEquals(2, ship.getActivations());
+    assertTrue(ship.getMatchNanos() > 0);
+    assertEquals(ship.getCandidates(), ship.getPartialMatches() + ship.getFailedTests());
+    assertTrue(ship.getFailedTests() > 0);
+
+    Map<String, Integer> sizes = profiler.getWorkingMemorySizes();
+    assertEquals(Integer.valueOf(3), sizes.get("order"));
+    assertEquals(Integer.valueOf(2), sizes.get("customer"));
+
+    profiler.reset();
+    assertEquals(0, profiler.getCycles());
+    assertTrue(profiler.getRules().isEmpty());
+  }
+
+  public void testExposedThroughJmx()
+      throws Exception
+  {
+    OPS ops = createOps();
+    ops.getProfiler().setEnabled(true);
+    ops.run();
+
+    ObjectName name = ops.getProfiler().register("test");
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertEquals(3L, server.getAttribute(name, "Cycles"));
+
+      CompositeData[] rules = (CompositeData[]) server.getAttribute(name, "Rules");
+      assertEquals(1, rules.length);
+      assertEquals("ship", rules[0].get("rule"));
+      assertEquals(2L, rules[0].get("firings"));
+
+      server.setAttribute(name, new javax.management.Attribute("Enabled", false));
+      assertFalse(ops.getProfiler().isEnabled());
+    }
+    finally
+    {
+      ops.getProfiler().unregister();
+    }
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+  }
+}
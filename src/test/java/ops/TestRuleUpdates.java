@@ -0,0 +1,106 @@
+package ops;
+
+
+import ops.commands.write;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+
+public class TestRuleUpdates extends TestCase
+{
+  private final List<String> _lines = new ArrayList<String>();
+
+  public void testAddAndRemoveRule()
+  {
+    OPS ops = createOps();
+    Rule rule = createWriteRule("first", "first {0}");
+    ops.addRule(rule);
+    ops.addRule(createWriteRule("second", "second {0}"));
+    assertEquals(2, ops.getRules().size());
+
+    ops.getWorkingMemory().make(new MemoryElement("goal", "type", "a"));
+    ops.run();
+    assertEquals(Arrays.asList("first a", "second a"), _lines);
+    assertEquals(2, ops.getRefraction().size());
+
+    ops.removeRule(rule);
+    assertEquals(1, ops.getRules().size());
+    assertEquals("second", ops.getRules().get(0).Name);
+    assertEquals(1, ops.getRefraction().size());
+
+    // the second rule keeps its refraction state, so nothing fires again
+    ops.run();
+    assertEquals(2, _lines.size());
+
+    ops.getWorkingMemory().make(new MemoryElement("goal", "type", "b"));
+    ops.run();
+    assertEquals("second b", _lines.get(2));
+    assertEquals(3, _lines.size());
+  }
+
+  public void testRuleSets()
+  {
+    OPS ops = createOps();
+    ops.addRule(createWriteRule("base", "base {0}"));
+    ops.addRules("greetings", Arrays.asList(createWriteRule("hello", "hello {0}"), createWriteRule("hi", "hi {0}")));
+    assertTrue(ops.getRuleSets().contains("greetings"));
+    assertEquals(3, ops.getRules().size());
+
+    ops.removeRules("greetings");
+    assertFalse(ops.getRuleSets().contains("greetings"));
+    assertEquals(1, ops.getRules().size());
+
+    ops.getWorkingMemory().make(new MemoryElement("goal", "type", "a"));
+    ops.run();
+    assertEquals(Arrays.asList("base a"), _lines);
+  }
+
+  public void testRuleAddedWhileRunningAppliesAtNextCycle()
+  {
+    final OPS ops = createOps();
+
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("goal", "type", "deploy"));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new Command()
+    {
+      @Override
+      public void exec(CommandContext context, Object[] args)
+      {
+        ops.addRule(createWriteRule("deployed", "deployed {0}"));
+        assertEquals(1, ops.getRules().size());
+      }
+    }));
+    ops.addRule(new Rule("deploy", query, productions));
+
+    ops.getWorkingMemory().make(new MemoryElement("goal", "type", "deploy"));
+    ops.run();
+
+    assertEquals(2, ops.getRules().size());
+    assertEquals(Arrays.asList("deployed deploy"), _lines);
+  }
+
+  private OPS createOps()
+  {
+    OPS ops = new OPS();
+    ops.setOutputSink(new OutputSink()
+    {
+      public void writeLine(CharSequence line) { _lines.add(line.toString()); }
+      public void flush() {}
+      public void close() {}
+    });
+    ops.getWorkingMemory().literalize(new MemoryElement("goal", "type", null));
+    return ops;
+  }
+
+  private Rule createWriteRule(String name, String format)
+  {
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("goal", "type", "$type"));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new write(), format, "$type"));
+    return new Rule(name, query, productions);
+  }
+}
@@ -0,0 +1,120 @@
+package ops;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+
+public class TestSalience extends TestCase
+{
+  private static final String RULES =
+    "{\"name\": \"salience\", \"ops\": [" +
+    "  [\"literalize\", \"task\", \"name\", \"priority\"]," +
+    "  [\"literalize\", \"alarm\", \"name\"]," +
+    "  [\"p\", \"run_task\", [[\"task\", \"name\", \"$name\", \"priority\", \"$priority\"]], [[\"write\", \"task {0}\", \"$name\"]], {\"salience\": \"$priority\"}]," +
+    "  [\"p\", \"log_alarm\", [[\"alarm\", \"name\", \"$name\"]], [[\"write\", \"log {0}\", \"$name\"]]]," +
+    "  [\"p\", \"raise_alarm\", [[\"alarm\", \"name\", \"$name\"]], [[\"write\", \"alarm {0}\", \"$name\"]], {\"salience\": 5}]," +
+    "  [\"make\", \"task\", \"name\", \"low\", \"priority\", 1]," +
+    "  [\"make\", \"task\", \"name\", \"high\", \"priority\", 9]," +
+    "  [\"make\", \"task\", \"name\", \"tied\", \"priority\", 5]," +
+    "  [\"make\", \"alarm\", \"name\", \"fire\"]" +
+    "]}";
+
+  private static final List<String> EXPECTED =
+    Arrays.asList("task high", "task tied", "alarm fire", "task low", "log fire");
+
+  private final List<String> _lines = new ArrayList<String>();
+
+  public void testStaticAndDynamicSalience()
+      throws Exception
+  {
+    OPS ops = createOps(OpsFactory.getDefaultRegistry());
+    ops.run();
+
+    // the dynamic rule was added first, so it wins the tie at salience 5
+    assertEquals(EXPECTED, _lines);
+  }
+
+  public void testSalienceOrdersRulesAddedLater()
+      throws Exception
+  {
+    OPS ops = createOps(OpsFactory.getDefaultRegistry());
+    ops.removeRule("raise_alarm");
+    ops.removeRule("run_task");
+
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("alarm", "name", "$name"));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new ops.commands.write(), "urgent {0}", "$name"));
+    ops.addRule(new Rule("urgent_alarm", query, productions, null, 100));
+
+    assertEquals("urgent_alarm", ops.getRules().get(0).Name);
+    ops.run();
+    assertEquals(Arrays.asList("urgent fire", "log fire"), _lines);
+  }
+
+  public void testSalienceSurvivesCompiledRulebase()
+      throws Exception
+  {
+    Map<String, Command> registry = OpsFactory.getDefaultRegistry();
+    OPS ops = createOps(registry);
+    File compiled = File.createTempFile("salience", ".opsb");
+    compiled.deleteOnExit();
+    RulebaseCodec.write(ops, registry, compiled);
+
+    OPS loaded = OpsFactory.create(registry, compiled);
+    setSink(loaded);
+    loaded.run();
+    assertEquals(EXPECTED, _lines);
+  }
+
+  public void testSalienceThatIsNotANumber()
+      throws Exception
+  {
+    OPS ops = createOps(OpsFactory.getDefaultRegistry());
+    WorkingMemory wm = ops.getWorkingMemory();
+    wm.make(new MemoryElement("task", "name", "unset"));
+    wm.make(new MemoryElement("task", "name", "text", "priority", "urgent"));
+    ops.run();
+
+    // both fall back to the rule's static salience of 0, tied with log_alarm
+    assertEquals(Arrays.asList("task high", "task tied", "alarm fire", "task low", "task unset", "task text", "log fire"), _lines);
+  }
+
+  public void testUnboundSalienceVar()
+  {
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("alarm", "name", "$name"));
+    try
+    {
+      new OPS().addRule(new Rule("bad", query, new ArrayList<ProductionSpec>(), null, "$priority"));
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+    }
+  }
+
+  private OPS createOps(Map<String, Command> registry)
+      throws Exception
+  {
+    OPS ops = OpsFactory.create(registry, new JSONObject(RULES));
+    setSink(ops);
+    return ops;
+  }
+
+  private void setSink(OPS ops)
+  {
+    ops.setOutputSink(new OutputSink()
+    {
+      public void writeLine(CharSequence line) { _lines.add(line.toString()); }
+      public void flush() {}
+      public void close() {}
+    });
+  }
+}
@@ -0,0 +1,74 @@
+package ops;
+
+
+import ops.commands.remove;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+
+public class TestSessionScheduler extends TestCase
+{
+  public void testSessionsParkAndWake()
+      throws Exception
+  {
+    SessionScheduler scheduler = new SessionScheduler(2, 4);
+
+    List<SessionScheduler.Session> sessions = new ArrayList<SessionScheduler.Session>();
+    for (int i = 0; i < 100; i++)
+    {
+      OPS ops = createTokenSession(10);
+      sessions.add(scheduler.add(ops, 1 + (i % 3)));
+    }
+
+    waitForCycles(sessions, 10);
+
+    for (SessionScheduler.Session session : sessions)
+    {
+      assertEquals(10, session.getCycles());
+      assertTrue(session.isParked());
+      session.Ops.getWorkingMemory().make("token", "id", 1);
+    }
+
+    waitForCycles(sessions, 11);
+
+    for (SessionScheduler.Session session : sessions)
+    {
+      assertEquals(11, session.getCycles());
+    }
+
+    scheduler.shutdown();
+  }
+
+  private void waitForCycles(List<SessionScheduler.Session> sessions, long cycles)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10000;
+    for (SessionScheduler.Session session : sessions)
+    {
+      while ((session.getCycles() < cycles || !session.isParked()) && System.currentTimeMillis() < deadline)
+      {
+        Thread.sleep(1);
+      }
+    }
+  }
+
+  private OPS createTokenSession(int tokens)
+  {
+    OPS ops = new OPS();
+    ops.getWorkingMemory().literalize("token", "id");
+    for (int i = 0; i < tokens; i++)
+    {
+      ops.getWorkingMemory().make("token", "id", i);
+    }
+
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("token", "id", "$id"));
+
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new remove(), 0));
+
+    ops.addRule(new Rule("consume_token", query, productions));
+    return ops;
+  }
+}
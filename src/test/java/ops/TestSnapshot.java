@@ -0,0 +1,196 @@
+package ops;
+
+
+import ops.commands.write;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+
+public class TestSnapshot extends TestCase
+{
+  public void testRoundTrip()
+      throws Exception
+  {
+    OPS ops = new OPS();
+    WorkingMemory wm = ops.getWorkingMemory();
+    wm.literalize(new MemoryElement("goal", "type", null, "status", null));
+    wm.literalize(new MemoryElement("event", "id", null, "score", 0.0));
+    wm.make(new MemoryElement("goal", "type", "eat"));
+    for (int i = 0; i < 1000; i++)
+    {
+      wm.make(new MemoryElement("event", "id", i, "score", i / 2.0));
+    }
+    wm.drainInMemoryQueue();
+    MemoryElement goal = wm.get("goal").get(0);
+    wm.modify(goal, new String[] { "status" }, new Object[] { "done" });
+    wm.make(new MemoryElement("goal", "type", "sleep"));
+
+    File file = File.createTempFile("ops", ".snapshot");
+    file.deleteOnExit();
+    Snapshot.write(ops, file);
+
+    OPS restored = new OPS();
+    WorkingMemory rwm = restored.getWorkingMemory();
+    Snapshot.restore(restored, file);
+
+    assertEquals(wm.getNextTimeTag(), rwm.getNextTimeTag());
+    assertEquals(wm.getTemplate("event").Values, rwm.getTemplate("event").Values);
+    assertEquals(1, rwm.get("goal").size());
+    assertEquals("done", rwm.get("goal").get(0).Values.get("status"));
+    assertEquals(goal.TimeTag, rwm.get("goal").get(0).TimeTag);
+
+    List<MemoryElement> events = wm.get("event");
+    List<MemoryElement> restoredEvents = rwm.get("event");
+    assertEquals(events.size(), restoredEvents.size());
+    for (int i = 0; i < events.size(); i++)
+    {
+      assertEquals(events.get(i).TimeTag, restoredEvents.get(i).TimeTag);
+      assertEquals(events.get(i).Values, restoredEvents.get(i).Values);
+    }
+
+    assertTrue(rwm.HasQueuedItems());
+    rwm.drainInMemoryQueue();
+    assertEquals(2, rwm.get("goal").size());
+    assertEquals("sleep", rwm.get("goal").get(1).Values.get("type"));
+  }
+
+  public void testRefractionIsRestored()
+      throws Exception
+  {
+    List<String> lines = new ArrayList<String>();
+    OPS ops = createWriteOps(lines);
+    ops.getWorkingMemory().make(new MemoryElement("goal", "type", "a"));
+    ops.run();
+    assertEquals(1, lines.size());
+
+    File file = File.createTempFile("ops", ".snapshot");
+    file.deleteOnExit();
+    Snapshot.write(ops, file);
+
+    OPS restored = createWriteOps(lines);
+    Snapshot.restore(restored, file);
+    restored.run();
+    assertEquals(1, lines.size());
+
+    Snapshot.write(ops, file, false);
+    restored = createWriteOps(lines);
+    Snapshot.restore(restored, file);
+    restored.run();
+    assertEquals(2, lines.size());
+  }
+
+  public void testListenersAreToldOfRestore()
+      throws Exception
+  {
+    OPS ops = createWriteOps(new ArrayList<String>());
+    WorkingMemory wm = ops.getWorkingMemory();
+    List<QueryElement> conditions = new ArrayList<QueryElement>();
+    conditions.add(new QueryElement("goal", "type", "$type"));
+    wm.defineQuery(new Query("goals", conditions));
+
+    wm.make(new MemoryElement("goal", "type", "a"));
+    wm.drainInMemoryQueue();
+    File file = File.createTempFile("ops", ".snapshot");
+    file.deleteOnExit();
+    Snapshot.write(ops, file);
+
+    wm.remove(wm.get("goal").get(0));
+    wm.make(new MemoryElement("goal", "type", "b"));
+    wm.drainInMemoryQueue();
+
+    final List<String> deltas = new ArrayList<String>();
+    QueryView view = wm.openView("goals", new QueryListener()
+    {
+      @Override
+      public void added(QueryView view, List<QueryResult> rows)
+      {
+        for (QueryResult row : rows) deltas.add("+" + row.get("$type"));
+      }
+
+      @Override
+      public void removed(QueryView view, List<QueryResult> rows)
+      {
+        for (QueryResult row : rows) deltas.add("-" + row.get("$type"));
+      }
+    });
+    final int[] restores = new int[1];
+    ops.addListener(new EngineListener()
+    {
+      @Override
+      public void restored()
+      {
+        restores[0]++;
+      }
+    });
+
+    Snapshot.restore(ops, file);
+    assertEquals(1, restores[0]);
+    assertEquals(2, deltas.size());
+    assertEquals("-b", deltas.get(0));
+    assertEquals("+a", deltas.get(1));
+    assertEquals("a", view.getRows().iterator().next().get("$type"));
+    view.close();
+
+    File log = File.createTempFile("ops", ".wal");
+    log.deleteOnExit();
+    WriteAheadLog wal = WriteAheadLog.open(log, WriteAheadLog.SYNC_NEVER);
+    ops.setWriteAheadLog(wal);
+    try
+    {
+      Snapshot.restore(ops, file);
+      fail();
+    }
+    catch (IllegalStateException e)
+    {
+    }
+    ops.setWriteAheadLog(null);
+    wal.close();
+  }
+
+  public void testOtherVersionIsRejected()
+      throws Exception
+  {
+    OPS ops = new OPS();
+    ops.getWorkingMemory().literalize(new MemoryElement("goal", "type", null));
+    File file = File.createTempFile("ops", ".snapshot");
+    file.deleteOnExit();
+    Snapshot.write(ops, file);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(4);
+    raf.writeInt(2);
+    raf.close();
+
+    try
+    {
+      Snapshot.restore(new OPS(), file);
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+    }
+  }
+
+  private OPS createWriteOps(final List<String> lines)
+  {
+    OPS ops = new OPS();
+    ops.setOutputSink(new OutputSink()
+    {
+      public void writeLine(CharSequence line) { lines.add(line.toString()); }
+      public void flush() {}
+      public void close() {}
+    });
+    ops.getWorkingMemory().literalize(new MemoryElement("goal", "type", null));
+
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("goal", "type", "$type"));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new write(), "goal {0}", "$type"));
+    ops.addRule(new Rule("goal_write", query, productions));
+
+    return ops;
+  }
+}
@@ -0,0 +1,120 @@
+package ops;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONObject;
+
+
+public class TestValueSets extends RulebaseTestCase
+{
+  private OPS createOps(Map<String, Command> registry, String index)
+      throws Exception
+  {
+    StringBuilder rules = new StringBuilder();
+    rules.append("{\"name\": \"sets\", \"ops\": [");
+    rules.append("[\"literalize\", \"item\", \"id\", \"color\", \"size\"],");
+    rules.append("[\"literalize\", \"ban\", \"size\"],");
+    rules.append("[\"p\", \"warm\", [[\"item\", \"id\", \"$id\", \"color\", {\"in\": [\"red\", \"orange\", \"yellow\"]}]],");
+    rules.append("  [[\"write\", \"warm {0}\", \"$id\"]]],");
+    rules.append("[\"p\", \"plain\", [[\"item\", \"id\", \"$id\", \"color\", {\"in\": [null, \"grey\"]}, \"size\", {\"in\": [1, 2], \"<>\": 2}],");
+    rules.append("  [\"not\", \"ban\", \"size\", {\"in\": [1, 3]}]],");
+    rules.append("  [[\"write\", \"plain {0}\", \"$id\"]]],");
+    rules.append(index);
+    String[] colors = { "red", "blue", "yellow", "grey", null, "orange", "green", "red" };
+    for (int id = 0; id < colors.length; id++)
+    {
+      rules.append("[\"make\", \"item\", \"id\", ").append(id).append(", \"size\", ").append(id % 3);
+      if (colors[id] != null) rules.append(", \"color\", \"").append(colors[id]).append("\"");
+      rules.append("],");
+    }
+    rules.append("[\"make\", \"ban\", \"size\", 0]");
+    rules.append("]}");
+
+    return load(registry, rules);
+  }
+
+  public void testMembership()
+      throws Exception
+  {
+    OPS ops = createOps(OpsFactory.getDefaultRegistry(), "");
+    // items 3 (grey, size 0) and 4 (no color, size 1); size 0 is not in the set, so only 4
+    assertEquals(lines("plain 4", "warm 0", "warm 2", "warm 5", "warm 7"), run(ops));
+
+    WorkingMemory wm = ops.getWorkingMemory();
+    wm.make(new MemoryElement("ban", "size", 3));
+    wm.make(new MemoryElement("item", "id", 8, "color", "grey", "size", 1));
+    assertEquals(lines(), run(ops));
+  }
+
+  public void testIndexServesMembership()
+      throws Exception
+  {
+    List<String> scanned = run(createOps(OpsFactory.getDefaultRegistry(), ""));
+
+    OPS ops = createOps(OpsFactory.getDefaultRegistry(), "[\"index\", \"item\", \"color\"],");
+    ExplainPlan.Step items = ops.explain("warm").getSteps().get(0);
+    assertEquals("color", items.Index);
+    assertEquals(4, items.Scanned);
+    assertEquals(4, items.Passed);
+
+    items = ops.explain("plain").getSteps().get(0);
+    assertEquals("color", items.Index);
+    assertEquals(2, items.Scanned);
+
+    assertEquals(scanned, run(ops));
+  }
+
+  public void testSortedIndexLooksUpEachBucketOnce()
+  {
+    WorkingMemory wm = new WorkingMemory();
+    wm.literalize("item", "size");
+    wm.createIndex("item", "size", true);
+    wm.make(new MemoryElement("item", "size", 1));
+    wm.make(new MemoryElement("item", "size", 2));
+    wm.drainInMemoryQueue();
+
+    AttributeIndex index = wm.getIndex("item", "size");
+    List<Object> members = new ArrayList<Object>();
+    Collections.addAll(members, 1, 1.0, 2, 5);
+    assertEquals(2, index.getAll(members).size());
+    assertEquals(0, index.getAll(Collections.singletonList("x")).size());
+  }
+
+  public void testConstantsOnly()
+      throws Exception
+  {
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("item", "id", "$id"));
+    query.add(new QueryElement("item", "size", new JSONObject("{\"in\": [1, \"$id\"]}")));
+    try
+    {
+      new PreparedQuery(query, new HashMap<String, Integer>());
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+      assertTrue(e.getMessage().contains("constants"));
+    }
+  }
+
+  public void testCompiledRulebase()
+      throws Exception
+  {
+    Map<String, Command> registry = OpsFactory.getDefaultRegistry();
+    OPS ops = createOps(registry, "[\"index\", \"item\", \"color\"],");
+    List<String> expected = run(createOps(registry, ""));
+
+    File compiled = File.createTempFile("ops", ".opsb");
+    compiled.deleteOnExit();
+    RulebaseCodec.write(ops, registry, compiled);
+
+    OPS loaded = OpsFactory.create(registry, compiled);
+    loaded.setOutputSink(ops.getOutputSink());
+    assertEquals(expected, run(loaded));
+  }
+}
@@ -0,0 +1,167 @@
+package ops;
+
+
+import ops.commands.modify;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+
+public class TestWorkingMemoryVersion extends TestCase
+{
+  public void testVersionsAreImmutable()
+  {
+    WorkingMemory wm = new WorkingMemory();
+    for (int i = 0; i < 1000; i++)
+    {
+      wm.insert(new MemoryElement("item", "id", i, "where", "left"));
+    }
+    WorkingMemoryVersion first = wm.publish();
+    assertSame(first, wm.publish());
+
+    List<MemoryElement> items = wm.get("item");
+    for (int i = 0; i < 300; i++)
+    {
+      wm.remove(items.get(i * 2));
+    }
+    wm.modify(items.get(0), new String[] { "where" }, new Object[] { "right" });
+    wm.insert(new MemoryElement("item", "id", 1000, "where", "left"));
+    wm.insert(new MemoryElement("other", "id", 0));
+    WorkingMemoryVersion second = wm.publish();
+
+    assertEquals(1000, first.get("item").size());
+    assertNull(first.get("other"));
+    for (int i = 0; i < 1000; i++)
+    {
+      assertEquals(i, first.get("item").get(i).Values.get("id"));
+      assertEquals("left", first.get("item").get(i).Values.get("where"));
+    }
+
+    assertSame(first.get("item").get(999), second.get("item").get(second.get("item").size() - 2));
+    assertSameFacts(wm.get("item"), second.get("item"));
+    assertEquals("right", second.get("item").get(0).Values.get("where"));
+    assertEquals(1, second.get("other").size());
+    assertTrue(second.getVersion() > first.getVersion());
+
+    // emptied chunks are folded together
+    while (items.size() > 20)
+    {
+      wm.remove(items.get(items.size() / 2));
+    }
+    for (int i = 0; i < 500; i++)
+    {
+      wm.insert(new MemoryElement("item", "id", 2000 + i, "where", "left"));
+    }
+    assertSameFacts(wm.get("item"), wm.publish().get("item"));
+    assertEquals(701, second.get("item").size());
+  }
+
+  private void assertSameFacts(List<MemoryElement> live, List<MemoryElement> published)
+  {
+    assertEquals(live.size(), published.size());
+    int i = 0;
+    for (MemoryElement element : published)
+    {
+      assertEquals(live.get(i).TimeTag, element.TimeTag);
+      assertEquals(live.get(i).Values, element.Values);
+      assertSame(element, published.get(i));
+      i++;
+    }
+  }
+
+  public void testQueryVersion()
+  {
+    WorkingMemory wm = new WorkingMemory();
+    wm.insert(new MemoryElement("item", "id", 1, "where", "left"));
+    wm.insert(new MemoryElement("item", "id", 2, "where", "right"));
+
+    List<QueryElement> conditions = new ArrayList<QueryElement>();
+    conditions.add(new QueryElement("item", "id", "$id", "where", "$where"));
+    Query query = new Query("where", conditions, "$where");
+
+    WorkingMemoryVersion version = wm.publish();
+    wm.remove(wm.get("item").get(0));
+
+    assertEquals(1, version.query(query, "left").size());
+    assertEquals(0, query.execute(wm, "left").size());
+  }
+
+  // each cycle moves an item and its tag together, so every version a reader sees must agree on both
+  public void testReadWhileRunning()
+      throws Exception
+  {
+    final int count = 2000;
+    final OPS ops = new OPS();
+    WorkingMemory wm = ops.getWorkingMemory();
+    wm.literalize(new MemoryElement("item", "id", null, "where", null));
+    wm.literalize(new MemoryElement("tag", "id", null, "where", null));
+    for (int i = 0; i < count; i++)
+    {
+      wm.make(new MemoryElement("item", "id", i, "where", "left"));
+      wm.make(new MemoryElement("tag", "id", i, "where", "left"));
+    }
+    wm.drainInMemoryQueue();
+
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("item", "id", "$id", "where", "left"));
+    query.add(new QueryElement("tag", "id", "$id", "where", "left"));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new modify(), 0, "where", "right"));
+    productions.add(new ProductionSpec(new modify(), 1, "where", "right"));
+    ops.addRule(new Rule("move", query, productions));
+    wm.createIndex("tag", "id");
+
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    final int[] reads = new int[1];
+    Thread reader = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        long last = -1;
+        while (!ops.isHalted() || reads[0] == 0)
+        {
+          WorkingMemoryVersion version = ops.getWorkingMemoryVersion();
+          if (version.getVersion() < last)
+          {
+            failure.set("version went backwards");
+            return;
+          }
+          last = version.getVersion();
+
+          Map<Object, Object> items = new HashMap<Object, Object>();
+          for (MemoryElement item : version.get("item"))
+          {
+            items.put(item.Values.get("id"), item.Values.get("where"));
+          }
+          for (MemoryElement tag : version.get("tag"))
+          {
+            if (!tag.Values.get("where").equals(items.get(tag.Values.get("id"))))
+            {
+              failure.set("tag " + tag.Values + " disagrees with its item in version " + last);
+              return;
+            }
+          }
+          reads[0]++;
+        }
+      }
+    };
+
+    ops.awaitWorkingMemoryVersion();
+    reader.start();
+    ops.run();
+    reader.join();
+
+    assertNull(failure.get(), failure.get());
+    assertTrue(reads[0] > 0);
+
+    WorkingMemoryVersion last = ops.getWorkingMemoryVersion();
+    for (MemoryElement item : last.get("item"))
+    {
+      assertEquals("right", item.Values.get("where"));
+    }
+  }
+}
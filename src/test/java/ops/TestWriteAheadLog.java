@@ -0,0 +1,197 @@
+package ops;
+
+
+import ops.commands.make;
+import ops.commands.remove;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+
+public class TestWriteAheadLog extends TestCase
+{
+  public void testReplay()
+      throws Exception
+  {
+    File log = File.createTempFile("ops", ".wal");
+    log.deleteOnExit();
+
+    OPS ops = createOps();
+    ops.setWriteAheadLog(WriteAheadLog.open(log, WriteAheadLog.SYNC_COMMIT));
+    WorkingMemory wm = ops.getWorkingMemory();
+    for (int i = 0; i < 10; i++)
+    {
+      wm.make(new MemoryElement("event", "id", i));
+    }
+    wm.make(new MemoryElement("goal", "type", "keep"));
+    ops.run();
+    wm.drainInMemoryQueue();
+    wm.modify(wm.get("goal").get(0), new String[] { "type" }, new Object[] { "kept" });
+    ops.getWriteAheadLog().close();
+
+    assertEquals(0, wm.get("event").size());
+    assertEquals(10, wm.get("result").size());
+
+    OPS recovered = createOps();
+    assertTrue(WriteAheadLog.replay(recovered, log) > 0);
+    assertState(ops, recovered);
+
+    // nothing refires after recovery
+    recovered.run();
+    assertEquals(10, recovered.getWorkingMemory().get("result").size());
+  }
+
+  public void testFiredRuleIsFoundByPosition()
+      throws Exception
+  {
+    File log = File.createTempFile("ops", ".wal");
+    log.deleteOnExit();
+
+    OPS ops = createNamesakeOps();
+    WriteAheadLog wal = WriteAheadLog.open(log, WriteAheadLog.SYNC_NEVER);
+    ops.setWriteAheadLog(wal);
+    ops.getWorkingMemory().make(new MemoryElement("goal", "type", "a"));
+    ops.run();
+    ops.setWriteAheadLog(null);
+    wal.close();
+    assertEquals(1, ops.getWorkingMemory().get("result").size());
+
+    // the second of two rules named alike fired, so replay must not mark the first instead
+    OPS recovered = createNamesakeOps();
+    WriteAheadLog.replay(recovered, log);
+    recovered.run();
+    assertEquals(1, recovered.getWorkingMemory().get("result").size());
+  }
+
+  public void testCycleIsLoggedWithItsMakes()
+      throws Exception
+  {
+    File log = File.createTempFile("ops", ".wal");
+    log.deleteOnExit();
+
+    OPS ops = createOps();
+    WriteAheadLog wal = WriteAheadLog.open(log, WriteAheadLog.SYNC_NEVER);
+    ops.setWriteAheadLog(wal);
+    ops.getWorkingMemory().make(new MemoryElement("event", "id", 1));
+    assertEquals(1, ops.step(1));
+
+    // the process dies here, with the log left as the cycle committed it
+    OPS recovered = createOps();
+    WriteAheadLog.replay(recovered, log);
+    wal.close();
+
+    WorkingMemory rwm = recovered.getWorkingMemory();
+    assertEquals(0, rwm.get("event").size());
+    assertEquals(1, rwm.get("result").size());
+    assertEquals(1, rwm.get("result").get(0).Values.get("id"));
+  }
+
+  public void testTornFrameIsIgnored()
+      throws Exception
+  {
+    File log = File.createTempFile("ops", ".wal");
+    log.deleteOnExit();
+
+    OPS ops = createOps();
+    WriteAheadLog wal = WriteAheadLog.open(log, WriteAheadLog.SYNC_NEVER);
+    ops.setWriteAheadLog(wal);
+    ops.getWorkingMemory().make(new MemoryElement("goal", "type", "a"));
+    ops.run();
+    wal.close();
+
+    long valid = log.length();
+    RandomAccessFile raf = new RandomAccessFile(log, "rw");
+    raf.seek(valid);
+    raf.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+    raf.close();
+
+    OPS recovered = createOps();
+    WriteAheadLog.replay(recovered, log);
+    assertEquals(1, recovered.getWorkingMemory().get("goal").size());
+
+    WriteAheadLog.open(log, WriteAheadLog.SYNC_NEVER).close();
+    assertEquals(valid, log.length());
+  }
+
+  public void testCheckpointTruncates()
+      throws Exception
+  {
+    File log = File.createTempFile("ops", ".wal");
+    log.deleteOnExit();
+    File snapshot = File.createTempFile("ops", ".snapshot");
+    snapshot.deleteOnExit();
+
+    OPS ops = createOps();
+    WriteAheadLog wal = WriteAheadLog.open(log, WriteAheadLog.SYNC_INTERVAL);
+    ops.setWriteAheadLog(wal);
+    WorkingMemory wm = ops.getWorkingMemory();
+    for (int i = 0; i < 5; i++)
+    {
+      wm.make(new MemoryElement("event", "id", i));
+    }
+    ops.run(3);
+
+    wal.checkpoint(ops, snapshot);
+    assertEquals(0, wal.size());
+
+    ops.run();
+    wal.close();
+
+    OPS recovered = createOps();
+    Snapshot.restore(recovered, snapshot);
+    WriteAheadLog.replay(recovered, log);
+    assertState(ops, recovered);
+  }
+
+  private void assertState(OPS expected, OPS actual)
+  {
+    WorkingMemory wm = expected.getWorkingMemory();
+    WorkingMemory rwm = actual.getWorkingMemory();
+    assertEquals(wm.getNextTimeTag(), rwm.getNextTimeTag());
+
+    for (String type : wm.getTypes())
+    {
+      List<MemoryElement> elements = wm.get(type);
+      List<MemoryElement> restored = rwm.get(type);
+      assertEquals(elements.size(), restored.size());
+      for (int i = 0; i < elements.size(); i++)
+      {
+        assertEquals(elements.get(i).TimeTag, restored.get(i).TimeTag);
+        assertEquals(elements.get(i).Values, restored.get(i).Values);
+      }
+    }
+  }
+
+  private OPS createNamesakeOps()
+  {
+    OPS ops = createOps();
+
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("goal", "type", "$type"));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new make(), "result", "id", "$type"));
+    ops.addRule(new Rule("consume", query, productions));
+
+    return ops;
+  }
+
+  private OPS createOps()
+  {
+    OPS ops = new OPS();
+    WorkingMemory wm = ops.getWorkingMemory();
+    wm.literalize(new MemoryElement("event", "id", null));
+    wm.literalize(new MemoryElement("result", "id", null));
+    wm.literalize(new MemoryElement("goal", "type", null));
+
+    List<QueryElement> query = new ArrayList<QueryElement>();
+    query.add(new QueryElement("event", "id", "$id"));
+    List<ProductionSpec> productions = new ArrayList<ProductionSpec>();
+    productions.add(new ProductionSpec(new make(), "result", "id", "$id"));
+    productions.add(new ProductionSpec(new remove(), 0));
+    ops.addRule(new Rule("consume", query, productions));
+
+    return ops;
+  }
+}
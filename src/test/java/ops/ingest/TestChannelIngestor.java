@@ -0,0 +1,76 @@
+package ops.ingest;
+
+
+import ops.MemoryElement;
+import ops.WorkingMemory;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+
+public class TestChannelIngestor extends TestCase
+{
+  public void testDecodeLines()
+  {
+    JsonLineDecoder decoder = new JsonLineDecoder();
+    List<MemoryElement> out = new ArrayList<MemoryElement>();
+
+    ByteBuffer buffer = ByteBuffer.wrap(
+      ("[\"sphrase\", \"actor\", \"Bri\\\"an\", \"count\", 3, \"score\", 1.5, \"ok\", true, \"object\", null]\n" +
+       "\n" +
+       "[\"goal\", \"type\", \"gen").getBytes());
+
+    decoder.decode(buffer, out);
+
+    assertEquals(1, out.size());
+    assertEquals("sphrase", out.get(0).Type);
+    assertEquals("Bri\"an", out.get(0).Values.get("actor"));
+    assertEquals(3, out.get(0).Values.get("count"));
+    assertEquals(1.5, out.get(0).Values.get("score"));
+    assertEquals(Boolean.TRUE, out.get(0).Values.get("ok"));
+    assertTrue(out.get(0).Values.containsKey("object"));
+    assertEquals("[\"goal\", \"type\", \"gen".length(), buffer.remaining());
+  }
+
+  public void testTailAndSocket()
+      throws Exception
+  {
+    WorkingMemory wm = new WorkingMemory();
+    wm.literalize("goal", "type", "status");
+
+    File file = File.createTempFile("ops", ".ndjson");
+    file.deleteOnExit();
+
+    ChannelIngestor ingestor = new ChannelIngestor(wm, new JsonLineDecoder());
+    ingestor.tail(file, true);
+    int port = ingestor.listen(0);
+    ingestor.start();
+
+    OutputStream fileOut = new FileOutputStream(file, true);
+    fileOut.write("[\"goal\", \"type\", \"a\"]\n[\"goal\", \"type\"".getBytes());
+    fileOut.flush();
+
+    Socket socket = new Socket("127.0.0.1", port);
+    socket.getOutputStream().write("[\"goal\", \"type\", \"b\"]\n[\"goal\", \"type\", \"c\"]".getBytes());
+    socket.close();
+
+    fileOut.write(", \"d\"]\n".getBytes());
+    fileOut.close();
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (ingestor.getRecordCount() < 4 && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(10);
+    }
+    ingestor.close();
+
+    wm.drainInMemoryQueue();
+    assertEquals(4, wm.get("goal").size());
+    assertTrue(wm.get("goal").get(0).Values.containsKey("status"));
+  }
+}
@@ -0,0 +1,105 @@
+package ops.load;
+
+
+import ops.OPS;
+import ops.OpsFactory;
+import ops.WorkingMemory;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.json.JSONObject;
+
+
+public class TestLoadGenerator extends TestCase
+{
+  private static final String RULES =
+    "{\"name\": \"load\", \"ops\": [" +
+    "  [\"literalize\", \"order\", \"id\", \"region\", \"amount\"]," +
+    "  [\"literalize\", \"total\", \"region\", \"count\"]," +
+    "  [\"p\", \"consume\", [[\"order\", \"region\", \"$r\"]], [[\"remove\", 0]]]" +
+    "]}";
+
+  public void testHistogramPercentiles()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 100000; i++)
+    {
+      histogram.record(i * 1000);
+    }
+
+    assertEquals(100000, histogram.getCount());
+    assertEquals(1000, histogram.getMin());
+    assertEquals(100000000, histogram.getMax());
+    assertEquals(50000500.0, histogram.getMean(), 1e-3);
+    assertEquals(50000000, histogram.getValueAtPercentile(50), 50000000 * 0.01);
+    assertEquals(99000000, histogram.getValueAtPercentile(99), 99000000 * 0.01);
+    assertEquals(99900000, histogram.getValueAtPercentile(99.9), 99900000 * 0.01);
+    assertEquals(100000000, histogram.getValueAtPercentile(100));
+
+    LatencyHistogram small = new LatencyHistogram();
+    small.record(7);
+    histogram.add(small);
+    assertEquals(7, histogram.getMin());
+    assertEquals(7, histogram.getValueAtPercentile(0.0001));
+  }
+
+  public void testBucketsCoverTheRange()
+  {
+    long[] values = { 0, 1, 255, 256, 257, 511, 512, 1000, 123456789L, Long.MAX_VALUE };
+    int last = -1;
+    for (long value : values)
+    {
+      int index = LatencyHistogram.index(value);
+      assertTrue(index >= last);
+      assertTrue(LatencyHistogram.highestValue(index) >= value);
+      assertTrue(LatencyHistogram.highestValue(index) - value <= value / 128);
+      last = index;
+    }
+  }
+
+  public void testMeasuresReactions()
+      throws Exception
+  {
+    OPS ops = new OPS(new WorkingMemory(true));
+    OpsFactory.load(OpsFactory.getDefaultRegistry(), new JSONObject(RULES), ops);
+
+    FactSchema orders = new FactSchema(new JSONObject(
+      "{\"type\": \"order\", \"values\": {\"id\": \"$seq\", \"region\": [\"eu\", \"us\"], \"amount\": {\"min\": 1, \"max\": 10}}}"));
+    FactSchema totals = new FactSchema(new JSONObject("{\"type\": \"total\", \"weight\": 1, \"values\": {\"count\": 0}}"));
+
+    LoadGenerator generator = new LoadGenerator(ops, Arrays.asList(orders));
+    generator.setProducers(2);
+    generator.setFactsPerProducer(2000);
+    generator.setWarmupPerProducer(100);
+    generator.setRatePerProducer(20000);
+    LoadGenerator.Result result = generator.run();
+
+    assertEquals(4000, result.Facts);
+    assertEquals(4000, result.Reacted);
+    assertEquals(4000, result.Cycles);
+    assertEquals(3800, result.Latency.getCount());
+    assertTrue(result.Latency.getValueAtPercentile(50) <= result.Latency.getValueAtPercentile(99));
+    assertTrue(result.getThroughput() > 0);
+    assertTrue(ops.getWorkingMemory().get("order").isEmpty());
+
+    // nothing reacts to totals, so only the orders are counted once the drain times out
+    generator = new LoadGenerator(ops, Arrays.asList(orders, totals));
+    generator.setFactsPerProducer(500);
+    generator.setWarmupPerProducer(0);
+    generator.setDrainTimeout(200);
+    result = generator.run();
+    assertEquals(500, result.Facts);
+    assertEquals(500 - ops.getWorkingMemory().get("total").size(), result.Reacted);
+  }
+
+  public void testRequiresAWaitingSession()
+  {
+    try
+    {
+      new LoadGenerator(new OPS(), Arrays.<FactSchema>asList());
+      fail();
+    }
+    catch (IllegalArgumentException e)
+    {
+    }
+  }
+}